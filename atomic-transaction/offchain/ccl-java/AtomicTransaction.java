@@ -6,14 +6,19 @@
 //DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
 //DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
 //DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ../../../shared/ccl-java/TxSubmitter.java
+//SOURCES ../../../shared/ccl-java/LedgerFixture.java
+//SOURCES ../../../shared/ccl-java/PerfHistory.java
+//SOURCES ../../../shared/ccl-java/Scenario.java
+//SOURCES ../../../shared/ccl-java/ScriptRegistry.java
+//SOURCES ../../../shared/ccl-java/TxOptimizer.java
+//SOURCES ../../../shared/ccl-java/RecordedBackend.java
 // @formatter:on
 
 import java.math.BigInteger;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
-import java.util.List;
-
 import com.bloxbean.cardano.client.account.Account;
 import com.bloxbean.cardano.client.address.Address;
 import com.bloxbean.cardano.client.address.AddressProvider;
@@ -27,9 +32,7 @@ import com.bloxbean.cardano.client.backend.blockfrost.service.BFBackendService;
 import com.bloxbean.cardano.client.common.model.Network;
 import com.bloxbean.cardano.client.common.model.Networks;
 import com.bloxbean.cardano.client.function.helper.SignerProviders;
-import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
 import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
-import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusContractBlueprint;
 import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
 import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
 import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
@@ -46,7 +49,9 @@ public class AtomicTransaction {
 
         // Backend service to connect to Cardano node. Here we are using Blockfrost as
         // an example.
-        static BackendService backendService = new BFBackendService("http://localhost:8081/api/v1/", "Dummy Key");
+        // Recorded to BACKEND_RECORD or replayed from BACKEND_REPLAY when set
+        static RecordedBackend backend = RecordedBackend.fromEnvironment(new BFBackendService("http://localhost:8081/api/v1/", "Dummy Key"));
+        static BackendService backendService = backend.backendService();
         static UtxoSupplier utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
 
         // Dummy mnemonic for the example. Replace with a valid mnemonic.
@@ -62,70 +67,92 @@ public class AtomicTransaction {
         static QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
         static PlutusScript plutusScript = getPlutusScript();
         static Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
+        // Step measurements, appended to the performance history in CI
+        static PerfHistory.Recorder perf = PerfHistory.recorder("atomic-transaction", backendService);
+        // Trims the balanced transactions before signing, off with TX_OPTIMIZER=off
+        static TxOptimizer txOptimizer = TxOptimizer.fromEnvironment();
+        // Restores the funded script address of an earlier run instead of funding it again
+        static LedgerFixture fixture = LedgerFixture.of("atomic-transaction", backendService);
 
         public static void main(String[] args) throws ApiException, InterruptedException {
-
+                Scenario scenario = new Scenario("atomic-transaction");
                 // Fund the script address first
+                Scenario.Step<TxResult> fund = scenario.step("fund", () -> fundScript(10));
+                Scenario.Step<Utxo> scriptUtxo = scenario.step("script-utxo",
+                                () -> utxoSupplier.getAll(scriptAddress.getAddress()).getFirst())
+                                .after(fund);
+                // Both attempts spend the same script UTXO, so the correct password only runs once the
+                // wrong one was rejected
+                Scenario.Step<TxResult> wrongPassword = scenario.step("wrong-password",
+                                () -> unlockAndMint("wrong-password", scriptUtxo.get(), "wrong_password"))
+                                .after(scriptUtxo);
+                Scenario.Step<TxResult> correctPassword = scenario.step("correct-password",
+                                () -> unlockAndMint("correct-password", scriptUtxo.get(), "super_secret_password"))
+                                .after(wrongPassword);
+                scenario.run();
+
+                System.out.println("Script Address Funded in Tx: " + fund.get());
+                TxResult txWrongPassword = wrongPassword.get();
+                System.out.println("Transaction with wrong password failed as expected: "
+                                + txWrongPassword.isSuccessful());
+                TxResult txCorrectPassword = correctPassword.get();
+                System.out.println("Transaction with correct password success: "
+                                + txCorrectPassword.isSuccessful());
+                scenario.printStats();
+                txOptimizer.printStats();
+                backend.printStats();
+                fixture.printStats();
+                perf.record("scenario", "wall_ms", scenario.wallMillis());
+                perf.record("optimizer", "size_bytes", txOptimizer.sizeBytes());
+                perf.record("optimizer", "fee_lovelace", txOptimizer.feeLovelace().doubleValue());
+                perf.close();
+                if (txWrongPassword.isSuccessful() || !txCorrectPassword.isSuccessful())
+                        throw new AssertionError("AtomicTransaction CCL test failed");
+        }
+
+        private static TxResult fundScript(int adaAmount) throws InterruptedException {
                 Tx tx = new Tx()
-                                .payToAddress(scriptAddress.getAddress(), Amount.ada(10))
+                                .payToAddress(scriptAddress.getAddress(), Amount.ada(adaAmount))
                                 .from(account.baseAddress());
-                TxResult scriptTopUp = quickTxBuilder.compose(tx)
-                                .withSigner(SignerProviders.signerFrom(account))
-                                .feePayer(account.baseAddress())
-                                .completeAndWait();
-                System.out.println("Script Address Funded in Tx: " + scriptTopUp);
-
-                UtxoSupplier utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
-                List<Utxo> utxos = utxoSupplier.getAll(scriptAddress.getAddress());
-                Utxo utxoToUnlock = utxos.getFirst();
-                // Now try to unlock the script UTXO and mint a demo token with the wrong password
-                // Since transactions in cardano are atomic eventhough the spend is always true
-                // the transaction will fail since the wrong password is provided
-                ScriptTx scriptTxWrongPassword = new ScriptTx()
-                                .collectFrom(utxoToUnlock, PlutusData.unit())
-                                .payToAddress(account.baseAddress(), Amount.ada(10))
-                                .mintAsset(plutusScript,
-                                                Asset.builder().name("TestAsset").value(BigInteger.ONE).build(),
-                                                ConstrPlutusData.builder().alternative(0)
-                                                                .data(ListPlutusData.of(BytesPlutusData
-                                                                                .of("wrong_password")))
-                                                                .build(),
-                                                account.baseAddress())
-                                .attachSpendingValidator(plutusScript);
-                TxResult txWrongPassword = quickTxBuilder.compose(scriptTxWrongPassword)
-                                .withSigner(SignerProviders.signerFrom(account))
-                                .feePayer(account.baseAddress())
-                                .completeAndWait();
-                System.out.println("Transaction with wrong password failed as expected: " + txWrongPassword.isSuccessful());
+                return perf.tx("fund", () -> fixture.setup("fund",
+                                attempt -> TxSubmitter.SignedTx.of(quickTxBuilder.compose(tx)
+                                                .withSigner(SignerProviders.signerFrom(account))
+                                                .feePayer(account.baseAddress())
+                                                .postBalanceTx(txOptimizer.pass("fund", account.baseAddress()))
+                                                .buildAndSign())));
+        }
 
-                // // Now try to unlock the script UTXO and mint a demo token with the correct password
-                // Since both verifications will pass, the transaction will be successful
-                ScriptTx scriptTxCorrectPassword = new ScriptTx()
+        /**
+         * Unlocks the script UTXO and mints a demo token in one transaction. The
+         * spend is always true, but since transactions in cardano are atomic the
+         * whole transaction fails if the mint policy rejects the password.
+         */
+        private static TxResult unlockAndMint(String step, Utxo utxoToUnlock, String password) {
+                ScriptTx scriptTx = new ScriptTx()
                                 .collectFrom(utxoToUnlock, PlutusData.unit())
                                 .payToAddress(account.baseAddress(), Amount.ada(10))
                                 .mintAsset(plutusScript,
                                                 Asset.builder().name("TestAsset").value(BigInteger.ONE).build(),
                                                 ConstrPlutusData.builder().alternative(0)
                                                                 .data(ListPlutusData.of(BytesPlutusData
-                                                                                .of("super_secret_password")))
+                                                                                .of(password)))
                                                                 .build(),
                                                 account.baseAddress())
                                 .attachSpendingValidator(plutusScript);
-                TxResult txCorrectPassword = quickTxBuilder.compose(scriptTxCorrectPassword)
+                return perf.tx(step, () -> quickTxBuilder.compose(scriptTx)
                                 .withSigner(SignerProviders.signerFrom(account))
                                 .feePayer(account.baseAddress())
-                                .completeAndWait();
-                System.out.println("Transaction with correct password success: " + txCorrectPassword.isSuccessful());
+                                .postBalanceTx(txOptimizer.pass(step, account.baseAddress()))
+                                .completeAndWait());
         }
 
         private static PlutusScript getPlutusScript() {
                 String workingDir = System.getProperty("user.dir");
                 Path plutusJsonPath = Paths.get(workingDir, "..", "onchain", "aiken", "plutus.json");
 
-                PlutusContractBlueprint plutusContractBlueprint = PlutusBlueprintLoader
-                                .loadBlueprint(plutusJsonPath.toFile());
-                String simpleTransferCompiledCode = plutusContractBlueprint.getValidators().getFirst()
-                                .getCompiledCode();
+                // Mapped from the packed script registry when SCRIPT_REGISTRY is set
+                String simpleTransferCompiledCode = ScriptRegistry.compiledCode("atomic-transaction",
+                                plutusJsonPath.toFile());
 
                 PlutusScript plutusScript = PlutusBlueprintUtil.getPlutusScriptFromCompiledCode(
                                 simpleTransferCompiledCode,
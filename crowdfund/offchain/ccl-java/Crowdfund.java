@@ -8,10 +8,22 @@
 //DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
 //DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
 //DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ../../../shared/ccl-java/ValidityWindow.java
+//SOURCES ../../../shared/ccl-java/TxSubmitter.java
+//SOURCES ../../../shared/ccl-java/LedgerFixture.java
+//SOURCES ../../../shared/ccl-java/PerfHistory.java
+//SOURCES ../../../shared/ccl-java/Scenario.java
+//SOURCES ../../../shared/ccl-java/ScriptRegistry.java
+//SOURCES ../../../shared/ccl-java/TxOptimizer.java
+//SOURCES ../../../shared/ccl-java/RecordedBackend.java
 // @formatter:on
 
 import java.io.File;
+import java.math.BigInteger;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.bloxbean.cardano.aiken.AikenScriptUtil;
 import com.bloxbean.cardano.client.account.Account;
@@ -27,9 +39,7 @@ import com.bloxbean.cardano.client.backend.blockfrost.service.BFBackendService;
 import com.bloxbean.cardano.client.common.model.Network;
 import com.bloxbean.cardano.client.common.model.Networks;
 import com.bloxbean.cardano.client.function.helper.SignerProviders;
-import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
 import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
-import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusContractBlueprint;
 import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
 import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
 import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
@@ -49,7 +59,9 @@ public class Crowdfund {
 
     // Backend service to connect to Cardano node. Here we are using Blockfrost as
     // an example.
-    static BackendService backendService = new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key");
+    // Recorded to BACKEND_RECORD or replayed from BACKEND_REPLAY when set
+    static RecordedBackend backend = RecordedBackend.fromEnvironment(new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key"));
+    static BackendService backendService = backend.backendService();
     static UtxoSupplier utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
 
     // Dummy mnemonic for the example. Replace with a valid mnemonic.
@@ -67,6 +79,19 @@ public class Crowdfund {
     // might have a different address for the receiver.
     static Address receiverAddress = initiator.getBaseAddress();
     static QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
+    // Validity ranges are derived from the measured confirmation latency, instead of slot + 10 before
+    static ValidityWindow validityWindow = new ValidityWindow(backendService, 10);
+    // Donations race for the single script UTxO, the submitter rebuilds them when it moved
+    static TxSubmitter txSubmitter = TxSubmitter.of(backendService);
+    // Step measurements, appended to the performance history in CI
+    static PerfHistory.Recorder perf = PerfHistory.recorder("crowdfund", backendService);
+    // Trims the balanced transactions before signing, off with TX_OPTIMIZER=off
+    static TxOptimizer txOptimizer = TxOptimizer.fromEnvironment();
+    // Restores the initialized crowdfund of an earlier run instead of initializing it again
+    static LedgerFixture fixture = LedgerFixture.of("crowdfund", backendService);
+    // Withdraw and reclaim are only allowed after the deadline. It is kept with the
+    // fixture, since the script address and so the captured init depend on it
+    static long deadline = fixture.parameter("deadline", backend.currentTimeMillis());
     static PlutusScript plutusScript = getParametrisedPlutusScript();
     static Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
 
@@ -83,11 +108,13 @@ public class Crowdfund {
                                 donorsMap))
                 .from(initiator.baseAddress())
                 .withChangeAddress(initiator.baseAddress());
-        TxResult initTx = quickTxBuilder.compose(tx)
-                .feePayer(initiator.baseAddress())
-                .withSigner(SignerProviders.signerFrom(initiator))
-                .completeAndWait();
-        System.out.println("Crowdfund initialized. Tx Hash: " + initTx.getTxHash());
+        Scenario scenario = new Scenario("crowdfund", backend.clock());
+        Scenario.Step<TxResult> init = scenario.step("init", () -> perf.tx("init", () -> fixture.setup("init",
+                attempt -> TxSubmitter.SignedTx.of(quickTxBuilder.compose(tx)
+                        .feePayer(initiator.baseAddress())
+                        .postBalanceTx(txOptimizer.pass("init", initiator.baseAddress()))
+                        .withSigner(SignerProviders.signerFrom(initiator))
+                        .buildAndSign()))));
 
         // Reclaiming the funds after the crowdfund the deadline is exceeded and the
         // goal is not reached
@@ -96,21 +123,38 @@ public class Crowdfund {
         // System.out.println("Reclaim Tx Hash: " + reclaimResult.getTxHash());
         // System.out.print(reclaimResult);
 
-        TxResult donateTxResult = getDonateTxResult(donater, 5, donorsMap);
-        System.out.println("Donation made. Tx Hash: " + donateTxResult.getTxHash());
+        Scenario.Step<TxResult> donate = scenario.step("donate", () -> getDonateTxResult(donater, 5))
+                .after(init);
 
-        // Now we can claim the funds by providing the secret answer
-        TxResult claimTxResult = getClaimTxResult(beneficiar, 10);
+        // Now we can claim the funds, as soon as the deadline has passed
+        Scenario.Step<TxResult> claim = scenario.step("claim", () -> getClaimTxResult(beneficiar, 10))
+                .after(donate)
+                .notBefore(deadline);
+        scenario.run();
+
+        System.out.println("Crowdfund initialized. Tx Hash: " + init.get().getTxHash());
+        System.out.println("Donation made. Tx Hash: " + donate.get().getTxHash());
+        TxResult claimTxResult = claim.get();
         System.out.println("Funds claimed by beneficiar. Tx Hash: " +
                 claimTxResult.getTxHash());
 
+        validityWindow.printStats();
+        txSubmitter.printStats();
+        fixture.printStats();
+        scenario.printStats();
+        txOptimizer.printStats();
+        backend.printStats();
+        perf.record("scenario", "wall_ms", scenario.wallMillis());
+        perf.record("optimizer", "size_bytes", txOptimizer.sizeBytes());
+        perf.record("optimizer", "fee_lovelace", txOptimizer.feeLovelace().doubleValue());
+        perf.close();
         if (!claimTxResult.isSuccessful())
             throw new AssertionError("Crowdfund CCL test failed");
     }
 
     private static TxResult getReclaimTxResult(Account initiator, int adaAmount)
             throws ApiException {
-        long slot = backendService.getBlockService().getLatestBlock().getValue().getSlot();
+        ValidityWindow.Range range = validityWindow.next(deadline, Long.MAX_VALUE);
         List<Utxo> scriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
         System.out.println("Script UTXOs: " + scriptUtxos);
         ScriptTx reclaimTx = new ScriptTx()
@@ -121,56 +165,90 @@ public class Crowdfund {
                 .attachSpendingValidator(plutusScript)
                 .payToAddress(initiator.baseAddress(), Amount.ada(adaAmount))
                 .withChangeAddress(scriptAddress.getAddress());
-        TxResult reclaimTxResult = quickTxBuilder.compose(reclaimTx)
+        TxResult reclaimTxResult = perf.tx("reclaim", () -> quickTxBuilder.compose(reclaimTx)
                 .feePayer(initiator.baseAddress())
-                .validFrom(slot)
-                .validTo(slot + 10) // Set a valid to slot for the transaction
+                .postBalanceTx(txOptimizer.pass("reclaim", initiator.baseAddress()))
+                .validFrom(range.validFrom())
+                .validTo(range.validTo())
                 .withRequiredSigners(initiator.getBaseAddress())
                 .withSigner(SignerProviders.signerFrom(initiator))
-                .completeAndWait();
+                .completeAndWait());
+        validityWindow.recordInclusion(range, reclaimTxResult);
         return reclaimTxResult;
     }
 
-    private static TxResult getDonateTxResult(Account account, int adaMount, MapPlutusData donorsMap)
-            throws ApiException {
-        BytesPlutusData paymentCredentialHashBytes = BytesPlutusData
-                .of(account.getBaseAddress().getPaymentCredentialHash().get());
-
-        if (donorsMap.getMap().containsKey(paymentCredentialHashBytes)) {
-            donorsMap.getMap().replace(paymentCredentialHashBytes,
-                    BigIntPlutusData.of(((BigIntPlutusData) donorsMap.getMap().get(paymentCredentialHashBytes))
-                            .getValue().intValue() + adaMount * 1_000_000L));
-        } else {
-            donorsMap.getMap().put(paymentCredentialHashBytes, BigIntPlutusData.of(adaMount * 1_000_000L));
-        }
-
-        // Now we can make a donation to the crowdfund
-        List<Utxo> scriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
-        long slot = backendService.getBlockService().getLatestBlock().getValue().getSlot();
-        ScriptTx donateTx = new ScriptTx()
-                .collectFrom(scriptUtxos.getFirst(), ConstrPlutusData.builder()
-                        .alternative(0)
-                        .data(ListPlutusData.of())
-                        .build())
-                .attachSpendingValidator(plutusScript)
-                .payToContract(scriptAddress.getAddress(), Amount.ada(10),
-                        ConstrPlutusData.of(0,
-                                donorsMap))
-                .withChangeAddress(donater.baseAddress());
-        TxResult donateTxResult = quickTxBuilder.compose(donateTx)
-                .feePayer(donater.baseAddress())
-                .validFrom(slot)
-                .validTo(slot + 10) // Set a valid to slot for the transaction
-                .withRequiredSigners(donater.getBaseAddress())
-                .withSigner(SignerProviders.signerFrom(donater)).completeAndWait();
+    private static TxResult getDonateTxResult(Account account, int adaMount)
+            throws ApiException, InterruptedException {
+        BytesPlutusData donor = BytesPlutusData.of(account.getBaseAddress().getPaymentCredentialHash().get());
+        // Added as BigInteger, an int of lovelace overflows above 2,147 ADA
+        BigInteger donation = BigInteger.valueOf(adaMount * 1_000_000L);
+
+        // Now we can make a donation to the crowdfund. Every attempt reads the donors
+        // of the current script UTxO, which another donor may have spent first, adds
+        // the donation and pays the new total back to the script. The submitter never
+        // submits a rebuild once an earlier attempt is on chain, so the donation is
+        // only ever added once.
+        Map<String, ValidityWindow.Range> ranges = new HashMap<>();
+        AtomicReference<TxSubmitter.Outcome> outcome = new AtomicReference<>();
+        TxResult donateTxResult = perf.tx("donate", () -> {
+            outcome.set(txSubmitter.submit(attempt -> {
+                Utxo scriptUtxo = utxoSupplier.getAll(scriptAddress.getAddress()).getFirst();
+                MapPlutusData donors = new MapPlutusData();
+                BigInteger total = BigInteger.ZERO;
+                for (Map.Entry<PlutusData, PlutusData> entry : donors(scriptUtxo).getMap().entrySet()) {
+                    BigInteger amount = ((BigIntPlutusData) entry.getValue()).getValue();
+                    if (entry.getKey().equals(donor))
+                        amount = amount.add(donation);
+                    donors.put(entry.getKey(), BigIntPlutusData.of(amount));
+                    total = total.add(amount);
+                }
+                if (!donors.getMap().containsKey(donor)) {
+                    donors.put(donor, BigIntPlutusData.of(donation));
+                    total = total.add(donation);
+                }
+                ValidityWindow.Range range = validityWindow.next();
+                ScriptTx donateTx = new ScriptTx()
+                        .collectFrom(scriptUtxo, ConstrPlutusData.builder()
+                                .alternative(0)
+                                .data(ListPlutusData.of())
+                                .build())
+                        .attachSpendingValidator(plutusScript)
+                        .payToContract(scriptAddress.getAddress(), Amount.lovelace(total),
+                                ConstrPlutusData.of(0,
+                                        donors))
+                        .withChangeAddress(donater.baseAddress());
+                TxSubmitter.SignedTx signed = TxSubmitter.SignedTx.of(quickTxBuilder.compose(donateTx)
+                        .feePayer(donater.baseAddress())
+                        .postBalanceTx(txOptimizer.pass("donate", donater.baseAddress()))
+                        .validFrom(range.validFrom())
+                        .validTo(range.validTo())
+                        .withRequiredSigners(donater.getBaseAddress())
+                        .withSigner(SignerProviders.signerFrom(donater))
+                        .buildAndSign());
+                ranges.put(signed.txHash(), range);
+                return signed;
+            }));
+            return outcome.get().toTxResult();
+        });
+        System.out.println("Donation confirmed after %d attempt(s)".formatted(outcome.get().attempts()));
+        perf.record("donate", "attempts", outcome.get().attempts());
+        // The included transaction may be an earlier attempt than the last one built
+        ValidityWindow.Range range = ranges.get(outcome.get().txHash());
+        if (range != null)
+            validityWindow.recordInclusion(range, donateTxResult);
         return donateTxResult;
     }
 
+    // The donor map of the crowdfund datum, constructor 0 with the map as its only field
+    private static MapPlutusData donors(Utxo scriptUtxo) throws Exception {
+        PlutusData datum = PlutusData.deserialize(HexUtil.decodeHexString(scriptUtxo.getInlineDatum()));
+        return (MapPlutusData) ((ConstrPlutusData) datum).getData().getPlutusDataList().getFirst();
+    }
+
     private static TxResult getClaimTxResult(Account beneficiar, int adaAmount)
-            throws InterruptedException, ApiException {
-        Thread.sleep(20000); // Sleep for 25 seconds to simulate some delay
+            throws ApiException {
         List<Utxo> scriptUtxos2 = utxoSupplier.getAll(scriptAddress.getAddress());
-        long slot2 = backendService.getBlockService().getLatestBlock().getValue().getSlot();
+        ValidityWindow.Range range = validityWindow.next(deadline, Long.MAX_VALUE);
         ScriptTx claimTx = new ScriptTx()
                 .collectFrom(scriptUtxos2.getFirst(), ConstrPlutusData.builder()
                         .alternative(1)
@@ -180,31 +258,32 @@ public class Crowdfund {
                 .payToAddress(beneficiar.baseAddress(), Amount.ada(
                         adaAmount), plutusScript)
                 .withChangeAddress(beneficiar.getBaseAddress().getAddress());
-        TxResult claimTxResult = quickTxBuilder.compose(claimTx)
-                .validFrom(slot2 - 10)
-                .validTo(slot2 + 20) // Set a valid to slot for the transaction
+        TxResult claimTxResult = perf.tx("claim", () -> quickTxBuilder.compose(claimTx)
+                .validFrom(range.validFrom())
+                .validTo(range.validTo())
                 .feePayer(beneficiar.baseAddress())
+                .postBalanceTx(txOptimizer.pass("claim", beneficiar.baseAddress()))
                 .withRequiredSigners(beneficiar.getBaseAddress())
                 .withSigner(SignerProviders.signerFrom(beneficiar))
-                .completeAndWait();
+                .completeAndWait());
+        // The claim had slot + 20 before
+        validityWindow.recordInclusion(range, claimTxResult, 20);
 
         return claimTxResult;
     }
 
     private static PlutusScript getParametrisedPlutusScript() {
-        PlutusContractBlueprint plutusContractBlueprint = PlutusBlueprintLoader
-                .loadBlueprint(new File("../../onchain/aiken/plutus.json"));
-        String simpleTransferCompiledCode = plutusContractBlueprint.getValidators().getFirst()
-                .getCompiledCode();
+        // Mapped from the packed script registry when SCRIPT_REGISTRY is set
+        String simpleTransferCompiledCode = ScriptRegistry.compiledCode("crowdfund",
+                new File("../../onchain/aiken/plutus.json"));
 
-        long expiration = System.currentTimeMillis();// + 10 * 1000; // Set expiration time to 10 seconds from now
-        System.out.println("Expiration time (epoch seconds): " + expiration);
+        System.out.println("Expiration time (epoch seconds): " + deadline);
         // Apply parameters to the validator compiled code to get the compiled code
         String compiledCode = AikenScriptUtil.applyParamToScript(
                 ListPlutusData.of(
                         BytesPlutusData.of(beneficiar.getBaseAddress().getPaymentCredentialHash().get()),
                         BigIntPlutusData.of(crowdFundGoal),
-                        BigIntPlutusData.of(expiration)),
+                        BigIntPlutusData.of(deadline)),
                 simpleTransferCompiledCode);
 
         PlutusScript plutusScript = PlutusBlueprintUtil.getPlutusScriptFromCompiledCode(compiledCode,
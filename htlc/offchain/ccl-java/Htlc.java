@@ -8,13 +8,22 @@
 //DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
 //DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
 //DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ../../../shared/ccl-java/ValidityWindow.java
+//SOURCES ../../../shared/ccl-java/TxBatcher.java
+//SOURCES ../../../shared/ccl-java/PerfHistory.java
+//SOURCES ../../../shared/ccl-java/Scenario.java
+//SOURCES ../../../shared/ccl-java/ScriptRegistry.java
+//SOURCES ../../../shared/ccl-java/TxOptimizer.java
+//SOURCES ../../../shared/ccl-java/RecordedBackend.java
+//SOURCES ../../../shared/ccl-java/BlockWatcher.java
+//SOURCES ../../../shared/ccl-java/HtlcWatcher.java
 // @formatter:on
 
 import java.io.File;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.Duration;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import com.bloxbean.cardano.aiken.AikenScriptUtil;
 import com.bloxbean.cardano.client.account.Account;
@@ -32,9 +41,7 @@ import com.bloxbean.cardano.client.common.model.Networks;
 import com.bloxbean.cardano.client.crypto.Blake2bUtil;
 import com.bloxbean.cardano.client.crypto.bip39.Sha256Hash;
 import com.bloxbean.cardano.client.function.helper.SignerProviders;
-import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
 import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
-import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusContractBlueprint;
 import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
 import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
 import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
@@ -43,14 +50,15 @@ import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
 import com.bloxbean.cardano.client.plutus.spec.PlutusScript;
 import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
 import com.bloxbean.cardano.client.quicktx.ScriptTx;
-import com.bloxbean.cardano.client.quicktx.Tx;
 import com.bloxbean.cardano.client.quicktx.TxResult;
 
 public class Htlc {
 
         // Backend service to connect to Cardano node. Here we are using Blockfrost as
         // an example.
-        static BackendService backendService = new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key");
+        // Recorded to BACKEND_RECORD or replayed from BACKEND_REPLAY when set
+        static RecordedBackend backend = RecordedBackend.fromEnvironment(new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key"));
+        static BackendService backendService = backend.backendService();
         static UtxoSupplier utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
 
         // Dummy mnemonic for the example. Replace with a valid mnemonic.
@@ -68,46 +76,114 @@ public class Htlc {
         // might have a different address for the receiver.
         static Address receiverAddress = payee1.getBaseAddress();
         static QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
-        static PlutusScript plutusScript = getParametrisedPlutusScript();
+        // Validity ranges are derived from the measured confirmation latency, instead of slot + 10 before
+        static ValidityWindow validityWindow = new ValidityWindow(backendService, 10);
+        // Step measurements, appended to the performance history in CI
+        static PerfHistory.Recorder perf = PerfHistory.recorder("htlc", backendService);
+        // Trims the balanced transactions before signing, off with TX_OPTIMIZER=off
+        static TxOptimizer txOptimizer = TxOptimizer.fromEnvironment();
+        // Guesses are only accepted before, the owner refund only after this time, at the recorded time on replay
+        static long expiration = backend.currentTimeMillis() + Duration.ofMinutes(1).toMillis();
+        static PlutusScript plutusScript = getParametrisedPlutusScript(expiration);
         static Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
+        // Counterpart HTLC of an atomic swap on the same secret hash, it expires later so the
+        // script differs and its claim can only follow the reveal of the secret
+        static long swapExpiration = expiration + Duration.ofMinutes(1).toMillis();
+        static PlutusScript swapPlutusScript = getParametrisedPlutusScript(swapExpiration);
+        static Address swapScriptAddress = AddressProvider.getEntAddress(swapPlutusScript, network);
+        static BlockWatcher blockWatcher = new BlockWatcher(backendService).start();
+        // Claims the counterpart as soon as the secret is revealed on the first HTLC
+        static HtlcWatcher htlcWatcher = new HtlcWatcher(backendService, blockWatcher);
 
         public static void main(String[] args) throws ApiException, InterruptedException {
-                // Locking 10 Ada to the contract address
-                lockFunds(20);
-
-                TxResult notSuccessfull = unlockFundsWithSecret(Optional.of("WrongSecret"), 2); // Attempt to unlock
-                                                                                                // with a
-                // wrong secret guess
-                System.out.println("Is the transaction successful? " + notSuccessfull.isSuccessful());
-                TxResult success = unlockFundsWithSecret(Optional.of(secret), 5);
+                Scenario scenario = new Scenario("htlc", backend.clock());
+                htlcWatcher.watch(scriptAddress.getAddress());
+                CompletableFuture<HtlcWatcher.Claimed> counterpart = htlcWatcher.expect(
+                                Sha256Hash.hash(secret.getBytes()), swapExpiration,
+                                answer -> unlockFundsWithSecret("swap-secret", swapPlutusScript, swapExpiration,
+                                                Optional.of(new String(answer)), 5));
+                // Locking 20 Ada to the contract address and 10 Ada to the counterpart
+                Scenario.Step<TxResult> lock = scenario.step("lock", () -> lockFunds(20, 10));
+                // Guesses are only accepted before the expiration. Both spend the same script UTxO,
+                // so the right guess only runs once the wrong one was rejected.
+                Scenario.Step<TxResult> wrongGuess = scenario.step("wrong-secret",
+                                () -> unlockFundsWithSecret("wrong-secret", plutusScript, expiration,
+                                                Optional.of("WrongSecret"), 2))
+                                .after(lock)
+                                .notAfter(expiration);
+                Scenario.Step<TxResult> rightGuess = scenario.step("secret",
+                                () -> unlockFundsWithSecret("secret", plutusScript, expiration,
+                                                Optional.of(secret), 5))
+                                .after(wrongGuess)
+                                .notAfter(expiration);
+                // The watcher claims the counterpart with the secret it reads from the right guess
+                Scenario.Step<TxResult> swapClaim = scenario.step("swap-secret", () -> {
+                        HtlcWatcher.Claimed claimed = counterpart.get();
+                        perf.record("swap-secret", "reveal_to_claim_blocks", claimed.latencyBlocks());
+                        return claimed.result();
+                })
+                                .after(rightGuess)
+                                .notAfter(swapExpiration);
+                // Unlock as the owner without providing the secret, as soon as the expiration has passed
+                Scenario.Step<TxResult> refund = scenario.step("refund",
+                                () -> unlockFundsWithSecret("refund", plutusScript, expiration, Optional.empty(), 5))
+                                .after(swapClaim)
+                                .notBefore(expiration);
+                scenario.run();
+
+                TxResult failure = wrongGuess.get();
+                System.out.println("Is the transaction successful? " + failure.isSuccessful());
+                TxResult success = rightGuess.get();
                 System.out.println("Funds unlocked successfully. TxHash: %s".formatted(success.getTxHash()));
-                // Unlock as the owner without providing the secret
-                System.out.println("Waiting for 60 seconds before unlocking without secret...");
-                Thread.sleep(70000); // Wait for 70 seconds before unlocking
-                TxResult unlockFunds = unlockFundsWithSecret(Optional.empty(), 5);
+                TxResult swapSuccess = swapClaim.get();
+                System.out.println("Counterpart unlocked with the revealed secret. TxHash: %s"
+                                .formatted(swapSuccess.getTxHash()));
+                TxResult unlockFunds = refund.get();
                 System.out.println("Funds unlocked successfully without secret. TxHash: %s"
                                 .formatted(unlockFunds.getTxHash()));
 
                 // Verify transactions succeeded
-                if (!success.isSuccessful() || !unlockFunds.isSuccessful())
+                validityWindow.printStats();
+                htlcWatcher.printStats();
+                scenario.printStats();
+                txOptimizer.printStats();
+                backend.printStats();
+                perf.record("scenario", "wall_ms", scenario.wallMillis());
+                perf.record("optimizer", "size_bytes", txOptimizer.sizeBytes());
+                perf.record("optimizer", "fee_lovelace", txOptimizer.feeLovelace().doubleValue());
+                perf.close();
+                htlcWatcher.close();
+                blockWatcher.close();
+                if (failure.isSuccessful())
+                        throw new AssertionError("HTLC accepted a wrong secret");
+                if (!success.isSuccessful() || !swapSuccess.isSuccessful() || !unlockFunds.isSuccessful())
                         throw new AssertionError("HTLC CCL test failed");
         }
 
         /**
          * Unlocks the funds from the HTLC contract using the provided secret guess.
          *
+         * @param step        The name the transaction is measured under.
+         * @param script      The HTLC to unlock.
+         * @param expiration  The expiration the HTLC is parametrised with.
          * @param secretGuess The secret guess to unlock the funds. If empty, it will
          *                    unlock as the owner without providing the secret.
          * @param adaAmount   The amount of Ada to unlock.
          * @return The transaction result.
          * @throws ApiException If there is an error during the transaction.
          */
-        private static TxResult unlockFundsWithSecret(Optional<String> secretGuess, int adaAmount) throws ApiException {
+        private static TxResult unlockFundsWithSecret(String step, PlutusScript script, long expiration,
+                        Optional<String> secretGuess, int adaAmount) throws ApiException {
+                Address scriptAddress = AddressProvider.getEntAddress(script, network);
 
                 // Getting all utxos from the script address
                 List<Utxo> allScriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
-                long slot = backendService.getBlockService().getLatestBlock().getValue().getSlot();
-                System.out.println("Current slot: " + slot);
+                // A guess must be included before the expiration, the owner refund after it
+                ValidityWindow.Range range = secretGuess.isPresent()
+                                ? validityWindow.next(Long.MIN_VALUE, expiration)
+                                : validityWindow.next(expiration, Long.MAX_VALUE);
+                System.out.println("Current slot: %d, validity range: %d - %d".formatted(range.tipSlot(),
+                                range.validFrom(), range.validTo()));
                 ConstrPlutusData redeemer = secretGuess.map(secret -> ConstrPlutusData.builder()
                                 .alternative(0)
                                 .data(ListPlutusData.of(BytesPlutusData.of(secret.getBytes())))
@@ -122,52 +198,66 @@ public class Htlc {
                                                 redeemer)
                                 .payToAddress(receiverAddress.getAddress(), Amount.ada(
                                                 adaAmount))
-                                .attachSpendingValidator(plutusScript)
+                                .attachSpendingValidator(script)
                                 .withChangeAddress(scriptAddress.getAddress());
-                return quickTxBuilder.compose(scriptTx)
-                                .validFrom(slot - 10)
-                                .validTo(slot + 10) // Set a validity range
+                TxResult txResult = perf.tx(step, () -> quickTxBuilder.compose(scriptTx)
+                                .validFrom(range.validFrom())
+                                .validTo(range.validTo())
                                 .feePayer(ownerAddress.getAddress())
+                                .postBalanceTx(txOptimizer.pass(step, ownerAddress.getAddress()))
                                 .withSigner(SignerProviders.signerFrom(payee1))
                                 .withRequiredSigners(ownerAddress)
-                                .completeAndWait();
+                                .completeAndWait());
+                validityWindow.recordInclusion(range, txResult);
+                return txResult;
         }
 
         /**
-         * Locks funds to the HTLC contract address.
+         * Locks funds to the HTLC contract address and to its counterpart. Both are
+         * independent payments from the owner, so the batcher puts them into one
+         * transaction.
          *
-         * @param adaMount The amount of Ada to lock.
+         * @param adaMount     The amount of Ada to lock.
+         * @param swapAdaMount The amount of Ada to lock in the counterpart.
+         * @return The transaction result.
+         * @throws ApiException If the protocol parameters cannot be fetched.
          */
-        private static void lockFunds(int adaMount) {
-                PlutusScript plutusScript = getParametrisedPlutusScript();
-                Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
+        private static TxResult lockFunds(int adaMount, int swapAdaMount) throws ApiException {
                 System.out.println("Script Address: " + scriptAddress.getAddress());
-                // Locking 10 Ada to the contract address
-                Tx tx = new Tx().payToAddress(scriptAddress.getAddress(), Amount.ada(adaMount))
-                                .withChangeAddress(ownerAddress.getAddress())
-                                .from(ownerAddress.getAddress());
-                TxResult txResult = quickTxBuilder.compose(tx)
-                                .feePayer(ownerAddress.getAddress())
-                                .withSigner(SignerProviders.signerFrom(payee1))
-                                .completeAndWait();
+                System.out.println("Counterpart Script Address: " + swapScriptAddress.getAddress());
+                TxResult txResult;
+                try (TxBatcher txBatcher = new TxBatcher(backendService, quickTxBuilder, ownerAddress.getAddress(),
+                                SignerProviders.signerFrom(payee1), 2, 0.9)
+                                .postBalanceTx(txOptimizer.pass("lock", ownerAddress.getAddress()))) {
+                        // The second intent fills the batch and flushes it
+                        txResult = perf.tx("lock", () -> {
+                                CompletableFuture<TxResult> lock = txBatcher.submit(TxBatcher.Intent.payment("lock",
+                                                scriptAddress.getAddress(), Amount.ada(adaMount)));
+                                CompletableFuture<TxResult> swapLock = txBatcher.submit(TxBatcher.Intent.payment(
+                                                "swap-lock", swapScriptAddress.getAddress(), Amount.ada(swapAdaMount)));
+                                TxResult swapResult = swapLock.join();
+                                return swapResult.isSuccessful() ? lock.join() : swapResult;
+                        });
+                        txBatcher.printStats();
+                        perf.record("lock", "transactions", txBatcher.transactions());
+                        perf.record("lock", "fee_saved_lovelace", txBatcher.feeSaved());
+                }
                 System.out.println("Funds locked. TxHash: %s".formatted(txResult.getTxHash()));
+                return txResult;
         }
 
         /**
          * Retrieves the parametrized Plutus script for the HTLC contract.
          *
+         * @param expiration The time after which only the owner can unlock.
          * @return The Plutus script with the parameters applied.
          */
-        private static PlutusScript getParametrisedPlutusScript() {
-                PlutusContractBlueprint plutusContractBlueprint = PlutusBlueprintLoader
-                                .loadBlueprint(new File("../../onchain/aiken/plutus.json"));
-                String simpleTransferCompiledCode = plutusContractBlueprint.getValidators().getFirst()
-                                .getCompiledCode();
+        private static PlutusScript getParametrisedPlutusScript(long expiration) {
+                // Mapped from the packed script registry when SCRIPT_REGISTRY is set
+                String simpleTransferCompiledCode = ScriptRegistry.compiledCode("htlc",
+                                new File("../../onchain/aiken/plutus.json"));
 
                 byte[] hashedAnswer = Sha256Hash.hash(secret.getBytes()); // Hash the secret answer
-                long expiration = LocalDateTime.now().plusMinutes(1).toEpochSecond(ZoneOffset.UTC) * 1000; // Set
-                                                                                                           // expiration
-                                                                                                           // time to
                 System.out.println("Expiration time (epoch seconds): " + expiration);
                 // Apply parameters to the validator compiled code to get the compiled code
                 String compiledCode = AikenScriptUtil.applyParamToScript(
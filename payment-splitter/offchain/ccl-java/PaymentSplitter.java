@@ -7,6 +7,13 @@
 //DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
 //DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
 //DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ../../../shared/ccl-java/PerfHistory.java
+//SOURCES ../../../shared/ccl-java/Scenario.java
+//SOURCES ../../../shared/ccl-java/ScriptRegistry.java
+//SOURCES ../../../shared/ccl-java/TxOptimizer.java
+//SOURCES ../../../shared/ccl-java/RecordedBackend.java
+//SOURCES ../../../shared/ccl-java/BlockWatcher.java
+//SOURCES ../../../shared/ccl-java/TxPipeline.java
 
 import com.bloxbean.cardano.aiken.AikenScriptUtil;
 import com.bloxbean.cardano.client.account.Account;
@@ -20,18 +27,28 @@ import com.bloxbean.cardano.client.backend.blockfrost.service.BFBackendService;
 import com.bloxbean.cardano.client.common.model.Networks;
 import com.bloxbean.cardano.client.function.helper.ScriptUtxoFinders;
 import com.bloxbean.cardano.client.function.helper.SignerProviders;
-import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
 import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
 import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
 import com.bloxbean.cardano.client.plutus.spec.*;
 import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
 import com.bloxbean.cardano.client.quicktx.ScriptTx;
 import com.bloxbean.cardano.client.quicktx.Tx;
+import com.bloxbean.cardano.client.quicktx.TxResult;
 import com.bloxbean.cardano.client.util.JsonUtil;
 
 import java.io.File;
-
-static BackendService backendService = new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key");
+import java.util.concurrent.CompletionStage;
+
+// Recorded to BACKEND_RECORD or replayed from BACKEND_REPLAY when set
+static RecordedBackend backend = RecordedBackend.fromEnvironment(new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key"));
+static BackendService backendService = backend.backendService();
+// Step measurements, appended to the performance history in CI
+static PerfHistory.Recorder perf = PerfHistory.recorder("payment-splitter", backendService);
+// Trims the balanced transactions before signing, off with TX_OPTIMIZER=off
+static TxOptimizer txOptimizer = TxOptimizer.fromEnvironment();
+// Submits without blocking, confirmations come from the blocks of one shared watcher
+static BlockWatcher blockWatcher = new BlockWatcher(backendService).start();
+static TxPipeline txPipeline = new TxPipeline(backendService, blockWatcher);
 static String mnemonic = "test test test test test test test test test test test test test test test test test test test test test test test sauce";
 
 static Account payee1 = new Account(Networks.testnet(), mnemonic);
@@ -47,10 +64,13 @@ static double lockAdaAmt = 10;
 
 static PlutusScript plutusScript;
 static String scriptAddress;
+// Prepared while the lock confirms, the unlock only adds the locked UTxO
+static ScriptTx unlockPayouts;
 
 static void init() {
-    var plutusContractBlueprint = PlutusBlueprintLoader.loadBlueprint(new File("../../onchain/aiken/plutus.json"));
-    String paymentSplitterValidatorCompiledCode = plutusContractBlueprint.getValidators().get(0).getCompiledCode();
+    // Mapped from the packed script registry when SCRIPT_REGISTRY is set
+    String paymentSplitterValidatorCompiledCode = ScriptRegistry.compiledCode("payment-splitter",
+            new File("../../onchain/aiken/plutus.json"));
 
     //Apply parameters to the validator compiled code to get the final compiled code
     String compiledCode = AikenScriptUtil.applyParamToScript(ListPlutusData.of(
@@ -70,7 +90,7 @@ static void init() {
     System.out.println("Script Address: " + scriptAddress);
 }
 
-static void lock() {
+static CompletionStage<TxResult> lock() {
     PlutusData ownerDatum = ConstrPlutusData.of(0, BytesPlutusData.of(payee1.getBaseAddress().getPaymentCredentialHash().get()));
 
     Tx tx = new Tx()
@@ -78,37 +98,42 @@ static void lock() {
             .from(payee1.baseAddress());
 
     QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
-    var result = quickTxBuilder.compose(tx)
-            .withSigner(SignerProviders.signerFrom(payee1))
-            .completeAndWait(System.out::println);
+    return perf.txAsync("lock", () -> {
+        var inFlight = txPipeline.submit(payee1Addr.toBech32(), quickTxBuilder.compose(tx)
+                .postBalanceTx(txOptimizer.pass("lock", payee1Addr.toBech32()))
+                .withSigner(SignerProviders.signerFrom(payee1)));
+        inFlight.submitted().thenAccept(txHash -> System.out.println("Submitted: " + txHash));
+        // Nothing waits on the confirmation, the unlock is chained on it
+        unlockPayouts = payouts();
+        return inFlight.confirmed();
+    }).thenApply(result -> checked("Lock", result));
+}
 
+static TxResult checked(String step, TxResult result) {
     if (result.isSuccessful())
         System.out.println("Success: " + result.getValue());
     else
         System.out.println("Failed: " + result);
 
     if (!result.isSuccessful())
-        throw new AssertionError("Lock tx failed " + result);
+        throw new AssertionError(step + " tx failed " + result);
+    return result;
 }
 
-static void unlock() throws ApiException {
-    PlutusData ownerDatum = ConstrPlutusData.of(0, BytesPlutusData.of(payee1.getBaseAddress().getPaymentCredentialHash().get()));
-
-    var scriptUtxo = ScriptUtxoFinders.findFirstByInlineDatum(new DefaultUtxoSupplier(backendService.getUtxoService()), scriptAddress, ownerDatum)
-            .orElseThrow(() -> new ApiException("Script Utxo not found"));
-
-    var redeemer = ConstrPlutusData.of(0, BytesPlutusData.of("Payday"));
-
+static ScriptTx payouts() {
     var splitAmount = lockAdaAmt / 5;
 
-    ScriptTx scriptTx = new ScriptTx()
-            .collectFrom(scriptUtxo, redeemer)
+    return new ScriptTx()
             .payToAddress(payee1Addr.toBech32(), Amount.ada(splitAmount))
             .payToAddress(payee2Addr.toBech32(), Amount.ada(splitAmount))
             .payToAddress(payee3Addr.toBech32(), Amount.ada(splitAmount))
             .payToAddress(payee4Addr.toBech32(), Amount.ada(splitAmount))
-            .payToAddress(payee5Addr.toBech32(), Amount.ada(splitAmount))
-            .attachSpendingValidator(plutusScript);
+            .payToAddress(payee5Addr.toBech32(), Amount.ada(splitAmount));
+}
+
+static CompletionStage<TxResult> unlock() {
+    PlutusData ownerDatum = ConstrPlutusData.of(0, BytesPlutusData.of(payee1.getBaseAddress().getPaymentCredentialHash().get()));
+    var redeemer = ConstrPlutusData.of(0, BytesPlutusData.of("Payday"));
 
     //A dummy tx which pays from payee1 to payee1. This is to make sure the outputs from ScriptTx are not touched
     //to deduct fee.
@@ -117,32 +142,58 @@ static void unlock() throws ApiException {
             .from(payee1Addr.toBech32());
 
     QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
-    var result = quickTxBuilder.compose(scriptTx, tx)
-            .feePayer(payee1Addr.toBech32())
-            .withSigner(SignerProviders.signerFrom(payee1))
-            .withRequiredSigners(payee1Addr)
-            .completeAndWait(System.out::println);
-
-    if (result.isSuccessful())
-        System.out.println("Success: " + result.getValue());
-    else
-        System.out.println("Failed: " + result);
-
-    if (!result.isSuccessful())
-        throw new AssertionError("Unlock tx failed " + result);
+    return perf.txAsync("unlock", () -> {
+        // The script UTxO is looked up on the pipeline's build thread
+        var inFlight = txPipeline.submit(payee1Addr.toBech32(), () -> {
+            var scriptUtxo = ScriptUtxoFinders.findFirstByInlineDatum(new DefaultUtxoSupplier(backendService.getUtxoService()), scriptAddress, ownerDatum)
+                    .orElseThrow(() -> new ApiException("Script Utxo not found"));
+            ScriptTx scriptTx = unlockPayouts
+                    .collectFrom(scriptUtxo, redeemer)
+                    .attachSpendingValidator(plutusScript);
+            return quickTxBuilder.compose(scriptTx, tx)
+                    .feePayer(payee1Addr.toBech32())
+                    .postBalanceTx(txOptimizer.pass("unlock", payee1Addr.toBech32()))
+                    .withSigner(SignerProviders.signerFrom(payee1))
+                    .withRequiredSigners(payee1Addr)
+                    .buildAndSign();
+        });
+        inFlight.submitted().thenAccept(txHash -> System.out.println("Submitted: " + txHash));
+        return inFlight.confirmed();
+    }).thenApply(result -> checked("Unlock", result));
 }
 
 //Main method
-void main(String[] args) throws ApiException {
-    init();
-
-    System.out.println("Locking funds to the script address");
-    lock();
-
-    System.out.println("Unlocking funds from the script address");
-    unlock();
+void main(String[] args) throws InterruptedException {
+    Scenario scenario = new Scenario("payment-splitter");
+    var script = scenario.step("init", () -> {
+        init();
+        return scriptAddress;
+    });
+
+    // Submits the lock and chains the unlock on its confirmation, no thread is parked for either
+    var payout = scenario.step("lock", () -> {
+        System.out.println("Locking funds to the script address");
+        return lock().thenCompose(locked -> {
+            System.out.println("Unlocking funds from the script address");
+            return unlock();
+        });
+    }).after(script);
+
+    // The only wait of the example, until the unlock is confirmed
+    scenario.step("unlock", () -> payout.get().toCompletableFuture().join()).after(payout);
+    scenario.run();
 
     // Verify all transactions succeeded
-    // Note: lock() and unlock() methods already check isSuccessful() and print status
+    // Note: lock() and unlock() already check isSuccessful() and print status
+    scenario.printStats();
+    txOptimizer.printStats();
+    txPipeline.printStats();
+    backend.printStats();
+    perf.record("scenario", "wall_ms", scenario.wallMillis());
+    perf.record("optimizer", "size_bytes", txOptimizer.sizeBytes());
+    perf.record("optimizer", "fee_lovelace", txOptimizer.feeLovelace().doubleValue());
+    perf.close();
+    txPipeline.close();
+    blockWatcher.close();
     System.out.println("PaymentSplitter CCL test completed successfully");
 }
@@ -0,0 +1,115 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.model.Block;
+
+/**
+ * Polls the backend for the chain tip and notifies listeners once for every new
+ * block. All per-block work of the shared helpers hangs off a single watcher, so
+ * a JVM only asks the backend for the tip once per poll interval no matter how
+ * many helpers are running.
+ */
+public class BlockWatcher implements AutoCloseable {
+
+    private final BackendService backendService;
+    private final Duration pollInterval;
+    private final List<Consumer<Block>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "block-watcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Block tip;
+
+    public BlockWatcher(BackendService backendService) {
+        this(backendService, Duration.ofSeconds(1));
+    }
+
+    /**
+     * @param backendService The backend to poll.
+     * @param pollInterval   How often the tip is requested. Yaci DevKit produces
+     *                       a block every second, so polling faster than that only
+     *                       adds load.
+     */
+    public BlockWatcher(BackendService backendService, Duration pollInterval) {
+        this.backendService = backendService;
+        this.pollInterval = pollInterval;
+    }
+
+    public BlockWatcher start() {
+        scheduler.scheduleWithFixedDelay(this::poll, 0, pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public void addListener(Consumer<Block> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Block> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The latest block seen by the watcher, or {@code null} before the
+     *         first successful poll.
+     */
+    public Block getTip() {
+        return tip;
+    }
+
+    private void poll() {
+        try {
+            Result<Block> latest = backendService.getBlockService().getLatestBlock();
+            if (!latest.isSuccessful())
+                return;
+            Block newTip = latest.getValue();
+            Block previous = tip;
+            if (previous != null && newTip.getHeight() <= previous.getHeight())
+                return;
+
+            // Replay skipped heights so that listeners see every block exactly once
+            if (previous != null) {
+                for (long height = previous.getHeight() + 1; height < newTip.getHeight(); height++) {
+                    Result<Block> skipped = backendService.getBlockService().getBlockByNumber(BigInteger.valueOf(height));
+                    if (skipped.isSuccessful())
+                        notifyListeners(skipped.getValue());
+                }
+            }
+            tip = newTip;
+            notifyListeners(newTip);
+        } catch (ApiException | RuntimeException e) {
+            // The next poll retries, a flaky backend must not kill the scheduler
+            System.out.println("Block watcher poll failed: " + e.getMessage());
+        }
+    }
+
+    private void notifyListeners(Block block) {
+        for (Consumer<Block> listener : listeners) {
+            try {
+                listener.accept(block);
+            } catch (RuntimeException e) {
+                System.out.println("Block listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
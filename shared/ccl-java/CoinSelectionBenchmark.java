@@ -0,0 +1,144 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//SOURCES MultiAssetValue.java
+//SOURCES IndexedUtxoSelectionStrategy.java
+//SOURCES OfflineChain.java
+// @formatter:on
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.bloxbean.cardano.client.account.Account;
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.common.AddressIterators;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.coinselection.UtxoSelectionStrategy;
+import com.bloxbean.cardano.client.coinselection.impl.DefaultUtxoSelectionStrategyImpl;
+import com.bloxbean.cardano.client.common.model.Networks;
+
+/**
+ * Compares the default CCL coin selection with
+ * {@link IndexedUtxoSelectionStrategy} on a synthetic wallet with many UTxOs
+ * and many different native assets, served from memory so only the selection
+ * itself is measured. The indexed strategy decodes the wallet once and answers
+ * all selections from its index, as it does within one block time on chain.
+ * <p>
+ * Usage: {@code jbang CoinSelectionBenchmark.java [utxos] [assets] [selections]}
+ */
+public class CoinSelectionBenchmark {
+
+    static int utxoCount = 20_000;
+    static int assetCount = 2_000;
+    static int selections = 200;
+    static int maxAssetsPerUtxo = 4;
+    static int maxAssetsPerTarget = 3;
+    static int maxInputs = 500;
+
+    public static void main(String[] args) {
+        if (args.length > 0)
+            utxoCount = Integer.parseInt(args[0]);
+        if (args.length > 1)
+            assetCount = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            selections = Integer.parseInt(args[2]);
+
+        Random random = new Random(42);
+        String address = new Account(Networks.testnet()).baseAddress();
+        List<String> units = new ArrayList<>();
+        for (int i = 0; i < assetCount; i++)
+            units.add(randomHex(random, 28) + randomHex(random, 1 + random.nextInt(8)));
+        List<Utxo> wallet = wallet(random, address, units);
+        List<List<Amount>> targets = new ArrayList<>();
+        for (int i = 0; i < selections; i++)
+            targets.add(target(random, wallet));
+
+        UtxoSupplier utxoSupplier = new OfflineChain.InMemoryUtxoSupplier(wallet);
+        System.out.println("Wallet with %d utxos and %d assets, %d selections".formatted(utxoCount, assetCount, selections));
+
+        // Warm up both strategies before measuring
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+            long defaultNanos = run(new DefaultUtxoSelectionStrategyImpl(utxoSupplier), address, targets, measure);
+            // The index build is part of the measured time, it happens on the first selection
+            long indexedNanos = run(new IndexedUtxoSelectionStrategy(utxoSupplier, Duration.ofMinutes(10)), address,
+                    targets, measure);
+            if (measure) {
+                System.out.println("Default strategy: %.2f ms per selection".formatted(defaultNanos / 1e6 / selections));
+                System.out.println("Indexed strategy: %.2f ms per selection".formatted(indexedNanos / 1e6 / selections));
+                System.out.println("Speedup: %.1fx".formatted((double) defaultNanos / indexedNanos));
+            }
+        }
+    }
+
+    private static long run(UtxoSelectionStrategy strategy, String address, List<List<Amount>> targets, boolean verify) {
+        long start = System.nanoTime();
+        List<Set<Utxo>> results = new ArrayList<>(targets.size());
+        for (List<Amount> target : targets)
+            results.add(strategy.select(AddressIterators.of(address), target, null, null, Set.of(), maxInputs));
+        long elapsed = System.nanoTime() - start;
+
+        if (verify) {
+            for (int i = 0; i < targets.size(); i++) {
+                MultiAssetValue selected = MultiAssetValue.empty();
+                results.get(i).forEach(utxo -> selected.add(MultiAssetValue.of(utxo.getAmount())));
+                if (!selected.covers(MultiAssetValue.of(targets.get(i))))
+                    throw new AssertionError("%s selection %d does not cover its target"
+                            .formatted(strategy.getClass().getSimpleName(), i));
+            }
+        }
+        return elapsed;
+    }
+
+    private static List<Utxo> wallet(Random random, String address, List<String> units) {
+        List<Utxo> wallet = new ArrayList<>(utxoCount);
+        for (int i = 0; i < utxoCount; i++) {
+            List<Amount> amounts = new ArrayList<>();
+            amounts.add(Amount.lovelace(BigInteger.valueOf(1_000_000L + random.nextInt(50_000_000))));
+            int assets = random.nextInt(maxAssetsPerUtxo + 1);
+            for (int a = 0; a < assets; a++) {
+                String unit = units.get(random.nextInt(units.size()));
+                if (amounts.stream().noneMatch(amount -> amount.getUnit().equals(unit)))
+                    amounts.add(Amount.asset(unit, BigInteger.valueOf(1 + random.nextInt(1_000))));
+            }
+            wallet.add(Utxo.builder()
+                    .txHash(randomHex(random, 32))
+                    .outputIndex(random.nextInt(10))
+                    .address(address)
+                    .amount(amounts)
+                    .build());
+        }
+        return wallet;
+    }
+
+    // Picks assets held somewhere in the wallet, so every target can be covered
+    private static List<Amount> target(Random random, List<Utxo> wallet) {
+        List<Amount> target = new ArrayList<>();
+        target.add(Amount.lovelace(BigInteger.valueOf(2_000_000L + random.nextInt(20_000_000))));
+        int assets = 1 + random.nextInt(maxAssetsPerTarget);
+        while (target.size() <= assets) {
+            List<Amount> amounts = wallet.get(random.nextInt(wallet.size())).getAmount();
+            if (amounts.size() < 2)
+                continue;
+            Amount held = amounts.get(1 + random.nextInt(amounts.size() - 1));
+            if (target.stream().noneMatch(amount -> amount.getUnit().equals(held.getUnit())))
+                target.add(Amount.asset(held.getUnit(), BigInteger.ONE.max(held.getQuantity().shiftRight(1))));
+        }
+        return target;
+    }
+
+    private static String randomHex(Random random, int bytes) {
+        byte[] value = new byte[bytes];
+        random.nextBytes(value);
+        return HexFormat.of().formatHex(value);
+    }
+}
@@ -0,0 +1,269 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES TxSubmitter.java
+// @formatter:on
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import com.bloxbean.cardano.client.api.model.Result;
+
+/**
+ * Measures the success rate of {@link TxSubmitter} when many donors race for a
+ * single script UTxO, as in {@code Crowdfund}, against an in-memory ledger.
+ * <p>
+ * The ledger accepts a donation only if it spends the current version of the
+ * script UTxO, rejects a share of submissions with a full mempool, silently
+ * drops some accepted transactions and rolls back some included ones. Some
+ * accepted transactions stall in the mempool past the inclusion timeout, and
+ * some dropped ones are announced again later, so an attempt the submitter has
+ * given up on may still land. Like a node, it rejects the same bytes again with
+ * {@code BadInputsUTxO} while they wait in the mempool. Every donor is run once
+ * with a single attempt, which is what {@code completeAndWait()} gives today,
+ * and once through the pipeline with the settings of
+ * {@link TxSubmitter#of(com.bloxbean.cardano.client.backend.api.BackendService)},
+ * scaled from one block per second to the simulated block time. In both runs
+ * every donor whose donation was confirmed has to be credited exactly once, and
+ * no donor more than once.
+ */
+public class ContentionSimulation {
+
+    static int donors = 50;
+    static double mempoolFullRate = 0.05;
+    static double dropRate = 0.05;
+    static double rollbackRate = 0.05;
+    // Stalls within the 35 blocks the pipeline tracks one transaction
+    static double stallRate = 0.02;
+    static int maxStallBlocks = 15;
+    static double reannounceRate = 0.5;
+    static int maxReannounceBlocks = 15;
+    static Duration blockTime = Duration.ofMillis(20);
+    // Time spent composing, balancing and evaluating a transaction
+    static long buildMillis = 5;
+    static double requiredSuccessRate = 0.95;
+
+    public static void main(String[] args) throws Exception {
+        double singleAttempt = run(ledger -> new TxSubmitter(ledger, 1, 1, 2, blockTime, blockTime,
+                blockTime.multipliedBy(60), blockTime));
+        double pipeline = run(ledger -> TxSubmitter.of(ledger, blockTime));
+        System.out.println("Success rate with a single attempt: %.1f%%".formatted(singleAttempt * 100));
+        System.out.println("Success rate with the submission pipeline: %.1f%%".formatted(pipeline * 100));
+
+        if (pipeline < requiredSuccessRate)
+            throw new AssertionError("Submission pipeline success rate below " + requiredSuccessRate);
+    }
+
+    private static double run(Function<TxSubmitter.Chain, TxSubmitter> settings) throws Exception {
+        SimulatedLedger ledger = new SimulatedLedger();
+        Thread blockProducer = Thread.ofPlatform().daemon().start(ledger::produceBlocks);
+        TxSubmitter submitter = settings.apply(ledger);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<TxSubmitter.Outcome>> outcomes = new ArrayList<>();
+            for (int donor = 0; donor < donors; donor++) {
+                int id = donor;
+                // Like Crowdfund, every attempt spends whatever the script UTxO is right now
+                outcomes.add(executor.submit(() -> submitter.submit(attempt -> ledger.donation(id, attempt))));
+            }
+            for (Future<TxSubmitter.Outcome> outcome : outcomes)
+                outcome.get();
+            // Give stalled and announced again transactions the time to land
+            Thread.sleep(blockTime.toMillis() * (maxStallBlocks + maxReannounceBlocks + 2));
+            blockProducer.interrupt();
+            blockProducer.join();
+            submitter.printStats();
+            checkCredits(ledger, outcomes);
+        }
+        return submitter.successRate();
+    }
+
+    private static void checkCredits(SimulatedLedger ledger, List<Future<TxSubmitter.Outcome>> outcomes)
+            throws Exception {
+        int lateAfterFailure = 0;
+        int rolledBackAfterConfirmation = 0;
+        for (int donor = 0; donor < donors; donor++) {
+            TxSubmitter.Outcome outcome = outcomes.get(donor).get();
+            int credits = ledger.credits(donor);
+            if (credits > 1)
+                throw new AssertionError("Donor %d credited %d times by %s".formatted(donor, credits,
+                        outcome.txHashes()));
+            if (!outcome.confirmed()) {
+                lateAfterFailure += credits;
+            } else if (credits == 0) {
+                // Two rollbacks in a row take back a transaction at confirmation depth 1
+                if (!ledger.rolledBack(outcome.txHash()))
+                    throw new AssertionError("Donor %d confirmed by %s but not credited".formatted(donor,
+                            outcome.txHash()));
+                rolledBackAfterConfirmation++;
+            } else if (!ledger.isIncluded(outcome.txHash())) {
+                throw new AssertionError("Donor %d confirmed by %s, but another attempt was included"
+                        .formatted(donor, outcome.txHash()));
+            }
+        }
+        System.out.println("Every confirmed donor credited once, %d rolled back after confirmation, %d failed donors landed late"
+                .formatted(rolledBackAfterConfirmation, lateAfterFailure));
+    }
+
+    /**
+     * A ledger with a single contended script UTxO, identified by its version.
+     */
+    static class SimulatedLedger implements TxSubmitter.Chain {
+
+        private long scriptUtxoVersion;
+        private long height;
+        private final List<String> mempool = new ArrayList<>();
+        private final Map<String, Long> included = new HashMap<>();
+        private final Map<String, Long> spentVersion = new HashMap<>();
+        private final Map<Integer, Integer> credits = new HashMap<>();
+        private final Set<String> rolledBack = new HashSet<>();
+        // Dropped transactions that another node announces again at the given height
+        private final Map<String, Long> reannounced = new HashMap<>();
+        // A stalled transaction holds back the mempool chained on it until this height
+        private long heldUntil;
+
+        TxSubmitter.SignedTx donation(int donor, int attempt) throws InterruptedException {
+            long version;
+            synchronized (this) {
+                version = scriptUtxoVersion;
+            }
+            Thread.sleep(buildMillis);
+            String body = "%d:%d:%d".formatted(donor, attempt, version);
+            return new TxSubmitter.SignedTx("tx-" + body, body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Result<String> submit(byte[] cbor) {
+            String body = new String(cbor, StandardCharsets.UTF_8);
+            String txHash = "tx-" + body;
+            long version = Long.parseLong(body.substring(body.lastIndexOf(':') + 1));
+            // The mempool and the chain count its inputs as spent already
+            if (included.containsKey(txHash) || mempool.contains(txHash))
+                return Result.error("ConwayUtxowFailure (UtxoFailure (BadInputsUTxO))");
+            if (ThreadLocalRandom.current().nextDouble() < mempoolFullRate)
+                return Result.error("MempoolFull");
+            if (version != scriptUtxoVersion)
+                return Result.error("ConwayUtxowFailure (UtxoFailure (BadInputsUTxO))");
+
+            accept(txHash, version);
+            if (ThreadLocalRandom.current().nextDouble() < dropRate) {
+                // Dropped, the script UTxO is unspent again
+                mempool.remove(txHash);
+                scriptUtxoVersion = version;
+                if (ThreadLocalRandom.current().nextDouble() < reannounceRate)
+                    reannounced.put(txHash, height + ThreadLocalRandom.current().nextLong(1, maxReannounceBlocks + 1));
+            } else if (heldUntil <= height && ThreadLocalRandom.current().nextDouble() < stallRate) {
+                heldUntil = height + ThreadLocalRandom.current().nextLong(6, maxStallBlocks + 1);
+            }
+            return Result.success(txHash).withValue(txHash);
+        }
+
+        private void accept(String txHash, long version) {
+            scriptUtxoVersion++;
+            spentVersion.put(txHash, version);
+            reannounced.remove(txHash);
+            mempool.add(txHash);
+        }
+
+        // Announced again, it is only valid while the script UTxO it spends is unspent
+        private void reannounce() {
+            List<String> due = reannounced.entrySet().stream()
+                    .filter(entry -> entry.getValue() <= height)
+                    .map(Map.Entry::getKey)
+                    .toList();
+            for (String txHash : due) {
+                reannounced.remove(txHash);
+                if (spentVersion.get(txHash) == scriptUtxoVersion && !included.containsKey(txHash))
+                    accept(txHash, scriptUtxoVersion);
+            }
+        }
+
+        synchronized int credits(int donor) {
+            return credits.getOrDefault(donor, 0);
+        }
+
+        synchronized boolean rolledBack(String txHash) {
+            return rolledBack.contains(txHash) && !included.containsKey(txHash);
+        }
+
+        synchronized boolean isIncluded(String txHash) {
+            return included.containsKey(txHash);
+        }
+
+        private static int donor(String txHash) {
+            return Integer.parseInt(txHash.substring("tx-".length(), txHash.indexOf(':')));
+        }
+
+        @Override
+        public synchronized OptionalLong blockHeight(String txHash) {
+            Long blockHeight = included.get(txHash);
+            return blockHeight == null ? OptionalLong.empty() : OptionalLong.of(blockHeight);
+        }
+
+        @Override
+        public synchronized long tipHeight() {
+            return height;
+        }
+
+        void produceBlocks() {
+            try {
+                while (true) {
+                    Thread.sleep(blockTime.toMillis());
+                    synchronized (this) {
+                        rollback();
+                        height++;
+                        reannounce();
+                        if (height < heldUntil)
+                            continue;
+                        for (String txHash : mempool) {
+                            included.put(txHash, height);
+                            credits.merge(donor(txHash), 1, Integer::sum);
+                        }
+                        mempool.clear();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Rolls back the tip block. Mempool transactions chained on its outputs
+        // become invalid as well, so the script UTxO goes back to the version spent
+        // by the first rolled back transaction.
+        private void rollback() {
+            if (height == 0 || ThreadLocalRandom.current().nextDouble() >= rollbackRate)
+                return;
+            List<String> rolledBack = new ArrayList<>(mempool);
+            included.forEach((txHash, blockHeight) -> {
+                if (blockHeight == height)
+                    rolledBack.add(txHash);
+            });
+            for (String txHash : rolledBack) {
+                if (included.remove(txHash) != null) {
+                    credits.merge(donor(txHash), -1, Integer::sum);
+                    this.rolledBack.add(txHash);
+                }
+                scriptUtxoVersion = Math.min(scriptUtxoVersion, spentVersion.get(txHash));
+            }
+            mempool.clear();
+            height--;
+        }
+    }
+}
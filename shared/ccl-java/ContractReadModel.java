@@ -0,0 +1,598 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES BlockWatcher.java
+// @formatter:on
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.bloxbean.cardano.client.api.common.OrderEnum;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.model.AddressTransactionContent;
+import com.bloxbean.cardano.client.backend.model.Block;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.MapPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+
+/**
+ * Typed states of the vault, crowdfund and HTLC instances of the examples,
+ * kept up to date per block and indexed for the questions asked about them,
+ * instead of fetching all UTxOs of an address and decoding their datums on
+ * every question.
+ * <p>
+ * An instance is registered with its script address and the parameters it
+ * was derived with, the HTLC keeps all of its state in them. Its UTxOs are
+ * fetched once; after that, on every block of the {@link BlockWatcher}, only
+ * instances with a transaction in the new blocks are fetched again, and
+ * their projection and the indices are replaced:
+ * <ul>
+ * <li>vaults with a pending withdrawal, a UTxO with the inline
+ * {@code WithdrawDatum};</li>
+ * <li>the lovelace raised per crowdfund, from the UTxO with the donor map;</li>
+ * <li>HTLCs with value locked, by expiration, so the ones claimable with the
+ * secret and the ones refundable to the owner are a range of the index.</li>
+ * </ul>
+ * The instances with their parameters and their UTxOs are persisted in an
+ * append-only log, one line per registration, one per instance update and
+ * one per block, which is replayed on open, so the views answer right away
+ * after a restart; the blocks since the last one in the log are caught up on
+ * the first block. Rollbacks are not handled: the watcher only moves
+ * forward, and an instance is fetched again with its next transaction.
+ */
+public class ContractReadModel implements AutoCloseable {
+
+    static final String HEADER = "# contract read model v2";
+
+    /**
+     * The parameters an instance was derived with.
+     */
+    public sealed interface Instance permits Vault, Crowdfund, Htlc {
+        String address();
+    }
+
+    public record Vault(String address, byte[] owner, long waitTime) implements Instance {
+    }
+
+    public record Crowdfund(String address, byte[] beneficiary, BigInteger goal, long deadline) implements Instance {
+    }
+
+    public record Htlc(String address, byte[] secretHash, long expiration, byte[] owner) implements Instance {
+    }
+
+    /**
+     * The state of an instance, projected from its UTxOs.
+     */
+    public sealed interface State permits VaultState, CrowdfundState, HtlcState {
+        Instance instance();
+    }
+
+    /**
+     * @param deposited   Lovelace in the vault without a withdraw request.
+     * @param withdrawals The UTxOs with a withdraw request.
+     */
+    public record VaultState(Vault instance, BigInteger deposited, List<Withdrawal> withdrawals) implements State {
+    }
+
+    /**
+     * @param utxo     The request UTxO, {@code txHash#index}.
+     * @param lockTime POSIX milliseconds of the request, the withdrawal can be
+     *                 finalised {@code waitTime} later.
+     */
+    public record Withdrawal(String utxo, long lockTime, BigInteger lovelace) {
+    }
+
+    /**
+     * @param raised Lovelace of the UTxO with the donor map.
+     * @param donors Hex key hash to the lovelace donated.
+     */
+    public record CrowdfundState(Crowdfund instance, BigInteger raised, Map<String, BigInteger> donors)
+            implements State {
+
+        public boolean goalReached() {
+            return raised.compareTo(instance.goal()) >= 0;
+        }
+    }
+
+    public record HtlcState(Htlc instance, BigInteger locked, int utxos) implements State {
+    }
+
+    // A UTxO as persisted, the inline datum as hex CBOR or null
+    record Row(String utxo, BigInteger lovelace, String inlineDatum) {
+
+        static Row of(Utxo utxo) {
+            BigInteger lovelace = utxo.getAmount().stream()
+                    .filter(amount -> amount.getUnit().equals("lovelace"))
+                    .map(Amount::getQuantity)
+                    .reduce(BigInteger.ZERO, BigInteger::add);
+            return new Row(utxo.getTxHash() + "#" + utxo.getOutputIndex(), lovelace, utxo.getInlineDatum());
+        }
+    }
+
+    private record Rows(long height, List<Row> rows) {
+    }
+
+    private final BackendService backendService;
+    private final Path log;
+    private BufferedWriter out;
+
+    private final Map<String, Instance> instances = new LinkedHashMap<>();
+    private final Map<String, Rows> utxos = new HashMap<>();
+    private final Map<String, State> states = new HashMap<>();
+    // The indices, all keyed by script address
+    private final Set<String> pendingWithdrawals = new TreeSet<>();
+    private final Map<String, BigInteger> raised = new TreeMap<>();
+    private final TreeMap<Long, Set<String>> htlcsByExpiration = new TreeMap<>();
+    private volatile long appliedHeight = -1;
+
+    private long blocks;
+    private long refreshes;
+    private long refreshNanos;
+    private long undecoded;
+
+    private ContractReadModel(BackendService backendService, Path log) {
+        this.backendService = backendService;
+        this.log = log;
+    }
+
+    /**
+     * A read model without a log, filled from the backend on registration.
+     *
+     * @param backendService Null to only project what is passed to
+     *                       {@link #refresh}.
+     */
+    public static ContractReadModel inMemory(BackendService backendService) {
+        return new ContractReadModel(backendService, null);
+    }
+
+    /**
+     * Opens the read model persisted in the log, created if it does not exist.
+     * A torn last line of a crashed run is cut off.
+     */
+    public static ContractReadModel open(BackendService backendService, Path log) throws IOException {
+        ContractReadModel model = new ContractReadModel(backendService, log);
+        long valid = 0;
+        int lines = 0;
+        if (Files.exists(log)) {
+            byte[] bytes = Files.readAllBytes(log);
+            int start = 0;
+            for (int end = 0; end < bytes.length; end++) {
+                if (bytes[end] != '\n')
+                    continue;
+                model.replay(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+                lines++;
+                start = end + 1;
+                valid = start;
+            }
+            if (valid < bytes.length) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+        }
+        synchronized (model) {
+            for (String address : model.instances.keySet())
+                model.project(address);
+        }
+        // Every update rewrites all UTxOs of an instance, so old lines pile up
+        if (lines > 2 * (model.instances.size() + model.utxos.size() + 1) + 1_000)
+            model.compact();
+        else
+            model.out = Files.newBufferedWriter(log, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        if (valid == 0 && lines == 0)
+            model.append(HEADER);
+        return model;
+    }
+
+    /**
+     * Updates the read model on every block of the watcher.
+     */
+    public ContractReadModel follow(BlockWatcher blockWatcher) {
+        blockWatcher.addListener(this::onBlock);
+        return this;
+    }
+
+    public State vault(String address, byte[] owner, long waitTime) {
+        return register(new Vault(address, owner, waitTime));
+    }
+
+    public State crowdfund(String address, byte[] beneficiary, BigInteger goal, long deadline) {
+        return register(new Crowdfund(address, beneficiary, goal, deadline));
+    }
+
+    public State htlc(String address, byte[] secretHash, long expiration, byte[] owner) {
+        return register(new Htlc(address, secretHash, expiration, owner));
+    }
+
+    /**
+     * Registers an instance, fetching its UTxOs unless they are in the log.
+     * Registering an instance again returns its current state.
+     */
+    public State register(Instance instance) {
+        long height = appliedHeight;
+        synchronized (this) {
+            Instance registered = instances.putIfAbsent(instance.address(), instance);
+            if (registered != null)
+                return states.get(instance.address());
+            append(toLine(instance));
+            flush();
+            if (utxos.containsKey(instance.address()) || backendService == null) {
+                project(instance.address());
+                return states.get(instance.address());
+            }
+        }
+        try {
+            refresh(instance.address(), height, fetch(instance.address()));
+        } catch (ApiException e) {
+            // Fetched again with the next transaction of the instance
+            System.out.println("Read model fetch of %s failed: %s".formatted(instance.address(), e.getMessage()));
+            refresh(instance.address(), -1, List.of());
+        }
+        return state(instance.address()).orElseThrow();
+    }
+
+    public synchronized Optional<State> state(String address) {
+        return Optional.ofNullable(states.get(address));
+    }
+
+    /**
+     * @return The vaults with at least one withdraw request.
+     */
+    public synchronized List<VaultState> pendingWithdrawals() {
+        List<VaultState> vaults = new ArrayList<>(pendingWithdrawals.size());
+        for (String address : pendingWithdrawals)
+            vaults.add((VaultState) states.get(address));
+        return vaults;
+    }
+
+    /**
+     * @return Script address to the lovelace raised, for every crowdfund.
+     */
+    public synchronized Map<String, BigInteger> totalRaised() {
+        return new LinkedHashMap<>(raised);
+    }
+
+    public synchronized BigInteger totalRaised(String address) {
+        return raised.getOrDefault(address, BigInteger.ZERO);
+    }
+
+    /**
+     * @return The HTLCs with value locked that can still be claimed with the
+     *         secret, the expiration is after {@code nowMillis}.
+     */
+    public synchronized List<HtlcState> claimableHtlcs(long nowMillis) {
+        return htlcs(htlcsByExpiration.tailMap(nowMillis, false));
+    }
+
+    /**
+     * @return The HTLCs with value locked the owner can take back, the
+     *         expiration is at or before {@code nowMillis}.
+     */
+    public synchronized List<HtlcState> refundableHtlcs(long nowMillis) {
+        return htlcs(htlcsByExpiration.headMap(nowMillis, true));
+    }
+
+    private List<HtlcState> htlcs(Map<Long, Set<String>> byExpiration) {
+        List<HtlcState> htlcs = new ArrayList<>();
+        for (Set<String> addresses : byExpiration.values())
+            for (String address : addresses)
+                htlcs.add((HtlcState) states.get(address));
+        return htlcs;
+    }
+
+    public long appliedHeight() {
+        return appliedHeight;
+    }
+
+    private void onBlock(Block block) {
+        long height = block.getHeight();
+        long from = appliedHeight < 0 ? height : appliedHeight + 1;
+        List<String> addresses;
+        synchronized (this) {
+            addresses = new ArrayList<>(instances.keySet());
+        }
+        boolean complete = true;
+        for (String address : addresses) {
+            try {
+                if (touched(address, from, height))
+                    refresh(address, height, fetch(address));
+            } catch (ApiException | RuntimeException e) {
+                // The blocks are scanned again with the next one
+                complete = false;
+                System.out.println("Read model update of %s failed: %s".formatted(address, e.getMessage()));
+            }
+        }
+        if (complete) {
+            synchronized (this) {
+                blocks++;
+                appliedHeight = height;
+                append("H\t" + height);
+                flush();
+            }
+        }
+    }
+
+    private boolean touched(String address, long from, long to) throws ApiException {
+        Result<List<AddressTransactionContent>> txs = backendService.getAddressService().getTransactions(address, 1,
+                1, OrderEnum.asc, Long.toString(from), Long.toString(to));
+        if (!txs.isSuccessful() || txs.getValue() == null)
+            throw new ApiException("Transactions of %s: %s".formatted(address, txs.getResponse()));
+        return !txs.getValue().isEmpty();
+    }
+
+    private List<Utxo> fetch(String address) throws ApiException {
+        List<Utxo> all = new ArrayList<>();
+        for (int page = 1;; page++) {
+            Result<List<Utxo>> utxos = backendService.getUtxoService().getUtxos(address, 100, page);
+            // Blockfrost answers an address without UTxOs with not found
+            if (!utxos.isSuccessful() && utxos.code() != 404)
+                throw new ApiException("UTxOs of %s: %s".formatted(address, utxos.getResponse()));
+            if (utxos.getValue() == null || utxos.getValue().isEmpty())
+                return all;
+            all.addAll(utxos.getValue());
+            if (utxos.getValue().size() < 100)
+                return all;
+        }
+    }
+
+    /**
+     * Replaces the UTxOs of an instance as of a block height and projects it
+     * again. An update older than the current one is ignored, so a slow
+     * registration does not overwrite a newer block.
+     */
+    public void refresh(String address, long height, List<Utxo> utxos) {
+        long start = System.nanoTime();
+        List<Row> rows = utxos.stream().map(Row::of).toList();
+        synchronized (this) {
+            Rows current = this.utxos.get(address);
+            if (current != null && current.height() > height)
+                return;
+            this.utxos.put(address, new Rows(height, rows));
+            append(toLine(address, height, rows));
+            project(address);
+            refreshes++;
+            refreshNanos += System.nanoTime() - start;
+        }
+    }
+
+    // Called with the lock held
+    private void project(String address) {
+        Instance instance = instances.get(address);
+        if (instance == null)
+            return;
+        unindex(address);
+        Rows rows = utxos.getOrDefault(address, new Rows(-1, List.of()));
+        State state = switch (instance) {
+            case Vault vault -> projectVault(vault, rows.rows());
+            case Crowdfund crowdfund -> projectCrowdfund(crowdfund, rows.rows());
+            case Htlc htlc -> projectHtlc(htlc, rows.rows());
+        };
+        states.put(address, state);
+        switch (state) {
+            case VaultState vault -> {
+                if (!vault.withdrawals().isEmpty())
+                    pendingWithdrawals.add(address);
+            }
+            case CrowdfundState crowdfund -> raised.put(address, crowdfund.raised());
+            case HtlcState htlc -> {
+                if (htlc.locked().signum() > 0)
+                    htlcsByExpiration.computeIfAbsent(htlc.instance().expiration(), e -> new TreeSet<>()).add(address);
+            }
+        }
+    }
+
+    private void unindex(String address) {
+        State previous = states.get(address);
+        if (previous == null)
+            return;
+        switch (previous) {
+            case VaultState vault -> pendingWithdrawals.remove(address);
+            case CrowdfundState crowdfund -> raised.remove(address);
+            case HtlcState htlc -> {
+                long expiration = htlc.instance().expiration();
+                Set<String> addresses = htlcsByExpiration.get(expiration);
+                if (addresses != null && addresses.remove(address) && addresses.isEmpty())
+                    htlcsByExpiration.remove(expiration);
+            }
+        }
+    }
+
+    private VaultState projectVault(Vault vault, List<Row> rows) {
+        BigInteger deposited = BigInteger.ZERO;
+        List<Withdrawal> withdrawals = new ArrayList<>();
+        for (Row row : rows) {
+            if (row.inlineDatum() == null) {
+                deposited = deposited.add(row.lovelace());
+                continue;
+            }
+            // WithdrawDatum { lock_time }
+            if (decode(row) instanceof ConstrPlutusData datum && datum.getAlternative() == 0
+                    && datum.getData().getPlutusDataList().size() == 1
+                    && datum.getData().getPlutusDataList().getFirst() instanceof BigIntPlutusData lockTime)
+                withdrawals.add(new Withdrawal(row.utxo(), lockTime.getValue().longValue(), row.lovelace()));
+            else
+                undecoded++;
+        }
+        return new VaultState(vault, deposited, List.copyOf(withdrawals));
+    }
+
+    private CrowdfundState projectCrowdfund(Crowdfund crowdfund, List<Row> rows) {
+        BigInteger raised = BigInteger.ZERO;
+        Map<String, BigInteger> donors = new LinkedHashMap<>();
+        for (Row row : rows) {
+            if (row.inlineDatum() == null)
+                continue;
+            // CrowdfundDatum { wallets: Pairs<VerificationKeyHash, Int> }
+            if (decode(row) instanceof ConstrPlutusData datum && datum.getAlternative() == 0
+                    && datum.getData().getPlutusDataList().size() == 1
+                    && datum.getData().getPlutusDataList().getFirst() instanceof MapPlutusData wallets) {
+                raised = raised.add(row.lovelace());
+                wallets.getMap().forEach((key, amount) -> {
+                    if (key instanceof BytesPlutusData keyHash && amount instanceof BigIntPlutusData lovelace)
+                        donors.merge(HexFormat.of().formatHex(keyHash.getValue()), lovelace.getValue(),
+                                BigInteger::add);
+                });
+            } else {
+                undecoded++;
+            }
+        }
+        return new CrowdfundState(crowdfund, raised, Collections.unmodifiableMap(donors));
+    }
+
+    private static HtlcState projectHtlc(Htlc htlc, List<Row> rows) {
+        BigInteger locked = rows.stream().map(Row::lovelace).reduce(BigInteger.ZERO, BigInteger::add);
+        return new HtlcState(htlc, locked, rows.size());
+    }
+
+    private static PlutusData decode(Row row) {
+        try {
+            return PlutusData.deserialize(HexFormat.of().parseHex(row.inlineDatum()));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Log lines: "I <kind> <address> <parameters>...", "A <height> <address> <utxo>,<lovelace>,<datum or ->;..."
+    // and "H <height>"
+
+    private static String toLine(Instance instance) {
+        HexFormat hex = HexFormat.of();
+        return "I\t" + switch (instance) {
+            case Vault vault -> String.join("\t", "vault", vault.address(), hex.formatHex(vault.owner()),
+                    Long.toString(vault.waitTime()));
+            case Crowdfund crowdfund -> String.join("\t", "crowdfund", crowdfund.address(),
+                    hex.formatHex(crowdfund.beneficiary()), crowdfund.goal().toString(),
+                    Long.toString(crowdfund.deadline()));
+            case Htlc htlc -> String.join("\t", "htlc", htlc.address(), hex.formatHex(htlc.secretHash()),
+                    Long.toString(htlc.expiration()), hex.formatHex(htlc.owner()));
+        };
+    }
+
+    private static Instance toInstance(String[] fields) {
+        HexFormat hex = HexFormat.of();
+        return switch (fields[1]) {
+            case "vault" -> new Vault(fields[2], hex.parseHex(fields[3]), Long.parseLong(fields[4]));
+            case "crowdfund" -> new Crowdfund(fields[2], hex.parseHex(fields[3]), new BigInteger(fields[4]),
+                    Long.parseLong(fields[5]));
+            case "htlc" -> new Htlc(fields[2], hex.parseHex(fields[3]), Long.parseLong(fields[4]),
+                    hex.parseHex(fields[5]));
+            default -> throw new IllegalStateException("Unknown read model instance " + fields[1]);
+        };
+    }
+
+    private static String toLine(String address, long height, List<Row> rows) {
+        StringBuilder line = new StringBuilder("A\t").append(height).append('\t').append(address).append('\t');
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            if (i > 0)
+                line.append(';');
+            line.append(row.utxo()).append(',').append(row.lovelace()).append(',')
+                    .append(row.inlineDatum() == null ? "-" : row.inlineDatum());
+        }
+        return line.toString();
+    }
+
+    private void replay(String line) {
+        if (line.isEmpty() || line.startsWith("#"))
+            return;
+        String[] fields = line.split("\t", -1);
+        switch (fields[0]) {
+            case "H" -> appliedHeight = Math.max(appliedHeight, Long.parseLong(fields[1]));
+            case "I" -> instances.putIfAbsent(fields[2], toInstance(fields));
+            case "A" -> {
+                List<Row> rows = new ArrayList<>();
+                if (!fields[3].isEmpty()) {
+                    for (String row : fields[3].split(";")) {
+                        String[] parts = row.split(",");
+                        rows.add(new Row(parts[0], new BigInteger(parts[1]), parts[2].equals("-") ? null : parts[2]));
+                    }
+                }
+                utxos.put(fields[2], new Rows(Long.parseLong(fields[1]), rows));
+            }
+            default -> throw new IllegalStateException("Unknown read model line " + fields[0]);
+        }
+    }
+
+    /**
+     * Rewrites the log with one registration and one UTxO line per instance.
+     */
+    public synchronized void compact() throws IOException {
+        if (log == null)
+            return;
+        if (out != null)
+            out.close();
+        Path compacted = log.resolveSibling(log.getFileName() + ".compact");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + "\n");
+            for (Instance instance : instances.values())
+                writer.write(toLine(instance) + "\n");
+            for (Map.Entry<String, Rows> entry : utxos.entrySet())
+                writer.write(toLine(entry.getKey(), entry.getValue().height(), entry.getValue().rows()) + "\n");
+            if (appliedHeight >= 0)
+                writer.write("H\t" + appliedHeight + "\n");
+        }
+        Files.move(compacted, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = Files.newBufferedWriter(log, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private void append(String line) {
+        if (out == null)
+            return;
+        try {
+            out.write(line);
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush() {
+        if (out == null)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void printStats() {
+        System.out.println("Read model: %d instances, %d blocks up to height %d, %d instance updates in %.1f us on average, %d undecoded datums"
+                .formatted(instances.size(), blocks, appliedHeight, refreshes,
+                        refreshes == 0 ? 0.0 : refreshNanos / 1e3 / refreshes, undecoded));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
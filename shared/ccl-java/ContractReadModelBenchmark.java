@@ -0,0 +1,257 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES ContractReadModel.java
+//SOURCES PerfHistory.java
+// @formatter:on
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.crypto.Blake2bUtil;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.MapPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+
+/**
+ * Compares the queries of the {@link ContractReadModel} with scanning and
+ * decoding the UTxOs of every instance, as the examples do with
+ * {@code utxoSupplier.getAll}, for growing numbers of vault, crowdfund and
+ * HTLC instances.
+ * <p>
+ * The UTxOs are generated in memory: every vault has a deposit and every
+ * fourth a withdraw request, every crowdfund a donor map of ten donors, and
+ * the HTLC expirations are spread around the current time. The scan is
+ * timed without the backend calls it would need, so it is the lower bound
+ * of the current way. Also reported are the cost of one instance update,
+ * which is what a block with a transaction of the instance costs, and the
+ * time to replay the log on open; the reopened model has to answer the same
+ * as before.
+ * <p>
+ * Usage: {@code jbang ContractReadModelBenchmark.java [instances per kind...]}
+ */
+public class ContractReadModelBenchmark {
+
+    static List<Integer> sizes = List.of(100, 1_000, 10_000);
+    static int queries = 200;
+
+    record Instance(ContractReadModel.Instance instance, List<Utxo> utxos) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0)
+            sizes = List.of(args).stream().map(Integer::parseInt).toList();
+
+        PerfHistory.Recorder perf = new PerfHistory.Recorder("read-model", null, PerfHistory.fromEnvironment());
+        System.out.println("| instances | pending withdrawals scan | view | total raised scan | view | claimable HTLCs scan | view | update | replay |");
+        System.out.println("|---:|---:|---:|---:|---:|---:|---:|---:|---:|");
+        for (int size : sizes) {
+            long now = System.currentTimeMillis();
+            List<Instance> instances = instances(size, now, new Random(size));
+            Path log = Files.createTempFile("read-model-", ".log");
+            Files.delete(log);
+            ContractReadModel model = ContractReadModel.open(null, log);
+            for (Instance instance : instances) {
+                model.refresh(instance.instance().address(), 1, instance.utxos());
+                model.register(instance.instance());
+            }
+
+            // The answers must be the same either way
+            if (model.pendingWithdrawals().size() != scanPendingWithdrawals(instances).size()
+                    || !model.totalRaised().equals(scanTotalRaised(instances))
+                    || model.claimableHtlcs(now).size() != scanClaimableHtlcs(instances, now).size())
+                throw new AssertionError("Read model and scan differ for %d instances".formatted(size));
+
+            double pendingScan = time(() -> scanPendingWithdrawals(instances));
+            double pendingView = time(model::pendingWithdrawals);
+            double raisedScan = time(() -> scanTotalRaised(instances));
+            double raisedView = time(model::totalRaised);
+            double claimableScan = time(() -> scanClaimableHtlcs(instances, now));
+            double claimableView = time(() -> model.claimableHtlcs(now));
+
+            // A block requests a withdrawal of a vault
+            Instance vault = instances.getFirst();
+            long[] updates = new long[queries];
+            for (int i = 0; i < queries; i++) {
+                List<Utxo> utxos = List.of(utxo(i + 2, 10_000_000, withdrawDatum(now + i)));
+                long start = System.nanoTime();
+                model.refresh(vault.instance().address(), i + 2, utxos);
+                updates[i] = System.nanoTime() - start;
+            }
+            Map<String, Object> before = views(model, now);
+            model.close();
+
+            long start = System.nanoTime();
+            ContractReadModel reopened = ContractReadModel.open(null, log);
+            double replayMillis = (System.nanoTime() - start) / 1e6;
+            // A restart must answer from the log, without registering the instances again
+            if (!views(reopened, now).equals(before))
+                throw new AssertionError("Reopened read model differs for %d instances".formatted(size));
+            reopened.close();
+            Files.delete(log);
+
+            System.out.println("| %,d | %,.1f us | %.1f us | %,.1f us | %.1f us | %,.1f us | %.1f us | %.1f us | %.0f ms |"
+                    .formatted(3 * size, pendingScan, pendingView, raisedScan, raisedView, claimableScan, claimableView,
+                            median(updates) / 1e3, replayMillis));
+            String step = "instances_" + 3 * size;
+            perf.record(step, "pending_withdrawals_us", pendingView);
+            perf.record(step, "total_raised_us", raisedView);
+            perf.record(step, "claimable_htlcs_us", claimableView);
+            perf.record(step, "scan_us", pendingScan + raisedScan + claimableScan);
+            perf.record(step, "update_us", median(updates) / 1e3);
+        }
+        perf.close();
+    }
+
+    static List<Instance> instances(int size, long now, Random random) {
+        List<Instance> instances = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            List<Utxo> utxos = new ArrayList<>();
+            utxos.add(utxo(i, 10_000_000, null));
+            if (i % 4 == 0)
+                utxos.add(utxo(i + 1, 5_000_000, withdrawDatum(now - random.nextInt(60_000))));
+            instances.add(new Instance(new ContractReadModel.Vault(address("vault", i), keyHash(i), 10_000), utxos));
+        }
+        for (int i = 0; i < size; i++) {
+            MapPlutusData donors = new MapPlutusData();
+            BigInteger total = BigInteger.ZERO;
+            for (int donor = 0; donor < 10; donor++) {
+                BigInteger amount = BigInteger.valueOf(1_000_000L + random.nextInt(100_000_000));
+                donors.put(BytesPlutusData.of(keyHash(i * 10 + donor)), BigIntPlutusData.of(amount));
+                total = total.add(amount);
+            }
+            instances.add(new Instance(new ContractReadModel.Crowdfund(address("crowdfund", i), keyHash(i),
+                    BigInteger.valueOf(500_000_000), now), List.of(utxo(i, total.longValue(), ConstrPlutusData.of(0, donors)))));
+        }
+        for (int i = 0; i < size; i++) {
+            long expiration = now + random.nextInt(3_600_000) - 1_800_000;
+            instances.add(new Instance(new ContractReadModel.Htlc(address("htlc", i), keyHash(-i), expiration, keyHash(i)),
+                    List.of(utxo(i, 10_000_000, null))));
+        }
+        return instances;
+    }
+
+    /**
+     * @return The answers of the views, without the instance parameters whose
+     *         byte arrays do not compare by value.
+     */
+    static Map<String, Object> views(ContractReadModel model, long now) {
+        Map<String, Object> views = new LinkedHashMap<>();
+        views.put("pending", model.pendingWithdrawals().stream()
+                .map(vault -> List.of(vault.instance().address(), vault.deposited(), vault.withdrawals())).toList());
+        views.put("raised", model.totalRaised());
+        views.put("claimable", model.claimableHtlcs(now).stream()
+                .map(htlc -> List.of(htlc.instance().address(), htlc.instance().expiration(), htlc.locked())).toList());
+        views.put("refundable", model.refundableHtlcs(now).stream()
+                .map(htlc -> List.of(htlc.instance().address(), htlc.instance().expiration(), htlc.locked())).toList());
+        return views;
+    }
+
+    // What callers do today, once the UTxOs of every address are fetched
+
+    static List<String> scanPendingWithdrawals(List<Instance> instances) {
+        List<String> pending = new ArrayList<>();
+        for (Instance instance : instances)
+            if (instance.instance() instanceof ContractReadModel.Vault)
+                for (Utxo utxo : instance.utxos())
+                    if (utxo.getInlineDatum() != null && decode(utxo) instanceof ConstrPlutusData datum
+                            && datum.getAlternative() == 0) {
+                        pending.add(instance.instance().address());
+                        break;
+                    }
+        return pending;
+    }
+
+    static Map<String, BigInteger> scanTotalRaised(List<Instance> instances) {
+        Map<String, BigInteger> raised = new LinkedHashMap<>();
+        for (Instance instance : instances)
+            if (instance.instance() instanceof ContractReadModel.Crowdfund)
+                for (Utxo utxo : instance.utxos())
+                    if (utxo.getInlineDatum() != null && decode(utxo) instanceof ConstrPlutusData datum
+                            && datum.getData().getPlutusDataList().getFirst() instanceof MapPlutusData)
+                        raised.merge(instance.instance().address(), lovelace(utxo), BigInteger::add);
+        return raised;
+    }
+
+    static List<String> scanClaimableHtlcs(List<Instance> instances, long now) {
+        List<String> claimable = new ArrayList<>();
+        for (Instance instance : instances)
+            if (instance.instance() instanceof ContractReadModel.Htlc htlc && htlc.expiration() > now
+                    && instance.utxos().stream().map(ContractReadModelBenchmark::lovelace)
+                            .reduce(BigInteger.ZERO, BigInteger::add).signum() > 0)
+                claimable.add(htlc.address());
+        return claimable;
+    }
+
+    static PlutusData decode(Utxo utxo) {
+        try {
+            return PlutusData.deserialize(HexFormat.of().parseHex(utxo.getInlineDatum()));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static BigInteger lovelace(Utxo utxo) {
+        return utxo.getAmount().getFirst().getQuantity();
+    }
+
+    static Utxo utxo(int index, long lovelace, PlutusData inlineDatum) {
+        Utxo utxo = new Utxo();
+        utxo.setTxHash(HexFormat.of().formatHex(Blake2bUtil.blake2bHash256(ByteBuffer.allocate(4).putInt(index).array())));
+        utxo.setOutputIndex(0);
+        utxo.setAmount(List.of(Amount.lovelace(BigInteger.valueOf(lovelace))));
+        utxo.setInlineDatum(inlineDatum == null ? null : inlineDatum.serializeToHex());
+        return utxo;
+    }
+
+    static PlutusData withdrawDatum(long lockTime) {
+        return ConstrPlutusData.of(0, BigIntPlutusData.of(lockTime));
+    }
+
+    static String address(String useCase, int index) {
+        return "addr_test_" + useCase + "_" + index;
+    }
+
+    static byte[] keyHash(int index) {
+        return Blake2bUtil.blake2bHash224(ByteBuffer.allocate(4).putInt(index).array());
+    }
+
+    /**
+     * @return The median microseconds of repeated runs after a warm-up.
+     */
+    static double time(Runnable query) {
+        for (int i = 0; i < 20; i++)
+            query.run();
+        long[] nanos = new long[queries];
+        for (int i = 0; i < queries; i++) {
+            long start = System.nanoTime();
+            query.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        return median(nanos) / 1e3;
+    }
+
+    static double median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
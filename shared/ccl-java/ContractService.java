@@ -0,0 +1,768 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES TxSubmitter.java
+//SOURCES ScriptDeriver.java
+//SOURCES ValidityWindow.java
+//SOURCES TenantContext.java
+//SOURCES ContractReadModel.java
+// @formatter:on
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.bloxbean.cardano.client.account.Account;
+import com.bloxbean.cardano.client.address.Address;
+import com.bloxbean.cardano.client.address.AddressProvider;
+import com.bloxbean.cardano.client.api.ProtocolParamsSupplier;
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.api.DefaultProtocolParamsSupplier;
+import com.bloxbean.cardano.client.backend.api.DefaultTransactionProcessor;
+import com.bloxbean.cardano.client.backend.api.DefaultUtxoSupplier;
+import com.bloxbean.cardano.client.backend.blockfrost.service.BFBackendService;
+import com.bloxbean.cardano.client.common.model.Network;
+import com.bloxbean.cardano.client.common.model.Networks;
+import com.bloxbean.cardano.client.function.helper.ScriptUtxoFinders;
+import com.bloxbean.cardano.client.function.helper.SignerProviders;
+import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
+import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.MapPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusScript;
+import com.bloxbean.cardano.client.plutus.spec.PlutusV3Script;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.ScriptTx;
+import com.bloxbean.cardano.client.quicktx.Tx;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.transaction.spec.Asset;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the HTLC, vault, crowdfund, token transfer and payment splitter
+ * flows of the examples over HTTP for many tenants in one long-running JVM.
+ * <p>
+ * The examples keep one account and one validator in static fields and pay
+ * JVM startup, blueprint loading and key derivation on every run. Here the
+ * backend clients, the cached protocol parameters and one parsed blueprint per
+ * contract are set up once at startup. A {@link TenantContext} per tenant
+ * holds its account, derived once on registration, and its validator
+ * instances. Every request runs on its own virtual thread and blocks on the
+ * backend without tying up a platform thread.
+ * <p>
+ * The tenant's mnemonic is sent in the registration request, which is only
+ * acceptable against a local devnet, so the service listens on the loopback
+ * interface unless {@code BIND_ADDRESS} says otherwise. The registration
+ * response carries a random token, and every {@code /tenants/{id}} request of
+ * that tenant has to send it as {@code Authorization: Bearer <token>}.
+ * <p>
+ * Endpoints, all bodies and responses are JSON:
+ * <pre>
+ * POST /tenants                              {"id", "mnemonic"}
+ * GET  /tenants/{id}
+ * POST /tenants/{id}/htlc/lock               {"secretHash", "expiration", "ada"}
+ * POST /tenants/{id}/htlc/claim              {"owner", "secretHash", "expiration", "answer", "ada"}
+ * POST /tenants/{id}/htlc/refund             {"secretHash", "expiration", "ada"}
+ * POST /tenants/{id}/vault/deposit           {"waitTime", "ada"}
+ * POST /tenants/{id}/vault/request           {"waitTime"}
+ * POST /tenants/{id}/vault/finalize          {"waitTime"}
+ * POST /tenants/{id}/crowdfund/init          {"goal", "deadline", "ada"}
+ * POST /tenants/{id}/crowdfund/donate        {"beneficiary", "goal", "deadline", "ada"}
+ * POST /tenants/{id}/crowdfund/claim         {"goal", "deadline"}
+ * POST /tenants/{id}/token-transfer/mint     {"assetName", "quantity"}
+ * POST /tenants/{id}/token-transfer/transfer {"assetName"}
+ * POST /tenants/{id}/payment-splitter/lock   {"payees", "ada"}
+ * POST /tenants/{id}/payment-splitter/unlock {"payees"}
+ * GET  /views/vaults/pending
+ * GET  /views/crowdfunds
+ * GET  /views/htlcs/claimable
+ * GET  /views/htlcs/refundable
+ * </pre>
+ * Amounts in {@code ada} are whole Ada, {@code goal} is in lovelace, times are
+ * POSIX milliseconds and byte strings hex encoded. {@code owner} and
+ * {@code beneficiary} are tenant ids.
+ * <p>
+ * Every vault, crowdfund and HTLC instance a request derives is registered
+ * with a {@link ContractReadModel}, which the {@code /views} endpoints query.
+ * It is kept in memory, or in the log in {@code READ_MODEL_LOG} if set.
+ * <p>
+ * Usage: {@code jbang ContractService.java [port]}, with {@code BACKEND_URL}
+ * and {@code CONTRACTS_DIR}, the repository root, taken from the environment.
+ */
+public class ContractService {
+
+    static final List<String> CONTRACTS = List.of("htlc", "vault", "crowdfund", "token-transfer", "payment-splitter");
+    // The always succeeding minting policy of TokenTransfer
+    static final PlutusV3Script ALWAYS_TRUE = PlutusV3Script.builder()
+            .type("PlutusScriptV3")
+            .cborHex("46450101002499")
+            .build();
+
+    static Network network = Networks.testnet();
+    static ObjectMapper json = new ObjectMapper();
+    static SecureRandom random = new SecureRandom();
+
+    private final BackendService backendService;
+    private final UtxoSupplier utxoSupplier;
+    private final ProtocolParamsSupplier protocolParamsSupplier;
+    private final DefaultTransactionProcessor transactionProcessor;
+    private final TxSubmitter txSubmitter;
+    private final ValidityWindow validityWindow;
+    private final ContractReadModel readModel;
+    private final Map<String, ScriptDeriver> contracts = new LinkedHashMap<>();
+    private final Map<String, TenantContext> tenants = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> tokens = new ConcurrentHashMap<>();
+
+    public ContractService(BackendService backendService, Path contractsDir) throws IOException {
+        this.backendService = backendService;
+        this.utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
+        this.protocolParamsSupplier = new CachedProtocolParams(
+                new DefaultProtocolParamsSupplier(backendService.getEpochService()), Duration.ofMinutes(10));
+        this.transactionProcessor = new DefaultTransactionProcessor(backendService.getTransactionService());
+        this.txSubmitter = TxSubmitter.of(backendService);
+        this.validityWindow = new ValidityWindow(backendService);
+        String readModelLog = System.getenv("READ_MODEL_LOG");
+        this.readModel = (readModelLog == null || readModelLog.isBlank() ? ContractReadModel.inMemory(backendService)
+                : ContractReadModel.open(backendService, Path.of(readModelLog)))
+                .follow(new BlockWatcher(backendService).start());
+        for (String contract : CONTRACTS) {
+            File blueprint = contractsDir.resolve(contract).resolve("onchain/aiken/plutus.json").toFile();
+            if (!blueprint.exists()) {
+                System.out.println("No blueprint for %s at %s, build it with aiken".formatted(contract, blueprint));
+                continue;
+            }
+            String compiledCode = PlutusBlueprintLoader.loadBlueprint(blueprint).getValidators().getFirst()
+                    .getCompiledCode();
+            contracts.put(contract, ScriptDeriver.of(compiledCode, PlutusVersion.v3, network));
+        }
+        protocolParamsSupplier.getProtocolParams();
+    }
+
+    public static void main(String[] args) throws IOException {
+        long start = System.nanoTime();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+        BackendService backendService = new BFBackendService(
+                System.getenv().getOrDefault("BACKEND_URL", "http://localhost:8080/api/v1/"), "Dummy Key");
+        ContractService service = new ContractService(backendService,
+                Path.of(System.getenv().getOrDefault("CONTRACTS_DIR", "../..")));
+
+        String bindAddress = System.getenv("BIND_ADDRESS");
+        InetAddress address = bindAddress == null || bindAddress.isBlank() ? InetAddress.getLoopbackAddress()
+                : InetAddress.getByName(bindAddress);
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/", service::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        System.out.println("Contract service on %s:%d with %s, ready after %.0f ms".formatted(
+                address.getHostAddress(), port, service.contracts.keySet(), (System.nanoTime() - start) / 1e6));
+    }
+
+    // Protocol parameters only change at epoch boundaries
+    static class CachedProtocolParams implements ProtocolParamsSupplier {
+
+        private final ProtocolParamsSupplier delegate;
+        private final long ttlNanos;
+        private volatile ProtocolParams params;
+        private volatile long fetched;
+
+        CachedProtocolParams(ProtocolParamsSupplier delegate, Duration ttl) {
+            this.delegate = delegate;
+            this.ttlNanos = ttl.toNanos();
+        }
+
+        @Override
+        public ProtocolParams getProtocolParams() {
+            if (params == null || System.nanoTime() - fetched > ttlNanos) {
+                params = delegate.getProtocolParams();
+                fetched = System.nanoTime();
+            }
+            return params;
+        }
+    }
+
+    void handle(HttpExchange exchange) throws IOException {
+        int status = 200;
+        Object response;
+        try (InputStream body = exchange.getRequestBody()) {
+            byte[] bytes = body.readAllBytes();
+            JsonNode request = bytes.length == 0 ? json.createObjectNode() : json.readTree(bytes);
+            List<String> path = List.of(exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+"));
+            response = route(exchange.getRequestMethod(), path, request,
+                    exchange.getRequestHeaders().getFirst("Authorization"));
+            if (response instanceof Map<?, ?> map && Boolean.FALSE.equals(map.get("successful")))
+                status = 502;
+        } catch (IllegalArgumentException | IllegalStateException | JsonProcessingException e) {
+            status = e instanceof IllegalStateException ? 409 : 400;
+            response = Map.of("error", String.valueOf(e.getMessage()));
+        } catch (NoSuchElementException e) {
+            status = 404;
+            response = Map.of("error", String.valueOf(e.getMessage()));
+        } catch (SecurityException e) {
+            status = 401;
+            response = Map.of("error", String.valueOf(e.getMessage()));
+        } catch (Exception e) {
+            status = 500;
+            response = Map.of("error", String.valueOf(e));
+        }
+        byte[] bytes = json.writeValueAsBytes(response);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    Object route(String method, List<String> path, JsonNode body, String authorization) throws Exception {
+        if (path.size() > 1 && path.getFirst().equals("views") && method.equals("GET"))
+            return view(String.join("/", path.subList(1, path.size())));
+        if (path.isEmpty() || !path.getFirst().equals("tenants"))
+            throw new NoSuchElementException("Unknown path " + String.join("/", path));
+        if (path.size() == 1 && method.equals("POST"))
+            return register(text(body, "id"), body.path("mnemonic").asText(null));
+        TenantContext tenant = tenant(path.get(1));
+        authorize(tenant, authorization);
+        if (path.size() == 2 && method.equals("GET"))
+            return describe(tenant);
+        if (path.size() != 4 || !method.equals("POST"))
+            throw new NoSuchElementException("Unknown path " + String.join("/", path));
+        String contract = path.get(2);
+        ScriptDeriver deriver = contracts.get(contract);
+        if (deriver == null)
+            throw new NoSuchElementException("Contract %s is not available".formatted(contract));
+        return switch (contract + "/" + path.get(3)) {
+            case "htlc/lock" -> htlcLock(tenant, deriver, body);
+            case "htlc/claim" -> htlcUnlock(tenant, deriver, body, true);
+            case "htlc/refund" -> htlcUnlock(tenant, deriver, body, false);
+            case "vault/deposit" -> vaultDeposit(tenant, deriver, body);
+            case "vault/request" -> vaultRequest(tenant, deriver, body);
+            case "vault/finalize" -> vaultFinalize(tenant, deriver, body);
+            case "crowdfund/init" -> crowdfundInit(tenant, deriver, body);
+            case "crowdfund/donate" -> crowdfundDonate(tenant, deriver, body);
+            case "crowdfund/claim" -> crowdfundClaim(tenant, deriver, body);
+            case "token-transfer/mint" -> tokenMint(tenant, deriver, body);
+            case "token-transfer/transfer" -> tokenTransfer(tenant, deriver, body);
+            case "payment-splitter/lock" -> splitterLock(tenant, deriver, body);
+            case "payment-splitter/unlock" -> splitterUnlock(tenant, deriver, body);
+            default -> throw new NoSuchElementException("Unknown action " + String.join("/", path));
+        };
+    }
+
+    Map<String, Object> register(String id, String mnemonic) {
+        Account account = mnemonic == null ? new Account(network) : Account.createFromMnemonic(network, mnemonic);
+        TenantContext tenant = new TenantContext(id, account, utxoSupplier, protocolParamsSupplier,
+                transactionProcessor, txSubmitter);
+        if (tenants.putIfAbsent(id, tenant) != null)
+            throw new IllegalStateException("Tenant %s already exists".formatted(id));
+        byte[] token = new byte[32];
+        random.nextBytes(token);
+        String encoded = HexFormat.of().formatHex(token);
+        tokens.put(id, encoded.getBytes(StandardCharsets.US_ASCII));
+        Map<String, Object> response = describe(tenant);
+        // Only ever returned here
+        response.put("token", encoded);
+        return response;
+    }
+
+    /**
+     * @throws SecurityException If the request does not carry the token the
+     *                           tenant got on registration.
+     */
+    void authorize(TenantContext tenant, String authorization) {
+        byte[] expected = tokens.get(tenant.id());
+        String prefix = "Bearer ";
+        if (expected == null || authorization == null || !authorization.startsWith(prefix)
+                || !MessageDigest.isEqual(expected,
+                        authorization.substring(prefix.length()).trim().getBytes(StandardCharsets.US_ASCII)))
+            throw new SecurityException("Missing or wrong token for tenant " + tenant.id());
+    }
+
+    Map<String, Object> describe(TenantContext tenant) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("id", tenant.id());
+        response.put("address", tenant.address());
+        response.put("lovelace", lovelace(tenant.utxoSupplier().getAll(tenant.address())));
+        response.put("inFlight", tenant.inFlight());
+        return response;
+    }
+
+    Object view(String view) {
+        long now = System.currentTimeMillis();
+        return switch (view) {
+            case "vaults/pending" -> readModel.pendingWithdrawals().stream().map(vault -> Map.of(
+                    "scriptAddress", vault.instance().address(),
+                    "withdrawals", vault.withdrawals().stream().map(withdrawal -> Map.of(
+                            "utxo", withdrawal.utxo(),
+                            "lovelace", withdrawal.lovelace(),
+                            "finalizableAt", withdrawal.lockTime() + vault.instance().waitTime())).toList()))
+                    .toList();
+            case "crowdfunds" -> readModel.totalRaised();
+            case "htlcs/claimable" -> htlcs(readModel.claimableHtlcs(now));
+            case "htlcs/refundable" -> htlcs(readModel.refundableHtlcs(now));
+            default -> throw new NoSuchElementException("Unknown view " + view);
+        };
+    }
+
+    static List<Map<String, Object>> htlcs(List<ContractReadModel.HtlcState> htlcs) {
+        return htlcs.stream().map(htlc -> Map.<String, Object>of(
+                "scriptAddress", htlc.instance().address(),
+                "secretHash", HexFormat.of().formatHex(htlc.instance().secretHash()),
+                "expiration", htlc.instance().expiration(),
+                "lovelace", htlc.locked())).toList();
+    }
+
+    TenantContext tenant(String id) {
+        TenantContext tenant = tenants.get(id);
+        if (tenant == null)
+            throw new NoSuchElementException("Unknown tenant " + id);
+        return tenant;
+    }
+
+    // HTLC: locked by the owner, claimed with the secret before or refunded after the expiration
+
+    PlutusScript htlcScript(TenantContext tenant, ScriptDeriver deriver, JsonNode body, byte[] owner) {
+        PlutusScript script = tenant.script("htlc", deriver, ListPlutusData.of(
+                BytesPlutusData.of(hex(body, "secretHash")),
+                BigIntPlutusData.of(number(body, "expiration")),
+                BytesPlutusData.of(owner)));
+        readModel.htlc(address(script), hex(body, "secretHash"), number(body, "expiration"), owner);
+        return script;
+    }
+
+    Map<String, Object> htlcLock(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        String scriptAddress = address(htlcScript(tenant, deriver, body, tenant.paymentKeyHash()));
+        Tx tx = new Tx().payToAddress(scriptAddress, Amount.ada(number(body, "ada")))
+                .withChangeAddress(tenant.address())
+                .from(tenant.address());
+        TxResult result = tenant.submit(builder -> builder.compose(tx)
+                .feePayer(tenant.address())
+                .withSigner(SignerProviders.signerFrom(tenant.account()))
+                .buildAndSign());
+        return result(result, "scriptAddress", scriptAddress);
+    }
+
+    Map<String, Object> htlcUnlock(TenantContext tenant, ScriptDeriver deriver, JsonNode body, boolean claim)
+            throws Exception {
+        TenantContext owner = claim ? tenant(text(body, "owner")) : tenant;
+        PlutusScript script = htlcScript(tenant, deriver, body, owner.paymentKeyHash());
+        String scriptAddress = address(script);
+        long expiration = number(body, "expiration");
+        ConstrPlutusData redeemer = claim
+                ? ConstrPlutusData.of(0, BytesPlutusData.of(hex(body, "answer")))
+                : ConstrPlutusData.of(1);
+        return timed(tenant, 10, () -> claim ? validityWindow.next(Long.MIN_VALUE, expiration)
+                : validityWindow.next(expiration, Long.MAX_VALUE), (builder, range) -> {
+                    ScriptTx scriptTx = new ScriptTx()
+                            .collectFrom(scriptUtxos(tenant, scriptAddress), redeemer)
+                            .payToAddress(tenant.address(), Amount.ada(number(body, "ada")))
+                            .attachSpendingValidator(script)
+                            .withChangeAddress(scriptAddress);
+                    return builder.compose(scriptTx)
+                            .validFrom(range.validFrom())
+                            .validTo(range.validTo())
+                            .feePayer(tenant.address())
+                            .withSigner(SignerProviders.signerFrom(tenant.account()))
+                            .withRequiredSigners(tenant.account().getBaseAddress())
+                            .buildAndSign();
+                });
+    }
+
+    // Vault: deposits are withdrawn in two steps, a request and a finalisation after the wait time
+
+    PlutusScript vaultScript(TenantContext tenant, ScriptDeriver deriver, JsonNode body) {
+        PlutusScript script = tenant.script("vault", deriver, ListPlutusData.of(
+                BytesPlutusData.of(tenant.paymentKeyHash()),
+                BigIntPlutusData.of(number(body, "waitTime"))));
+        readModel.vault(address(script), tenant.paymentKeyHash(), number(body, "waitTime"));
+        return script;
+    }
+
+    Map<String, Object> vaultDeposit(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        String scriptAddress = address(vaultScript(tenant, deriver, body));
+        Tx tx = new Tx().payToAddress(scriptAddress, Amount.ada(number(body, "ada")))
+                .from(tenant.address());
+        TxResult result = tenant.submit(builder -> builder.compose(tx)
+                .withSigner(SignerProviders.signerFrom(tenant.account()))
+                .feePayer(tenant.address())
+                .buildAndSign());
+        return result(result, "scriptAddress", scriptAddress);
+    }
+
+    Map<String, Object> vaultRequest(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        PlutusScript script = vaultScript(tenant, deriver, body);
+        String scriptAddress = address(script);
+        long lockTime = System.currentTimeMillis() - 1000;
+        Map<String, Object> response = timed(tenant, 100, () -> validityWindow.next(lockTime, Long.MAX_VALUE),
+                (builder, range) -> {
+                    Utxo deposit = scriptUtxos(tenant, scriptAddress).stream()
+                            .filter(utxo -> utxo.getInlineDatum() == null)
+                            .findFirst()
+                            .orElseThrow(() -> new NoSuchElementException("No deposit in the vault"));
+                    // The full deposit goes back to the vault, now with the lock time
+                    ScriptTx requestTx = new ScriptTx()
+                            .collectFrom(deposit, ConstrPlutusData.of(0))
+                            .payToContract(scriptAddress, Amount.lovelace(lovelace(List.of(deposit))),
+                                    ConstrPlutusData.of(0, BigIntPlutusData.of(lockTime)))
+                            .attachSpendingValidator(script)
+                            .withChangeAddress(scriptAddress);
+                    return builder.compose(requestTx)
+                            .withRequiredSigners(tenant.account().getBaseAddress())
+                            .withSigner(SignerProviders.signerFrom(tenant.account()))
+                            .feePayer(tenant.address())
+                            .validFrom(range.validFrom())
+                            .validTo(range.validTo())
+                            .buildAndSign();
+                });
+        response.put("lockTime", lockTime);
+        return response;
+    }
+
+    Map<String, Object> vaultFinalize(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        PlutusScript script = vaultScript(tenant, deriver, body);
+        String scriptAddress = address(script);
+        Utxo request = scriptUtxos(tenant, scriptAddress).stream()
+                .filter(utxo -> utxo.getInlineDatum() != null)
+                .findFirst()
+                .orElseThrow(() -> new NoSuchElementException("No withdraw request in the vault"));
+        long lockTime = field(request, 0).longValue();
+        return timed(tenant, 100, () -> validityWindow.next(lockTime + number(body, "waitTime"), Long.MAX_VALUE),
+                (builder, range) -> {
+                    ScriptTx finalizeTx = new ScriptTx()
+                            .collectFrom(request, ConstrPlutusData.of(1))
+                            .payToAddress(tenant.address(), Amount.lovelace(lovelace(List.of(request))))
+                            .attachSpendingValidator(script)
+                            .withChangeAddress(scriptAddress);
+                    return builder.compose(finalizeTx)
+                            .withRequiredSigners(tenant.account().getBaseAddress())
+                            .withSigner(SignerProviders.signerFrom(tenant.account()))
+                            .feePayer(tenant.address())
+                            .validFrom(range.validFrom())
+                            .validTo(range.validTo())
+                            .buildAndSign();
+                });
+    }
+
+    // Crowdfund: the datum maps every donor to the lovelace donated, and sums up to the locked value
+
+    PlutusScript crowdfundScript(TenantContext tenant, ScriptDeriver deriver, JsonNode body, byte[] beneficiary) {
+        PlutusScript script = tenant.script("crowdfund", deriver, ListPlutusData.of(
+                BytesPlutusData.of(beneficiary),
+                BigIntPlutusData.of(number(body, "goal")),
+                BigIntPlutusData.of(number(body, "deadline"))));
+        readModel.crowdfund(address(script), beneficiary, BigInteger.valueOf(number(body, "goal")),
+                number(body, "deadline"));
+        return script;
+    }
+
+    Map<String, Object> crowdfundInit(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        String scriptAddress = address(crowdfundScript(tenant, deriver, body, tenant.paymentKeyHash()));
+        long ada = number(body, "ada");
+        MapPlutusData donors = new MapPlutusData();
+        donors.put(BytesPlutusData.of(tenant.paymentKeyHash()), BigIntPlutusData.of(ada * 1_000_000L));
+        Tx tx = new Tx()
+                .payToContract(scriptAddress, Amount.ada(ada), ConstrPlutusData.of(0, donors))
+                .from(tenant.address())
+                .withChangeAddress(tenant.address());
+        TxResult result = tenant.submit(builder -> builder.compose(tx)
+                .feePayer(tenant.address())
+                .withSigner(SignerProviders.signerFrom(tenant.account()))
+                .buildAndSign());
+        return result(result, "scriptAddress", scriptAddress);
+    }
+
+    Map<String, Object> crowdfundDonate(TenantContext tenant, ScriptDeriver deriver, JsonNode body)
+            throws Exception {
+        PlutusScript script = crowdfundScript(tenant, deriver, body, tenant(text(body, "beneficiary")).paymentKeyHash());
+        String scriptAddress = address(script);
+        BigInteger donation = BigInteger.valueOf(number(body, "ada")).multiply(BigInteger.valueOf(1_000_000L));
+        BytesPlutusData donor = BytesPlutusData.of(tenant.paymentKeyHash());
+        // Rebuilt against the current script UTxO if another donor spent it first
+        return timed(tenant, 10, validityWindow::next, (builder, range) -> {
+            Utxo crowdfund = crowdfundUtxo(tenant, scriptAddress);
+            MapPlutusData donors = (MapPlutusData) ((ConstrPlutusData) inlineDatum(crowdfund)).getData()
+                    .getPlutusDataList().getFirst();
+            MapPlutusData updated = new MapPlutusData();
+            BigInteger total = BigInteger.ZERO;
+            for (Map.Entry<PlutusData, PlutusData> entry : donors.getMap().entrySet()) {
+                BigInteger amount = ((BigIntPlutusData) entry.getValue()).getValue();
+                if (entry.getKey().equals(donor))
+                    amount = amount.add(donation);
+                updated.put(entry.getKey(), BigIntPlutusData.of(amount));
+                total = total.add(amount);
+            }
+            if (!donors.getMap().containsKey(donor)) {
+                updated.put(donor, BigIntPlutusData.of(donation));
+                total = total.add(donation);
+            }
+            ScriptTx donateTx = new ScriptTx()
+                    .collectFrom(crowdfund, ConstrPlutusData.of(0))
+                    .attachSpendingValidator(script)
+                    .payToContract(scriptAddress, Amount.lovelace(total), ConstrPlutusData.of(0, updated))
+                    .withChangeAddress(tenant.address());
+            return builder.compose(donateTx)
+                    .feePayer(tenant.address())
+                    .validFrom(range.validFrom())
+                    .validTo(range.validTo())
+                    .withRequiredSigners(tenant.account().getBaseAddress())
+                    .withSigner(SignerProviders.signerFrom(tenant.account()))
+                    .buildAndSign();
+        });
+    }
+
+    Map<String, Object> crowdfundClaim(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        PlutusScript script = crowdfundScript(tenant, deriver, body, tenant.paymentKeyHash());
+        String scriptAddress = address(script);
+        return timed(tenant, 20, () -> validityWindow.next(number(body, "deadline"), Long.MAX_VALUE),
+                (builder, range) -> {
+                    Utxo crowdfund = crowdfundUtxo(tenant, scriptAddress);
+                    ScriptTx claimTx = new ScriptTx()
+                            .collectFrom(crowdfund, ConstrPlutusData.of(1))
+                            .attachSpendingValidator(script)
+                            .payToAddress(tenant.address(), Amount.lovelace(lovelace(List.of(crowdfund))))
+                            .withChangeAddress(tenant.address());
+                    return builder.compose(claimTx)
+                            .validFrom(range.validFrom())
+                            .validTo(range.validTo())
+                            .feePayer(tenant.address())
+                            .withRequiredSigners(tenant.account().getBaseAddress())
+                            .withSigner(SignerProviders.signerFrom(tenant.account()))
+                            .buildAndSign();
+                });
+    }
+
+    Utxo crowdfundUtxo(TenantContext tenant, String scriptAddress) throws ApiException {
+        return scriptUtxos(tenant, scriptAddress).stream()
+                .filter(utxo -> utxo.getInlineDatum() != null)
+                .findFirst()
+                .orElseThrow(() -> new NoSuchElementException("No crowdfund at " + scriptAddress));
+    }
+
+    // Token transfer: tokens minted to the tenant's contract can only be withdrawn by the tenant
+
+    PlutusScript tokenScript(TenantContext tenant, ScriptDeriver deriver, String assetName) throws Exception {
+        return tenant.script("token-transfer", deriver, ListPlutusData.of(
+                BytesPlutusData.of(tenant.paymentKeyHash()),
+                BytesPlutusData.of(ALWAYS_TRUE.getScriptHash()),
+                BytesPlutusData.of(assetName)));
+    }
+
+    Map<String, Object> tokenMint(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        String assetName = text(body, "assetName");
+        String scriptAddress = address(tokenScript(tenant, deriver, assetName));
+        ScriptTx mintTx = new ScriptTx()
+                .mintAsset(ALWAYS_TRUE, new Asset(assetName, BigInteger.valueOf(number(body, "quantity"))),
+                        PlutusData.unit(), scriptAddress)
+                .withChangeAddress(tenant.address());
+        TxResult result = tenant.submit(builder -> builder.compose(mintTx)
+                .withSigner(SignerProviders.signerFrom(tenant.account()))
+                .withRequiredSigners(tenant.account().getBaseAddress())
+                .mergeOutputs(true)
+                .feePayer(tenant.address())
+                .buildAndSign());
+        return result(result, "scriptAddress", scriptAddress);
+    }
+
+    Map<String, Object> tokenTransfer(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        String assetName = text(body, "assetName");
+        PlutusScript script = tokenScript(tenant, deriver, assetName);
+        String scriptAddress = address(script);
+        String unit = ALWAYS_TRUE.getPolicyId() + HexFormat.of().formatHex(assetName.getBytes());
+        TxResult result = tenant.submit(builder -> {
+            Utxo minted = scriptUtxos(tenant, scriptAddress).stream()
+                    .filter(utxo -> utxo.getAmount().stream().anyMatch(amount -> amount.getUnit().equals(unit)))
+                    .findFirst()
+                    .orElseThrow(() -> new NoSuchElementException("No %s at %s".formatted(assetName, scriptAddress)));
+            BigInteger quantity = minted.getAmount().stream()
+                    .filter(amount -> amount.getUnit().equals(unit))
+                    .map(Amount::getQuantity)
+                    .reduce(BigInteger.ZERO, BigInteger::add);
+            ScriptTx tx = new ScriptTx()
+                    .collectFrom(minted, PlutusData.unit())
+                    .payToAddress(tenant.address(), Amount.asset(unit, quantity))
+                    .attachSpendingValidator(script)
+                    .withChangeAddress(tenant.address());
+            return builder.compose(tx)
+                    .withSigner(SignerProviders.signerFrom(tenant.account()))
+                    .withRequiredSigners(tenant.account().getBaseAddress())
+                    .feePayer(tenant.address())
+                    .buildAndSign();
+        });
+        return result(result, "scriptAddress", scriptAddress);
+    }
+
+    // Payment splitter: the locked value is split evenly between all payees
+
+    PlutusScript splitterScript(TenantContext tenant, ScriptDeriver deriver, List<Address> payees) {
+        ListPlutusData hashes = new ListPlutusData();
+        for (Address payee : payees)
+            hashes.add(BytesPlutusData.of(payee.getPaymentCredentialHash().orElseThrow()));
+        return tenant.script("payment-splitter", deriver, ListPlutusData.of(hashes));
+    }
+
+    Map<String, Object> splitterLock(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        List<Address> payees = payees(body);
+        long ada = number(body, "ada");
+        if (ada * 1_000_000L % payees.size() != 0)
+            throw new IllegalArgumentException("%d Ada cannot be split evenly between %d payees".formatted(ada,
+                    payees.size()));
+        String scriptAddress = address(splitterScript(tenant, deriver, payees));
+        Tx tx = new Tx()
+                .payToContract(scriptAddress, Amount.ada(ada), ConstrPlutusData.of(0,
+                        BytesPlutusData.of(tenant.paymentKeyHash())))
+                .from(tenant.address());
+        TxResult result = tenant.submit(builder -> builder.compose(tx)
+                .withSigner(SignerProviders.signerFrom(tenant.account()))
+                .buildAndSign());
+        return result(result, "scriptAddress", scriptAddress);
+    }
+
+    Map<String, Object> splitterUnlock(TenantContext tenant, ScriptDeriver deriver, JsonNode body) throws Exception {
+        List<Address> payees = payees(body);
+        PlutusScript script = splitterScript(tenant, deriver, payees);
+        String scriptAddress = address(script);
+        PlutusData ownerDatum = ConstrPlutusData.of(0, BytesPlutusData.of(tenant.paymentKeyHash()));
+        TxResult result = tenant.submit(builder -> {
+            Utxo locked = ScriptUtxoFinders.findFirstByInlineDatum(tenant.utxoSupplier(), scriptAddress, ownerDatum)
+                    .orElseThrow(() -> new NoSuchElementException("Nothing locked at " + scriptAddress));
+            BigInteger share = lovelace(List.of(locked)).divide(BigInteger.valueOf(payees.size()));
+            ScriptTx scriptTx = new ScriptTx()
+                    .collectFrom(locked, ConstrPlutusData.of(0, BytesPlutusData.of("Payday")))
+                    .attachSpendingValidator(script);
+            for (Address payee : payees)
+                scriptTx.payToAddress(payee.toBech32(), Amount.lovelace(share));
+            // Pays the fee, so the outputs of the script transaction stay untouched
+            Tx feeTx = new Tx()
+                    .payToAddress(tenant.address(), Amount.ada(2))
+                    .from(tenant.address());
+            return builder.compose(scriptTx, feeTx)
+                    .feePayer(tenant.address())
+                    .withSigner(SignerProviders.signerFrom(tenant.account()))
+                    .withRequiredSigners(tenant.account().getBaseAddress())
+                    .buildAndSign();
+        });
+        return result(result, "scriptAddress", scriptAddress);
+    }
+
+    List<Address> payees(JsonNode body) {
+        JsonNode payees = body.path("payees");
+        if (!payees.isArray() || payees.isEmpty())
+            throw new IllegalArgumentException("payees must be a non-empty list of addresses");
+        List<Address> addresses = new ArrayList<>();
+        payees.forEach(payee -> addresses.add(new Address(payee.asText())));
+        return addresses;
+    }
+
+    // Helpers
+
+    @FunctionalInterface
+    interface RangeSupplier {
+        ValidityWindow.Range next() throws ApiException;
+    }
+
+    @FunctionalInterface
+    interface TimedBuilder {
+        Transaction build(QuickTxBuilder builder, ValidityWindow.Range range) throws Exception;
+    }
+
+    // Every rebuild takes a fresh validity range, the one of the confirmed transaction is recorded
+    // against the fixed window the example used for it before
+    Map<String, Object> timed(TenantContext tenant, long fixedWindowSlots, RangeSupplier window, TimedBuilder build)
+            throws Exception {
+        AtomicReference<ValidityWindow.Range> range = new AtomicReference<>();
+        TxResult result = tenant.submit(builder -> {
+            range.set(window.next());
+            return build.build(builder, range.get());
+        });
+        validityWindow.recordInclusion(range.get(), result, fixedWindowSlots);
+        return result(result);
+    }
+
+    List<Utxo> scriptUtxos(TenantContext tenant, String scriptAddress) throws ApiException {
+        return tenant.utxoSupplier().getAll(scriptAddress);
+    }
+
+    static String address(PlutusScript script) {
+        return AddressProvider.getEntAddress(script, network).toBech32();
+    }
+
+    static BigInteger lovelace(List<Utxo> utxos) {
+        return utxos.stream()
+                .flatMap(utxo -> utxo.getAmount().stream())
+                .filter(amount -> amount.getUnit().equals("lovelace"))
+                .map(Amount::getQuantity)
+                .reduce(BigInteger.ZERO, BigInteger::add);
+    }
+
+    static PlutusData inlineDatum(Utxo utxo) throws Exception {
+        return PlutusData.deserialize(HexFormat.of().parseHex(utxo.getInlineDatum()));
+    }
+
+    static BigInteger field(Utxo utxo, int index) throws Exception {
+        return ((BigIntPlutusData) ((ConstrPlutusData) inlineDatum(utxo)).getData().getPlutusDataList().get(index))
+                .getValue();
+    }
+
+    static Map<String, Object> result(TxResult result, Object... extra) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("txHash", result.getTxHash());
+        response.put("successful", result.isSuccessful());
+        if (!result.isSuccessful())
+            response.put("message", result.getResponse());
+        for (int i = 0; i + 1 < extra.length; i += 2)
+            response.put((String) extra[i], extra[i + 1]);
+        return response;
+    }
+
+    static String text(JsonNode body, String field) {
+        JsonNode value = body.get(field);
+        if (value == null || !value.isTextual() || value.asText().isBlank())
+            throw new IllegalArgumentException("Missing text field " + field);
+        return value.asText();
+    }
+
+    static long number(JsonNode body, String field) {
+        JsonNode value = body.get(field);
+        if (value == null || !value.canConvertToLong())
+            throw new IllegalArgumentException("Missing number field " + field);
+        return value.asLong();
+    }
+
+    static byte[] hex(JsonNode body, String field) {
+        return HexFormat.of().parseHex(text(body, field));
+    }
+}
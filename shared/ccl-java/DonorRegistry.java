@@ -0,0 +1,440 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+// @formatter:on
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+import com.bloxbean.cardano.client.crypto.Blake2bUtil;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.MapPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+
+/**
+ * The donors of a crowdfund in a Merkle tree, with a commitment of constant
+ * size that a crowdfund datum could carry instead of the map of all
+ * donations. No validator checks the proofs yet, so {@code Crowdfund} still
+ * keeps the map in its datum and this only measures the alternative.
+ * <p>
+ * Donors get the next free leaf on their first donation and keep it, a
+ * reclaim sets their amount to zero. A leaf is the Blake2b-256 of the payment
+ * key hash followed by the amount as unsigned big-endian bytes, the encoding
+ * of {@code integer_to_bytearray(True, 0, amount)}; a free leaf is 32 zero
+ * bytes. Inner nodes hash the concatenation of their children and the tree
+ * has a fixed depth of {@value #DEPTH}.
+ * <p>
+ * Every donation and reclaim returns an {@link Update}: the proof that the
+ * donor's leaf had the old amount, or was the next free one, under the old
+ * root, which with the same siblings yields the new root. The commitment also
+ * holds the number of donors and the exact total in lovelace, so a validator
+ * could check the value of the script output against it instead of summing a
+ * map.
+ * <p>
+ * The registry is persisted as an append-only log of {@code (key hash,
+ * amount)} records, flushed before an update is returned, and rebuilt from it
+ * on open. It is not thread-safe; donations to a crowdfund are serialised by
+ * its single script UTxO anyway.
+ */
+public class DonorRegistry implements AutoCloseable {
+
+    public static final int DEPTH = 24;
+    static final int KEY_BYTES = 28;
+    static final int HASH_BYTES = 32;
+    // Root of an empty subtree by height
+    private static final byte[][] EMPTY = new byte[DEPTH + 1][];
+
+    static {
+        EMPTY[0] = new byte[HASH_BYTES];
+        for (int height = 1; height <= DEPTH; height++)
+            EMPTY[height] = hash(EMPTY[height - 1], EMPTY[height - 1]);
+    }
+
+    /**
+     * The commitment a root-only crowdfund datum would carry, {@code
+     * Constr0[root, donors, total]}.
+     */
+    public record Commitment(byte[] root, int donors, BigInteger total) {
+
+        public PlutusData toPlutusData() {
+            return ConstrPlutusData.of(0, BytesPlutusData.of(root), BigIntPlutusData.of(donors),
+                    BigIntPlutusData.of(total));
+        }
+    }
+
+    /**
+     * The path from a leaf to the root. The amount is null for a free leaf.
+     */
+    public record Proof(int index, byte[] keyHash, BigInteger amount, byte[][] siblings) {
+
+        public byte[] leaf() {
+            return amount == null ? EMPTY[0] : DonorRegistry.leaf(keyHash, amount);
+        }
+
+        public byte[] root() {
+            return root(leaf());
+        }
+
+        byte[] root(byte[] leaf) {
+            byte[] node = leaf;
+            for (int height = 0; height < DEPTH; height++)
+                node = ((index >>> height) & 1) == 0 ? hash(node, siblings[height]) : hash(siblings[height], node);
+            return node;
+        }
+
+        public boolean verify(byte[] root) {
+            return Arrays.equals(root(), root);
+        }
+
+        /**
+         * @return {@code Constr0[index, [siblings]]}, from the leaf up.
+         */
+        public PlutusData toPlutusData() {
+            return ConstrPlutusData.of(0, BigIntPlutusData.of(index),
+                    ListPlutusData.of(Arrays.stream(siblings).<PlutusData>map(BytesPlutusData::of).toArray(PlutusData[]::new)));
+        }
+    }
+
+    /**
+     * A donation or reclaim: the donor's leaf moves from {@code before}, null
+     * for a new donor, to {@code after} with the same siblings.
+     */
+    public record Update(Proof proof, BigInteger before, BigInteger after, Commitment from, Commitment to) {
+
+        /**
+         * Checks the update against the two commitments the way a validator
+         * would: the old leaf under the old root, the new leaf under the new
+         * root, a new donor in the next free leaf and the totals.
+         */
+        public boolean verify() {
+            byte[] oldLeaf = before == null ? EMPTY[0] : DonorRegistry.leaf(proof.keyHash(), before);
+            if (!Arrays.equals(proof.root(oldLeaf), from.root())
+                    || !Arrays.equals(proof.root(DonorRegistry.leaf(proof.keyHash(), after)), to.root()))
+                return false;
+            int added = before == null ? 1 : 0;
+            if (added == 1 && proof.index() != from.donors())
+                return false;
+            return to.donors() == from.donors() + added
+                    && to.total().equals(from.total().subtract(before == null ? BigInteger.ZERO : before).add(after));
+        }
+
+        /**
+         * @return The redeemer fields {@code Constr0[key hash, Option before,
+         *         after, proof]}.
+         */
+        public PlutusData toPlutusData() {
+            PlutusData option = before == null ? ConstrPlutusData.of(1) : ConstrPlutusData.of(0, BigIntPlutusData.of(before));
+            return ConstrPlutusData.of(0, BytesPlutusData.of(proof.keyHash()), option, BigIntPlutusData.of(after),
+                    proof.toPlutusData());
+        }
+    }
+
+    private final Path log;
+    private DataOutputStream out;
+    private final Map<ByteBuffer, Integer> indexes = new HashMap<>();
+    private byte[] keyHashes = new byte[KEY_BYTES * 1024];
+    private BigInteger[] amounts = new BigInteger[1024];
+    private int donors;
+    private BigInteger total = BigInteger.ZERO;
+    // Flat node arrays by height, nodes past the last donor are empty subtrees
+    private final byte[][] levels = new byte[DEPTH + 1][];
+
+    private DonorRegistry(Path log) {
+        this.log = log;
+        for (int height = 0; height <= DEPTH; height++)
+            levels[height] = new byte[HASH_BYTES * Math.max(1, 1024 >>> height)];
+    }
+
+    public static DonorRegistry inMemory() {
+        return new DonorRegistry(null);
+    }
+
+    /**
+     * Opens the registry stored in the log, creating it if missing.
+     */
+    public static DonorRegistry open(Path log) throws IOException {
+        DonorRegistry registry = new DonorRegistry(log);
+        if (Files.exists(log)) {
+            long length = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+                byte[] keyHash = new byte[KEY_BYTES];
+                while (true) {
+                    byte[] amount;
+                    try {
+                        in.readFully(keyHash);
+                        amount = new byte[in.readUnsignedByte()];
+                        in.readFully(amount);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    registry.set(keyHash.clone(), new BigInteger(1, amount));
+                    length += KEY_BYTES + 1 + amount.length;
+                }
+            }
+            // A record torn by a crash was never acknowledged, it is dropped
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                channel.truncate(length);
+            }
+            registry.rebuild();
+        }
+        registry.out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(log, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        return registry;
+    }
+
+    /**
+     * Adds the donations of a crowdfund datum {@code Constr0[Map key hash ->
+     * lovelace]}, or of its map, e.g. to move a crowdfund to the registry.
+     */
+    public void importDonors(PlutusData donorMap) throws IOException {
+        MapPlutusData map = (MapPlutusData) (donorMap instanceof ConstrPlutusData constr
+                ? constr.getData().getPlutusDataList().getFirst()
+                : donorMap);
+        for (Map.Entry<PlutusData, PlutusData> entry : map.getMap().entrySet()) {
+            byte[] keyHash = ((BytesPlutusData) entry.getKey()).getValue();
+            BigInteger amount = amount(keyHash).add(((BigIntPlutusData) entry.getValue()).getValue());
+            set(keyHash, amount);
+            append(keyHash, amount);
+        }
+        flush();
+        rebuild();
+    }
+
+    /**
+     * Adds a donation to the donor's amount.
+     */
+    public Update donate(byte[] keyHash, BigInteger lovelace) throws IOException {
+        if (lovelace.signum() <= 0)
+            throw new IllegalArgumentException("A donation must be positive: " + lovelace);
+        return update(keyHash, amount(keyHash).add(lovelace));
+    }
+
+    /**
+     * Sets the donor's amount to zero, the donor keeps the leaf.
+     */
+    public Update reclaim(byte[] keyHash) throws IOException {
+        if (amount(keyHash).signum() == 0)
+            throw new IllegalStateException("Nothing to reclaim for " + HexFormat.of().formatHex(keyHash));
+        return update(keyHash, BigInteger.ZERO);
+    }
+
+    private Update update(byte[] keyHash, BigInteger after) throws IOException {
+        checkKeyHash(keyHash);
+        Commitment from = commitment();
+        Integer index = indexes.get(ByteBuffer.wrap(keyHash));
+        BigInteger before = index == null ? null : amounts[index];
+        int leaf = set(keyHash.clone(), after);
+        Proof proof = prove(leaf);
+        append(keyHash, after);
+        flush();
+        updatePath(leaf);
+        return new Update(new Proof(leaf, keyHash.clone(), after, proof.siblings()), before, after, from, commitment());
+    }
+
+    /**
+     * @throws NoSuchElementException If the key hash never donated.
+     */
+    public Proof prove(byte[] keyHash) {
+        Integer index = indexes.get(ByteBuffer.wrap(keyHash));
+        if (index == null)
+            throw new NoSuchElementException("Not a donor: " + HexFormat.of().formatHex(keyHash));
+        return prove(index);
+    }
+
+    private Proof prove(int index) {
+        byte[][] siblings = new byte[DEPTH][];
+        for (int height = 0; height < DEPTH; height++)
+            siblings[height] = node(height, (index >>> height) ^ 1);
+        return new Proof(index, Arrays.copyOfRange(keyHashes, index * KEY_BYTES, (index + 1) * KEY_BYTES),
+                amounts[index], siblings);
+    }
+
+    public BigInteger amount(byte[] keyHash) {
+        Integer index = indexes.get(ByteBuffer.wrap(keyHash));
+        return index == null ? BigInteger.ZERO : amounts[index];
+    }
+
+    public int donors() {
+        return donors;
+    }
+
+    public BigInteger total() {
+        return total;
+    }
+
+    public byte[] root() {
+        return node(DEPTH, 0);
+    }
+
+    public Commitment commitment() {
+        return new Commitment(root(), donors, total);
+    }
+
+    /**
+     * @return The datum of the map based validator, {@code Constr0[Map key hash
+     *         -> lovelace]} of the donors with a non-zero amount.
+     */
+    public PlutusData toDonorMap() {
+        MapPlutusData map = new MapPlutusData();
+        for (int index = 0; index < donors; index++)
+            if (amounts[index].signum() > 0)
+                map.put(BytesPlutusData.of(Arrays.copyOfRange(keyHashes, index * KEY_BYTES, (index + 1) * KEY_BYTES)),
+                        BigIntPlutusData.of(amounts[index]));
+        return ConstrPlutusData.of(0, map);
+    }
+
+    /**
+     * Rewrites the log with one record per donor.
+     */
+    public void compact() throws IOException {
+        if (log == null)
+            return;
+        out.close();
+        Path compacted = log.resolveSibling(log.getFileName() + ".compact");
+        try (DataOutputStream compact = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted)))) {
+            out = compact;
+            for (int index = 0; index < donors; index++)
+                append(Arrays.copyOfRange(keyHashes, index * KEY_BYTES, (index + 1) * KEY_BYTES), amounts[index]);
+        }
+        Files.move(compacted, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(log, StandardOpenOption.APPEND)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null)
+            out.close();
+    }
+
+    static byte[] leaf(byte[] keyHash, BigInteger amount) {
+        return Blake2bUtil.blake2bHash256(concat(keyHash, bytes(amount)));
+    }
+
+    static byte[] hash(byte[] left, byte[] right) {
+        return Blake2bUtil.blake2bHash256(concat(left, right));
+    }
+
+    private static byte[] concat(byte[] left, byte[] right) {
+        byte[] both = Arrays.copyOf(left, left.length + right.length);
+        System.arraycopy(right, 0, both, left.length, right.length);
+        return both;
+    }
+
+    /**
+     * @return The amount as minimal unsigned big-endian bytes, empty for zero.
+     */
+    static byte[] bytes(BigInteger amount) {
+        if (amount.signum() < 0)
+            throw new IllegalArgumentException("Negative amount: " + amount);
+        byte[] bytes = amount.toByteArray();
+        int skip = 0;
+        while (skip < bytes.length && bytes[skip] == 0)
+            skip++;
+        return Arrays.copyOfRange(bytes, skip, bytes.length);
+    }
+
+    private static void checkKeyHash(byte[] keyHash) {
+        if (keyHash.length != KEY_BYTES)
+            throw new IllegalArgumentException("Not a payment key hash: %d bytes".formatted(keyHash.length));
+    }
+
+    /**
+     * Stores the amount without touching the tree.
+     *
+     * @return The donor's leaf.
+     */
+    private int set(byte[] keyHash, BigInteger amount) {
+        checkKeyHash(keyHash);
+        Integer index = indexes.get(ByteBuffer.wrap(keyHash));
+        if (index == null) {
+            if (donors == 1 << DEPTH)
+                throw new IllegalStateException("The registry is full at %d donors".formatted(donors));
+            index = donors++;
+            if (index == amounts.length) {
+                amounts = Arrays.copyOf(amounts, index * 2);
+                keyHashes = Arrays.copyOf(keyHashes, index * 2 * KEY_BYTES);
+            }
+            System.arraycopy(keyHash, 0, keyHashes, index * KEY_BYTES, KEY_BYTES);
+            indexes.put(ByteBuffer.wrap(keyHashes, index * KEY_BYTES, KEY_BYTES).slice(), index);
+            amounts[index] = BigInteger.ZERO;
+        }
+        total = total.subtract(amounts[index]).add(amount);
+        amounts[index] = amount;
+        return index;
+    }
+
+    private void append(byte[] keyHash, BigInteger amount) throws IOException {
+        if (out == null)
+            return;
+        byte[] bytes = bytes(amount);
+        out.write(keyHash);
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private void flush() throws IOException {
+        if (out != null)
+            out.flush();
+    }
+
+    private byte[] node(int height, int index) {
+        int count = (donors + (1 << height) - 1) >>> height;
+        if (index >= count)
+            return EMPTY[height];
+        return Arrays.copyOfRange(levels[height], index * HASH_BYTES, (index + 1) * HASH_BYTES);
+    }
+
+    private void setNode(int height, int index, byte[] hash) {
+        if ((index + 1) * HASH_BYTES > levels[height].length)
+            levels[height] = Arrays.copyOf(levels[height], Math.max(levels[height].length * 2, (index + 1) * HASH_BYTES));
+        System.arraycopy(hash, 0, levels[height], index * HASH_BYTES, HASH_BYTES);
+    }
+
+    private void updatePath(int leaf) {
+        int offset = leaf * KEY_BYTES;
+        setNode(0, leaf, leaf(Arrays.copyOfRange(keyHashes, offset, offset + KEY_BYTES), amounts[leaf]));
+        int index = leaf;
+        for (int height = 0; height < DEPTH; height++) {
+            int left = index & ~1;
+            setNode(height + 1, index >>> 1, hash(node(height, left), node(height, left + 1)));
+            index >>>= 1;
+        }
+    }
+
+    /**
+     * Hashes all levels from the leaves, in parallel.
+     */
+    private void rebuild() {
+        for (int height = 0; height <= DEPTH; height++) {
+            int count = (donors + (1 << height) - 1) >>> height;
+            if (count * HASH_BYTES > levels[height].length)
+                levels[height] = new byte[count * HASH_BYTES];
+            int level = height;
+            IntStream.range(0, count).parallel().forEach(index -> {
+                byte[] hash = level == 0
+                        ? leaf(Arrays.copyOfRange(keyHashes, index * KEY_BYTES, (index + 1) * KEY_BYTES), amounts[index])
+                        : hash(node(level - 1, 2 * index), node(level - 1, 2 * index + 1));
+                System.arraycopy(hash, 0, levels[level], index * HASH_BYTES, HASH_BYTES);
+            });
+        }
+    }
+}
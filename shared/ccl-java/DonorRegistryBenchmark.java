@@ -0,0 +1,162 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//SOURCES DonorRegistry.java
+//SOURCES PerfHistory.java
+// @formatter:on
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.bloxbean.cardano.client.crypto.Blake2bUtil;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.MapPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+
+/**
+ * Compares the donor map datum of {@code Crowdfund} with the commitment of a
+ * {@link DonorRegistry} for growing numbers of donors.
+ * <p>
+ * For every size it reports the bytes a donation adds to the transaction,
+ * the datum with the map against the commitment and the update proof in the
+ * redeemer, with their fee at the mainnet size price and whether they still
+ * fit the maximum transaction size, and the minimum lovelace of the script
+ * output the smaller datum would save. The registry side is timed: importing the
+ * donors into a log, reopening it, generating and verifying proofs and
+ * donations including the log append. Amounts are above the 2,147 ADA an
+ * {@code int} of lovelace holds, and the total of the map is checked against
+ * the registry.
+ * <p>
+ * No validator checks the proof yet, so the commitment side is what a
+ * root-only crowdfund would cost, without the execution units of checking
+ * the proof; the crowdfund validator still reads the map.
+ * <p>
+ * Usage: {@code jbang DonorRegistryBenchmark.java [sizes...]}
+ */
+public class DonorRegistryBenchmark {
+
+    // Mainnet protocol parameters
+    static final long MIN_FEE_A = 44;
+    static final long MAX_TX_SIZE = 16_384;
+    static final long COINS_PER_UTXO_BYTE = 4_310;
+
+    static List<Integer> sizes = List.of(1_000, 100_000, 1_000_000);
+    static int samples = 10_000;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0)
+            sizes = List.of(args).stream().map(Integer::parseInt).toList();
+
+        PerfHistory.Recorder perf = new PerfHistory.Recorder("donor-registry", null, PerfHistory.fromEnvironment());
+        System.out.println("| donors | map datum | commitment | proof redeemer | size fee map | size fee registry | min-UTxO saved | import | reopen | log | heap | prove | verify | donate |");
+        System.out.println("|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|---:|");
+        for (int size : sizes) {
+            Random random = new Random(size);
+            MapPlutusData map = new MapPlutusData();
+            BigInteger expectedTotal = BigInteger.ZERO;
+            for (int i = 0; i < size; i++) {
+                // Up to 100,000 ADA, beyond the range of an int of lovelace
+                BigInteger amount = BigInteger.valueOf(1_000_000L + (random.nextLong() & Long.MAX_VALUE) % 100_000_000_000L);
+                map.put(BytesPlutusData.of(keyHash(i)), BigIntPlutusData.of(amount));
+                expectedTotal = expectedTotal.add(amount);
+            }
+            PlutusData mapDatum = ConstrPlutusData.of(0, map);
+            int mapBytes = mapDatum.serializeToBytes().length;
+
+            Path log = Files.createTempFile("donors-", ".log");
+            Files.delete(log);
+            long heapBefore = usedHeap();
+            long start = System.nanoTime();
+            DonorRegistry registry = DonorRegistry.open(log);
+            registry.importDonors(mapDatum);
+            double importMillis = (System.nanoTime() - start) / 1e6;
+            long heapBytes = usedHeap() - heapBefore;
+            if (!registry.total().equals(expectedTotal))
+                throw new AssertionError("Total %s, expected %s".formatted(registry.total(), expectedTotal));
+            registry.close();
+            map = null;
+            mapDatum = null;
+
+            start = System.nanoTime();
+            DonorRegistry reopened = DonorRegistry.open(log);
+            double reopenMillis = (System.nanoTime() - start) / 1e6;
+            if (!Arrays.equals(reopened.root(), registry.root()) || !reopened.total().equals(expectedTotal))
+                throw new AssertionError("Reopened registry differs");
+
+            long[] prove = new long[samples];
+            long[] verify = new long[samples];
+            byte[] root = reopened.root();
+            for (int i = 0; i < samples; i++) {
+                byte[] keyHash = keyHash(random.nextInt(size));
+                start = System.nanoTime();
+                DonorRegistry.Proof proof = reopened.prove(keyHash);
+                prove[i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                boolean valid = proof.verify(root);
+                verify[i] = System.nanoTime() - start;
+                if (!valid)
+                    throw new AssertionError("Invalid proof for donor " + proof.index());
+            }
+
+            // Half of the donations are by new donors
+            int donations = Math.min(samples, 1_000);
+            long[] donate = new long[donations];
+            int redeemerBytes = 0;
+            for (int i = 0; i < donations; i++) {
+                byte[] keyHash = keyHash(i % 2 == 0 ? random.nextInt(size) : size + i);
+                start = System.nanoTime();
+                DonorRegistry.Update update = reopened.donate(keyHash, BigInteger.valueOf(5_000_000));
+                donate[i] = System.nanoTime() - start;
+                if (!update.verify())
+                    throw new AssertionError("Invalid update for donor " + update.proof().index());
+                redeemerBytes = Math.max(redeemerBytes, update.toPlutusData().serializeToBytes().length);
+            }
+            int commitmentBytes = reopened.commitment().toPlutusData().serializeToBytes().length;
+            long logBytes = Files.size(log);
+            reopened.close();
+            Files.delete(log);
+
+            System.out.println("| %,d | %,d B%s | %d B | %d B | %,d | %,d | %,d | %.0f ms | %.0f ms | %,d KiB | %,d MiB | %.1f us | %.1f us | %.1f us |"
+                    .formatted(size, mapBytes, mapBytes > MAX_TX_SIZE ? " (over max tx)" : "", commitmentBytes,
+                            redeemerBytes, MIN_FEE_A * mapBytes, MIN_FEE_A * (commitmentBytes + redeemerBytes),
+                            COINS_PER_UTXO_BYTE * (mapBytes - commitmentBytes),
+                            importMillis, reopenMillis, logBytes / 1024, Math.max(0, heapBytes) >> 20, median(prove) / 1e3,
+                            median(verify) / 1e3, median(donate) / 1e3));
+            String step = "donors_" + size;
+            perf.record(step, "datum_bytes", commitmentBytes);
+            perf.record(step, "map_datum_bytes", mapBytes);
+            perf.record(step, "redeemer_bytes", redeemerBytes);
+            perf.record(step, "prove_us", median(prove) / 1e3);
+            perf.record(step, "donate_us", median(donate) / 1e3);
+            perf.record(step, "reopen_ms", reopenMillis);
+        }
+        perf.close();
+    }
+
+    static byte[] keyHash(int donor) {
+        return Blake2bUtil.blake2bHash224(ByteBuffer.allocate(4).putInt(donor).array());
+    }
+
+    static double median(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,561 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ScriptDeriver.java
+//SOURCES TxSubmitter.java
+//SOURCES LedgerFixture.java
+//SOURCES PerfHistory.java
+//SOURCES OfflineChain.java
+// @formatter:on
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bloxbean.cardano.aiken.AikenTransactionEvaluator;
+import com.bloxbean.cardano.client.account.Account;
+import com.bloxbean.cardano.client.address.AddressProvider;
+import com.bloxbean.cardano.client.address.Credential;
+import com.bloxbean.cardano.client.api.TransactionEvaluator;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.EvaluationResult;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.common.model.Network;
+import com.bloxbean.cardano.client.common.model.Networks;
+import com.bloxbean.cardano.client.crypto.Blake2bUtil;
+import com.bloxbean.cardano.client.crypto.bip39.Sha256Hash;
+import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
+import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.MapPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusScript;
+import com.bloxbean.cardano.client.plutus.spec.PlutusV3Script;
+import com.bloxbean.cardano.client.quicktx.AbstractTx;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.ScriptTx;
+import com.bloxbean.cardano.client.quicktx.Tx;
+import com.bloxbean.cardano.client.transaction.spec.Asset;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+
+/**
+ * Profiles the ex-units of every redeemer path of the validators, the path
+ * taken by {@code Htlc} claims, {@code Vault} finalisations,
+ * {@code Crowdfund} donations and the other examples, and checks them against
+ * a budget.
+ * <p>
+ * Each path is built into a transaction against in-memory UTxOs and
+ * evaluated with the Aiken evaluator, without a devnet. Paths whose cost
+ * depends on the size of the state are swept, e.g. donations to a crowdfund
+ * with 1 to 32 donors and payouts to 1 to 16 payees. Time parameters lie far
+ * before or after the validity range, so no slot configuration is involved.
+ * <p>
+ * The results are printed as a markdown table, every sweep is plotted as an
+ * SVG of ex-units in percent of the per-transaction limit, and with
+ * {@code PERF_HISTORY_DIR} set they are appended to the {@code ex-units}
+ * history for {@code PerfCompare}. A path over its budget, or one that fails
+ * to evaluate, fails the run; with {@code --budgets} so does a contract
+ * without a built blueprint, which is otherwise skipped.
+ * <p>
+ * Budgets are read from a tab separated file of {@code validator}, {@code path},
+ * {@code ex_mem} and {@code ex_steps}, absolute or in percent of the
+ * per-transaction limit; {@code *} matches any validator or path and the most
+ * specific line applies. Without a line the limit itself is the budget.
+ * <p>
+ * Usage: {@code jbang ExUnitProfiler.java [--budgets file] [--plots dir]
+ * [--max-donors n] [--max-payees n]}, with the blueprints built below
+ * {@code CONTRACTS_DIR}, the repository root.
+ */
+public class ExUnitProfiler {
+
+    static Network network = Networks.testnet();
+    // Dummy mnemonic of the examples, fixed so the key hashes and with them the costs are the same every run
+    static String mnemonic = "test test test test test test test test test test test test test test test test test test test test test test test sauce";
+    static Account wallet = Account.createFromMnemonic(network, mnemonic);
+    static String walletAddress = wallet.baseAddress();
+    static byte[] walletKeyHash = wallet.getBaseAddress().getPaymentCredentialHash().orElseThrow();
+    static PlutusV3Script alwaysTrue = PlutusV3Script.builder()
+            .type("PlutusScriptV3")
+            .cborHex("46450101002499")
+            .build();
+
+    // Validity range of the script transactions, the time parameters lie before or after it on any network
+    static long validFrom = 100_000_000L;
+    static long validTo = validFrom + 1_000;
+    static long past = 0;
+    static long future = 4_102_444_800_000L; // 2100-01-01
+
+    static Path contractsDir = Path.of(System.getenv().getOrDefault("CONTRACTS_DIR", "../.."));
+    static Path budgetFile;
+    static Path plotDir = Path.of("ex-units");
+    static int maxDonors = 32;
+    static int maxPayees = 16;
+    static ProtocolParams protocolParams = OfflineChain.protocolParams();
+
+    /**
+     * Builds the transaction of a redeemer path for a sweep value.
+     */
+    @FunctionalInterface
+    interface PathBuilder {
+        Transaction build(Ledger ledger, int x) throws Exception;
+    }
+
+    record Profile(String validator, String path, String sweep, List<Integer> xs, PathBuilder builder) {
+
+        // The step in the history, e.g. crowdfund/donate@8
+        String step(int x) {
+            return validator + "/" + path + (sweep == null ? "" : "@" + x);
+        }
+    }
+
+    record Point(Profile profile, int x, long mem, long steps, int scriptBytes, int txBytes) {
+
+        String step() {
+            return profile.step(x);
+        }
+    }
+
+    record Budget(long mem, long steps) {
+    }
+
+    record Validator(PlutusScript script, String address, int scriptBytes) {
+    }
+
+    private static final Map<String, String> blueprints = new LinkedHashMap<>();
+    private static final Map<String, String> budgetLines = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--budgets" -> budgetFile = Path.of(args[i + 1]);
+                case "--plots" -> plotDir = Path.of(args[i + 1]);
+                case "--max-donors" -> maxDonors = Integer.parseInt(args[i + 1]);
+                case "--max-payees" -> maxPayees = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        List<String> failures = new ArrayList<>();
+        for (String contract : List.of("htlc", "vault", "crowdfund", "token-transfer", "payment-splitter",
+                "atomic-transaction", "simple-transfer")) {
+            File blueprint = contractsDir.resolve(contract).resolve("onchain/aiken/plutus.json").toFile();
+            if (blueprint.exists())
+                blueprints.put(contract, PlutusBlueprintLoader.loadBlueprint(blueprint).getValidators().getFirst()
+                        .getCompiledCode());
+            else if (budgetFile != null)
+                // A budget check that silently leaves out a contract would pass without checking it
+                failures.add("No blueprint for %s at %s, its paths cannot be checked against the budgets"
+                        .formatted(contract, blueprint));
+            else
+                System.out.println("No blueprint for %s at %s, skipped".formatted(contract, blueprint));
+        }
+        if (budgetFile != null)
+            for (String line : Files.readAllLines(budgetFile, StandardCharsets.UTF_8)) {
+                String[] f = line.split("\t");
+                if (!line.isBlank() && !line.startsWith("#") && f.length == 4)
+                    budgetLines.put(f[0] + "/" + f[1], f[2] + "\t" + f[3]);
+            }
+
+        List<Point> points = new ArrayList<>();
+        for (Profile profile : profiles()) {
+            for (int x : profile.xs()) {
+                Ledger ledger = new Ledger();
+                try {
+                    Transaction tx = profile.builder().build(ledger, x);
+                    points.add(new Point(profile, x, ledger.mem, ledger.steps, ledger.scriptBytes,
+                            tx.serialize().length));
+                } catch (Exception e) {
+                    failures.add("%s failed to evaluate: %s".formatted(profile.step(x), e.getMessage()));
+                }
+            }
+        }
+
+        PerfHistory.Recorder perf = new PerfHistory.Recorder("ex-units", null, PerfHistory.fromEnvironment());
+        long maxMem = Long.parseLong(protocolParams.getMaxTxExMem());
+        long maxSteps = Long.parseLong(protocolParams.getMaxTxExSteps());
+        System.out.println("| Path | Ex mem | Ex steps | Mem of tx limit | Steps of tx limit | Script | Tx | Budget |");
+        System.out.println("|---|---:|---:|---:|---:|---:|---:|---|");
+        for (Point point : points) {
+            Budget budget = budget(point.profile().validator(), point.profile().path(), maxMem, maxSteps);
+            boolean over = point.mem() > budget.mem() || point.steps() > budget.steps();
+            System.out.println("| %s | %,d | %,d | %.2f%% | %.2f%% | %,d B | %,d B | %s |".formatted(point.step(),
+                    point.mem(), point.steps(), 100.0 * point.mem() / maxMem, 100.0 * point.steps() / maxSteps,
+                    point.scriptBytes(), point.txBytes(), over ? "**over**" : "ok"));
+            if (over)
+                failures.add("%s uses %,d mem and %,d steps, over its budget of %,d mem and %,d steps".formatted(
+                        point.step(), point.mem(), point.steps(), budget.mem(), budget.steps()));
+            perf.record(point.step(), "ex_mem", point.mem());
+            perf.record(point.step(), "ex_steps", point.steps());
+            perf.record(point.step(), "script_bytes", point.scriptBytes());
+            perf.record(point.step(), "size_bytes", point.txBytes());
+        }
+        perf.close();
+        plot(points, maxMem, maxSteps);
+
+        if (!failures.isEmpty()) {
+            failures.forEach(System.out::println);
+            throw new AssertionError("%d of the profiled paths failed or went over budget".formatted(failures.size()));
+        }
+    }
+
+    static List<Profile> profiles() {
+        List<Integer> donors = powersOfTwo(maxDonors);
+        List<Integer> payees = powersOfTwo(maxPayees);
+        List<Profile> profiles = new ArrayList<>();
+        byte[] answer = "profiler secret".getBytes();
+
+        profiles.add(new Profile("htlc", "guess", null, List.of(1), (ledger, x) -> {
+            Validator htlc = validator("htlc", BytesPlutusData.of(Sha256Hash.hash(answer)),
+                    BigIntPlutusData.of(future), BytesPlutusData.of(walletKeyHash));
+            Utxo locked = ledger.add(htlc.address(), List.of(Amount.ada(10)), null);
+            return ledger.compose(htlc, new ScriptTx()
+                    .collectFrom(locked, ConstrPlutusData.of(0, BytesPlutusData.of(answer)))
+                    .payToAddress(walletAddress, Amount.ada(10))
+                    .attachSpendingValidator(htlc.script()))
+                    .validFrom(validFrom)
+                    .validTo(validTo)
+                    .build();
+        }));
+        profiles.add(new Profile("htlc", "withdraw", null, List.of(1), (ledger, x) -> {
+            Validator htlc = validator("htlc", BytesPlutusData.of(Sha256Hash.hash(answer)),
+                    BigIntPlutusData.of(past), BytesPlutusData.of(walletKeyHash));
+            Utxo locked = ledger.add(htlc.address(), List.of(Amount.ada(10)), null);
+            return ledger.compose(htlc, new ScriptTx()
+                    .collectFrom(locked, ConstrPlutusData.of(1))
+                    .payToAddress(walletAddress, Amount.ada(10))
+                    .attachSpendingValidator(htlc.script()))
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .validFrom(validFrom)
+                    .validTo(validTo)
+                    .build();
+        }));
+
+        profiles.add(new Profile("vault", "withdraw", null, List.of(1), (ledger, x) -> {
+            Validator vault = validator("vault", BytesPlutusData.of(walletKeyHash), BigIntPlutusData.of(60_000));
+            Utxo deposit = ledger.add(vault.address(), List.of(Amount.ada(10)), null);
+            return ledger.compose(vault, new ScriptTx()
+                    .collectFrom(deposit, ConstrPlutusData.of(0))
+                    .payToContract(vault.address(), Amount.ada(10), ConstrPlutusData.of(0, BigIntPlutusData.of(past)))
+                    .attachSpendingValidator(vault.script()))
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .validFrom(validFrom)
+                    .validTo(validTo)
+                    .build();
+        }));
+        profiles.add(new Profile("vault", "finalize", null, List.of(1), (ledger, x) -> {
+            Validator vault = validator("vault", BytesPlutusData.of(walletKeyHash), BigIntPlutusData.of(60_000));
+            Utxo request = ledger.add(vault.address(), List.of(Amount.ada(10)),
+                    ConstrPlutusData.of(0, BigIntPlutusData.of(past)));
+            return ledger.compose(vault, new ScriptTx()
+                    .collectFrom(request, ConstrPlutusData.of(1))
+                    .payToAddress(walletAddress, Amount.ada(10))
+                    .attachSpendingValidator(vault.script()))
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .validFrom(validFrom)
+                    .validTo(validTo)
+                    .build();
+        }));
+
+        // Every donor holds 2 Ada of the crowdfund, the wallet donates or reclaims
+        profiles.add(new Profile("crowdfund", "donate", "donors", donors, (ledger, x) -> {
+            Validator crowdfund = validator("crowdfund", BytesPlutusData.of(walletKeyHash),
+                    BigIntPlutusData.of(1_000_000_000L), BigIntPlutusData.of(past));
+            Utxo locked = ledger.add(crowdfund.address(), List.of(Amount.ada(2 * x)), donors(x, false));
+            MapPlutusData donated = donorMap(x, false);
+            donated.put(BytesPlutusData.of(walletKeyHash), BigIntPlutusData.of(5_000_000L));
+            return ledger.compose(crowdfund, new ScriptTx()
+                    .collectFrom(locked, ConstrPlutusData.of(0))
+                    .payToContract(crowdfund.address(), Amount.ada(2 * x + 5), ConstrPlutusData.of(0, donated))
+                    .attachSpendingValidator(crowdfund.script()))
+                    .build();
+        }));
+        profiles.add(new Profile("crowdfund", "withdraw", "donors", donors, (ledger, x) -> {
+            Validator crowdfund = validator("crowdfund", BytesPlutusData.of(walletKeyHash),
+                    BigIntPlutusData.of(2_000_000L), BigIntPlutusData.of(past));
+            Utxo locked = ledger.add(crowdfund.address(), List.of(Amount.ada(2 * x)), donors(x, false));
+            return ledger.compose(crowdfund, new ScriptTx()
+                    .collectFrom(locked, ConstrPlutusData.of(1))
+                    .payToAddress(walletAddress, Amount.ada(2 * x))
+                    .attachSpendingValidator(crowdfund.script()))
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .validFrom(validFrom)
+                    .validTo(validTo)
+                    .build();
+        }));
+        profiles.add(new Profile("crowdfund", "reclaim", "donors", donors, (ledger, x) -> {
+            Validator crowdfund = validator("crowdfund", BytesPlutusData.of(walletKeyHash),
+                    BigIntPlutusData.of(1_000_000_000L), BigIntPlutusData.of(past));
+            Utxo locked = ledger.add(crowdfund.address(), List.of(Amount.ada(2 * x)), donors(x, true));
+            ScriptTx reclaim = new ScriptTx()
+                    .collectFrom(locked, ConstrPlutusData.of(2))
+                    .payToAddress(walletAddress, Amount.ada(2))
+                    .attachSpendingValidator(crowdfund.script());
+            // The other donors stay in the crowdfund
+            if (x > 1)
+                reclaim.payToContract(crowdfund.address(), Amount.ada(2 * (x - 1)),
+                        ConstrPlutusData.of(0, donorMap(x - 1, false)));
+            return ledger.compose(crowdfund, reclaim)
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .validFrom(validFrom)
+                    .validTo(validTo)
+                    .build();
+        }));
+
+        profiles.add(new Profile("token-transfer", "transfer", null, List.of(1), (ledger, x) -> {
+            String assetName = "TestToken";
+            Validator tokenTransfer = validator("token-transfer", BytesPlutusData.of(walletKeyHash),
+                    BytesPlutusData.of(alwaysTrue.getScriptHash()), BytesPlutusData.of(assetName));
+            String unit = alwaysTrue.getPolicyId() + HexFormat.of().formatHex(assetName.getBytes());
+            Utxo minted = ledger.add(tokenTransfer.address(),
+                    List.of(Amount.ada(2), Amount.asset(unit, 10)), null);
+            return ledger.compose(tokenTransfer, new ScriptTx()
+                    .collectFrom(minted, PlutusData.unit())
+                    .payToAddress(walletAddress, Amount.asset(unit, 10))
+                    .attachSpendingValidator(tokenTransfer.script()))
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .build();
+        }));
+
+        // The wallet is the first payee and pays the fee, as in PaymentSplitter
+        profiles.add(new Profile("payment-splitter", "unlock", "payees", payees, (ledger, x) -> {
+            ListPlutusData payeeHashes = new ListPlutusData();
+            payeeHashes.add(BytesPlutusData.of(walletKeyHash));
+            for (int i = 1; i < x; i++)
+                payeeHashes.add(BytesPlutusData.of(keyHash("payee", i)));
+            Validator splitter = validator("payment-splitter", payeeHashes);
+            Utxo locked = ledger.add(splitter.address(), List.of(Amount.ada(2 * x)),
+                    ConstrPlutusData.of(0, BytesPlutusData.of(walletKeyHash)));
+            ScriptTx unlock = new ScriptTx()
+                    .collectFrom(locked, ConstrPlutusData.of(0, BytesPlutusData.of("Payday")))
+                    .payToAddress(walletAddress, Amount.ada(2))
+                    .attachSpendingValidator(splitter.script());
+            for (int i = 1; i < x; i++)
+                unlock.payToAddress(AddressProvider.getEntAddress(Credential.fromKey(keyHash("payee", i)), network)
+                        .toBech32(), Amount.ada(2));
+            Tx feeTx = new Tx()
+                    .payToAddress(walletAddress, Amount.ada(2))
+                    .from(walletAddress);
+            return ledger.compose(splitter, unlock, feeTx)
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .build();
+        }));
+
+        profiles.add(new Profile("atomic-transaction", "mint", null, List.of(1), (ledger, x) -> {
+            Validator placeholder = validator("atomic-transaction");
+            return ledger.compose(placeholder, new ScriptTx()
+                    .mintAsset(placeholder.script(), new Asset("Token", BigInteger.ONE),
+                            ConstrPlutusData.of(0, BytesPlutusData.of("super_secret_password")), walletAddress))
+                    .build();
+        }));
+
+        profiles.add(new Profile("simple-transfer", "spend", null, List.of(1), (ledger, x) -> {
+            Validator simpleTransfer = validator("simple-transfer", BytesPlutusData.of(walletKeyHash));
+            Utxo locked = ledger.add(simpleTransfer.address(), List.of(Amount.ada(10)), null);
+            return ledger.compose(simpleTransfer, new ScriptTx()
+                    .collectFrom(locked, PlutusData.unit())
+                    .payToAddress(walletAddress, Amount.ada(10))
+                    .attachSpendingValidator(simpleTransfer.script()))
+                    .withRequiredSigners(wallet.getBaseAddress())
+                    .build();
+        }));
+
+        return profiles.stream().filter(profile -> blueprints.containsKey(profile.validator())).toList();
+    }
+
+    static Validator validator(String contract, PlutusData... params) {
+        ScriptDeriver deriver = ScriptDeriver.of(blueprints.get(contract), PlutusVersion.v3, network);
+        ListPlutusData paramList = ListPlutusData.of(params);
+        ScriptDeriver.Instance instance = deriver.derive(0, paramList);
+        return new Validator(instance.script(), instance.address().toBech32(),
+                deriver.applyParams(paramList).length() / 2);
+    }
+
+    static ConstrPlutusData donors(int count, boolean withWallet) {
+        return ConstrPlutusData.of(0, donorMap(count, withWallet));
+    }
+
+    // The wallet takes the last place of the donors if it is one
+    static MapPlutusData donorMap(int count, boolean withWallet) {
+        MapPlutusData donors = new MapPlutusData();
+        for (int i = 0; i < count; i++)
+            donors.put(BytesPlutusData.of(withWallet && i == count - 1 ? walletKeyHash : keyHash("donor", i)),
+                    BigIntPlutusData.of(2_000_000L));
+        return donors;
+    }
+
+    static byte[] keyHash(String role, int index) {
+        return Blake2bUtil.blake2bHash224((role + index).getBytes());
+    }
+
+    static List<Integer> powersOfTwo(int max) {
+        List<Integer> xs = new ArrayList<>();
+        for (int x = 1; x <= max; x *= 2)
+            xs.add(x);
+        return xs;
+    }
+
+    static Budget budget(String validator, String path, long maxMem, long maxSteps) {
+        for (String key : List.of(validator + "/" + path, validator + "/*", "*/" + path, "*/*")) {
+            String line = budgetLines.get(key);
+            if (line != null) {
+                String[] f = line.split("\t");
+                return new Budget(limit(f[0], maxMem), limit(f[1], maxSteps));
+            }
+        }
+        return new Budget(maxMem, maxSteps);
+    }
+
+    static long limit(String value, long max) {
+        value = value.trim();
+        if (value.endsWith("%"))
+            return (long) (max * Double.parseDouble(value.substring(0, value.length() - 1)) / 100);
+        return Long.parseLong(value);
+    }
+
+    /**
+     * A fresh set of UTxOs for one transaction: the wallet's funds, its
+     * collateral and the script outputs the path spends.
+     */
+    static class Ledger {
+
+        private final List<Utxo> utxos = new ArrayList<>();
+        private int nextTx;
+        long mem;
+        long steps;
+        int scriptBytes;
+
+        Ledger() {
+            add(walletAddress, List.of(Amount.ada(1_000)), null);
+            add(walletAddress, List.of(Amount.ada(5)), null); // Collateral
+        }
+
+        Utxo add(String address, List<Amount> amounts, PlutusData inlineDatum) {
+            Utxo utxo = Utxo.builder()
+                    .txHash("%064x".formatted(++nextTx))
+                    .outputIndex(0)
+                    .address(address)
+                    .amount(amounts)
+                    .inlineDatum(inlineDatum == null ? null : inlineDatum.serializeToHex())
+                    .build();
+            utxos.add(utxo);
+            return utxo;
+        }
+
+        /**
+         * Composes the transaction with an evaluator that records the
+         * ex-units of its redeemers and fails on a failing script.
+         */
+        QuickTxBuilder.TxContext compose(Validator validator, AbstractTx<?>... txs) {
+            scriptBytes = validator.scriptBytes();
+            LedgerFixture.StandInLedger ledger = new LedgerFixture.StandInLedger(utxos, null);
+            TransactionEvaluator aiken = new AikenTransactionEvaluator(ledger, () -> protocolParams);
+            TransactionEvaluator recording = (cbor, inputUtxos) -> {
+                Result<List<EvaluationResult>> result = aiken.evaluateTx(cbor, inputUtxos);
+                if (!result.isSuccessful())
+                    throw new ApiException(result.getResponse());
+                mem = 0;
+                steps = 0;
+                for (EvaluationResult evaluation : result.getValue()) {
+                    mem += evaluation.getExUnits().getMem().longValueExact();
+                    steps += evaluation.getExUnits().getSteps().longValueExact();
+                }
+                return result;
+            };
+            return new QuickTxBuilder(ledger, () -> protocolParams, ledger)
+                    .compose(txs)
+                    .withTxEvaluator(recording)
+                    .ignoreScriptCostEvaluationError(false)
+                    .feePayer(walletAddress)
+                    .collateralPayer(walletAddress);
+        }
+    }
+
+    // One chart per sweep, ex-units in percent of the per-transaction limit
+    static void plot(List<Point> points, long maxMem, long maxSteps) throws IOException {
+        Map<Profile, List<Point>> sweeps = new LinkedHashMap<>();
+        for (Point point : points)
+            if (point.profile().sweep() != null)
+                sweeps.computeIfAbsent(point.profile(), profile -> new ArrayList<>()).add(point);
+        if (sweeps.isEmpty())
+            return;
+        Files.createDirectories(plotDir);
+        int width = 640, height = 360, left = 60, right = 20, top = 40, bottom = 50;
+        for (Map.Entry<Profile, List<Point>> sweep : sweeps.entrySet()) {
+            Profile profile = sweep.getKey();
+            List<Point> series = sweep.getValue();
+            Budget budget = budget(profile.validator(), profile.path(), maxMem, maxSteps);
+            double budgetMem = 100.0 * budget.mem() / maxMem;
+            double budgetSteps = 100.0 * budget.steps() / maxSteps;
+            double yMax = 1;
+            for (Point point : series)
+                yMax = Math.max(yMax, Math.max(100.0 * point.mem() / maxMem, 100.0 * point.steps() / maxSteps));
+            yMax *= 1.2;
+            int xMin = series.getFirst().x();
+            int xMax = Math.max(xMin + 1, series.getLast().x());
+            double plotWidth = width - left - right, plotHeight = height - top - bottom;
+
+            StringBuilder svg = new StringBuilder();
+            svg.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"%d\" height=\"%d\" font-family=\"sans-serif\" font-size=\"12\">\n"
+                    .formatted(width, height));
+            svg.append("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+            svg.append("<text x=\"%d\" y=\"20\" font-size=\"14\">%s %s by %s</text>\n".formatted(left,
+                    profile.validator(), profile.path(), profile.sweep()));
+            svg.append("<line x1=\"%d\" y1=\"%d\" x2=\"%d\" y2=\"%d\" stroke=\"black\"/>\n".formatted(left,
+                    height - bottom, width - right, height - bottom));
+            svg.append("<line x1=\"%d\" y1=\"%d\" x2=\"%d\" y2=\"%d\" stroke=\"black\"/>\n".formatted(left, top,
+                    left, height - bottom));
+            for (int tick = 0; tick <= 4; tick++) {
+                double y = top + plotHeight * (1 - tick / 4.0);
+                svg.append("<text x=\"%d\" y=\"%.1f\" text-anchor=\"end\">%.1f%%</text>\n".formatted(left - 5, y + 4,
+                        yMax * tick / 4));
+            }
+            for (Point point : series) {
+                double x = left + plotWidth * (point.x() - xMin) / (xMax - xMin);
+                svg.append("<text x=\"%.1f\" y=\"%d\" text-anchor=\"middle\">%d</text>\n".formatted(x,
+                        height - bottom + 15, point.x()));
+            }
+            svg.append("<text x=\"%.1f\" y=\"%d\" text-anchor=\"middle\">%s</text>\n".formatted(left + plotWidth / 2,
+                    height - 10, profile.sweep()));
+            String[][] lines = { { "ex_mem", "#1f77b4" }, { "ex_steps", "#ff7f0e" } };
+            for (int l = 0; l < lines.length; l++) {
+                StringBuilder polyline = new StringBuilder();
+                for (Point point : series) {
+                    double value = l == 0 ? 100.0 * point.mem() / maxMem : 100.0 * point.steps() / maxSteps;
+                    polyline.append("%.1f,%.1f ".formatted(left + plotWidth * (point.x() - xMin) / (xMax - xMin),
+                            top + plotHeight * (1 - value / yMax)));
+                }
+                svg.append("<polyline fill=\"none\" stroke=\"%s\" stroke-width=\"2\" points=\"%s\"/>\n".formatted(
+                        lines[l][1], polyline.toString().trim()));
+                double budgetValue = l == 0 ? budgetMem : budgetSteps;
+                if (budgetValue < yMax)
+                    svg.append("<line x1=\"%d\" y1=\"%.1f\" x2=\"%d\" y2=\"%.1f\" stroke=\"%s\" stroke-dasharray=\"4\"/>\n"
+                            .formatted(left, top + plotHeight * (1 - budgetValue / yMax), width - right,
+                                    top + plotHeight * (1 - budgetValue / yMax), lines[l][1]));
+                svg.append("<text x=\"%d\" y=\"%d\" fill=\"%s\">%s</text>\n".formatted(width - right - 150 + 75 * l,
+                        20, lines[l][1], lines[l][0]));
+            }
+            svg.append("</svg>\n");
+            Path file = plotDir.resolve("%s-%s.svg".formatted(profile.validator(), profile.path()));
+            Files.writeString(file, svg, StandardCharsets.UTF_8);
+            System.out.println("Plotted " + file);
+        }
+    }
+}
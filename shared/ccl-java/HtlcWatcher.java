@@ -0,0 +1,354 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES BlockWatcher.java
+// @formatter:on
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.bloxbean.cardano.client.address.Address;
+import com.bloxbean.cardano.client.api.common.OrderEnum;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.model.AddressTransactionContent;
+import com.bloxbean.cardano.client.backend.model.Block;
+import com.bloxbean.cardano.client.backend.model.ScriptDatumCbor;
+import com.bloxbean.cardano.client.backend.model.TransactionContent;
+import com.bloxbean.cardano.client.backend.model.TxContentRedeemers;
+import com.bloxbean.cardano.client.crypto.bip39.Sha256Hash;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.RedeemerTag;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+
+/**
+ * Watches HTLC script addresses for claims and uses the revealed secrets to
+ * claim the counterpart HTLCs, the second leg of an atomic swap.
+ * <p>
+ * A claim of the {@code Htlc} validator reveals the secret on chain as the
+ * redeemer {@code GUESS}, constructor 0 with the answer as its only field. On
+ * every block of the {@link BlockWatcher} the transactions of the watched
+ * addresses in the new blocks are fetched and their spend redeemers decoded.
+ * The SHA-256 of every revealed answer is looked up in an index of the
+ * pending counterpart claims, which are submitted right away on virtual
+ * threads, so the watcher thread never waits for a confirmation.
+ * <p>
+ * Reveal-to-claim latency is measured in blocks, from the block of the reveal
+ * to the block that includes the counterpart claim.
+ * <p>
+ * Through {@link BackendService} a scanned transaction costs one call for its
+ * redeemers and one per spend redeemer of a watched script for the redeemer
+ * data, since the redeemers only carry the hash of their data. A backend that
+ * returns the data together with the redeemers can be plugged in as a
+ * {@link RedeemerSource} to get one call per transaction. Secrets revealed
+ * before their counterpart was registered are kept for the reveal retention,
+ * in block time, and then dropped.
+ */
+public class HtlcWatcher implements AutoCloseable {
+
+    /**
+     * Builds, submits and waits for the claim of a counterpart HTLC, e.g. an
+     * {@code Htlc} style unlock with the answer as {@code GUESS}.
+     */
+    @FunctionalInterface
+    public interface Claim {
+        TxResult claim(byte[] answer) throws Exception;
+    }
+
+    /**
+     * Reads the spend redeemers of a transaction.
+     */
+    @FunctionalInterface
+    public interface RedeemerSource {
+        /**
+         * @return The hex CBOR of the spend redeemers of the given script in the
+         *         transaction.
+         */
+        List<String> spendRedeemers(String txHash, String scriptHash) throws ApiException;
+    }
+
+    /**
+     * A counterpart HTLC claimed with a revealed secret.
+     */
+    public record Claimed(byte[] answer, String revealTxHash, long revealHeight, TxResult result, long claimHeight) {
+
+        public long latencyBlocks() {
+            return claimHeight - revealHeight;
+        }
+    }
+
+    private record Pending(long expiration, Claim claim, CompletableFuture<Claimed> future) {
+    }
+
+    private record Reveal(byte[] answer, String txHash, long height, long blockMillis) {
+    }
+
+    private final BackendService backendService;
+    private final BlockWatcher blockWatcher;
+    private final RedeemerSource redeemerSource;
+    private final long revealRetentionMillis;
+    // Watched address to the hash of its script, redeemers of other scripts in the same transaction are skipped
+    private final Map<String, String> addresses = new ConcurrentHashMap<>();
+    // Hex SHA-256 of the secret to the counterpart claims waiting for it
+    private final Map<String, List<Pending>> pending = new ConcurrentHashMap<>();
+    // Secrets revealed before their counterpart was registered, until the retention has passed
+    private final Map<String, Reveal> reveals = new ConcurrentHashMap<>();
+    private final ExecutorService claimers = Executors.newVirtualThreadPerTaskExecutor();
+    private final Consumer<Block> listener = this::onBlock;
+    private volatile long scannedHeight = -1;
+
+    private final AtomicLong blocksScanned = new AtomicLong();
+    private final AtomicLong txsScanned = new AtomicLong();
+    private final AtomicLong secretsRevealed = new AtomicLong();
+    private final AtomicLong claimsSubmitted = new AtomicLong();
+    private final AtomicLong revealsEvicted = new AtomicLong();
+    private final List<Long> latencies = new ArrayList<>();
+
+    public HtlcWatcher(BackendService backendService, BlockWatcher blockWatcher) {
+        this(backendService, blockWatcher, backendRedeemers(backendService), Duration.ofHours(1));
+    }
+
+    /**
+     * @param redeemerSource  Reads the redeemers of the scanned transactions,
+     *                        e.g. {@link #backendRedeemers(BackendService)}.
+     * @param revealRetention How long, in block time, a secret revealed before
+     *                        its counterpart was registered is kept.
+     */
+    public HtlcWatcher(BackendService backendService, BlockWatcher blockWatcher, RedeemerSource redeemerSource,
+            Duration revealRetention) {
+        this.backendService = backendService;
+        this.blockWatcher = blockWatcher;
+        this.redeemerSource = redeemerSource;
+        this.revealRetentionMillis = revealRetention.toMillis();
+        blockWatcher.addListener(listener);
+    }
+
+    /**
+     * Reads the redeemers through {@link BackendService}: one call for the
+     * redeemers and one for the data of each spend redeemer of the script.
+     * Redeemers with the same data are fetched once.
+     */
+    public static RedeemerSource backendRedeemers(BackendService backendService) {
+        return (txHash, scriptHash) -> {
+            Result<List<TxContentRedeemers>> redeemers = backendService.getTransactionService()
+                    .getTransactionRedeemers(txHash);
+            if (!redeemers.isSuccessful() || redeemers.getValue() == null)
+                return List.of();
+            Map<String, String> data = new LinkedHashMap<>();
+            for (TxContentRedeemers redeemer : redeemers.getValue()) {
+                if (redeemer.getPurpose() != RedeemerTag.Spend || !scriptHash.equals(redeemer.getScriptHash())
+                        || data.containsKey(redeemer.getRedeemerDataHash()))
+                    continue;
+                Result<ScriptDatumCbor> cbor = backendService.getScriptService()
+                        .getScriptDatumCbor(redeemer.getRedeemerDataHash());
+                if (cbor.isSuccessful() && cbor.getValue() != null)
+                    data.put(redeemer.getRedeemerDataHash(), cbor.getValue().getCbor());
+            }
+            return List.copyOf(data.values());
+        };
+    }
+
+    /**
+     * Watches the claims of an HTLC, typically the one the counterparty locked
+     * with the same secret hash.
+     */
+    public void watch(String scriptAddress) {
+        String scriptHash = HexFormat.of()
+                .formatHex(new Address(scriptAddress).getPaymentCredentialHash().orElseThrow());
+        addresses.put(scriptAddress, scriptHash);
+    }
+
+    public void unwatch(String scriptAddress) {
+        addresses.remove(scriptAddress);
+    }
+
+    /**
+     * Registers the claim of a counterpart HTLC, run once a secret with the
+     * given hash is revealed on a watched address. A secret revealed earlier is
+     * used right away.
+     *
+     * @param secretHash The SHA-256 of the secret, the first parameter of the
+     *                   HTLC.
+     * @param expiration POSIX milliseconds after which the counterpart can no
+     *                   longer be claimed; the future fails once a block is
+     *                   past it.
+     * @return Completes with the claim once it is included, or exceptionally
+     *         if it expired or the claim failed.
+     */
+    public CompletableFuture<Claimed> expect(byte[] secretHash, long expiration, Claim claim) {
+        String key = HexFormat.of().formatHex(secretHash);
+        Pending entry = new Pending(expiration, claim, new CompletableFuture<>());
+        pending.compute(key, (k, list) -> {
+            List<Pending> updated = list == null ? new ArrayList<>() : list;
+            updated.add(entry);
+            return updated;
+        });
+        Reveal reveal = reveals.get(key);
+        if (reveal != null)
+            claimAll(key, reveal);
+        return entry.future();
+    }
+
+    private void onBlock(Block block) {
+        long height = block.getHeight();
+        long from = scannedHeight < 0 ? height : scannedHeight + 1;
+        scannedHeight = height;
+        blocksScanned.incrementAndGet();
+        long blockMillis = block.getTime() * 1000;
+        expire(blockMillis);
+        for (Map.Entry<String, String> address : addresses.entrySet()) {
+            try {
+                scan(address.getKey(), address.getValue(), from, height, blockMillis);
+            } catch (ApiException | RuntimeException e) {
+                // Rescanned with the next block, a reveal already seen only matches claims registered since
+                scannedHeight = Math.min(scannedHeight, from - 1);
+                System.out.println("HTLC watcher scan of %s failed: %s".formatted(address.getKey(), e.getMessage()));
+            }
+        }
+    }
+
+    private void scan(String address, String scriptHash, long from, long to, long blockMillis) throws ApiException {
+        for (int page = 1;; page++) {
+            Result<List<AddressTransactionContent>> txs = backendService.getAddressService().getTransactions(address,
+                    100, page, OrderEnum.asc, Long.toString(from), Long.toString(to));
+            if (!txs.isSuccessful() || txs.getValue() == null)
+                throw new ApiException("Transactions of %s: %s".formatted(address, txs.getResponse()));
+            for (AddressTransactionContent tx : txs.getValue()) {
+                txsScanned.incrementAndGet();
+                revealed(tx.getTxHash(), tx.getBlockHeight(), scriptHash, blockMillis);
+            }
+            if (txs.getValue().size() < 100)
+                return;
+        }
+    }
+
+    private void revealed(String txHash, long height, String scriptHash, long blockMillis) throws ApiException {
+        for (String redeemerCbor : redeemerSource.spendRedeemers(txHash, scriptHash)) {
+            byte[] answer = answer(redeemerCbor);
+            if (answer == null)
+                continue;
+            secretsRevealed.incrementAndGet();
+            String key = HexFormat.of().formatHex(Sha256Hash.hash(answer));
+            Reveal reveal = new Reveal(answer, txHash, height, blockMillis);
+            reveals.putIfAbsent(key, reveal);
+            claimAll(key, reveal);
+        }
+    }
+
+    /**
+     * @return The answer of a {@code GUESS} redeemer, null for any other
+     *         redeemer.
+     */
+    static byte[] answer(String redeemerCbor) {
+        try {
+            PlutusData data = PlutusData.deserialize(HexFormat.of().parseHex(redeemerCbor));
+            if (data instanceof ConstrPlutusData constr && constr.getAlternative() == 0
+                    && constr.getData().getPlutusDataList().size() == 1
+                    && constr.getData().getPlutusDataList().getFirst() instanceof BytesPlutusData bytes)
+                return bytes.getValue();
+        } catch (Exception e) {
+            // Not a redeemer of the HTLC validator
+        }
+        return null;
+    }
+
+    private void claimAll(String key, Reveal reveal) {
+        List<Pending> claims = pending.remove(key);
+        if (claims == null)
+            return;
+        for (Pending claim : claims) {
+            claimsSubmitted.incrementAndGet();
+            claimers.submit(() -> {
+                try {
+                    TxResult result = claim.claim().claim(reveal.answer());
+                    if (!result.isSuccessful()) {
+                        claim.future().completeExceptionally(
+                                new IllegalStateException("Counterpart claim failed: " + result.getResponse()));
+                        return;
+                    }
+                    Claimed claimed = new Claimed(reveal.answer(), reveal.txHash(), reveal.height(), result,
+                            inclusionHeight(result.getTxHash()));
+                    synchronized (latencies) {
+                        latencies.add(claimed.latencyBlocks());
+                    }
+                    claim.future().complete(claimed);
+                } catch (Exception e) {
+                    claim.future().completeExceptionally(e);
+                }
+            });
+        }
+    }
+
+    private long inclusionHeight(String txHash) throws ApiException {
+        Result<TransactionContent> tx = backendService.getTransactionService().getTransaction(txHash);
+        if (!tx.isSuccessful() || tx.getValue() == null || tx.getValue().getBlockHeight() == null)
+            throw new ApiException("Claim %s not found on chain".formatted(txHash));
+        return tx.getValue().getBlockHeight();
+    }
+
+    private void expire(long blockMillis) {
+        reveals.values().removeIf(reveal -> {
+            boolean evicted = blockMillis - reveal.blockMillis() > revealRetentionMillis;
+            if (evicted)
+                revealsEvicted.incrementAndGet();
+            return evicted;
+        });
+        pending.forEach((key, claims) -> {
+            List<Pending> expired = new ArrayList<>();
+            pending.computeIfPresent(key, (k, list) -> {
+                for (Pending claim : list)
+                    if (blockMillis >= claim.expiration())
+                        expired.add(claim);
+                list.removeAll(expired);
+                return list.isEmpty() ? null : list;
+            });
+            for (Pending claim : expired)
+                claim.future().completeExceptionally(
+                        new IllegalStateException("The secret was not revealed before the expiration"));
+        });
+    }
+
+    int revealsKept() {
+        return reveals.size();
+    }
+
+    long blocksScanned() {
+        return blocksScanned.get();
+    }
+
+    public void printStats() {
+        Map<Long, Integer> histogram = new LinkedHashMap<>();
+        synchronized (latencies) {
+            latencies.stream().sorted().forEach(latency -> histogram.merge(latency, 1, Integer::sum));
+        }
+        System.out.println("HTLC watcher: %d blocks and %d txs scanned, %d secrets revealed (%d kept, %d evicted), %d claims submitted, reveal-to-claim blocks %s"
+                .formatted(blocksScanned.get(), txsScanned.get(), secretsRevealed.get(), reveals.size(),
+                        revealsEvicted.get(), claimsSubmitted.get(), histogram));
+    }
+
+    @Override
+    public void close() {
+        blockWatcher.removeListener(listener);
+        for (String key : pending.keySet()) {
+            List<Pending> claims = pending.remove(key);
+            if (claims != null)
+                for (Pending claim : claims)
+                    claim.future().completeExceptionally(
+                            new IllegalStateException("The watcher was closed before the secret was revealed"));
+        }
+        claimers.shutdownNow();
+    }
+}
@@ -0,0 +1,399 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES HtlcWatcher.java
+// @formatter:on
+
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bloxbean.cardano.client.address.AddressProvider;
+import com.bloxbean.cardano.client.address.Credential;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.AddressService;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.api.BlockService;
+import com.bloxbean.cardano.client.backend.api.ScriptService;
+import com.bloxbean.cardano.client.backend.api.TransactionService;
+import com.bloxbean.cardano.client.backend.model.AddressTransactionContent;
+import com.bloxbean.cardano.client.backend.model.Block;
+import com.bloxbean.cardano.client.backend.model.ScriptDatumCbor;
+import com.bloxbean.cardano.client.backend.model.TransactionContent;
+import com.bloxbean.cardano.client.backend.model.TxContentRedeemers;
+import com.bloxbean.cardano.client.common.model.Networks;
+import com.bloxbean.cardano.client.crypto.bip39.Sha256Hash;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.RedeemerTag;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+
+/**
+ * Runs the {@link HtlcWatcher} against an in-memory chain that produces a
+ * block every 20 milliseconds, for many atomic swaps whose counterparty HTLCs
+ * are claimed at random times.
+ * <p>
+ * Most secrets are revealed after the counterpart claim is registered, some
+ * before it, and some never, so those claims must expire. The chain also
+ * carries refunds and a claim with the right answer on an unwatched script,
+ * neither of which may trigger a claim. Checks that every revealed secret
+ * leads to exactly one counterpart claim with the right answer, within a few
+ * blocks of the reveal, that reveals are dropped once their retention has
+ * passed, and reports the reveal-to-claim latency.
+ * <p>
+ * Usage: {@code jbang HtlcWatcherSimulation.java [swaps]}
+ */
+public class HtlcWatcherSimulation {
+
+    static int swaps = 200;
+    static int addresses = 10;
+    static long blockMillis = 20;
+    static int maxLatencyBlocks = 3;
+    // One second of chain time per block, so reveals are kept for 30 blocks
+    static Duration revealRetention = Duration.ofSeconds(30);
+    static Random random = new Random(5);
+
+    record Swap(int id, byte[] secret, String address, boolean revealed, boolean early) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            swaps = Integer.parseInt(args[0]);
+
+        SimulatedChain chain = new SimulatedChain();
+        List<String> scriptHashes = new ArrayList<>();
+        for (int i = 0; i <= addresses; i++)
+            scriptHashes.add(randomHex(28));
+        List<Swap> all = new ArrayList<>();
+        for (int id = 0; id < swaps; id++)
+            all.add(new Swap(id, randomBytes(16), chain.address(scriptHashes.get(id % addresses)), id % 10 != 0,
+                    id % 10 == 1));
+        Map<Integer, AtomicInteger> claims = new ConcurrentHashMap<>();
+        List<CompletableFuture<HtlcWatcher.Claimed>> claimed = new ArrayList<>();
+
+        try (BlockWatcher blockWatcher = new BlockWatcher(chain.backendService(), Duration.ofMillis(5)).start();
+                HtlcWatcher watcher = new HtlcWatcher(chain.backendService(), blockWatcher,
+                        HtlcWatcher.backendRedeemers(chain.backendService()), revealRetention)) {
+            for (int i = 0; i < addresses; i++)
+                watcher.watch(chain.address(scriptHashes.get(i)));
+
+            // Revealed before the counterpart claim is registered
+            for (Swap swap : all)
+                if (swap.early())
+                    chain.submit(swap.address(), scriptHashes.get(swap.id() % addresses), guess(swap.secret()));
+            chain.awaitBlocks(3);
+
+            // Unrevealed claims expire after 40 blocks, the others never do
+            long expiration = (chain.time(chain.height() + 40)) * 1000;
+            for (Swap swap : all) {
+                claims.put(swap.id(), new AtomicInteger());
+                claimed.add(watcher.expect(Sha256Hash.hash(swap.secret()), swap.revealed() ? Long.MAX_VALUE : expiration,
+                        answer -> {
+                            claims.get(swap.id()).incrementAndGet();
+                            if (!Arrays.equals(answer, swap.secret()))
+                                throw new AssertionError("Swap %d claimed with a wrong answer".formatted(swap.id()));
+                            return chain.claim();
+                        }));
+            }
+
+            // Revealed at random times over the next blocks, mixed with transactions that reveal nothing
+            Thread.ofVirtual().start(() -> {
+                try {
+                    for (Swap swap : all) {
+                        String scriptHash = scriptHashes.get(swap.id() % addresses);
+                        if (!swap.revealed())
+                            // The right answer, but on a script nobody watches
+                            chain.submit(chain.address(scriptHashes.get(addresses)), scriptHashes.get(addresses),
+                                    guess(swap.secret()));
+                        else if (!swap.early())
+                            chain.submit(swap.address(), scriptHash, guess(swap.secret()));
+                        chain.submit(swap.address(), scriptHash, refund());
+                        Thread.sleep(random.nextInt(5));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }).join();
+
+            CompletableFuture.allOf(claimed.toArray(CompletableFuture[]::new)).handle((v, e) -> null)
+                    .get(60, TimeUnit.SECONDS);
+            chain.awaitBlocks((int) revealRetention.toSeconds() + 5);
+            watcher.printStats();
+            if (watcher.revealsKept() != 0)
+                throw new AssertionError("%d reveals kept past their retention".formatted(watcher.revealsKept()));
+
+            // A closed watcher fails its waiting claims and no longer scans the blocks of the shared block watcher
+            HtlcWatcher closed = new HtlcWatcher(chain.backendService(), blockWatcher);
+            CompletableFuture<HtlcWatcher.Claimed> orphan = closed.expect(randomBytes(32), Long.MAX_VALUE,
+                    answer -> chain.claim());
+            closed.close();
+            if (!orphan.isCompletedExceptionally())
+                throw new AssertionError("A claim of a closed watcher is still waiting");
+            // A scan that started before the close may still finish
+            chain.awaitBlocks(1);
+            long scanned = closed.blocksScanned();
+            chain.awaitBlocks(3);
+            if (closed.blocksScanned() != scanned)
+                throw new AssertionError("A closed watcher still scans blocks");
+        } finally {
+            chain.close();
+        }
+
+        long maxLatency = 0;
+        int expired = 0;
+        for (Swap swap : all) {
+            CompletableFuture<HtlcWatcher.Claimed> future = claimed.get(swap.id());
+            if (!swap.revealed()) {
+                if (!future.isCompletedExceptionally() || claims.get(swap.id()).get() != 0)
+                    throw new AssertionError("Swap %d was claimed without a reveal".formatted(swap.id()));
+                expired++;
+                continue;
+            }
+            HtlcWatcher.Claimed claim;
+            try {
+                claim = future.get();
+            } catch (ExecutionException e) {
+                throw new AssertionError("Swap %d was not claimed".formatted(swap.id()), e.getCause());
+            }
+            if (claims.get(swap.id()).get() != 1)
+                throw new AssertionError("Swap %d claimed %d times".formatted(swap.id(), claims.get(swap.id()).get()));
+            if (!swap.early())
+                maxLatency = Math.max(maxLatency, claim.latencyBlocks());
+        }
+        System.out.println("%d swaps claimed, %d expired, reveal-to-claim at most %d blocks".formatted(
+                swaps - expired, expired, maxLatency));
+        if (maxLatency > maxLatencyBlocks)
+            throw new AssertionError("Counterpart claims lag more than %d blocks behind the reveal"
+                    .formatted(maxLatencyBlocks));
+    }
+
+    // The redeemer of an Htlc claim, constructor 0 with the answer
+    static String guess(byte[] answer) {
+        return ConstrPlutusData.of(0, BytesPlutusData.of(answer)).serializeToHex();
+    }
+
+    // The redeemer of an Htlc refund, constructor 1 without fields
+    static String refund() {
+        return ConstrPlutusData.builder().alternative(1).data(ListPlutusData.of()).build().serializeToHex();
+    }
+
+    static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        synchronized (random) {
+            random.nextBytes(bytes);
+        }
+        return bytes;
+    }
+
+    static String randomHex(int length) {
+        return HexFormat.of().formatHex(randomBytes(length));
+    }
+
+    /**
+     * The parts of a backend the watcher uses: the tip, the transactions of an
+     * address, their redeemers and the status of a transaction.
+     */
+    static class SimulatedChain implements AutoCloseable {
+
+        record SimulatedTx(String txHash, String address, String scriptHash, String redeemerCbor) {
+        }
+
+        private final long genesis = System.currentTimeMillis() / 1000;
+        private final List<SimulatedTx> mempool = new ArrayList<>();
+        private final Map<String, SimulatedTx> txs = new ConcurrentHashMap<>();
+        private final Map<String, Long> included = new ConcurrentHashMap<>();
+        private final Map<String, NavigableMap<Long, List<AddressTransactionContent>>> byAddress = new ConcurrentHashMap<>();
+        private volatile long height;
+        private final BackendService backendService;
+        private final Thread producer;
+
+        SimulatedChain() {
+            BlockService blocks = service(BlockService.class, (method, args) -> switch (method) {
+                case "getLatestBlock" -> success(block(height));
+                case "getBlockByNumber" -> success(block(((BigInteger) args[0]).longValue()));
+                default -> null;
+            });
+            AddressService addressService = service(AddressService.class, (method, args) -> switch (method) {
+                case "getTransactions" -> transactions((String) args[0], (int) args[1], (int) args[2],
+                        Long.parseLong((String) args[4]), Long.parseLong((String) args[5]));
+                default -> null;
+            });
+            TransactionService transactions = service(TransactionService.class, (method, args) -> switch (method) {
+                case "getTransactionRedeemers" -> redeemers((String) args[0]);
+                case "getTransaction" -> status((String) args[0]);
+                default -> null;
+            });
+            ScriptService scripts = service(ScriptService.class, (method, args) -> switch (method) {
+                case "getScriptDatumCbor" -> datum((String) args[0]);
+                default -> null;
+            });
+            backendService = service(BackendService.class, (method, args) -> switch (method) {
+                case "getBlockService" -> blocks;
+                case "getAddressService" -> addressService;
+                case "getTransactionService" -> transactions;
+                case "getScriptService" -> scripts;
+                default -> null;
+            });
+            producer = Thread.ofPlatform().daemon().start(this::produceBlocks);
+        }
+
+        interface Handler {
+            Object handle(String method, Object[] args) throws Exception;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> T service(Class<T> type, Handler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+                Object value = handler.handle(method.getName(), args);
+                if (value == null)
+                    throw new UnsupportedOperationException(method.getName());
+                return value;
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> Result<T> success(T value) {
+            return Result.success("ok").withValue(value);
+        }
+
+        BackendService backendService() {
+            return backendService;
+        }
+
+        String address(String scriptHash) {
+            return AddressProvider.getEntAddress(Credential.fromScript(HexFormat.of().parseHex(scriptHash)),
+                    Networks.testnet()).toBech32();
+        }
+
+        long height() {
+            return height;
+        }
+
+        // One second of chain time per block
+        long time(long blockHeight) {
+            return genesis + blockHeight;
+        }
+
+        String submit(String address, String scriptHash, String redeemerCbor) {
+            SimulatedTx tx = new SimulatedTx(randomHex(32), address, scriptHash, redeemerCbor);
+            txs.put(tx.txHash(), tx);
+            synchronized (mempool) {
+                mempool.add(tx);
+            }
+            return tx.txHash();
+        }
+
+        /**
+         * Submits a counterpart claim to an unwatched address and waits for it,
+         * like {@code completeAndWait()}.
+         */
+        TxResult claim() throws InterruptedException {
+            String txHash = submit("counterpart", "", "");
+            while (!included.containsKey(txHash))
+                Thread.sleep(blockMillis / 4);
+            return TxResult.fromResult(success(txHash));
+        }
+
+        void awaitBlocks(int blocks) throws InterruptedException {
+            long target = height + blocks;
+            while (height < target)
+                Thread.sleep(blockMillis / 4);
+        }
+
+        Result<List<AddressTransactionContent>> transactions(String address, int count, int page, long from, long to) {
+            List<AddressTransactionContent> all = new ArrayList<>();
+            NavigableMap<Long, List<AddressTransactionContent>> heights = byAddress.get(address);
+            if (heights != null)
+                synchronized (heights) {
+                    heights.subMap(from, true, to, true).values().forEach(all::addAll);
+                }
+            int first = Math.min(all.size(), (page - 1) * count);
+            return success(new ArrayList<>(all.subList(first, Math.min(all.size(), first + count))));
+        }
+
+        Result<List<TxContentRedeemers>> redeemers(String txHash) {
+            SimulatedTx tx = txs.get(txHash);
+            TxContentRedeemers redeemer = new TxContentRedeemers();
+            redeemer.setTxIndex(0);
+            redeemer.setPurpose(RedeemerTag.Spend);
+            redeemer.setScriptHash(tx.scriptHash());
+            redeemer.setRedeemerDataHash(txHash);
+            return success(List.of(redeemer));
+        }
+
+        Result<ScriptDatumCbor> datum(String redeemerDataHash) {
+            ScriptDatumCbor datum = new ScriptDatumCbor();
+            datum.setCbor(txs.get(redeemerDataHash).redeemerCbor());
+            return success(datum);
+        }
+
+        @SuppressWarnings("unchecked")
+        Result<TransactionContent> status(String txHash) {
+            Long blockHeight = included.get(txHash);
+            if (blockHeight == null)
+                return Result.error("Not found").code(404);
+            TransactionContent content = new TransactionContent();
+            content.setHash(txHash);
+            content.setBlockHeight(blockHeight);
+            return success(content);
+        }
+
+        Block block(long blockHeight) {
+            Block block = new Block();
+            block.setHeight(blockHeight);
+            block.setTime(time(blockHeight));
+            return block;
+        }
+
+        void produceBlocks() {
+            try {
+                while (true) {
+                    Thread.sleep(blockMillis);
+                    List<SimulatedTx> block;
+                    synchronized (mempool) {
+                        block = new ArrayList<>(mempool);
+                        mempool.clear();
+                    }
+                    long blockHeight = height + 1;
+                    for (SimulatedTx tx : block) {
+                        AddressTransactionContent content = new AddressTransactionContent();
+                        content.setTxHash(tx.txHash());
+                        content.setBlockHeight(blockHeight);
+                        NavigableMap<Long, List<AddressTransactionContent>> heights = byAddress
+                                .computeIfAbsent(tx.address(), a -> new TreeMap<>());
+                        synchronized (heights) {
+                            heights.computeIfAbsent(blockHeight, h -> new ArrayList<>()).add(content);
+                        }
+                        included.put(tx.txHash(), blockHeight);
+                    }
+                    height = blockHeight;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() {
+            producer.interrupt();
+        }
+    }
+}
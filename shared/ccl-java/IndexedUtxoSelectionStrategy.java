@@ -0,0 +1,334 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//SOURCES MultiAssetValue.java
+// @formatter:on
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import com.bloxbean.cardano.client.api.AddressIterator;
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.exception.InsufficientBalanceException;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.coinselection.UtxoSelectionStrategy;
+import com.bloxbean.cardano.client.coinselection.exception.InputsLimitExceededException;
+import com.bloxbean.cardano.client.coinselection.impl.DefaultUtxoSelectionStrategyImpl;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+
+/**
+ * Coin selection for wallets holding many UTxOs and many different assets.
+ * <p>
+ * The default strategy pages through the UTxOs of an address and compares the
+ * unit strings of every amount of every UTxO with every requested amount. Here
+ * the UTxOs are decoded once into {@link MultiAssetValue}s and indexed by
+ * asset, so for each requested asset only the UTxOs actually holding it are
+ * looked at, largest first. The lovelace is covered last, from the UTxOs with
+ * the most lovelace, taking into account what the asset inputs already brought.
+ * The index is reused for {@code maxAge} and rebuilt earlier only if a
+ * selection cannot be covered from it or {@link #invalidate()} is called.
+ * <p>
+ * Inputs handed out by a selection are reserved: they are not selected again,
+ * also not from a rebuilt index or by the largest first fallback, so
+ * transactions built back to back never share an input while the earlier one
+ * is in flight. A reservation ends when the supplier stops listing the input,
+ * after {@code reservationTtl}, or on {@link #invalidate()}, which callers use
+ * after any unsuccessful build or submission to start over from the supplier.
+ * <p>
+ * Selections that filter by datum are delegated to the default strategy.
+ */
+public class IndexedUtxoSelectionStrategy implements UtxoSelectionStrategy {
+
+    private record AssetKey(MultiAssetValue.Bytes policyId, MultiAssetValue.Bytes assetName) {
+    }
+
+    private record Reservation(Utxo utxo, long expiresAt) {
+    }
+
+    // An index younger than this is not rebuilt to retry a failed selection
+    private static final long FRESH_NANOS = Duration.ofMillis(100).toNanos();
+
+    private final UtxoSupplier utxoSupplier;
+    private final Duration maxAge;
+    private final Duration reservationTtl;
+    private final DefaultUtxoSelectionStrategyImpl defaultStrategy;
+    private final Map<String, Index> indexes = new ConcurrentHashMap<>();
+    // Inputs of earlier selections by txHash#index, only changed under the selection lock
+    private final Map<String, Reservation> reserved = new ConcurrentHashMap<>();
+    private final Object selectionLock = new Object();
+    private final AtomicLong indexBuilds = new AtomicLong();
+    private volatile boolean ignoreUtxosWithDatumHash = true;
+
+    public IndexedUtxoSelectionStrategy(UtxoSupplier utxoSupplier) {
+        this(utxoSupplier, Duration.ofSeconds(1));
+    }
+
+    public IndexedUtxoSelectionStrategy(UtxoSupplier utxoSupplier, Duration maxAge) {
+        this(utxoSupplier, maxAge, Duration.ofSeconds(30));
+    }
+
+    /**
+     * @param utxoSupplier   The supplier the wallet UTxOs are read from.
+     * @param maxAge         How long the index of an address is reused before
+     *                       the UTxOs are fetched again. One block time keeps it
+     *                       in step with the chain.
+     * @param reservationTtl How long a handed out input stays reserved if it is
+     *                       neither spent nor released, so a transaction that
+     *                       is built but never submitted cannot keep its inputs
+     *                       forever. Longer than the time a transaction takes to
+     *                       be included.
+     */
+    public IndexedUtxoSelectionStrategy(UtxoSupplier utxoSupplier, Duration maxAge, Duration reservationTtl) {
+        this.utxoSupplier = utxoSupplier;
+        this.maxAge = maxAge;
+        this.reservationTtl = reservationTtl;
+        this.defaultStrategy = new DefaultUtxoSelectionStrategyImpl(utxoSupplier);
+    }
+
+    @Override
+    public Set<Utxo> select(AddressIterator addrIter, List<Amount> outputAmounts, String datumHash,
+            PlutusData inlineDatum, Set<Utxo> utxosToExclude, int maxUtxoSelectionLimit) {
+        if (datumHash != null || inlineDatum != null)
+            return defaultStrategy.select(addrIter, outputAmounts, datumHash, inlineDatum, utxosToExclude,
+                    maxUtxoSelectionLimit);
+        if (outputAmounts == null || outputAmounts.isEmpty())
+            return Set.of();
+        try {
+            return selectIndexed(addrIter, outputAmounts, utxosToExclude, maxUtxoSelectionLimit);
+        } catch (InputsLimitExceededException e) {
+            // Same as the default strategy, let the largest first fallback try with fewer, larger inputs
+            return fallback().select(addrIter, outputAmounts, datumHash, inlineDatum, utxosToExclude,
+                    maxUtxoSelectionLimit);
+        }
+    }
+
+    private Set<Utxo> selectIndexed(AddressIterator addrIter, List<Amount> outputAmounts, Set<Utxo> utxosToExclude,
+            int maxUtxoSelectionLimit) throws InputsLimitExceededException {
+        List<String> addresses = new ArrayList<>();
+        addrIter.reset();
+        while (addrIter.hasNext())
+            addresses.add(addrIter.next().toBech32());
+
+        Index index = index(addresses, false);
+        try {
+            return index.select(MultiAssetValue.of(outputAmounts), utxosToExclude, maxUtxoSelectionLimit);
+        } catch (InsufficientBalanceException e) {
+            if (index.fresh())
+                throw e;
+            // The cached UTxOs may be outdated, e.g. change of the previous transaction is missing
+            return index(addresses, true).select(MultiAssetValue.of(outputAmounts), utxosToExclude,
+                    maxUtxoSelectionLimit);
+        }
+    }
+
+    private Index index(List<String> addresses, boolean forceRefresh) {
+        String key = String.join(",", addresses);
+        long now = System.nanoTime();
+        Index index = indexes.get(key);
+        if (forceRefresh || index == null || now - index.builtAt > maxAge.toNanos()) {
+            List<Utxo> utxos = new ArrayList<>();
+            for (String address : addresses)
+                utxos.addAll(utxoSupplier.getAll(address));
+            // Inputs the supplier no longer lists are spent, their reservations are done
+            Set<String> listed = new HashSet<>();
+            utxos.forEach(utxo -> listed.add(outputRef(utxo)));
+            synchronized (selectionLock) {
+                reserved.values().removeIf(r -> addresses.contains(r.utxo().getAddress())
+                        && !listed.contains(outputRef(r.utxo())));
+            }
+            index = new Index(utxos, now);
+            indexes.put(key, index);
+            indexBuilds.incrementAndGet();
+        }
+        return index;
+    }
+
+    /**
+     * Drops all cached indexes together with the reservations of the inputs
+     * handed out from them, e.g. after a build failed or a transaction was
+     * rejected.
+     */
+    public void invalidate() {
+        synchronized (selectionLock) {
+            indexes.clear();
+            reserved.clear();
+        }
+    }
+
+    private boolean isReserved(Utxo utxo) {
+        Reservation reservation = reserved.get(outputRef(utxo));
+        if (reservation == null)
+            return false;
+        if (reservation.expiresAt() - System.nanoTime() > 0)
+            return true;
+        reserved.remove(outputRef(utxo), reservation);
+        return false;
+    }
+
+    private void reserve(Set<Utxo> utxos) {
+        long expiresAt = System.nanoTime() + reservationTtl.toNanos();
+        for (Utxo utxo : utxos)
+            reserved.put(outputRef(utxo), new Reservation(utxo, expiresAt));
+    }
+
+    public long indexBuilds() {
+        return indexBuilds.get();
+    }
+
+    /**
+     * The decoded UTxOs of a set of addresses, with the holders of every asset
+     * sorted by quantity and all UTxOs sorted by lovelace, both descending.
+     */
+    private class Index {
+
+        private final List<Utxo> utxos = new ArrayList<>();
+        private final List<MultiAssetValue> values = new ArrayList<>();
+        private final Map<AssetKey, int[]> holders = new HashMap<>();
+        private final int[] byLovelace;
+        private final long builtAt;
+
+        Index(List<Utxo> allUtxos, long builtAt) {
+            this.builtAt = builtAt;
+            Map<AssetKey, List<Integer>> unsorted = new HashMap<>();
+            for (Utxo utxo : allUtxos) {
+                if (ignoreUtxosWithDatumHash && utxo.getDataHash() != null && !utxo.getDataHash().isEmpty())
+                    continue;
+                int i = utxos.size();
+                MultiAssetValue value = MultiAssetValue.of(utxo.getAmount());
+                utxos.add(utxo);
+                values.add(value);
+                value.forEachAsset((policyId, name, quantity) -> unsorted
+                        .computeIfAbsent(new AssetKey(policyId, name), k -> new ArrayList<>()).add(i));
+            }
+            unsorted.forEach((key, list) -> holders.put(key, list.stream()
+                    .sorted(Comparator.comparing((Integer i) -> values.get(i).get(key.policyId(), key.assetName()))
+                            .reversed())
+                    .mapToInt(Integer::intValue)
+                    .toArray()));
+            byLovelace = IntStream.range(0, utxos.size()).boxed()
+                    .sorted(Comparator.comparing((Integer i) -> values.get(i).lovelace()).reversed())
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+
+        boolean fresh() {
+            return System.nanoTime() - builtAt < FRESH_NANOS;
+        }
+
+        // Under the selection lock, so two concurrent selections cannot take the same input
+        Set<Utxo> select(MultiAssetValue target, Set<Utxo> utxosToExclude, int maxUtxoSelectionLimit)
+                throws InputsLimitExceededException {
+            synchronized (selectionLock) {
+                return selectUnreserved(target, utxosToExclude, maxUtxoSelectionLimit);
+            }
+        }
+
+        private Set<Utxo> selectUnreserved(MultiAssetValue target, Set<Utxo> utxosToExclude,
+                int maxUtxoSelectionLimit) throws InputsLimitExceededException {
+            MultiAssetValue selectedValue = MultiAssetValue.empty();
+            Set<Integer> selected = new LinkedHashSet<>();
+
+            List<AssetKey> requested = new ArrayList<>();
+            target.forEachAsset((policyId, name, quantity) -> requested.add(new AssetKey(policyId, name)));
+            List<AssetKey> missing = new ArrayList<>();
+            for (AssetKey key : requested) {
+                BigInteger quantity = target.get(key.policyId(), key.assetName());
+                for (int i : holders.getOrDefault(key, new int[0])) {
+                    if (selectedValue.get(key.policyId(), key.assetName()).compareTo(quantity) >= 0)
+                        break;
+                    if (!excluded(i, utxosToExclude) && selected.add(i)) {
+                        checkLimit(selected, maxUtxoSelectionLimit);
+                        selectedValue.add(values.get(i));
+                    }
+                }
+                if (selectedValue.get(key.policyId(), key.assetName()).compareTo(quantity) < 0)
+                    missing.add(key);
+            }
+            if (!missing.isEmpty())
+                throw new InsufficientBalanceException("Not enough funds for assets " + missing);
+
+            for (int i : byLovelace) {
+                if (selectedValue.lovelace().compareTo(target.lovelace()) >= 0)
+                    break;
+                if (!excluded(i, utxosToExclude) && selected.add(i)) {
+                    checkLimit(selected, maxUtxoSelectionLimit);
+                    selectedValue.add(values.get(i));
+                }
+            }
+            if (selectedValue.lovelace().compareTo(target.lovelace()) < 0)
+                throw new InsufficientBalanceException("Not enough funds, missing %s lovelace"
+                        .formatted(target.lovelace().subtract(selectedValue.lovelace())));
+
+            Set<Utxo> result = new LinkedHashSet<>();
+            for (int i : selected)
+                result.add(utxos.get(i));
+            reserve(result);
+            return result;
+        }
+
+        private boolean excluded(int i, Set<Utxo> utxosToExclude) {
+            return isReserved(utxos.get(i)) || utxosToExclude != null && utxosToExclude.contains(utxos.get(i));
+        }
+    }
+
+    private static String outputRef(Utxo utxo) {
+        return utxo.getTxHash() + "#" + utxo.getOutputIndex();
+    }
+
+    private static void checkLimit(Set<Integer> selected, int maxUtxoSelectionLimit)
+            throws InputsLimitExceededException {
+        if (selected.size() > maxUtxoSelectionLimit)
+            throw new InputsLimitExceededException(
+                    "Selection limit of %d utxos reached".formatted(maxUtxoSelectionLimit));
+    }
+
+    /**
+     * The largest first fallback of the default strategy, which skips and
+     * reserves inputs the same way the index does.
+     */
+    @Override
+    public UtxoSelectionStrategy fallback() {
+        UtxoSelectionStrategy largestFirst = defaultStrategy.fallback();
+        return new UtxoSelectionStrategy() {
+            @Override
+            public Set<Utxo> select(AddressIterator addrIter, List<Amount> outputAmounts, String datumHash,
+                    PlutusData inlineDatum, Set<Utxo> utxosToExclude, int maxUtxoSelectionLimit) {
+                synchronized (selectionLock) {
+                    Set<Utxo> excluded = new HashSet<>();
+                    if (utxosToExclude != null)
+                        excluded.addAll(utxosToExclude);
+                    for (Reservation reservation : List.copyOf(reserved.values()))
+                        if (isReserved(reservation.utxo()))
+                            excluded.add(reservation.utxo());
+                    Set<Utxo> selected = largestFirst.select(addrIter, outputAmounts, datumHash, inlineDatum,
+                            excluded, maxUtxoSelectionLimit);
+                    reserve(selected);
+                    return selected;
+                }
+            }
+
+            @Override
+            public void setIgnoreUtxosWithDatumHash(boolean ignoreUtxosWithDatumHash) {
+                largestFirst.setIgnoreUtxosWithDatumHash(ignoreUtxosWithDatumHash);
+            }
+        };
+    }
+
+    @Override
+    public void setIgnoreUtxosWithDatumHash(boolean ignoreUtxosWithDatumHash) {
+        this.ignoreUtxosWithDatumHash = ignoreUtxosWithDatumHash;
+        defaultStrategy.setIgnoreUtxosWithDatumHash(ignoreUtxosWithDatumHash);
+        invalidate();
+    }
+}
@@ -0,0 +1,379 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES TxSubmitter.java
+// @formatter:on
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import com.bloxbean.cardano.client.api.TransactionEvaluator;
+import com.bloxbean.cardano.client.api.TransactionProcessor;
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.common.OrderEnum;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.EvaluationResult;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.api.util.ValueUtil;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.api.DefaultUtxoSupplier;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.spec.TransactionInput;
+import com.bloxbean.cardano.client.transaction.spec.TransactionOutput;
+import com.bloxbean.cardano.client.transaction.util.TransactionUtil;
+
+/**
+ * Captures the setup transactions of an example, e.g. funding a script address
+ * or minting the tokens to transfer, and restores the state they created in
+ * later runs instead of building them again.
+ * <p>
+ * A setup step is submitted through a {@link TxSubmitter}. The signed bytes are
+ * kept per use case in the fixture directory. In a later run the step
+ * <ul>
+ * <li>is skipped if its transaction is on chain and all of its outputs are
+ * still unspent, since the step cannot tell which of them the next step
+ * depends on,</li>
+ * <li>replays the captured bytes if the transaction is not on chain, e.g. on a
+ * fresh devnet started from the same genesis, which skips coin selection and
+ * script evaluation,</li>
+ * <li>is built again and captured anew if neither works, e.g. because an
+ * earlier run spent the outputs.</li>
+ * </ul>
+ * The captured outputs can also be loaded into a {@link StandInLedger}, so
+ * offline benchmarks start from the post-setup state without any network.
+ * <p>
+ * The directory is taken from the {@code LEDGER_FIXTURE_DIR} environment
+ * variable. Without it every step is built and submitted as usual. The
+ * examples spend their setup output in the next step, so on a running devnet
+ * they build the setup again; on a fresh devnet they replay it. Values a setup
+ * transaction depends on, such as the deadline a script is parametrised with,
+ * are kept with {@link #parameter(String, long)}.
+ */
+public class LedgerFixture {
+
+    static final String HEADER = "step\ttx_hash\tcbor";
+
+    /**
+     * A captured setup transaction.
+     */
+    public record Entry(String step, String txHash, byte[] cbor) {
+
+        String toRow() {
+            return String.join("\t", step, txHash, HexFormat.of().formatHex(cbor));
+        }
+
+        static Entry fromRow(String row) {
+            String[] f = row.split("\t");
+            return new Entry(f[0], f[1], HexFormat.of().parseHex(f[2]));
+        }
+
+        Transaction transaction() {
+            try {
+                return Transaction.deserialize(cbor);
+            } catch (Exception e) {
+                throw new IllegalStateException("Captured transaction of step %s is not valid CBOR".formatted(step), e);
+            }
+        }
+    }
+
+    private final String useCase;
+    private final BackendService backendService;
+    private final UtxoSupplier utxoSupplier;
+    private final TxSubmitter txSubmitter;
+    private final Path file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private int reused;
+    private int replayed;
+    private int built;
+
+    /**
+     * @param useCase        Name of the fixture file.
+     * @param backendService Backend used to check whether a captured state is
+     *                       still present.
+     * @param txSubmitter    Submits the setup transactions.
+     * @param directory      The fixture directory, null to capture nothing.
+     */
+    public LedgerFixture(String useCase, BackendService backendService, TxSubmitter txSubmitter, Path directory) {
+        this.useCase = useCase;
+        this.backendService = backendService;
+        this.utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
+        this.txSubmitter = txSubmitter;
+        this.file = directory == null ? null : directory.resolve(useCase + ".tsv");
+        if (file != null && Files.exists(file)) {
+            try {
+                for (String row : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    if (!row.isBlank() && !row.equals(HEADER)) {
+                        Entry entry = Entry.fromRow(row);
+                        entries.put(entry.step(), entry);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // An unreadable fixture only costs this run its setup
+                System.out.println("Ignoring fixture %s: %s".formatted(file, e.getMessage()));
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * A fixture in {@code LEDGER_FIXTURE_DIR}, submitting with the default
+     * {@link TxSubmitter}.
+     */
+    public static LedgerFixture of(String useCase, BackendService backendService) {
+        String dir = System.getenv("LEDGER_FIXTURE_DIR");
+        return new LedgerFixture(useCase, backendService, TxSubmitter.of(backendService),
+                dir == null || dir.isBlank() ? null : Path.of(dir));
+    }
+
+    /**
+     * Restores the state of a setup step, or builds, submits and captures it.
+     *
+     * @param step    Name of the step, unique within the use case.
+     * @param factory Builds and signs the setup transaction.
+     * @return The confirmed or reused transaction.
+     */
+    public TxResult setup(String step, TxSubmitter.TxFactory factory) throws InterruptedException {
+        Entry captured = file == null ? null : entries.get(step);
+        if (captured != null && isPresent(captured)) {
+            reused++;
+            System.out.println("Fixture %s: reusing %s".formatted(step, captured.txHash()));
+            return new TxSubmitter.Outcome(true, captured.txHash(), 0, null, null, List.of(captured.txHash()))
+                    .toTxResult();
+        }
+
+        // Replaying is only worth a try if the transaction is not on chain already
+        boolean replay = captured != null && !isOnChain(captured.txHash());
+        Map<String, TxSubmitter.SignedTx> signed = new LinkedHashMap<>();
+        TxSubmitter.Outcome outcome = txSubmitter.submit(attempt -> {
+            TxSubmitter.SignedTx tx = replay && attempt == 1
+                    ? new TxSubmitter.SignedTx(captured.txHash(), captured.cbor())
+                    : factory.build(replay ? attempt - 1 : attempt);
+            signed.put(tx.txHash(), tx);
+            return tx;
+        });
+        if (!outcome.confirmed() || file == null)
+            return outcome.toTxResult();
+
+        if (replay && outcome.txHash().equals(captured.txHash())) {
+            replayed++;
+            System.out.println("Fixture %s: replayed %s".formatted(step, captured.txHash()));
+        } else {
+            built++;
+            entries.put(step, new Entry(step, outcome.txHash(), signed.get(outcome.txHash()).cbor()));
+            save();
+        }
+        return outcome.toTxResult();
+    }
+
+    private boolean isOnChain(String txHash) {
+        try {
+            return backendService.getTransactionService().getTransaction(txHash).isSuccessful();
+        } catch (ApiException e) {
+            return false;
+        }
+    }
+
+    // Every output counts, also the wallet change: a state whose change was
+    // spent is not the state the next step was written against
+    private boolean isPresent(Entry entry) {
+        if (!isOnChain(entry.txHash()))
+            return false;
+        List<TransactionOutput> outputs = entry.transaction().getBody().getOutputs();
+        Map<String, List<Utxo>> unspent = new HashMap<>();
+        for (int index = 0; index < outputs.size(); index++) {
+            List<Utxo> atAddress = unspent.computeIfAbsent(outputs.get(index).getAddress(), utxoSupplier::getAll);
+            int outputIndex = index;
+            if (atAddress.stream().noneMatch(
+                    utxo -> utxo.getTxHash().equals(entry.txHash()) && utxo.getOutputIndex() == outputIndex))
+                return false;
+        }
+        return true;
+    }
+
+    private void save() {
+        StringBuilder rows = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : entries.values())
+            rows.append(entry.toRow()).append('\n');
+        try {
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, rows, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // Likewise for a fixture that cannot be written
+            System.out.println("Could not write fixture %s: %s".formatted(file, e.getMessage()));
+        }
+    }
+
+    /**
+     * Keeps a value the setup depends on, e.g. the deadline a script is
+     * parametrised with, so that a later run derives the same script address
+     * and the captured transactions still apply.
+     *
+     * @param name  Name of the value, unique within the use case.
+     * @param value The value of this run.
+     * @return The value of the run that captured it, or {@code value} if none
+     *         was captured yet.
+     */
+    public long parameter(String name, long value) {
+        if (file == null)
+            return value;
+        // Kept apart from the entries, which all have to be transactions
+        Path params = file.resolveSibling(useCase + ".params");
+        Map<String, Long> captured = new LinkedHashMap<>();
+        try {
+            if (Files.exists(params))
+                for (String row : Files.readAllLines(params, StandardCharsets.UTF_8)) {
+                    String[] columns = row.split("\t");
+                    if (columns.length == 2)
+                        captured.put(columns[0], Long.parseLong(columns[1]));
+                }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring fixture %s: %s".formatted(params, e.getMessage()));
+            captured.clear();
+        }
+        Long existing = captured.get(name);
+        if (existing != null) {
+            System.out.println("Fixture %s: reusing %s = %d".formatted(useCase, name, existing));
+            return existing;
+        }
+
+        captured.put(name, value);
+        StringBuilder rows = new StringBuilder();
+        captured.forEach((key, capturedValue) -> rows.append(key).append('\t').append(capturedValue).append('\n'));
+        try {
+            Files.createDirectories(params.getParent());
+            Files.writeString(params, rows, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Could not write fixture %s: %s".formatted(params, e.getMessage()));
+        }
+        return value;
+    }
+
+    public List<Entry> entries() {
+        return List.copyOf(entries.values());
+    }
+
+    /**
+     * @return The outputs of the captured transactions that no other captured
+     *         transaction spends: the funded wallet, the script UTxOs and the
+     *         minted assets after the setup.
+     */
+    public List<Utxo> outputs() {
+        Set<String> spent = new LinkedHashSet<>();
+        for (Entry entry : entries.values())
+            for (TransactionInput input : entry.transaction().getBody().getInputs())
+                spent.add(input.getTransactionId() + "#" + input.getIndex());
+        List<Utxo> utxos = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            List<TransactionOutput> outputs = entry.transaction().getBody().getOutputs();
+            for (int index = 0; index < outputs.size(); index++)
+                if (!spent.contains(entry.txHash() + "#" + index))
+                    utxos.add(toUtxo(entry.txHash(), index, outputs.get(index)));
+        }
+        return utxos;
+    }
+
+    static Utxo toUtxo(String txHash, int index, TransactionOutput output) {
+        try {
+            return Utxo.builder()
+                    .txHash(txHash)
+                    .outputIndex(index)
+                    .address(output.getAddress())
+                    .amount(ValueUtil.toAmountList(output.getValue()))
+                    .dataHash(output.getDatumHash() == null ? null : HexFormat.of().formatHex(output.getDatumHash()))
+                    .inlineDatum(output.getInlineDatum() == null ? null : output.getInlineDatum().serializeToHex())
+                    .build();
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot convert output %s#%d".formatted(txHash, index), e);
+        }
+    }
+
+    /**
+     * @return An in-memory ledger holding the post-setup state.
+     */
+    public StandInLedger standIn(TransactionEvaluator evaluator) {
+        return new StandInLedger(outputs(), evaluator);
+    }
+
+    public void printStats() {
+        System.out.println("Fixture %s: %d setup steps reused, %d replayed, %d built%s".formatted(useCase, reused,
+                replayed, built, file == null ? " (LEDGER_FIXTURE_DIR not set)" : ""));
+    }
+
+    /**
+     * Local stand-in for a devnet: serves UTxOs from memory and applies
+     * submitted transactions immediately by spending their inputs and adding
+     * their outputs. Scripts are evaluated by the given evaluator.
+     */
+    public static class StandInLedger implements UtxoSupplier, TransactionProcessor {
+
+        private final Map<String, Utxo> utxos = new LinkedHashMap<>();
+        private final TransactionEvaluator evaluator;
+
+        public StandInLedger(List<Utxo> utxos, TransactionEvaluator evaluator) {
+            for (Utxo utxo : utxos)
+                this.utxos.put(utxo.getTxHash() + "#" + utxo.getOutputIndex(), utxo);
+            this.evaluator = evaluator;
+        }
+
+        @Override
+        public synchronized List<Utxo> getPage(String address, Integer nrOfItems, Integer page, OrderEnum order) {
+            List<Utxo> atAddress = utxos.values().stream().filter(utxo -> utxo.getAddress().equals(address)).toList();
+            int from = page * nrOfItems;
+            if (from >= atAddress.size())
+                return List.of();
+            return atAddress.subList(from, Math.min(atAddress.size(), from + nrOfItems));
+        }
+
+        @Override
+        public synchronized Optional<Utxo> getTxOutput(String txHash, int outputIndex) {
+            return Optional.ofNullable(utxos.get(txHash + "#" + outputIndex));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Result<String> submitTransaction(byte[] cbor) {
+            Transaction transaction;
+            try {
+                transaction = Transaction.deserialize(cbor);
+            } catch (Exception e) {
+                return Result.error("Invalid transaction: " + e.getMessage());
+            }
+            List<TransactionInput> inputs = transaction.getBody().getInputs();
+            for (TransactionInput input : inputs)
+                if (!utxos.containsKey(input.getTransactionId() + "#" + input.getIndex()))
+                    return Result.error("BadInputsUTxO: %s#%d".formatted(input.getTransactionId(), input.getIndex()));
+            String txHash = TransactionUtil.getTxHash(cbor);
+            for (TransactionInput input : inputs)
+                utxos.remove(input.getTransactionId() + "#" + input.getIndex());
+            List<TransactionOutput> outputs = transaction.getBody().getOutputs();
+            for (int index = 0; index < outputs.size(); index++)
+                utxos.put(txHash + "#" + index, toUtxo(txHash, index, outputs.get(index)));
+            return Result.success(txHash).withValue(txHash);
+        }
+
+        @Override
+        public Result<List<EvaluationResult>> evaluateTx(byte[] cbor, Set<Utxo> inputUtxos) throws ApiException {
+            if (evaluator == null)
+                throw new ApiException("The stand-in ledger has no script evaluator");
+            return evaluator.evaluateTx(cbor, inputUtxos);
+        }
+
+        public synchronized int size() {
+            return utxos.size();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+// @formatter:on
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.util.HexUtil;
+
+/**
+ * Lovelace plus native assets, indexed by policy id and asset name bytes.
+ * <p>
+ * The CCL {@link Amount} list identifies an asset by its {@code unit} string,
+ * the hex policy id concatenated with the hex asset name, so every lookup is a
+ * linear scan with string comparisons. Here the unit is decoded once and the
+ * quantities are kept in a two level hash index, so a lookup is two hash probes
+ * on raw bytes and the policy id is stored once per policy instead of once per
+ * asset.
+ */
+public final class MultiAssetValue {
+
+    private static final String LOVELACE = "lovelace";
+    // A policy id is a 28 byte script hash, 56 hex characters
+    private static final int POLICY_ID_HEX_LENGTH = 56;
+
+    /**
+     * Byte array with value semantics, used as hash key.
+     */
+    public record Bytes(byte[] value) {
+
+        public static Bytes ofHex(String hex) {
+            return new Bytes(HexUtil.decodeHexString(hex));
+        }
+
+        public String toHex() {
+            return HexUtil.encodeHexString(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Bytes other && Arrays.equals(value, other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return toHex();
+        }
+    }
+
+    /**
+     * Receives every asset of a value.
+     */
+    @FunctionalInterface
+    public interface AssetConsumer {
+        void accept(Bytes policyId, Bytes assetName, BigInteger quantity);
+    }
+
+    private BigInteger lovelace = BigInteger.ZERO;
+    private final Map<Bytes, Map<Bytes, BigInteger>> assets = new HashMap<>();
+
+    public static MultiAssetValue empty() {
+        return new MultiAssetValue();
+    }
+
+    /**
+     * Decodes a CCL amount list, e.g. {@code utxo.getAmount()}.
+     */
+    public static MultiAssetValue of(List<Amount> amounts) {
+        MultiAssetValue value = new MultiAssetValue();
+        for (Amount amount : amounts) {
+            String unit = amount.getUnit();
+            if (LOVELACE.equals(unit)) {
+                value.lovelace = value.lovelace.add(amount.getQuantity());
+            } else {
+                value.add(Bytes.ofHex(unit.substring(0, POLICY_ID_HEX_LENGTH)),
+                        Bytes.ofHex(unit.substring(POLICY_ID_HEX_LENGTH)), amount.getQuantity());
+            }
+        }
+        return value;
+    }
+
+    public BigInteger lovelace() {
+        return lovelace;
+    }
+
+    public BigInteger get(Bytes policyId, Bytes assetName) {
+        Map<Bytes, BigInteger> policy = assets.get(policyId);
+        if (policy == null)
+            return BigInteger.ZERO;
+        return policy.getOrDefault(assetName, BigInteger.ZERO);
+    }
+
+    public BigInteger get(String policyIdHex, byte[] assetName) {
+        return get(Bytes.ofHex(policyIdHex), new Bytes(assetName));
+    }
+
+    public boolean hasAssets() {
+        return !assets.isEmpty();
+    }
+
+    public MultiAssetValue addLovelace(BigInteger quantity) {
+        lovelace = lovelace.add(quantity);
+        return this;
+    }
+
+    public MultiAssetValue add(Bytes policyId, Bytes assetName, BigInteger quantity) {
+        assets.computeIfAbsent(policyId, p -> new HashMap<>()).merge(assetName, quantity, BigInteger::add);
+        return this;
+    }
+
+    /**
+     * Adds another value in place.
+     */
+    public MultiAssetValue add(MultiAssetValue other) {
+        lovelace = lovelace.add(other.lovelace);
+        other.forEachAsset(this::add);
+        return this;
+    }
+
+    /**
+     * @return True if this value holds at least the lovelace and every asset of
+     *         the target.
+     */
+    public boolean covers(MultiAssetValue target) {
+        if (lovelace.compareTo(target.lovelace) < 0)
+            return false;
+        for (Map.Entry<Bytes, Map<Bytes, BigInteger>> policy : target.assets.entrySet()) {
+            for (Map.Entry<Bytes, BigInteger> asset : policy.getValue().entrySet()) {
+                if (get(policy.getKey(), asset.getKey()).compareTo(asset.getValue()) < 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    public void forEachAsset(AssetConsumer consumer) {
+        assets.forEach((policyId, names) -> names.forEach((name, quantity) -> consumer.accept(policyId, name, quantity)));
+    }
+
+    /**
+     * Converts back to the CCL representation.
+     */
+    public List<Amount> toAmounts() {
+        List<Amount> amounts = new ArrayList<>();
+        amounts.add(Amount.lovelace(lovelace));
+        forEachAsset((policyId, name, quantity) -> amounts.add(Amount.asset(policyId.toHex() + name.toHex(), quantity)));
+        return amounts;
+    }
+
+    @Override
+    public String toString() {
+        return "MultiAssetValue[lovelace=" + lovelace + ", assets=" + assets + "]";
+    }
+}
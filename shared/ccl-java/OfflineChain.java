@@ -0,0 +1,117 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+// @formatter:on
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.common.OrderEnum;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.api.util.CostModelUtil;
+
+/**
+ * Protocol parameters and UTxOs for the benchmarks and checks that build
+ * transactions without a backend.
+ */
+public class OfflineChain {
+
+    private OfflineChain() {
+    }
+
+    /**
+     * @return The mainnet protocol parameters with the PlutusV3 cost model.
+     */
+    public static ProtocolParams protocolParams() {
+        LinkedHashMap<String, Long> plutusV3 = new LinkedHashMap<>();
+        for (int i = 0; i < CostModelUtil.plutusV3Costs.length; i++)
+            plutusV3.put(String.valueOf(i), CostModelUtil.plutusV3Costs[i]);
+        LinkedHashMap<String, LinkedHashMap<String, Long>> costModels = new LinkedHashMap<>();
+        costModels.put("PlutusV3", plutusV3);
+        return ProtocolParams.builder()
+                .minFeeA(44)
+                .minFeeB(155381)
+                .maxTxSize(16384)
+                .maxValSize("5000")
+                .keyDeposit("2000000")
+                .poolDeposit("500000000")
+                .coinsPerUtxoSize("4310")
+                .priceMem(new BigDecimal("0.0577"))
+                .priceStep(new BigDecimal("0.0000721"))
+                .maxTxExMem("14000000")
+                .maxTxExSteps("10000000000")
+                .collateralPercent(BigDecimal.valueOf(150))
+                .maxCollateralInputs(3)
+                .minFeeRefScriptCostPerByte(BigDecimal.valueOf(15))
+                .costModels(costModels)
+                .build();
+    }
+
+    /**
+     * Serves UTxOs per address in pages like a backend would, without any I/O.
+     * Nothing is ever spent; use {@code LedgerFixture.StandInLedger} where
+     * submitted transactions must change the state.
+     */
+    public static class InMemoryUtxoSupplier implements UtxoSupplier {
+
+        private final Map<String, List<Utxo>> byAddress = new HashMap<>();
+        private final Map<String, Utxo> byOutput = new HashMap<>();
+        private final Random random = new Random(7);
+
+        public InMemoryUtxoSupplier() {
+        }
+
+        public InMemoryUtxoSupplier(List<Utxo> utxos) {
+            for (Utxo utxo : utxos)
+                index(utxo);
+        }
+
+        /**
+         * Adds a pure lovelace UTxO with a random transaction hash.
+         */
+        public Utxo add(String address, long lovelace) {
+            byte[] txHash = new byte[32];
+            random.nextBytes(txHash);
+            return add(Utxo.builder()
+                    .txHash(HexFormat.of().formatHex(txHash))
+                    .outputIndex(0)
+                    .address(address)
+                    .amount(List.of(Amount.lovelace(BigInteger.valueOf(lovelace))))
+                    .build());
+        }
+
+        public Utxo add(Utxo utxo) {
+            index(utxo);
+            return utxo;
+        }
+
+        private void index(Utxo utxo) {
+            byAddress.computeIfAbsent(utxo.getAddress(), address -> new ArrayList<>()).add(utxo);
+            byOutput.put(utxo.getTxHash() + "#" + utxo.getOutputIndex(), utxo);
+        }
+
+        @Override
+        public List<Utxo> getPage(String address, Integer nrOfItems, Integer page, OrderEnum order) {
+            List<Utxo> atAddress = byAddress.getOrDefault(address, List.of());
+            int from = page * nrOfItems;
+            if (from >= atAddress.size())
+                return List.of();
+            return atAddress.subList(from, Math.min(atAddress.size(), from + nrOfItems));
+        }
+
+        @Override
+        public Optional<Utxo> getTxOutput(String txHash, int outputIndex) {
+            return Optional.ofNullable(byOutput.get(txHash + "#" + outputIndex));
+        }
+    }
+}
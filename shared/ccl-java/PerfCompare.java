@@ -0,0 +1,164 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES PerfHistory.java
+// @formatter:on
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the latest run of every use case in a {@link PerfHistory} with the
+ * runs before it and prints a markdown report of the regressions.
+ * <p>
+ * Ex-units, fee and sizes are deterministic for a given library and node, so
+ * any change above one percent is reported, and only these regressions fail
+ * the run with {@code --fail-on-regression}. Wall time and latency are noisy;
+ * they are only reported, as a warning, if they exceed the median of the
+ * baseline by a relative threshold and, with a robust z-score based on the
+ * median absolute deviation, lie far outside the spread of the baseline.
+ * <p>
+ * Usage: {@code jbang PerfCompare.java <history dir> [--fail-on-regression] [use case...]}
+ */
+public class PerfCompare {
+
+    static int baselineRuns = 10;
+    static Set<String> deterministicMetrics = Set.of("ex_mem", "ex_steps", "size_bytes", "fee_lovelace",
+            "script_bytes", "transactions", "fee_saved_lovelace");
+    // Every other metric is lower-is-better
+    static Set<String> higherIsBetter = Set.of("fee_saved_lovelace");
+    static double deterministicThreshold = 0.01;
+    static double noisyThreshold = 0.25;
+    static double zThreshold = 3.5;
+    static int minNoisyBaseline = 3;
+
+    record Comparison(String step, String metric, int baselineSize, double baseline, double latest, String verdict) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0)
+            throw new IllegalArgumentException("Usage: PerfCompare <history dir> [--fail-on-regression] [use case...]");
+        PerfHistory history = new PerfHistory(Path.of(args[0]));
+        boolean failOnRegression = false;
+        List<String> useCases = new ArrayList<>();
+        for (String arg : Arrays.copyOfRange(args, 1, args.length)) {
+            if (arg.equals("--fail-on-regression"))
+                failOnRegression = true;
+            else
+                useCases.add(arg);
+        }
+        if (useCases.isEmpty())
+            useCases = history.useCases();
+
+        int regressions = 0;
+        System.out.println("## Performance history");
+        for (String useCase : useCases)
+            regressions += report(useCase, history.read(useCase));
+
+        // Warnings of the noisy metrics never fail the run
+        if (regressions > 0 && failOnRegression)
+            throw new AssertionError("%d performance regressions".formatted(regressions));
+    }
+
+    private static int report(String useCase, List<PerfHistory.Sample> samples) {
+        Map<String, List<PerfHistory.Sample>> runs = new LinkedHashMap<>();
+        for (PerfHistory.Sample sample : samples)
+            runs.computeIfAbsent(sample.run(), r -> new ArrayList<>()).add(sample);
+        System.out.println();
+        System.out.println("### " + useCase);
+        if (runs.isEmpty()) {
+            System.out.println("No measurements.");
+            return 0;
+        }
+
+        List<List<PerfHistory.Sample>> ordered = new ArrayList<>(runs.values());
+        List<PerfHistory.Sample> latest = ordered.getLast();
+        List<List<PerfHistory.Sample>> baseline = ordered.subList(Math.max(0, ordered.size() - 1 - baselineRuns),
+                ordered.size() - 1);
+        PerfHistory.Sample key = latest.getFirst();
+        System.out.println("Latest run %s (library %s, node %s) against %d previous runs%s".formatted(key.run(),
+                key.libVersion(), key.nodeVersion(), baseline.size(), baselineKeys(baseline)));
+        if (baseline.isEmpty())
+            return 0;
+
+        List<Comparison> comparisons = new ArrayList<>();
+        for (PerfHistory.Sample sample : latest) {
+            double[] values = baseline.stream()
+                    .flatMap(List::stream)
+                    .filter(s -> s.step().equals(sample.step()) && s.metric().equals(sample.metric()))
+                    .mapToDouble(PerfHistory.Sample::value)
+                    .toArray();
+            if (values.length > 0)
+                comparisons.add(compare(sample, values));
+        }
+
+        System.out.println();
+        System.out.println("| Step | Metric | Baseline median | Latest | Change | |");
+        System.out.println("|---|---|---:|---:|---:|---|");
+        int regressions = 0;
+        int warnings = 0;
+        for (Comparison c : comparisons) {
+            if (c.verdict().equals("regression"))
+                regressions++;
+            else if (c.verdict().equals("warning"))
+                warnings++;
+            System.out.println("| %s | %s | %.1f | %.1f | %+.1f%% | %s |".formatted(c.step(), c.metric(), c.baseline(),
+                    c.latest(), c.baseline() == 0 ? 0.0 : (c.latest() / c.baseline() - 1) * 100,
+                    switch (c.verdict()) {
+                        case "regression" -> "❌ regression";
+                        case "warning" -> "⚠️ slower";
+                        case "improvement" -> "✅ improvement";
+                        default -> "";
+                    }));
+        }
+        System.out.println();
+        System.out.println("Regressions: %d, warnings: %d".formatted(regressions, warnings));
+        return regressions;
+    }
+
+    static Comparison compare(PerfHistory.Sample sample, double[] values) {
+        double median = median(values);
+        double latest = sample.value();
+        String verdict = "unchanged";
+        if (deterministicMetrics.contains(sample.metric())) {
+            boolean higher = higherIsBetter.contains(sample.metric());
+            if (latest > median * (1 + deterministicThreshold))
+                verdict = higher ? "improvement" : "regression";
+            else if (latest < median * (1 - deterministicThreshold))
+                verdict = higher ? "regression" : "improvement";
+        } else if (values.length >= minNoisyBaseline) {
+            double[] deviations = Arrays.stream(values).map(v -> Math.abs(v - median)).toArray();
+            // Scaled so it estimates the standard deviation of normally distributed values
+            double spread = Math.max(1.4826 * median(deviations), 1e-9);
+            double z = (latest - median) / spread;
+            if (latest > median * (1 + noisyThreshold) && z > zThreshold)
+                verdict = "warning";
+            else if (latest < median * (1 - noisyThreshold) && z < -zThreshold)
+                verdict = "improvement";
+        }
+        return new Comparison(sample.step(), sample.metric(), values.length, median, latest, verdict);
+    }
+
+    private static String baselineKeys(List<List<PerfHistory.Sample>> baseline) {
+        if (baseline.isEmpty())
+            return "";
+        PerfHistory.Sample previous = baseline.getLast().getFirst();
+        return " (previous: library %s, node %s)".formatted(previous.libVersion(), previous.nodeVersion());
+    }
+
+    static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+}
@@ -0,0 +1,292 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.model.TransactionContent;
+import com.bloxbean.cardano.client.backend.model.TxContentRedeemers;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+
+/**
+ * Append-only store of performance measurements of the examples.
+ * <p>
+ * Every use case has one tab separated file in the history directory; a run
+ * appends one row per measurement, keyed by run, use case, library version and
+ * node version, and never rewrites earlier rows. The ecosystem check keeps the
+ * directory between workflow runs and compares the latest run against the
+ * previous ones with {@code PerfCompare}.
+ * <p>
+ * The directory is taken from the {@code PERF_HISTORY_DIR} environment
+ * variable. Without it the measurements are only printed.
+ */
+public class PerfHistory {
+
+    static final String HEADER = "run\ttime\tuse_case\tlib_version\tnode_version\tstep\tmetric\tvalue";
+
+    /**
+     * A single measurement.
+     */
+    public record Sample(String run, long time, String useCase, String libVersion, String nodeVersion, String step,
+            String metric, double value) {
+
+        String toRow() {
+            return String.join("\t", run, Long.toString(time), useCase, libVersion, nodeVersion, step, metric,
+                    Double.toString(value));
+        }
+
+        static Sample fromRow(String row) {
+            String[] f = row.split("\t");
+            return new Sample(f[0], Long.parseLong(f[1]), f[2], f[3], f[4], f[5], f[6], Double.parseDouble(f[7]));
+        }
+    }
+
+    private final Path directory;
+
+    public PerfHistory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The history in {@code PERF_HISTORY_DIR}, null if it is not set.
+     */
+    public static PerfHistory fromEnvironment() {
+        String dir = System.getenv("PERF_HISTORY_DIR");
+        return dir == null || dir.isBlank() ? null : new PerfHistory(Path.of(dir));
+    }
+
+    public Path file(String useCase) {
+        return directory.resolve(useCase + ".tsv");
+    }
+
+    public synchronized void append(String useCase, List<Sample> samples) throws IOException {
+        Files.createDirectories(directory);
+        Path file = file(useCase);
+        StringBuilder rows = new StringBuilder();
+        if (!Files.exists(file))
+            rows.append(HEADER).append('\n');
+        for (Sample sample : samples)
+            rows.append(sample.toRow()).append('\n');
+        Files.writeString(file, rows, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public List<Sample> read(String useCase) throws IOException {
+        Path file = file(useCase);
+        List<Sample> samples = new ArrayList<>();
+        if (!Files.exists(file))
+            return samples;
+        for (String row : Files.readAllLines(file, StandardCharsets.UTF_8))
+            if (!row.isBlank() && !row.equals(HEADER))
+                samples.add(Sample.fromRow(row));
+        return samples;
+    }
+
+    /**
+     * @return The use cases with a history file.
+     */
+    public List<String> useCases() throws IOException {
+        List<String> useCases = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return useCases;
+        try (var files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(".tsv"))
+                    .map(name -> name.substring(0, name.length() - 4))
+                    .sorted()
+                    .forEach(useCases::add);
+        }
+        return useCases;
+    }
+
+    /**
+     * Collects the measurements of one run of an example and appends them to the
+     * history on {@link #close()}.
+     */
+    public static Recorder recorder(String useCase, BackendService backendService) {
+        return new Recorder(useCase, backendService, fromEnvironment());
+    }
+
+    /**
+     * A measured step, it may throw the checked exceptions of the example.
+     */
+    @FunctionalInterface
+    public interface Action<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * Steps may be measured from several threads at once.
+     */
+    public static class Recorder implements AutoCloseable {
+
+        private final String useCase;
+        private final BackendService backendService;
+        private final PerfHistory history;
+        private final String run;
+        private final long time = System.currentTimeMillis();
+        private final String libVersion = libVersion();
+        private String nodeVersion;
+        private final List<Sample> samples = new ArrayList<>();
+        private final Map<String, Integer> stepCounts = new LinkedHashMap<>();
+
+        Recorder(String useCase, BackendService backendService, PerfHistory history) {
+            this.useCase = useCase;
+            this.backendService = backendService;
+            this.history = history;
+            String runId = System.getenv("GITHUB_RUN_ID");
+            this.run = runId != null ? runId + "." + System.getenv().getOrDefault("GITHUB_RUN_ATTEMPT", "1")
+                    : Long.toString(time);
+        }
+
+        /**
+         * Times a step that does not produce a transaction.
+         */
+        public <T, E extends Exception> T step(String step, Action<T, E> action) throws E {
+            long start = System.nanoTime();
+            T result = action.run();
+            record(uniqueStep(step), "wall_ms", (System.nanoTime() - start) / 1e6);
+            return result;
+        }
+
+        /**
+         * Times a {@code completeAndWait()} and records size, fee, ex-units and the
+         * inclusion latency of the transaction.
+         */
+        public <E extends Exception> TxResult tx(String step, Action<TxResult, E> submit) throws E {
+            long tipSlot = tipSlot();
+            long start = System.nanoTime();
+            TxResult result = submit.run();
+            String name = uniqueStep(step);
+            record(name, "wall_ms", (System.nanoTime() - start) / 1e6);
+            if (result.isSuccessful())
+                recordTx(name, result.getTxHash(), tipSlot);
+            return result;
+        }
+
+        /**
+         * Like {@link #tx(String, Action)} for a transaction confirmed without
+         * blocking, e.g. by a {@code TxPipeline}. The wall time runs until the
+         * stage completes; the transaction is recorded on a virtual thread
+         * afterwards, never on the thread that completes the stage.
+         */
+        public CompletionStage<TxResult> txAsync(String step, Supplier<CompletionStage<TxResult>> submit) {
+            long tipSlot = tipSlot();
+            long start = System.nanoTime();
+            return submit.get().thenApplyAsync(result -> {
+                String name = uniqueStep(step);
+                record(name, "wall_ms", (System.nanoTime() - start) / 1e6);
+                if (result.isSuccessful())
+                    recordTx(name, result.getTxHash(), tipSlot);
+                return result;
+            }, command -> Thread.ofVirtual().start(command));
+        }
+
+        private long tipSlot() {
+            try {
+                return backendService.getBlockService().getLatestBlock().getValue().getSlot();
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        private void recordTx(String step, String txHash, long tipSlot) {
+            try {
+                Result<TransactionContent> tx = backendService.getTransactionService().getTransaction(txHash);
+                if (tx.isSuccessful() && tx.getValue() != null) {
+                    TransactionContent content = tx.getValue();
+                    if (content.getSize() != null)
+                        record(step, "size_bytes", content.getSize());
+                    if (content.getFees() != null)
+                        record(step, "fee_lovelace", Double.parseDouble(content.getFees()));
+                    if (content.getSlot() != null && tipSlot >= 0)
+                        record(step, "latency_slots", Math.max(0, content.getSlot() - tipSlot));
+                }
+                Result<List<TxContentRedeemers>> redeemers = backendService.getTransactionService()
+                        .getTransactionRedeemers(txHash);
+                if (redeemers.isSuccessful() && redeemers.getValue() != null && !redeemers.getValue().isEmpty()) {
+                    double mem = 0;
+                    double steps = 0;
+                    for (TxContentRedeemers redeemer : redeemers.getValue()) {
+                        mem += Double.parseDouble(redeemer.getUnitMem());
+                        steps += Double.parseDouble(redeemer.getUnitSteps());
+                    }
+                    record(step, "ex_mem", mem);
+                    record(step, "ex_steps", steps);
+                }
+            } catch (Exception e) {
+                // Measurements must never fail the example
+                System.out.println("Could not record %s of %s: %s".formatted(step, txHash, e.getMessage()));
+            }
+        }
+
+        public synchronized void record(String step, String metric, double value) {
+            samples.add(new Sample(run, time, useCase, libVersion, nodeVersion(), step, metric, value));
+        }
+
+        // A step name that occurs more than once, e.g. two unlocks, gets a suffix
+        private synchronized String uniqueStep(String step) {
+            int count = stepCounts.merge(step, 1, Integer::sum);
+            return count == 1 ? step : step + "#" + count;
+        }
+
+        private String nodeVersion() {
+            if (nodeVersion == null) {
+                nodeVersion = System.getenv("CARDANO_NODE_VERSION");
+                if (nodeVersion == null) {
+                    // The protocol version changes with every hard fork
+                    try {
+                        ProtocolParams params = backendService.getEpochService().getProtocolParameters().getValue();
+                        nodeVersion = "protocol-%d.%d".formatted(params.getProtocolMajorVer(),
+                                params.getProtocolMinorVer());
+                    } catch (Exception e) {
+                        nodeVersion = "unknown";
+                    }
+                }
+            }
+            return nodeVersion;
+        }
+
+        @Override
+        public synchronized void close() {
+            for (Sample sample : samples)
+                System.out.println("Perf %s %s: %.1f".formatted(sample.step(), sample.metric(), sample.value()));
+            if (history == null || samples.isEmpty())
+                return;
+            try {
+                history.append(useCase, samples);
+            } catch (IOException e) {
+                System.out.println("Could not append to the performance history: " + e.getMessage());
+            }
+        }
+    }
+
+    // The version of the jar QuickTxBuilder was loaded from, e.g. cardano-client-quicktx-0.7.0-beta2.jar
+    static String libVersion() {
+        try {
+            String location = QuickTxBuilder.class.getProtectionDomain().getCodeSource().getLocation().getPath();
+            Matcher matcher = Pattern.compile("-(\\d[^/]*)\\.jar$").matcher(location);
+            if (matcher.find())
+                return matcher.group(1);
+        } catch (Exception e) {
+            // Fall through
+        }
+        return System.getenv().getOrDefault("CCL_VERSION", "unknown");
+    }
+}
@@ -0,0 +1,422 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A {@link BackendService} that records every call of a real run to a log,
+ * or replays such a log without a network, to measure the client side of the
+ * {@code QuickTxBuilder} flows without the noise of the backend and of block
+ * production.
+ * <p>
+ * Every service of the backend is wrapped in a proxy. Recording passes each
+ * call on and appends the method, its arguments, the latency and the
+ * {@link Result}, with the value as JSON, or the exception it threw. The log
+ * is gzip compressed and flushed after every call, so a killed run keeps what
+ * it did. Default methods of the backend, such as the fee calculation, run
+ * on top of the wrapped services and are not recorded themselves; those of
+ * the services are recorded like any other call.
+ * <p>
+ * Replay answers a call with the next recording of the same method and
+ * arguments, in the recorded order, so a poll of the tip or of a transaction
+ * sees the chain advance as it did. Arguments that depend on the time of the
+ * run, e.g. a script address derived from an expiration or the CBOR of a
+ * submitted transaction, do not match again; such a call gets the next
+ * recording of the same method that has not been served. When a method has
+ * no recording left, its last one is served again. Latency is either none or
+ * the recorded one.
+ * <p>
+ * The recording starts with the local time. A replay shifts its
+ * {@link #clock()} by the difference, so expirations and deadlines the
+ * examples take from it lie where they did against the recorded tips, and
+ * the script addresses derived from them match again. Waits of the examples
+ * themselves, such as a time lock, still take their time.
+ * <p>
+ * The examples record with {@code BACKEND_RECORD=<file>} and replay with
+ * {@code BACKEND_REPLAY=<file>}, {@code BACKEND_REPLAY_LATENCY=recorded} to
+ * keep the latency.
+ */
+public class RecordedBackend implements AutoCloseable {
+
+    static final int MAGIC = 0x42524c31;
+    static final byte RESULT = 0;
+    static final byte VALUE = 1;
+    static final byte API_EXCEPTION = 2;
+    static final byte EXCEPTION = 3;
+    // Not a backend call: the local time when the recording started
+    static final String CLOCK = "Clock.startMillis()";
+
+    public enum Latency {
+        NONE, RECORDED
+    }
+
+    enum Mode {
+        LIVE, RECORD, REPLAY
+    }
+
+    // A recorded call, the value as JSON
+    record Call(String method, String args, long nanos, byte kind, boolean successful, String response, int code,
+            String value) {
+    }
+
+    // A call of the log with whether it was served already
+    private static final class Recording {
+        final Call call;
+        volatile boolean served;
+
+        Recording(Call call) {
+            this.call = call;
+        }
+    }
+
+    static final ObjectMapper json = new ObjectMapper()
+            .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+            .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Mode mode;
+    private final BackendService delegate;
+    private final BackendService backendService;
+    private final Latency latency;
+    private final Map<Class<?>, Object> services = new ConcurrentHashMap<>();
+    // Recorded start minus replay start, 0 unless replaying
+    private long clockOffsetMillis;
+
+    // Recording
+    private DataOutputStream out;
+    private final Map<String, Integer> methodIds = new HashMap<>();
+    // Replay
+    private final Map<String, Deque<Recording>> byCall = new HashMap<>();
+    private final Map<String, Deque<Recording>> byMethod = new HashMap<>();
+    private int recorded;
+    private final Map<String, Call> last = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong exact = new AtomicLong();
+    private final AtomicLong byOrder = new AtomicLong();
+    private final AtomicLong repeated = new AtomicLong();
+    private final AtomicLong backendNanos = new AtomicLong();
+
+    private RecordedBackend(Mode mode, BackendService delegate, Latency latency) {
+        this.mode = mode;
+        this.delegate = delegate;
+        this.latency = latency;
+        this.backendService = mode == Mode.LIVE ? delegate
+                : (BackendService) Proxy.newProxyInstance(BackendService.class.getClassLoader(),
+                        new Class<?>[] { BackendService.class }, this::backend);
+    }
+
+    /**
+     * Passes every call to the backend and appends it to the log.
+     */
+    public static RecordedBackend record(BackendService delegate, Path log) throws IOException {
+        RecordedBackend recorder = new RecordedBackend(Mode.RECORD, delegate, Latency.RECORDED);
+        recorder.out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(log), 64 * 1024, true), 64 * 1024));
+        recorder.out.writeInt(MAGIC);
+        recorder.append(new Call(CLOCK, "", 0, VALUE, true, null, 0, Long.toString(System.currentTimeMillis())));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                // The calls up to the last flush are in the log
+            }
+        }));
+        return recorder;
+    }
+
+    /**
+     * Answers every call from the log, without a network.
+     */
+    public static RecordedBackend replay(Path log, Latency latency) throws IOException {
+        RecordedBackend replay = new RecordedBackend(Mode.REPLAY, null, latency);
+        for (Call call : read(log)) {
+            if (call.method().equals(CLOCK)) {
+                replay.clockOffsetMillis = Long.parseLong(call.value()) - System.currentTimeMillis();
+                continue;
+            }
+            Recording recording = new Recording(call);
+            replay.byCall.computeIfAbsent(call.method() + call.args(), k -> new ArrayDeque<>()).add(recording);
+            replay.byMethod.computeIfAbsent(call.method(), k -> new ArrayDeque<>()).add(recording);
+            replay.recorded++;
+        }
+        return replay;
+    }
+
+    /**
+     * Records to {@code BACKEND_RECORD} or replays {@code BACKEND_REPLAY} if
+     * set, else uses the backend as is.
+     */
+    public static RecordedBackend fromEnvironment(BackendService backendService) {
+        String record = System.getenv("BACKEND_RECORD");
+        String replay = System.getenv("BACKEND_REPLAY");
+        try {
+            if (replay != null && !replay.isBlank())
+                return replay(Path.of(replay), "recorded".equalsIgnoreCase(System.getenv("BACKEND_REPLAY_LATENCY"))
+                        ? Latency.RECORDED
+                        : Latency.NONE);
+            if (record != null && !record.isBlank())
+                return record(backendService, Path.of(record));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new RecordedBackend(Mode.LIVE, backendService, Latency.NONE);
+    }
+
+    public BackendService backendService() {
+        return backendService;
+    }
+
+    /**
+     * @return The local time, shifted to the time of the recording when
+     *         replaying.
+     */
+    public long currentTimeMillis() {
+        return System.currentTimeMillis() + clockOffsetMillis;
+    }
+
+    public LongSupplier clock() {
+        return this::currentTimeMillis;
+    }
+
+    private Object backend(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class)
+            return objectMethod(proxy, method, args);
+        if (method.isDefault())
+            return InvocationHandler.invokeDefault(proxy, method, args);
+        Class<?> type = method.getReturnType();
+        return services.computeIfAbsent(type, t -> {
+            Object target = mode == Mode.RECORD ? invoke(delegate, method, args) : null;
+            return Proxy.newProxyInstance(t.getClassLoader(), new Class<?>[] { t },
+                    (service, serviceMethod, serviceArgs) -> call(target, service, serviceMethod, serviceArgs));
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot get " + method.getName(), e);
+        }
+    }
+
+    private Object call(Object target, Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class)
+            return objectMethod(proxy, method, args);
+        // Default methods of a service are recorded too, the backend may override them
+        calls.incrementAndGet();
+        String methodKey = method.getDeclaringClass().getSimpleName() + "." + method.getName()
+                + Arrays.stream(method.getParameterTypes()).map(Class::getSimpleName)
+                        .collect(Collectors.joining(",", "(", ")"));
+        String argsKey = args == null ? "" : json.writeValueAsString(args);
+        return mode == Mode.RECORD
+                ? recordCall(target, method, args, methodKey, argsKey)
+                : replayCall(method, methodKey, argsKey);
+    }
+
+    private Object recordCall(Object target, Method method, Object[] args, String methodKey, String argsKey)
+            throws Throwable {
+        long start = System.nanoTime();
+        try {
+            Object value = method.invoke(target, args);
+            long nanos = System.nanoTime() - start;
+            backendNanos.addAndGet(nanos);
+            if (value instanceof Result<?> result)
+                append(new Call(methodKey, argsKey, nanos, RESULT, result.isSuccessful(), result.getResponse(),
+                        result.code(), json.writeValueAsString(result.getValue())));
+            else
+                append(new Call(methodKey, argsKey, nanos, VALUE, true, null, 0, json.writeValueAsString(value)));
+            return value;
+        } catch (InvocationTargetException e) {
+            long nanos = System.nanoTime() - start;
+            backendNanos.addAndGet(nanos);
+            Throwable cause = e.getCause();
+            append(new Call(methodKey, argsKey, nanos, cause instanceof ApiException ? API_EXCEPTION : EXCEPTION,
+                    false, String.valueOf(cause.getMessage()), 0, null));
+            throw cause;
+        }
+    }
+
+    private Object replayCall(Method method, String methodKey, String argsKey) throws Exception {
+        Call call = next(byCall.get(methodKey + argsKey));
+        if (call != null) {
+            exact.incrementAndGet();
+        } else if ((call = next(byMethod.get(methodKey))) != null) {
+            byOrder.incrementAndGet();
+        } else {
+            call = last.get(methodKey);
+            if (call == null)
+                throw new ApiException("No recording of " + methodKey);
+            repeated.incrementAndGet();
+        }
+        last.put(methodKey, call);
+        if (latency == Latency.RECORDED)
+            LockSupport.parkNanos(call.nanos());
+        backendNanos.addAndGet(call.nanos());
+        return switch (call.kind()) {
+            case RESULT -> {
+                Type valueType = method.getGenericReturnType() instanceof ParameterizedType result
+                        ? result.getActualTypeArguments()[0]
+                        : Object.class;
+                @SuppressWarnings("unchecked")
+                Result<Object> result = Result.create(call.successful(), call.response()).code(call.code());
+                yield result.withValue(call.value() == null ? null
+                        : json.readValue(call.value(), json.getTypeFactory().constructType(valueType)));
+            }
+            case VALUE -> call.value() == null ? null
+                    : json.readValue(call.value(), json.getTypeFactory().constructType(method.getGenericReturnType()));
+            case API_EXCEPTION -> throw new ApiException(call.response());
+            default -> throw new IllegalStateException(call.response());
+        };
+    }
+
+    private static Call next(Deque<Recording> recordings) {
+        if (recordings == null)
+            return null;
+        synchronized (recordings) {
+            for (Recording recording; (recording = recordings.poll()) != null;) {
+                synchronized (recording) {
+                    if (!recording.served) {
+                        recording.served = true;
+                        return recording.call;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private Object objectMethod(Object proxy, Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            default -> "RecordedBackend " + mode.name().toLowerCase();
+        };
+    }
+
+    // Log: the magic, then per call the method id, followed by its name on
+    // first use, the arguments, latency, kind, success, response, code and value
+
+    private synchronized void append(Call call) {
+        if (out == null)
+            return;
+        try {
+            Integer id = methodIds.get(call.method());
+            if (id == null) {
+                id = methodIds.size();
+                methodIds.put(call.method(), id);
+                out.writeInt(id);
+                writeString(out, call.method());
+            } else {
+                out.writeInt(id);
+            }
+            writeString(out, call.args());
+            out.writeLong(call.nanos());
+            out.writeByte(call.kind());
+            out.writeBoolean(call.successful());
+            writeString(out, call.response());
+            out.writeInt(call.code());
+            writeString(out, call.value());
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static List<Call> read(Path log) throws IOException {
+        List<Call> calls = new ArrayList<>();
+        List<String> methods = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(Files.newInputStream(log)), 64 * 1024))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a backend recording: " + log);
+            while (true) {
+                int id = in.readInt();
+                if (id == methods.size())
+                    methods.add(readString(in));
+                calls.add(new Call(methods.get(id), readString(in), in.readLong(), in.readByte(), in.readBoolean(),
+                        readString(in), in.readInt(), readString(in)));
+            }
+        } catch (EOFException e) {
+            // The end of the log, or the torn last call of a killed run
+        }
+        return calls;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length)
+            throw new EOFException();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void printStats() {
+        if (mode == Mode.RECORD)
+            System.out.println("Backend recording: %d calls of %d methods, %.0f ms in the backend".formatted(
+                    calls.get(), methodIds.size(), backendNanos.get() / 1e6));
+        else if (mode == Mode.REPLAY)
+            System.out.println("Backend replay of %d recorded calls: %d calls, %d matched exactly, %d by order, %d repeated, %.0f ms of recorded latency %s"
+                    .formatted(recorded, calls.get(), exact.get(), byOrder.get(), repeated.get(), backendNanos.get() / 1e6,
+                            latency == Latency.RECORDED ? "waited" : "skipped"));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the steps of an example as a graph instead of a hand-written sequence.
+ * <p>
+ * A step declares the earlier steps whose outputs it needs and optionally a
+ * time window it has to start in, e.g. not before a refund deadline or not
+ * after the expiration of a claim. The bounds may be derived from the outputs
+ * of the dependencies, they are only evaluated once those are done. Since a
+ * step can only depend on steps declared before it, the graph is acyclic and
+ * the declaration order is a valid sequential order.
+ * <p>
+ * {@link #run()} starts every step on a work-stealing pool as soon as its
+ * dependencies are done and its window is open, so independent steps, such as
+ * a failing and a succeeding unlock attempt, wait for the chain concurrently.
+ * Steps mostly block on the backend, they run as managed blockers so the pool
+ * adds workers instead of starving. A failed step skips everything depending on
+ * it. With {@code SCENARIO_MODE=sequential} the same graph runs one step after
+ * the other in declaration order, to compare both on the same network.
+ */
+public class Scenario {
+
+    /**
+     * The work of a step, usually building and submitting one transaction.
+     */
+    @FunctionalInterface
+    public interface Action<T> {
+        T run() throws Exception;
+    }
+
+    public enum State {
+        PENDING, DONE, FAILED, SKIPPED
+    }
+
+    public class Step<T> {
+
+        private final String name;
+        private final Action<T> action;
+        private final List<Step<?>> dependencies = new ArrayList<>();
+        private LongSupplier notBefore = () -> Long.MIN_VALUE;
+        private LongSupplier notAfter = () -> Long.MAX_VALUE;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private volatile State state = State.PENDING;
+        private volatile Throwable error;
+        private volatile long startNanos;
+        private volatile long endNanos;
+        private volatile T value;
+
+        private Step(String name, Action<T> action) {
+            this.name = name;
+            this.action = action;
+        }
+
+        /**
+         * Waits for the given steps, which must have been declared before.
+         */
+        public Step<T> after(Step<?>... steps) {
+            for (Step<?> step : steps) {
+                int index = Scenario.this.steps.indexOf(step);
+                if (index < 0 || index >= Scenario.this.steps.indexOf(this))
+                    throw new IllegalArgumentException("%s can only depend on steps declared before it, not on %s"
+                            .formatted(name, step.name));
+                dependencies.add(step);
+            }
+            return this;
+        }
+
+        /**
+         * Starts the step no earlier than the given POSIX time plus the
+         * deadline slack of the scenario.
+         */
+        public Step<T> notBefore(long posixMillis) {
+            return notBefore(() -> posixMillis);
+        }
+
+        /**
+         * Like {@link #notBefore(long)}, evaluated once the dependencies are done.
+         */
+        public Step<T> notBefore(LongSupplier posixMillis) {
+            this.notBefore = posixMillis;
+            return this;
+        }
+
+        /**
+         * Fails the step if it cannot start before the given POSIX time.
+         */
+        public Step<T> notAfter(long posixMillis) {
+            return notAfter(() -> posixMillis);
+        }
+
+        /**
+         * Like {@link #notAfter(long)}, evaluated once the dependencies are done.
+         */
+        public Step<T> notAfter(LongSupplier posixMillis) {
+            this.notAfter = posixMillis;
+            return this;
+        }
+
+        /**
+         * @return The output of the step.
+         * @throws IllegalStateException If the step is not done.
+         */
+        public T get() {
+            if (state != State.DONE)
+                throw new IllegalStateException("Step %s is %s".formatted(name, state));
+            return value;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        public Throwable error() {
+            return error;
+        }
+
+        // Milliseconds until the step may start. Deadlines are checked against
+        // the clock of the scenario, the slack covers the time until the chain
+        // has a block past them.
+        private long delay() {
+            long bound = notBefore.getAsLong();
+            return bound == Long.MIN_VALUE ? 0 : bound + deadlineSlack.toMillis() - clock.getAsLong();
+        }
+
+        private void execute() {
+            startNanos = System.nanoTime();
+            try {
+                long latest = notAfter.getAsLong();
+                if (clock.getAsLong() > latest)
+                    throw new IllegalStateException("Step %s missed its deadline".formatted(name));
+                T result = block(action);
+                value = result;
+                endNanos = System.nanoTime();
+                state = State.DONE;
+                future.complete(result);
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Throwable e) {
+            endNanos = System.nanoTime();
+            error = e;
+            state = State.FAILED;
+            System.out.println("Step %s failed: %s".formatted(name, e));
+            future.completeExceptionally(e);
+        }
+
+        private void skip(Throwable cause) {
+            error = cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause;
+            state = State.SKIPPED;
+            future.completeExceptionally(error);
+        }
+
+        private boolean dependenciesDone() {
+            return dependencies.stream().allMatch(step -> step.state == State.DONE);
+        }
+    }
+
+    private final String name;
+    private final Duration deadlineSlack;
+    private final LongSupplier clock;
+    private final List<Step<?>> steps = new ArrayList<>();
+    private long startNanos;
+    private long endNanos;
+    private boolean sequential;
+
+    /**
+     * A scenario with a deadline slack of five seconds, a few blocks on Yaci
+     * DevKit.
+     */
+    public Scenario(String name) {
+        this(name, Duration.ofSeconds(5));
+    }
+
+    /**
+     * @param name          Name used in the statistics.
+     * @param deadlineSlack Added to every {@code notBefore} bound, so the chain
+     *                      has a block past the deadline when the step starts.
+     */
+    public Scenario(String name, Duration deadlineSlack) {
+        this(name, deadlineSlack, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock POSIX milliseconds the deadlines are checked against, e.g.
+     *              {@code RecordedBackend.clock()} so a replay sees the time of
+     *              the recording.
+     */
+    public Scenario(String name, LongSupplier clock) {
+        this(name, Duration.ofSeconds(5), clock);
+    }
+
+    public Scenario(String name, Duration deadlineSlack, LongSupplier clock) {
+        this.name = name;
+        this.deadlineSlack = deadlineSlack;
+        this.clock = clock;
+    }
+
+    public <T> Step<T> step(String stepName, Action<T> action) {
+        if (steps.stream().anyMatch(step -> step.name.equals(stepName)))
+            throw new IllegalArgumentException("Duplicate step " + stepName);
+        Step<T> step = new Step<>(stepName, action);
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * Runs the scenario concurrently, or sequentially if
+     * {@code SCENARIO_MODE=sequential} is set, and waits for all steps.
+     *
+     * @throws AssertionError If a step failed.
+     */
+    public void run() throws InterruptedException {
+        if ("sequential".equalsIgnoreCase(System.getenv("SCENARIO_MODE")))
+            runSequentially();
+        else
+            runConcurrently();
+    }
+
+    public void runConcurrently() {
+        sequential = false;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        try {
+            startNanos = System.nanoTime();
+            for (Step<?> step : steps)
+                schedule(step, pool);
+            for (Step<?> step : steps)
+                step.future.handle((value, error) -> null).join();
+            endNanos = System.nanoTime();
+        } finally {
+            pool.shutdown();
+        }
+        checkFailures();
+    }
+
+    public void runSequentially() throws InterruptedException {
+        sequential = true;
+        startNanos = System.nanoTime();
+        for (Step<?> step : steps) {
+            if (!step.dependenciesDone()) {
+                step.skip(step.dependencies.stream().filter(d -> d.state != State.DONE).findFirst().get().error);
+                continue;
+            }
+            try {
+                long wait = step.delay();
+                if (wait > 0)
+                    Thread.sleep(wait);
+            } catch (RuntimeException e) {
+                step.fail(e);
+                continue;
+            }
+            step.execute();
+        }
+        endNanos = System.nanoTime();
+        checkFailures();
+    }
+
+    private void schedule(Step<?> step, Executor pool) {
+        CompletableFuture<?>[] dependencies = step.dependencies.stream()
+                .map(dependency -> dependency.future)
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(dependencies).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                step.skip(failure);
+                return;
+            }
+            try {
+                long delay = step.delay();
+                Executor executor = delay > 0 ? CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, pool)
+                        : pool;
+                executor.execute(step::execute);
+            } catch (RuntimeException e) {
+                step.fail(e);
+            }
+        });
+    }
+
+    // Lets the pool compensate for a worker waiting on the backend
+    private static <T> T block(Action<T> action) throws Exception {
+        class Blocker implements ForkJoinPool.ManagedBlocker {
+            T result;
+            Exception error;
+            boolean done;
+
+            @Override
+            public boolean block() {
+                try {
+                    result = action.run();
+                } catch (Exception e) {
+                    error = e;
+                }
+                done = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return done;
+            }
+        }
+        Blocker blocker = new Blocker();
+        ForkJoinPool.managedBlock(blocker);
+        if (blocker.error != null)
+            throw blocker.error;
+        return blocker.result;
+    }
+
+    private void checkFailures() {
+        for (Step<?> step : steps) {
+            if (step.state == State.FAILED) {
+                printStats();
+                throw new AssertionError("Scenario %s: step %s failed".formatted(name, step.name), step.error);
+            }
+        }
+    }
+
+    /**
+     * @return Milliseconds from the start of the scenario until the last step
+     *         ended.
+     */
+    public double wallMillis() {
+        return (endNanos - startNanos) / 1e6;
+    }
+
+    /**
+     * @return Milliseconds spent in steps, the time a strictly sequential run
+     *         without any waiting would take.
+     */
+    public double stepMillis() {
+        return steps.stream()
+                .filter(step -> step.state == State.DONE || step.state == State.FAILED)
+                .mapToDouble(step -> (step.endNanos - step.startNanos) / 1e6)
+                .sum();
+    }
+
+    /**
+     * @return The chain of steps that determined the end of the scenario, each
+     *         one waiting for the dependency that ended last.
+     */
+    public List<String> criticalPath() {
+        List<String> path = new ArrayList<>();
+        Step<?> step = steps.stream()
+                .filter(s -> s.endNanos > 0)
+                .max((a, b) -> Long.compare(a.endNanos, b.endNanos))
+                .orElse(null);
+        while (step != null) {
+            path.addFirst(step.name);
+            step = step.dependencies.stream()
+                    .max((a, b) -> Long.compare(a.endNanos, b.endNanos))
+                    .orElse(null);
+        }
+        return path;
+    }
+
+    public void printStats() {
+        System.out.println("Scenario %s (%s): %d steps in %.1f s, %.1f s in steps, critical path %s".formatted(name,
+                sequential ? "sequential" : "concurrent", steps.size(), wallMillis() / 1000, stepMillis() / 1000,
+                String.join(" > ", criticalPath())));
+        for (Step<?> step : steps) {
+            if (step.startNanos == 0) {
+                System.out.println("  %-20s %s".formatted(step.name, step.state));
+                continue;
+            }
+            System.out.println("  %-20s %7.1f s + %5.1f s  %s%s".formatted(step.name,
+                    (step.startNanos - startNanos) / 1e9, (step.endNanos - step.startNanos) / 1e9, step.state,
+                    step.dependencies.isEmpty() ? ""
+                            : step.dependencies.stream().map(Step::name).collect(Collectors.joining(", ", "  after ", ""))));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//SOURCES Scenario.java
+// @formatter:on
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Compares the hand-written sequential {@code main} of the seven CCL examples
+ * with their step graphs on {@link Scenario}, without a network.
+ * <p>
+ * Every step sleeps for the time it typically takes on Yaci DevKit: a
+ * confirmed transaction about three seconds, an attempt rejected by script
+ * evaluation half a second and applying script parameters a fraction of a
+ * second. The original flows keep their fixed sleeps, the graphs replace them
+ * with the deadlines they were waiting for. All times are scaled down, by
+ * default one simulated second takes ten milliseconds.
+ * <p>
+ * Usage: {@code jbang ScenarioBenchmark.java [milliseconds per simulated second]}
+ */
+public class ScenarioBenchmark {
+
+    static double millisPerSecond = 10;
+    static double tx = 3;
+    static double rejected = 0.5;
+    static double script = 0.3;
+
+    record Sim(String name, double seconds) {
+    }
+
+    interface Flow {
+        void declare(Scenario scenario, long start);
+    }
+
+    record Example(String name, List<Sim> original, Flow graph) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            millisPerSecond = Double.parseDouble(args[0]);
+
+        List<Example> examples = List.of(
+                new Example("htlc",
+                        List.of(new Sim("lock", tx), new Sim("wrong-secret", rejected), new Sim("secret", tx),
+                                new Sim("sleep", 70), new Sim("refund", tx)),
+                        (s, start) -> {
+                            long expiration = at(start, 60);
+                            var lock = s.step("lock", sleep(tx));
+                            var wrongSecret = s.step("wrong-secret", sleep(rejected)).after(lock).notAfter(expiration);
+                            var secret = s.step("secret", sleep(tx)).after(wrongSecret).notAfter(expiration);
+                            s.step("refund", sleep(tx)).after(secret).notBefore(expiration);
+                        }),
+                new Example("atomic-transaction",
+                        List.of(new Sim("fund", tx), new Sim("wrong-password", rejected),
+                                new Sim("correct-password", tx)),
+                        (s, start) -> {
+                            var fund = s.step("fund", sleep(tx));
+                            var wrongPassword = s.step("wrong-password", sleep(rejected)).after(fund);
+                            s.step("correct-password", sleep(tx)).after(wrongPassword);
+                        }),
+                new Example("crowdfund",
+                        List.of(new Sim("init", tx), new Sim("donate", tx), new Sim("sleep", 20), new Sim("claim", tx)),
+                        (s, start) -> {
+                            var init = s.step("init", sleep(tx));
+                            var donate = s.step("donate", sleep(tx)).after(init);
+                            s.step("claim", sleep(tx)).after(donate).notBefore(start);
+                        }),
+                new Example("vault",
+                        List.of(new Sim("deposit", tx), new Sim("request", tx), new Sim("sleep", 15),
+                                new Sim("finalize", tx)),
+                        (s, start) -> {
+                            var deposit = s.step("deposit", sleep(tx));
+                            // The lock time is taken when the request is built and stored in its datum
+                            var request = s.step("request", () -> {
+                                long lockTime = System.currentTimeMillis() - millis(1);
+                                sleep(tx).run();
+                                return lockTime;
+                            }).after(deposit);
+                            s.step("finalize", sleep(tx)).after(request).notBefore(() -> request.get() + millis(10));
+                        }),
+                new Example("simple-transfer",
+                        List.of(new Sim("script", script), new Sim("lock", tx), new Sim("unlock", tx)),
+                        (s, start) -> {
+                            var prepare = s.step("script", sleep(script));
+                            var lock = s.step("lock", sleep(tx)).after(prepare);
+                            s.step("unlock", sleep(tx)).after(lock);
+                        }),
+                new Example("token-transfer",
+                        List.of(new Sim("script", script), new Sim("mint", tx), new Sim("transfer", tx)),
+                        (s, start) -> {
+                            var prepare = s.step("script", sleep(script));
+                            var mint = s.step("mint", sleep(tx)).after(prepare);
+                            s.step("transfer", sleep(tx)).after(mint);
+                        }),
+                new Example("payment-splitter",
+                        List.of(new Sim("script", script), new Sim("lock", tx), new Sim("unlock", tx)),
+                        (s, start) -> {
+                            var prepare = s.step("script", sleep(script));
+                            var lock = s.step("lock", sleep(tx)).after(prepare);
+                            s.step("unlock", sleep(tx)).after(lock);
+                        }));
+
+        double originalTotal = 0;
+        double graphTotal = 0;
+        System.out.println("%-20s %10s %12s %12s %8s".formatted("Example", "original", "graph seq.", "graph conc.",
+                "speedup"));
+        for (Example example : examples) {
+            double original = original(example);
+            double graphSequential = graph(example, true);
+            double graphConcurrent = graph(example, false);
+            originalTotal += original;
+            graphTotal += graphConcurrent;
+            System.out.println("%-20s %8.1f s %10.1f s %10.1f s %7.2fx".formatted(example.name(), original,
+                    graphSequential, graphConcurrent, original / graphConcurrent));
+        }
+        System.out.println("%-20s %8.1f s %12s %10.1f s %7.2fx".formatted("all", originalTotal, "", graphTotal,
+                originalTotal / graphTotal));
+    }
+
+    // The original main as a chain, every step waits for the one before it
+    private static double original(Example example) throws InterruptedException {
+        Scenario scenario = scenario(example.name());
+        Scenario.Step<?> previous = null;
+        for (Sim sim : example.original()) {
+            Scenario.Step<?> step = scenario.step(sim.name(), sleep(sim.seconds()));
+            if (previous != null)
+                step.after(previous);
+            previous = step;
+        }
+        scenario.runSequentially();
+        return scenario.wallMillis() / millisPerSecond;
+    }
+
+    private static double graph(Example example, boolean sequential) throws InterruptedException {
+        Scenario scenario = scenario(example.name());
+        example.graph().declare(scenario, System.currentTimeMillis());
+        if (sequential)
+            scenario.runSequentially();
+        else
+            scenario.runConcurrently();
+        return scenario.wallMillis() / millisPerSecond;
+    }
+
+    private static Scenario scenario(String name) {
+        return new Scenario(name, Duration.ofMillis(millis(5)));
+    }
+
+    private static Scenario.Action<Void> sleep(double seconds) {
+        return () -> {
+            Thread.sleep(millis(seconds));
+            return null;
+        };
+    }
+
+    private static long at(long start, double seconds) {
+        return start + millis(seconds);
+    }
+
+    private static long millis(double seconds) {
+        return Math.round(seconds * millisPerSecond);
+    }
+}
@@ -0,0 +1,404 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+// @formatter:on
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+import com.bloxbean.cardano.client.address.Address;
+import com.bloxbean.cardano.client.address.AddressProvider;
+import com.bloxbean.cardano.client.address.Credential;
+import com.bloxbean.cardano.client.common.model.Network;
+import com.bloxbean.cardano.client.crypto.Blake2bUtil;
+import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusScript;
+import com.bloxbean.cardano.client.plutus.spec.PlutusV1Script;
+import com.bloxbean.cardano.client.plutus.spec.PlutusV2Script;
+import com.bloxbean.cardano.client.plutus.spec.PlutusV3Script;
+
+/**
+ * Derives many instances of a parametrised validator, e.g. one HTLC per
+ * secret, in parallel.
+ * <p>
+ * Applying parameters does not change the validator, it wraps its term into
+ * {@code [[validator param1] param2]} with every parameter as a data constant.
+ * {@code AikenScriptUtil.applyParamToScript} decodes and re-encodes the whole
+ * program for that. Here the flat encoded base program is parsed once to find
+ * where its term ends, and every instance only writes the application tags, a
+ * copy of the term bits and its encoded parameters. The script hash is taken
+ * from these bytes directly instead of serialising the script again, and all
+ * instances are derived on a fork-join pool.
+ * <p>
+ * Parameters are encoded with CCL, the same encoding the binding passes to
+ * aiken. {@code ScriptDeriverBenchmark} cross-checks the result against
+ * {@code AikenScriptUtil}.
+ */
+public class ScriptDeriver {
+
+    // Instances derived by one fork-join task without splitting it further
+    static final int BATCH = 256;
+
+    /**
+     * A derived validator.
+     *
+     * @param index      Position of the parameters in the input list.
+     * @param script     The parametrised validator.
+     * @param scriptHash Hash of the validator, the payment credential of its
+     *                   address.
+     * @param address    Enterprise address of the validator.
+     */
+    public record Instance(int index, PlutusScript script, byte[] scriptHash, Address address) {
+    }
+
+    private final PlutusVersion version;
+    private final Network network;
+    private final byte[] flat;
+    private final int termStart;
+    private final int termEnd;
+
+    private ScriptDeriver(PlutusVersion version, Network network, byte[] flat, int termStart, int termEnd) {
+        this.version = version;
+        this.network = network;
+        this.flat = flat;
+        this.termStart = termStart;
+        this.termEnd = termEnd;
+    }
+
+    /**
+     * Parses the unparametrised validator.
+     *
+     * @param compiledCode The compiled code from the blueprint.
+     * @throws IllegalArgumentException If the code is not a flat encoded program.
+     */
+    public static ScriptDeriver of(String compiledCode, PlutusVersion version, Network network) {
+        byte[] flat = unwrapBytes(HexFormat.of().parseHex(compiledCode));
+        BitReader reader = new BitReader(flat);
+        for (int i = 0; i < 3; i++)
+            reader.natural();
+        int termStart = reader.position();
+        reader.term();
+        int termEnd = reader.position();
+        reader.filler();
+        if (reader.position() != flat.length * 8)
+            throw new IllegalArgumentException("Trailing bytes after the program");
+        return new ScriptDeriver(version, network, flat, termStart, termEnd);
+    }
+
+    /**
+     * @return The compiled code with the parameters applied, as returned by
+     *         {@code AikenScriptUtil.applyParamToScript}.
+     */
+    public String applyParams(ListPlutusData params) {
+        return HexFormat.of().formatHex(wrapBytes(applyFlat(params)));
+    }
+
+    public Instance derive(int index, ListPlutusData params) {
+        byte[] compiled = wrapBytes(applyFlat(params));
+        // Scripts hold the compiled code wrapped once more, like PlutusBlueprintUtil does
+        String cborHex = HexFormat.of().formatHex(wrapBytes(compiled));
+        PlutusScript script = switch (version) {
+            case v1 -> PlutusV1Script.builder().cborHex(cborHex).build();
+            case v2 -> PlutusV2Script.builder().cborHex(cborHex).build();
+            case v3 -> PlutusV3Script.builder().cborHex(cborHex).build();
+        };
+        byte[] tagged = new byte[compiled.length + 1];
+        tagged[0] = script.getScriptTypeBytes()[0];
+        System.arraycopy(compiled, 0, tagged, 1, compiled.length);
+        byte[] scriptHash = Blake2bUtil.blake2bHash224(tagged);
+        return new Instance(index, script, scriptHash,
+                AddressProvider.getEntAddress(Credential.fromScript(scriptHash), network));
+    }
+
+    /**
+     * Derives one instance per parameter list on the common fork-join pool.
+     */
+    public List<Instance> deriveAll(List<ListPlutusData> params) {
+        Instance[] instances = new Instance[params.size()];
+        forEach(params, instance -> instances[instance.index()] = instance);
+        return Arrays.asList(instances);
+    }
+
+    /**
+     * Like {@link #deriveAll(List)}, but hands every instance to the consumer
+     * instead of keeping them all. The consumer is called from several threads.
+     */
+    public void forEach(List<ListPlutusData> params, Consumer<Instance> consumer) {
+        ForkJoinPool.commonPool().invoke(deriveTask(params, consumer, 0, params.size()));
+    }
+
+    // An adapted lambda instead of a RecursiveAction subclass, which would be
+    // Serializable while holding the consumer and the parameter list
+    private ForkJoinTask<?> deriveTask(List<ListPlutusData> params, Consumer<Instance> consumer, int from, int to) {
+        return ForkJoinTask.adapt(() -> {
+            if (to - from <= BATCH) {
+                for (int i = from; i < to; i++)
+                    consumer.accept(derive(i, params.get(i)));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            ForkJoinTask.invokeAll(deriveTask(params, consumer, from, middle), deriveTask(params, consumer, middle, to));
+        });
+    }
+
+    private byte[] applyFlat(ListPlutusData params) {
+        List<PlutusData> list = params.getPlutusDataList();
+        List<byte[]> encoded = new ArrayList<>(list.size());
+        int paramBytes = 0;
+        for (PlutusData param : list) {
+            byte[] cbor = param.serializeToBytes();
+            encoded.add(cbor);
+            paramBytes += cbor.length + cbor.length / 255 + 4;
+        }
+        BitWriter writer = new BitWriter(flat.length + list.size() + paramBytes + 2);
+        writer.bytes(flat, termStart / 8);
+        for (int i = 0; i < list.size(); i++)
+            writer.bits(0b0011, 4); // Apply
+        writer.copy(flat, termStart, termEnd);
+        for (byte[] cbor : encoded) {
+            writer.bits(0b0100, 4); // Constant
+            writer.bits(0b1_1000_0, 6); // Type list [data]
+            writer.byteString(cbor);
+        }
+        writer.filler();
+        return writer.toByteArray();
+    }
+
+    // The compiled code is a CBOR byte string holding the flat encoded program
+    static byte[] unwrapBytes(byte[] cbor) {
+        if (cbor.length == 0 || (cbor[0] & 0xff) >> 5 != 2)
+            throw new IllegalArgumentException("Compiled code is not a CBOR byte string");
+        int info = cbor[0] & 0x1f;
+        int offset = info < 24 ? 1 : info == 24 ? 2 : info == 25 ? 3 : info == 26 ? 5 : -1;
+        if (offset < 0)
+            throw new IllegalArgumentException("Unsupported CBOR byte string length");
+        long length = info < 24 ? info : 0;
+        for (int i = 1; i < offset; i++)
+            length = length << 8 | cbor[i] & 0xff;
+        if (offset + length != cbor.length)
+            throw new IllegalArgumentException("Compiled code has trailing bytes");
+        return Arrays.copyOfRange(cbor, offset, cbor.length);
+    }
+
+    static byte[] wrapBytes(byte[] bytes) {
+        int n = bytes.length;
+        byte[] header = n < 24 ? new byte[] { (byte) (0x40 | n) }
+                : n < 0x100 ? new byte[] { 0x58, (byte) n }
+                : n < 0x10000 ? new byte[] { 0x59, (byte) (n >> 8), (byte) n }
+                : new byte[] { 0x5a, (byte) (n >> 24), (byte) (n >> 16), (byte) (n >> 8), (byte) n };
+        byte[] cbor = Arrays.copyOf(header, header.length + n);
+        System.arraycopy(bytes, 0, cbor, header.length, n);
+        return cbor;
+    }
+
+    /**
+     * Skips over a flat encoded untyped plutus core term, only keeping track of
+     * the bit position.
+     */
+    static class BitReader {
+
+        private final byte[] bytes;
+        private int position;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int position() {
+            return position;
+        }
+
+        int bit() {
+            if (position >= bytes.length * 8)
+                throw new IllegalArgumentException("Program ends unexpectedly");
+            int bit = bytes[position >> 3] >> (7 - (position & 7)) & 1;
+            position++;
+            return bit;
+        }
+
+        int bits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++)
+                value = value << 1 | bit();
+            return value;
+        }
+
+        // 7 bit groups, each preceded by a bit telling whether another follows
+        void natural() {
+            while (bits(8) >> 7 == 1) {
+            }
+        }
+
+        void filler() {
+            while (bit() == 0) {
+            }
+        }
+
+        void term() {
+            int tag = bits(4);
+            switch (tag) {
+                case 0 -> natural(); // Var
+                case 1, 2, 5 -> term(); // Delay, LamAbs, Force
+                case 3 -> { // Apply
+                    term();
+                    term();
+                }
+                case 4 -> constant(); // Constant
+                case 6 -> { // Error
+                }
+                case 7 -> bits(7); // Builtin
+                case 8 -> { // Constr
+                    natural();
+                    while (bit() == 1)
+                        term();
+                }
+                case 9 -> { // Case
+                    term();
+                    while (bit() == 1)
+                        term();
+                }
+                default -> throw new IllegalArgumentException("Unknown term tag " + tag);
+            }
+        }
+
+        private void constant() {
+            List<Integer> tags = new ArrayList<>();
+            while (bit() == 1)
+                tags.add(bits(4));
+            int[] index = { 0 };
+            value(tags, index);
+            if (index[0] != tags.size())
+                throw new IllegalArgumentException("Malformed constant type " + tags);
+        }
+
+        // Reads a value of the type starting at tags[index], type applications
+        // are prefix encoded: list a is [7, 5, a], pair a b is [7, 7, 6, a, b]
+        private void value(List<Integer> tags, int[] index) {
+            int tag = tags.get(index[0]++);
+            switch (tag) {
+                case 0 -> natural(); // Integer, zigzag encoded
+                case 1, 2, 8 -> byteString(); // ByteString, String as UTF-8, Data as CBOR
+                case 3 -> { // Unit
+                }
+                case 4 -> bit(); // Bool
+                case 7 -> {
+                    int applied = tags.get(index[0]++);
+                    if (applied == 5) {
+                        int element = index[0];
+                        boolean empty = true;
+                        while (bit() == 1) {
+                            index[0] = element;
+                            value(tags, index);
+                            empty = false;
+                        }
+                        if (empty)
+                            skipType(tags, index);
+                    } else if (applied == 7 && tags.get(index[0]++) == 6) {
+                        value(tags, index);
+                        value(tags, index);
+                    } else {
+                        throw new IllegalArgumentException("Unsupported constant type " + tags);
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unsupported constant type " + tags);
+            }
+        }
+
+        private void skipType(List<Integer> tags, int[] index) {
+            int tag = tags.get(index[0]++);
+            if (tag == 7) {
+                int applied = tags.get(index[0]++);
+                if (applied == 7)
+                    index[0]++;
+                skipType(tags, index);
+                if (applied == 7)
+                    skipType(tags, index);
+            }
+        }
+
+        private void byteString() {
+            filler();
+            int chunk;
+            while ((chunk = bits(8)) != 0)
+                position += chunk * 8;
+        }
+    }
+
+    static class BitWriter {
+
+        private byte[] bytes;
+        private int position;
+
+        BitWriter(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        private void ensure(int bits) {
+            int needed = (position + bits + 7) >> 3;
+            if (needed > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+        }
+
+        void bits(int value, int count) {
+            ensure(count);
+            for (int i = count - 1; i >= 0; i--) {
+                if ((value >> i & 1) == 1)
+                    bytes[position >> 3] |= (byte) (0x80 >>> (position & 7));
+                position++;
+            }
+        }
+
+        // Whole bytes, only at a byte boundary
+        void bytes(byte[] source, int length) {
+            ensure(length * 8);
+            System.arraycopy(source, 0, bytes, position >> 3, length);
+            position += length * 8;
+        }
+
+        // The bits [from, to) of the source, shifted to the current position
+        void copy(byte[] source, int from, int to) {
+            ensure(to - from);
+            int bit = from;
+            while (bit < to && (bit & 7) != 0) {
+                bits(source[bit >> 3] >> (7 - (bit & 7)) & 1, 1);
+                bit++;
+            }
+            int shift = position & 7;
+            for (; to - bit >= 8; bit += 8) {
+                int b = source[bit >> 3] & 0xff;
+                bytes[position >> 3] |= (byte) (b >>> shift);
+                if (shift != 0)
+                    bytes[(position >> 3) + 1] |= (byte) (b << (8 - shift));
+                position += 8;
+            }
+            for (; bit < to; bit++)
+                bits(source[bit >> 3] >> (7 - (bit & 7)) & 1, 1);
+        }
+
+        void filler() {
+            bits(1, 8 - (position & 7));
+        }
+
+        void byteString(byte[] value) {
+            filler();
+            for (int offset = 0; offset < value.length; offset += 255) {
+                int chunk = Math.min(255, value.length - offset);
+                bits(chunk, 8);
+                ensure(chunk * 8);
+                System.arraycopy(value, offset, bytes, position >> 3, chunk);
+                position += chunk * 8;
+            }
+            bits(0, 8);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, position >> 3);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ScriptDeriver.java
+// @formatter:on
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.bloxbean.cardano.aiken.AikenScriptUtil;
+import com.bloxbean.cardano.client.address.AddressProvider;
+import com.bloxbean.cardano.client.common.model.Network;
+import com.bloxbean.cardano.client.common.model.Networks;
+import com.bloxbean.cardano.client.crypto.Blake2bUtil;
+import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
+import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
+import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusScript;
+
+/**
+ * Derives HTLC instances, one per secret, the way {@code Htlc} derives its
+ * single instance and with {@link ScriptDeriver}, and prints instances per
+ * second for growing batches.
+ * <p>
+ * The first instances of both are compared, any difference in the compiled
+ * code fails the benchmark. The serial baseline calls the native binding for
+ * every instance and is only run for the first batch size.
+ * <p>
+ * Usage: {@code jbang ScriptDeriverBenchmark.java [blueprint] [batch sizes...]}
+ */
+public class ScriptDeriverBenchmark {
+
+    static String blueprint = "../../htlc/onchain/aiken/plutus.json";
+    static List<Integer> batchSizes = List.of(1_000, 10_000, 100_000, 1_000_000);
+    static int crossChecks = 100;
+    static Network network = Networks.testnet();
+    static byte[] owner = Blake2bUtil.blake2bHash224("owner".getBytes());
+
+    public static void main(String[] args) {
+        if (args.length > 0)
+            blueprint = args[0];
+        if (args.length > 1)
+            batchSizes = List.of(args).subList(1, args.length).stream().map(Integer::parseInt).toList();
+
+        String compiledCode = PlutusBlueprintLoader.loadBlueprint(new File(blueprint)).getValidators().getFirst()
+                .getCompiledCode();
+        long start = System.nanoTime();
+        ScriptDeriver deriver = ScriptDeriver.of(compiledCode, PlutusVersion.v3, network);
+        System.out.println("Parsed %s (%d bytes) in %.1f ms, %d cores".formatted(blueprint, compiledCode.length() / 2,
+                (System.nanoTime() - start) / 1e6, Runtime.getRuntime().availableProcessors()));
+
+        for (int i = 0; i < crossChecks; i++) {
+            String expected = AikenScriptUtil.applyParamToScript(params(i), compiledCode);
+            if (!deriver.applyParams(params(i)).equals(expected))
+                throw new AssertionError("Instance %d differs from AikenScriptUtil".formatted(i));
+        }
+        System.out.println("First %d instances match AikenScriptUtil".formatted(crossChecks));
+
+        int serialSize = batchSizes.getFirst();
+        start = System.nanoTime();
+        for (int i = 0; i < serialSize; i++) {
+            PlutusScript script = PlutusBlueprintUtil.getPlutusScriptFromCompiledCode(
+                    AikenScriptUtil.applyParamToScript(params(i), compiledCode), PlutusVersion.v3);
+            AddressProvider.getEntAddress(script, network);
+        }
+        report("serial (Htlc)", serialSize, System.nanoTime() - start);
+
+        for (int size : batchSizes) {
+            LongAdder derived = new LongAdder();
+            start = System.nanoTime();
+            deriver.forEach(paramsList(size), instance -> derived.increment());
+            long nanos = System.nanoTime() - start;
+            if (derived.sum() != size)
+                throw new AssertionError("Derived %d of %d instances".formatted(derived.sum(), size));
+            report("ScriptDeriver", size, nanos);
+        }
+    }
+
+    // Same parameters as Htlc: hashed secret, expiration and owner
+    static ListPlutusData params(int i) {
+        return ListPlutusData.of(
+                BytesPlutusData.of(Blake2bUtil.blake2bHash256(Integer.toString(i).getBytes())),
+                BigIntPlutusData.of(BigInteger.valueOf(1_800_000_000L + i)),
+                BytesPlutusData.of(owner));
+    }
+
+    // Created on access, so a million parameter lists are never held at once
+    static List<ListPlutusData> paramsList(int size) {
+        return new AbstractList<>() {
+            @Override
+            public ListPlutusData get(int index) {
+                return params(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    static void report(String name, int size, long nanos) {
+        System.out.println("%-16s %,10d instances in %8.1f ms, %,12.0f instances/s".formatted(name, size, nanos / 1e6,
+                size / (nanos / 1e9)));
+    }
+}
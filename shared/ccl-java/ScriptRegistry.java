@@ -0,0 +1,303 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+// @formatter:on
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import com.bloxbean.cardano.client.crypto.Blake2bUtil;
+import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
+import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusContractBlueprint;
+import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
+import com.bloxbean.cardano.client.plutus.blueprint.model.Validator;
+
+/**
+ * The compiled validators of all use cases packed into one binary file, which
+ * is memory-mapped instead of parsing a {@code plutus.json} per use case.
+ * <p>
+ * The file starts with the magic {@code CSR1} and the number of entries,
+ * followed by a table of fixed-size entries in blueprint order, use cases
+ * sorted by name. Each entry holds the script hash, the offsets and lengths
+ * of its use case name, validator title and compiled code in the pool after
+ * the table, and the Plutus version. The code is stored as raw bytes, the
+ * {@code compiledCode} of the blueprint without the hex, once per hash;
+ * Aiken emits the same code for every purpose of a validator.
+ * <p>
+ * Lookups compare the UTF-8 bytes of the names in the mapped file and return
+ * read-only views of the code, nothing is decoded on open. The registry is
+ * built by running this file:
+ *
+ * <pre>
+ * jbang ScriptRegistry.java [contracts dir] [registry file]
+ * </pre>
+ *
+ * It packs every {@code <use case>/onchain/aiken/plutus.json} below the
+ * contracts directory and checks every hash against the code.
+ */
+public class ScriptRegistry {
+
+    static final int MAGIC = 0x43535231;
+    static final int HASH_BYTES = 28;
+    // hash, use case offset and length, title offset and length, version, code offset and length
+    static final int ENTRY_BYTES = HASH_BYTES + 4 + 2 + 4 + 2 + 1 + 4 + 4;
+    static final int HEADER_BYTES = 8;
+
+    /**
+     * A validator of the registry, decoded for listings.
+     */
+    public record Entry(String useCase, String title, PlutusVersion version, byte[] hash, int codeBytes) {
+    }
+
+    private static ScriptRegistry shared;
+
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private ScriptRegistry(ByteBuffer buffer) {
+        if (buffer.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a script registry");
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.count = buffer.getInt(4);
+    }
+
+    /**
+     * Maps the registry file, the mapping outlives the closed channel.
+     */
+    public static ScriptRegistry open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ScriptRegistry(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return The registry in {@code SCRIPT_REGISTRY}, mapped once per JVM, or
+     *         null if the variable is not set.
+     */
+    public static synchronized ScriptRegistry shared() {
+        String file = System.getenv("SCRIPT_REGISTRY");
+        if (shared == null && file != null) {
+            try {
+                shared = open(Path.of(file));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * The compiled code of the first validator of a use case, from the shared
+     * registry if there is one, else from the blueprint.
+     *
+     * @return The hex compiled code, as in the blueprint.
+     */
+    public static String compiledCode(String useCase, File blueprint) {
+        ScriptRegistry registry = shared();
+        if (registry == null)
+            return PlutusBlueprintLoader.loadBlueprint(blueprint).getValidators().getFirst().getCompiledCode();
+        ByteBuffer code = registry.code(useCase);
+        byte[] bytes = new byte[code.remaining()];
+        code.get(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return A read-only view of the compiled code of the first validator of
+     *         the use case.
+     * @throws NoSuchElementException If the use case is not in the registry.
+     */
+    public ByteBuffer code(String useCase) {
+        ByteBuffer name = utf8(useCase);
+        for (int entry = 0; entry < count; entry++)
+            if (string(entry, HASH_BYTES).equals(name))
+                return code(entry);
+        throw new NoSuchElementException("No validator for " + useCase);
+    }
+
+    /**
+     * @param title The validator title of the blueprint, e.g.
+     *              {@code htlc.htlc.spend}.
+     */
+    public ByteBuffer code(String useCase, String title) {
+        ByteBuffer name = utf8(useCase);
+        ByteBuffer validator = utf8(title);
+        for (int entry = 0; entry < count; entry++)
+            if (string(entry, HASH_BYTES).equals(name) && string(entry, HASH_BYTES + 6).equals(validator))
+                return code(entry);
+        throw new NoSuchElementException("No validator %s in %s".formatted(title, useCase));
+    }
+
+    public ByteBuffer code(byte[] scriptHash) {
+        ByteBuffer hash = ByteBuffer.wrap(scriptHash);
+        for (int entry = 0; entry < count; entry++)
+            if (buffer.slice(entryOffset(entry), HASH_BYTES).equals(hash))
+                return code(entry);
+        throw new NoSuchElementException("No validator with hash " + HexFormat.of().formatHex(scriptHash));
+    }
+
+    public PlutusVersion version(String useCase) {
+        ByteBuffer name = utf8(useCase);
+        for (int entry = 0; entry < count; entry++)
+            if (string(entry, HASH_BYTES).equals(name))
+                return version(buffer.get(entryOffset(entry) + HASH_BYTES + 12));
+        throw new NoSuchElementException("No validator for " + useCase);
+    }
+
+    public List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>();
+        for (int entry = 0; entry < count; entry++) {
+            int offset = entryOffset(entry);
+            byte[] hash = new byte[HASH_BYTES];
+            buffer.get(offset, hash);
+            entries.add(new Entry(StandardCharsets.UTF_8.decode(string(entry, HASH_BYTES)).toString(),
+                    StandardCharsets.UTF_8.decode(string(entry, HASH_BYTES + 6)).toString(),
+                    version(buffer.get(offset + HASH_BYTES + 12)), hash, code(entry).remaining()));
+        }
+        return entries;
+    }
+
+    private static int entryOffset(int entry) {
+        return HEADER_BYTES + entry * ENTRY_BYTES;
+    }
+
+    private ByteBuffer string(int entry, int field) {
+        int offset = entryOffset(entry) + field;
+        return buffer.slice(buffer.getInt(offset), Short.toUnsignedInt(buffer.getShort(offset + 4)));
+    }
+
+    private ByteBuffer code(int entry) {
+        int offset = entryOffset(entry) + HASH_BYTES + 13;
+        return buffer.slice(buffer.getInt(offset), buffer.getInt(offset + 4));
+    }
+
+    private static ByteBuffer utf8(String string) {
+        return ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static PlutusVersion version(byte tag) {
+        return switch (tag) {
+            case 1 -> PlutusVersion.v1;
+            case 2 -> PlutusVersion.v2;
+            case 3 -> PlutusVersion.v3;
+            default -> throw new IllegalArgumentException("Unknown Plutus version " + tag);
+        };
+    }
+
+    private static byte tag(PlutusVersion version) {
+        return switch (version) {
+            case v1 -> 1;
+            case v2 -> 2;
+            case v3 -> 3;
+        };
+    }
+
+    /**
+     * Packs the blueprints of all use cases below the contracts directory.
+     *
+     * @return The number of validators.
+     * @throws IllegalStateException If a blueprint hash does not match its
+     *                               code.
+     */
+    public static int pack(Path contractsDir, Path file) throws IOException {
+        List<Path> blueprints;
+        try (Stream<Path> useCases = Files.list(contractsDir)) {
+            blueprints = useCases.map(useCase -> useCase.resolve("onchain/aiken/plutus.json"))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .toList();
+        }
+        record Packed(String useCase, String title, byte tag, byte[] hash, byte[] code) {
+        }
+        List<Packed> packed = new ArrayList<>();
+        for (Path blueprint : blueprints) {
+            String useCase = contractsDir.relativize(blueprint).getName(0).toString();
+            PlutusContractBlueprint contract = PlutusBlueprintLoader.loadBlueprint(blueprint.toFile());
+            byte tag = tag(contract.getPreamble().getPlutusVersion() != null
+                    ? contract.getPreamble().getPlutusVersion()
+                    : PlutusVersion.v3);
+            for (Validator validator : contract.getValidators()) {
+                byte[] code = HexFormat.of().parseHex(validator.getCompiledCode());
+                byte[] tagged = new byte[code.length + 1];
+                tagged[0] = tag;
+                System.arraycopy(code, 0, tagged, 1, code.length);
+                byte[] hash = Blake2bUtil.blake2bHash224(tagged);
+                if (validator.getHash() != null && !validator.getHash().equals(HexFormat.of().formatHex(hash)))
+                    throw new IllegalStateException("Hash of %s in %s does not match its code"
+                            .formatted(validator.getTitle(), blueprint));
+                packed.add(new Packed(useCase, validator.getTitle(), tag, hash, code));
+            }
+        }
+
+        int poolStart = HEADER_BYTES + packed.size() * ENTRY_BYTES;
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        Map<String, Integer> strings = new HashMap<>();
+        Map<String, Integer> codes = new HashMap<>();
+        ByteBuffer table = ByteBuffer.allocate(poolStart);
+        table.putInt(MAGIC).putInt(packed.size());
+        for (Packed validator : packed) {
+            byte[] useCase = validator.useCase().getBytes(StandardCharsets.UTF_8);
+            byte[] title = validator.title().getBytes(StandardCharsets.UTF_8);
+            table.put(validator.hash())
+                    .putInt(intern(strings, validator.useCase(), useCase, pool, poolStart))
+                    .putShort((short) useCase.length)
+                    .putInt(intern(strings, validator.title(), title, pool, poolStart))
+                    .putShort((short) title.length)
+                    .put(validator.tag())
+                    .putInt(intern(codes, HexFormat.of().formatHex(validator.hash()), validator.code(), pool, poolStart))
+                    .putInt(validator.code().length);
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[] bytes = Arrays.copyOf(table.array(), poolStart + pool.size());
+        System.arraycopy(pool.toByteArray(), 0, bytes, poolStart, pool.size());
+        Files.write(temporary, bytes);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return packed.size();
+    }
+
+    private static int intern(Map<String, Integer> offsets, String key, byte[] bytes, ByteArrayOutputStream pool,
+            int poolStart) {
+        return offsets.computeIfAbsent(key, k -> {
+            int offset = poolStart + pool.size();
+            pool.writeBytes(bytes);
+            return offset;
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path contractsDir = Path.of(args.length > 0 ? args[0] : "../..");
+        Path file = Path.of(args.length > 1 ? args[1] : "scripts.registry");
+        long start = System.nanoTime();
+        int validators = pack(contractsDir, file);
+        System.out.println("Packed %d validators into %s (%,d bytes) in %.1f ms".formatted(validators, file,
+                Files.size(file), (System.nanoTime() - start) / 1e6));
+        for (Entry entry : open(file).entries())
+            System.out.println("%-20s %-45s %s %s %,d bytes".formatted(entry.useCase(), entry.title(), entry.version(),
+                    HexFormat.of().formatHex(entry.hash()), entry.codeBytes()));
+    }
+}
@@ -0,0 +1,149 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//SOURCES ScriptRegistry.java
+// @formatter:on
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures how fast a fresh JVM gets the compiled code of every use case and
+ * what it costs in heap, from the blueprints the way the examples read them
+ * and from the memory-mapped {@link ScriptRegistry}.
+ * <p>
+ * Every mode runs in its own JVM, several times in alternation. A run loads
+ * the first validator of every use case and reports the time of the loading,
+ * the JVM uptime when it is done, the bytes it allocated and the heap still
+ * used after a collection. The modes are:
+ * <ul>
+ * <li>{@code blueprints}: {@code PlutusBlueprintLoader.loadBlueprint} and
+ * {@code getCompiledCode()}, as in the examples.</li>
+ * <li>{@code registry-hex}: {@link ScriptRegistry#compiledCode}, the hex code
+ * the examples pass on to {@code AikenScriptUtil}.</li>
+ * <li>{@code registry}: the read-only views of the mapped code.</li>
+ * </ul>
+ * Usage: {@code jbang ScriptRegistryBenchmark.java [contracts dir] [registry
+ * file] [runs]}, the registry is packed first if it does not exist.
+ */
+public class ScriptRegistryBenchmark {
+
+    static final List<String> MODES = List.of("blueprints", "registry-hex", "registry");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            child(args[1], Path.of(args[2]), Path.of(args[3]));
+            return;
+        }
+        Path contractsDir = Path.of(args.length > 0 ? args[0] : "../..");
+        Path registry = Path.of(args.length > 1 ? args[1] : "scripts.registry");
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        if (!Files.exists(registry))
+            ScriptRegistry.pack(contractsDir, registry);
+        System.out.println("%d use cases, %d validators, registry of %,d bytes".formatted(useCases(contractsDir).size(),
+                ScriptRegistry.open(registry).size(), Files.size(registry)));
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<List<double[]>> results = new ArrayList<>();
+        MODES.forEach(mode -> results.add(new ArrayList<>()));
+        for (int run = 0; run < runs; run++) {
+            for (int mode = 0; mode < MODES.size(); mode++) {
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        ScriptRegistryBenchmark.class.getName(), "--child", MODES.get(mode), contractsDir.toString(),
+                        registry.toString())
+                        .redirectErrorStream(true)
+                        .start();
+                String output = new String(process.getInputStream().readAllBytes()).strip();
+                if (process.waitFor() != 0)
+                    throw new AssertionError("Run of %s failed: %s".formatted(MODES.get(mode), output));
+                String last = output.lines().reduce((first, second) -> second).orElseThrow();
+                results.get(mode).add(Arrays.stream(last.split(" ")).mapToDouble(Double::parseDouble).toArray());
+            }
+        }
+
+        System.out.println("| mode | load | JVM uptime | allocated | heap after GC |");
+        System.out.println("|---|---:|---:|---:|---:|");
+        for (int mode = 0; mode < MODES.size(); mode++) {
+            List<double[]> samples = results.get(mode);
+            System.out.println("| %s | %.1f ms | %.0f ms | %,.0f KiB | %,.0f KiB |".formatted(MODES.get(mode),
+                    median(samples, 0), median(samples, 1), median(samples, 2) / 1024, median(samples, 3) / 1024));
+        }
+    }
+
+    /**
+     * Loads the code of every use case and prints {@code load_ms uptime_ms
+     * allocated_bytes heap_bytes}.
+     */
+    static void child(String mode, Path contractsDir, Path registryFile) throws IOException {
+        List<String> useCases = useCases(contractsDir);
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        List<Object> codes = new ArrayList<>();
+        long codeBytes = 0;
+        switch (mode) {
+            case "blueprints" -> {
+                for (String useCase : useCases) {
+                    String code = PlutusBlueprintLoader
+                            .loadBlueprint(contractsDir.resolve(useCase + "/onchain/aiken/plutus.json").toFile())
+                            .getValidators().getFirst().getCompiledCode();
+                    codes.add(code);
+                    codeBytes += code.length() / 2;
+                }
+            }
+            case "registry-hex", "registry" -> {
+                ScriptRegistry registry = ScriptRegistry.open(registryFile);
+                for (String useCase : useCases) {
+                    ByteBuffer code = registry.code(useCase);
+                    codeBytes += code.remaining();
+                    if (mode.equals("registry")) {
+                        codes.add(code);
+                    } else {
+                        byte[] bytes = new byte[code.remaining()];
+                        code.get(bytes);
+                        codes.add(HexFormat.of().formatHex(bytes));
+                    }
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        if (codes.size() != useCases.size() || codeBytes == 0)
+            throw new AssertionError("Loaded %d of %d use cases".formatted(codes.size(), useCases.size()));
+        System.out.println(String.format(Locale.ROOT, "%.3f %d %d %d", loadMillis, uptime, allocated, heap));
+    }
+
+    static List<String> useCases(Path contractsDir) throws IOException {
+        try (Stream<Path> dirs = Files.list(contractsDir)) {
+            return dirs.filter(dir -> new File(dir.toFile(), "onchain/aiken/plutus.json").isFile())
+                    .map(dir -> dir.getFileName().toString())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    static double median(List<double[]> samples, int column) {
+        double[] values = samples.stream().mapToDouble(sample -> sample[column]).sorted().toArray();
+        return values[values.length / 2];
+    }
+}
@@ -0,0 +1,168 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//SOURCES TxSubmitter.java
+//SOURCES ScriptDeriver.java
+// @formatter:on
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.bloxbean.cardano.client.account.Account;
+import com.bloxbean.cardano.client.api.ProtocolParamsSupplier;
+import com.bloxbean.cardano.client.api.TransactionProcessor;
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.common.OrderEnum;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusScript;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.spec.TransactionInput;
+
+/**
+ * The state of one tenant of a long-running service: its account, the
+ * validator instances derived for it and the UTxOs its transactions in flight
+ * are spending.
+ * <p>
+ * Requests of the same tenant may run concurrently. Building is serialised
+ * per tenant, and the inputs of a built transaction are hidden from the
+ * tenant's UTxO view until it is confirmed or given up. The next build
+ * therefore selects other UTxOs instead of waiting for the block. Waiting
+ * for confirmation holds no lock, and no monitor is held while blocking, so
+ * virtual threads are never pinned.
+ */
+public class TenantContext {
+
+    /**
+     * Builds and signs a transaction with the tenant's builder.
+     */
+    @FunctionalInterface
+    public interface Builder {
+        Transaction build(QuickTxBuilder quickTxBuilder) throws Exception;
+    }
+
+    private final String id;
+    private final Account account;
+    private final UtxoSupplier utxoSupplier;
+    private final QuickTxBuilder quickTxBuilder;
+    private final TxSubmitter txSubmitter;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final Map<String, PlutusScript> scripts = new ConcurrentHashMap<>();
+    private final ReentrantLock buildLock = new ReentrantLock();
+
+    /**
+     * @param utxoSupplier           Shared supplier, the tenant sees it without
+     *                               the UTxOs its transactions in flight spend.
+     * @param protocolParamsSupplier Shared, usually cached, protocol parameters.
+     */
+    public TenantContext(String id, Account account, UtxoSupplier utxoSupplier,
+            ProtocolParamsSupplier protocolParamsSupplier, TransactionProcessor transactionProcessor,
+            TxSubmitter txSubmitter) {
+        this.id = id;
+        this.account = account;
+        this.utxoSupplier = new InFlightFilter(utxoSupplier);
+        this.quickTxBuilder = new QuickTxBuilder(this.utxoSupplier, protocolParamsSupplier, transactionProcessor);
+        this.txSubmitter = txSubmitter;
+        // Derive the keys now instead of in the first request
+        account.baseAddress();
+        account.hdKeyPair();
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public Account account() {
+        return account;
+    }
+
+    public String address() {
+        return account.baseAddress();
+    }
+
+    public byte[] paymentKeyHash() {
+        return account.getBaseAddress().getPaymentCredentialHash().orElseThrow();
+    }
+
+    public UtxoSupplier utxoSupplier() {
+        return utxoSupplier;
+    }
+
+    /**
+     * @return The validator instance for the parameters, derived once per
+     *         tenant.
+     */
+    public PlutusScript script(String contract, ScriptDeriver deriver, ListPlutusData params) {
+        return scripts.computeIfAbsent(contract + ":" + params.serializeToHex(),
+                key -> deriver.derive(0, params).script());
+    }
+
+    /**
+     * Builds, submits and waits for a transaction of the tenant, rebuilding it
+     * if its inputs were spent concurrently.
+     */
+    public TxResult submit(Builder builder) throws InterruptedException {
+        List<String> spent = new ArrayList<>();
+        try {
+            return txSubmitter.submit(attempt -> {
+                buildLock.lock();
+                try {
+                    // A rebuild may take the inputs of the earlier attempts again, so it
+                    // conflicts with them instead of landing next to a late one
+                    spent.forEach(inFlight::remove);
+                    Transaction transaction = builder.build(quickTxBuilder);
+                    for (TransactionInput input : transaction.getBody().getInputs()) {
+                        String key = input.getTransactionId() + "#" + input.getIndex();
+                        inFlight.add(key);
+                        spent.add(key);
+                    }
+                    return TxSubmitter.SignedTx.of(transaction);
+                } finally {
+                    buildLock.unlock();
+                }
+            }).toTxResult();
+        } finally {
+            spent.forEach(inFlight::remove);
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    private class InFlightFilter implements UtxoSupplier {
+
+        private final UtxoSupplier delegate;
+
+        InFlightFilter(UtxoSupplier delegate) {
+            this.delegate = delegate;
+        }
+
+        private boolean available(Utxo utxo) {
+            return !inFlight.contains(utxo.getTxHash() + "#" + utxo.getOutputIndex());
+        }
+
+        @Override
+        public List<Utxo> getPage(String address, Integer nrOfItems, Integer page, OrderEnum order) {
+            return delegate.getPage(address, nrOfItems, page, order).stream().filter(this::available).toList();
+        }
+
+        // Filtered after paging through the delegate, a page of spent UTxOs
+        // must not end the iteration early
+        @Override
+        public List<Utxo> getAll(String address) {
+            return delegate.getAll(address).stream().filter(this::available).toList();
+        }
+
+        @Override
+        public Optional<Utxo> getTxOutput(String txHash, int outputIndex) {
+            return delegate.getTxOutput(txHash, outputIndex);
+        }
+    }
+}
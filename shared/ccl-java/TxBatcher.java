@@ -0,0 +1,478 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bloxbean.cardano.client.address.Address;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.function.TxBuilder;
+import com.bloxbean.cardano.client.function.TxSigner;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.Redeemer;
+import com.bloxbean.cardano.client.quicktx.AbstractTx;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder.TxContext;
+import com.bloxbean.cardano.client.quicktx.Tx;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+
+/**
+ * Queue that coalesces independent intents (lock, donate, claim, transfer, ...)
+ * into as few transactions as possible, the same way
+ * {@code PaymentSplitter.unlock} composes a {@code ScriptTx} with a {@code Tx}.
+ * Payments from the fee payer are merged into a single {@code Tx} per batch,
+ * since a composed transaction takes every sender only once.
+ * <p>
+ * Intents are packed first-fit: an intent joins the open batch if the batch
+ * stays below the protocol limits for tx size and ex-units, otherwise it waits
+ * for the next batch. Every intent is built alone once for its size and
+ * ex-units, and the batch is estimated from these by adding them up, less the
+ * bytes a batch shares (fee payer inputs, change output, body framing) as
+ * measured on earlier batches. The packed batch is then built once more to
+ * check the estimate; if it does not build or fit, intents are dropped from its
+ * end until it does. Packing N intents therefore costs at least N + 1 builds,
+ * which is what keeps an intent that can never succeed from failing the whole
+ * batch, and what {@code TxBatcherBenchmark} measures. A batch is flushed as
+ * soon as it holds {@code maxIntentsPerBatch} intents, on {@link #flush()},
+ * e.g. from a {@code BlockWatcher} listener for one batch per block, and on
+ * {@link #close()}. Batches are submitted one after another because they share
+ * the fee payer's UTxOs.
+ */
+public class TxBatcher implements AutoCloseable {
+
+    // Rough size of one vkey witness (public key + signature + CBOR framing),
+    // which build() does not include yet.
+    private static final int WITNESS_SIZE_ESTIMATE = 110;
+
+    /**
+     * A single logical action.
+     *
+     * @param label           Name used in logs.
+     * @param tx              The Tx or ScriptTx describing the action, null for
+     *                        a payment. A Tx must not spend from the fee payer
+     *                        or from the sender of another intent.
+     * @param payment         Payment from the fee payer, null for a tx.
+     * @param signer          Additional signer for the action, may be null.
+     * @param requiredSigners Addresses that must appear in required signers.
+     * @param validFrom       Lower validity bound in slots, 0 if unconstrained.
+     * @param validTo         Upper validity bound in slots, 0 if unconstrained.
+     */
+    public record Intent(String label, AbstractTx<?> tx, Payment payment, TxSigner signer,
+            List<Address> requiredSigners, long validFrom, long validTo) {
+
+        public static Intent of(String label, AbstractTx<?> tx) {
+            return new Intent(label, tx, null, null, List.of(), 0, 0);
+        }
+
+        /**
+         * A payment from the fee payer, e.g. a lock or a transfer.
+         */
+        public static Intent payment(String label, String address, Amount amount) {
+            return payment(label, address, amount, null);
+        }
+
+        /**
+         * A payment from the fee payer with an inline datum, e.g. a lock to a
+         * script that reads it.
+         */
+        public static Intent payment(String label, String address, Amount amount, PlutusData datum) {
+            return new Intent(label, null, new Payment(address, amount, datum), null, List.of(), 0, 0);
+        }
+    }
+
+    /**
+     * @param datum Inline datum of the output, may be null.
+     */
+    public record Payment(String address, Amount amount, PlutusData datum) {
+    }
+
+    private record Pending(Intent intent, CompletableFuture<TxResult> future) {
+    }
+
+    // feeAlone is what the intents would have paid as transactions of their own
+    private record Batch(List<Pending> intents, long feeAlone) {
+    }
+
+    // Size without witnesses and ex-units of an intent built alone
+    private record Footprint(long size, BigInteger mem, BigInteger steps, long fee) {
+    }
+
+    private final QuickTxBuilder quickTxBuilder;
+    private final String feePayer;
+    private final TxSigner feePayerSigner;
+    private final int maxIntentsPerBatch;
+    private final long maxTxSize;
+    private final BigInteger maxTxExMem;
+    private final BigInteger maxTxExSteps;
+    private final double fillRatio;
+
+    private final List<Pending> pending = new ArrayList<>();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "tx-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private TxBuilder postBalanceTx;
+
+    // Only touched on the worker thread
+    private final Map<Pending, Footprint> footprints = new IdentityHashMap<>();
+    private long sharedBytes;
+
+    private final AtomicLong submittedIntents = new AtomicLong();
+    private final AtomicLong submittedTxs = new AtomicLong();
+    private final AtomicLong totalFee = new AtomicLong();
+    private final AtomicLong totalFeeAlone = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+
+    /**
+     * @param backendService     Backend used for protocol parameters.
+     * @param quickTxBuilder     Builder used to compose and submit the batches.
+     * @param feePayer           Address paying the fee of every batch.
+     * @param feePayerSigner     Signer for the fee payer.
+     * @param maxIntentsPerBatch Batch is flushed immediately once this many
+     *                           intents are queued.
+     * @param fillRatio          Fraction of the protocol limits a batch may use,
+     *                           leaves headroom for the fee and witnesses.
+     */
+    public TxBatcher(BackendService backendService, QuickTxBuilder quickTxBuilder, String feePayer,
+            TxSigner feePayerSigner, int maxIntentsPerBatch, double fillRatio) throws ApiException {
+        this(backendService.getEpochService().getProtocolParameters().getValue(), quickTxBuilder, feePayer,
+                feePayerSigner, maxIntentsPerBatch, fillRatio);
+    }
+
+    /**
+     * @param protocolParams Protocol parameters with the transaction limits.
+     */
+    public TxBatcher(ProtocolParams protocolParams, QuickTxBuilder quickTxBuilder, String feePayer,
+            TxSigner feePayerSigner, int maxIntentsPerBatch, double fillRatio) {
+        this.quickTxBuilder = quickTxBuilder;
+        this.feePayer = feePayer;
+        this.feePayerSigner = feePayerSigner;
+        this.maxIntentsPerBatch = maxIntentsPerBatch;
+        this.fillRatio = fillRatio;
+        this.maxTxSize = protocolParams.getMaxTxSize();
+        this.maxTxExMem = new BigInteger(protocolParams.getMaxTxExMem());
+        this.maxTxExSteps = new BigInteger(protocolParams.getMaxTxExSteps());
+    }
+
+    /**
+     * Runs the given step on every balanced batch before it is signed, e.g. a
+     * {@code TxOptimizer} pass. The size estimates leave it out.
+     */
+    public TxBatcher postBalanceTx(TxBuilder postBalanceTx) {
+        this.postBalanceTx = postBalanceTx;
+        return this;
+    }
+
+    /**
+     * Queues an intent.
+     *
+     * @param intent The action to include in one of the next batches.
+     * @return Future completed with the result of the transaction the intent
+     *         ended up in.
+     */
+    public CompletableFuture<TxResult> submit(Intent intent) {
+        CompletableFuture<TxResult> future = new CompletableFuture<>();
+        boolean full;
+        synchronized (pending) {
+            pending.add(new Pending(intent, future));
+            full = pending.size() >= maxIntentsPerBatch;
+        }
+        if (full)
+            flush();
+        return future;
+    }
+
+    /**
+     * Packs and submits the queued intents on the worker thread, without
+     * waiting for them. After {@link #close()} the queued intents fail instead.
+     */
+    public void flush() {
+        try {
+            worker.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            List<Pending> rejected;
+            synchronized (pending) {
+                rejected = new ArrayList<>(pending);
+                pending.clear();
+            }
+            rejected.forEach(p -> p.future().completeExceptionally(
+                    new IllegalStateException("Intent %s was queued after the batcher was closed"
+                            .formatted(p.intent().label()), e)));
+        }
+    }
+
+    /**
+     * Packs and submits batches until the queue is empty. Runs on the worker
+     * thread only, so batches never race for the fee payer's UTxOs.
+     */
+    private void drain() {
+        while (true) {
+            Batch packed = pack();
+            List<Pending> batch = packed.intents();
+            if (batch.isEmpty())
+                return;
+
+            TxResult result;
+            // The fee of the transaction as submitted, after the post balance step
+            AtomicLong fee = new AtomicLong();
+            try {
+                result = context(batch)
+                        .postBalanceTx((context, transaction) -> {
+                            if (postBalanceTx != null)
+                                postBalanceTx.apply(context, transaction);
+                            fee.set(transaction.getBody().getFee().longValue());
+                        })
+                        .completeAndWait();
+            } catch (RuntimeException e) {
+                batch.forEach(p -> p.future().completeExceptionally(e));
+                continue;
+            }
+            if (result.isSuccessful()) {
+                submittedTxs.incrementAndGet();
+                submittedIntents.addAndGet(batch.size());
+                totalFee.addAndGet(fee.get());
+                totalFeeAlone.addAndGet(packed.feeAlone());
+            }
+            batch.forEach(p -> p.future().complete(result));
+        }
+    }
+
+    /**
+     * Takes the largest first-fit batch from the head of the queue.
+     */
+    private Batch pack() {
+        List<Pending> snapshot;
+        synchronized (pending) {
+            snapshot = new ArrayList<>(pending);
+        }
+
+        List<Pending> accepted = new ArrayList<>();
+        List<Pending> done = new ArrayList<>();
+        long size = 0;
+        BigInteger mem = BigInteger.ZERO;
+        BigInteger steps = BigInteger.ZERO;
+        long validFrom = 0;
+        long validTo = 0;
+        for (Pending candidate : snapshot) {
+            if (accepted.size() >= maxIntentsPerBatch)
+                break;
+
+            long from = Math.max(validFrom, candidate.intent().validFrom());
+            long to = validTo == 0 ? candidate.intent().validTo()
+                    : candidate.intent().validTo() == 0 ? validTo : Math.min(validTo, candidate.intent().validTo());
+            if (from > 0 && to > 0 && from >= to) {
+                if (accepted.isEmpty()) {
+                    candidate.future().completeExceptionally(new IllegalStateException(
+                            "Intent %s has an empty validity window".formatted(candidate.intent().label())));
+                    done.add(candidate);
+                }
+                continue; // Validity windows do not overlap, try in a later batch
+            }
+
+            Footprint footprint;
+            try {
+                footprint = footprint(candidate);
+            } catch (Exception e) {
+                // Alone it can never succeed
+                candidate.future().completeExceptionally(e);
+                done.add(candidate);
+                continue;
+            }
+            long estimate = accepted.isEmpty() ? footprint.size() : size + footprint.size() - sharedBytes;
+            if (fits(estimate, mem.add(footprint.mem()), steps.add(footprint.steps()), accepted.size() + 1)) {
+                accepted.add(candidate);
+                size = estimate;
+                mem = mem.add(footprint.mem());
+                steps = steps.add(footprint.steps());
+                validFrom = from;
+                validTo = to;
+            } else if (accepted.isEmpty()) {
+                candidate.future().completeExceptionally(new IllegalStateException(
+                        "Intent %s alone exceeds the transaction limits".formatted(candidate.intent().label())));
+                done.add(candidate);
+            }
+        }
+
+        // Intents dropped here conflict with others or the estimate was short,
+        // they stay queued and are retried at the head of the next batch
+        while (accepted.size() > 1 && !verify(accepted))
+            accepted.removeLast();
+        long feeAlone = accepted.stream().mapToLong(p -> footprints.get(p).fee()).sum();
+
+        done.addAll(accepted);
+        synchronized (pending) {
+            pending.removeAll(done);
+        }
+        done.forEach(footprints::remove);
+        return new Batch(accepted, feeAlone);
+    }
+
+    private Footprint footprint(Pending intent) throws Exception {
+        Footprint footprint = footprints.get(intent);
+        if (footprint == null) {
+            Transaction tx = build(List.of(intent));
+            BigInteger[] exUnits = exUnits(tx);
+            footprint = new Footprint(tx.serialize().length, exUnits[0], exUnits[1], tx.getBody().getFee().longValue());
+            footprints.put(intent, footprint);
+        }
+        return footprint;
+    }
+
+    /**
+     * Builds the packed batch and learns the bytes a batch shares from it.
+     *
+     * @return Whether the batch builds and fits.
+     */
+    private boolean verify(List<Pending> batch) {
+        Transaction tx;
+        long size;
+        try {
+            tx = build(batch);
+            size = tx.serialize().length;
+        } catch (Exception e) {
+            return false;
+        }
+        BigInteger[] exUnits = exUnits(tx);
+        if (!fits(size, exUnits[0], exUnits[1], batch.size()))
+            return false;
+        long alone = batch.stream().mapToLong(p -> footprints.get(p).size()).sum();
+        sharedBytes = Math.max(0, (alone - size) / (batch.size() - 1));
+        return true;
+    }
+
+    private Transaction build(List<Pending> batch) {
+        builds.incrementAndGet();
+        return context(batch).build();
+    }
+
+    private boolean fits(long size, BigInteger mem, BigInteger steps, int intents) {
+        return size + (long) WITNESS_SIZE_ESTIMATE * (intents + 1) <= maxTxSize * fillRatio
+                && mem.doubleValue() <= maxTxExMem.doubleValue() * fillRatio
+                && steps.doubleValue() <= maxTxExSteps.doubleValue() * fillRatio;
+    }
+
+    private static BigInteger[] exUnits(Transaction tx) {
+        BigInteger mem = BigInteger.ZERO;
+        BigInteger steps = BigInteger.ZERO;
+        List<Redeemer> redeemers = tx.getWitnessSet().getRedeemers();
+        if (redeemers != null) {
+            for (Redeemer redeemer : redeemers) {
+                mem = mem.add(redeemer.getExUnits().getMem());
+                steps = steps.add(redeemer.getExUnits().getSteps());
+            }
+        }
+        return new BigInteger[] { mem, steps };
+    }
+
+    private TxContext context(List<Pending> batch) {
+        List<AbstractTx<?>> txs = new ArrayList<>();
+        Tx payments = null;
+        for (Pending p : batch) {
+            Payment payment = p.intent().payment();
+            if (payment == null) {
+                txs.add(p.intent().tx());
+                continue;
+            }
+            if (payments == null) {
+                payments = new Tx().from(feePayer);
+                txs.add(payments);
+            }
+            if (payment.datum() == null)
+                payments.payToAddress(payment.address(), payment.amount());
+            else
+                payments.payToContract(payment.address(), payment.amount(), payment.datum());
+        }
+        TxContext context = quickTxBuilder.compose(txs.toArray(AbstractTx[]::new))
+                .feePayer(feePayer)
+                .withSigner(feePayerSigner);
+
+        Set<Address> requiredSigners = new LinkedHashSet<>();
+        for (Pending p : batch) {
+            if (p.intent().signer() != null)
+                context.withSigner(p.intent().signer());
+            requiredSigners.addAll(p.intent().requiredSigners());
+        }
+        if (!requiredSigners.isEmpty())
+            context.withRequiredSigners(requiredSigners.toArray(Address[]::new));
+
+        long validFrom = validFrom(batch);
+        long validTo = validTo(batch);
+        if (validFrom > 0)
+            context.validFrom(validFrom);
+        if (validTo > 0)
+            context.validTo(validTo);
+        return context;
+    }
+
+    private static long validFrom(List<Pending> batch) {
+        return batch.stream().mapToLong(p -> p.intent().validFrom()).max().orElse(0);
+    }
+
+    private static long validTo(List<Pending> batch) {
+        return batch.stream().mapToLong(p -> p.intent().validTo()).filter(v -> v > 0).min().orElse(0);
+    }
+
+    /**
+     * @return Transactions built so far for packing, alone or as a batch.
+     */
+    public long builds() {
+        return builds.get();
+    }
+
+    /**
+     * @return Confirmed transactions submitted so far.
+     */
+    public long transactions() {
+        return submittedTxs.get();
+    }
+
+    /**
+     * @return Lovelace the confirmed batches paid less than their intents would
+     *         have paid in transactions of their own, as built for packing.
+     */
+    public long feeSaved() {
+        return totalFeeAlone.get() - totalFee.get();
+    }
+
+    public void printStats() {
+        long txs = submittedTxs.get();
+        long intents = submittedIntents.get();
+        System.out.println("Batched %d intents into %d transactions (%.2f intents/tx) with %d builds, total fee %d lovelace, %d saved"
+                .formatted(intents, txs, txs == 0 ? 0.0 : (double) intents / txs, builds.get(), totalFee.get(),
+                        feeSaved()));
+    }
+
+    /**
+     * Submits what is still queued and waits until the last batch is done, so
+     * the final flush is not lost when the JVM exits right after.
+     */
+    @Override
+    public void close() {
+        flush();
+        worker.shutdown();
+        try {
+            while (!worker.awaitTermination(1, TimeUnit.MINUTES))
+                System.out.println("Waiting for the last batches to be submitted");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES TxBatcher.java
+//SOURCES LedgerFixture.java
+//SOURCES OfflineChain.java
+//SOURCES PerfHistory.java
+// @formatter:on
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import com.bloxbean.cardano.client.account.Account;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.common.model.Networks;
+import com.bloxbean.cardano.client.function.helper.SignerProviders;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+
+/**
+ * Queues growing numbers of independent payments from one wallet into a
+ * {@link TxBatcher} in front of an in-memory ledger that applies every
+ * submitted transaction, so each batch spends the change of the one before.
+ * <p>
+ * Checks that every payment lands in a confirmed batch that stays within the
+ * protocol size limit, and that packing builds about one transaction per
+ * intent instead of one per intent and position in its batch. Reports the time
+ * until all are confirmed and the intents per transaction.
+ * <p>
+ * Usage: {@code jbang TxBatcherBenchmark.java [intents...]}
+ */
+public class TxBatcherBenchmark {
+
+    static List<Integer> sizes = List.of(100, 400);
+    static Random random = new Random(11);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            sizes = List.of(args).stream().map(Integer::parseInt).toList();
+
+        PerfHistory.Recorder perf = new PerfHistory.Recorder("tx-batcher", null, PerfHistory.fromEnvironment());
+        System.out.println("| intents | transactions | intents per tx | builds | confirmed |");
+        System.out.println("|---:|---:|---:|---:|---:|");
+        for (int size : sizes) {
+            Run run = run(size);
+            System.out.println("| %,d | %,d | %.1f | %,d | %,d ms |".formatted(size, run.transactions(),
+                    (double) size / run.transactions(), run.builds(), run.millis()));
+            String step = "intents_" + size;
+            perf.record(step, "confirmed_ms", run.millis());
+            perf.record(step, "builds", run.builds());
+            perf.record(step, "intents_per_tx", (double) size / run.transactions());
+        }
+        perf.close();
+    }
+
+    record Run(long millis, int transactions, long builds) {
+    }
+
+    static Run run(int size) throws Exception {
+        Account wallet = new Account(Networks.testnet());
+        String walletAddress = wallet.baseAddress();
+        ProtocolParams protocolParams = OfflineChain.protocolParams();
+        List<Utxo> funds = new ArrayList<>();
+        OfflineChain.InMemoryUtxoSupplier generator = new OfflineChain.InMemoryUtxoSupplier();
+        for (int i = 0; i < 20; i++)
+            funds.add(generator.add(walletAddress, 10_000_000_000L));
+        RecordingLedger ledger = new RecordingLedger(funds);
+        QuickTxBuilder quickTxBuilder = new QuickTxBuilder(ledger, () -> protocolParams, ledger);
+
+        List<String> receivers = new ArrayList<>();
+        List<CompletableFuture<TxResult>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        TxBatcher batcher = new TxBatcher(protocolParams, quickTxBuilder, walletAddress,
+                SignerProviders.signerFrom(wallet), size, 0.9);
+        for (int i = 0; i < size; i++) {
+            String receiver = new Account(Networks.testnet()).baseAddress();
+            receivers.add(receiver);
+            results.add(batcher.submit(TxBatcher.Intent.payment("payment-" + i, receiver,
+                    Amount.lovelace(BigInteger.valueOf(2_000_000L + random.nextInt(8_000_000))))));
+        }
+        batcher.close();
+        CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).join();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        batcher.printStats();
+
+        for (int i = 0; i < size; i++) {
+            if (!results.get(i).join().isSuccessful())
+                throw new AssertionError("Payment %d failed: %s".formatted(i, results.get(i).join()));
+            if (ledger.getPage(receivers.get(i), 10, 0, null).isEmpty())
+                throw new AssertionError("Payment %d did not reach its receiver".formatted(i));
+        }
+        int largest = ledger.sizes.stream().mapToInt(Integer::intValue).max().orElse(0);
+        if (largest > protocolParams.getMaxTxSize())
+            throw new AssertionError("Batch of %d bytes exceeds the size limit".formatted(largest));
+        // Each intent alone once, plus one check per batch and a few dropped at a batch end
+        if (batcher.builds() > 2L * size)
+            throw new AssertionError("%d builds for %d intents".formatted(batcher.builds(), size));
+        return new Run(millis, ledger.sizes.size(), batcher.builds());
+    }
+
+    /**
+     * Stand-in ledger that also keeps the size of every transaction it applied.
+     */
+    static class RecordingLedger extends LedgerFixture.StandInLedger {
+
+        final List<Integer> sizes = new ArrayList<>();
+
+        RecordingLedger(List<Utxo> utxos) {
+            super(utxos, null);
+        }
+
+        @Override
+        public synchronized Result<String> submitTransaction(byte[] cbor) {
+            Result<String> result = super.submitTransaction(cbor);
+            if (result.isSuccessful())
+                sizes.add(cbor.length);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+// @formatter:on
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.bloxbean.cardano.client.address.Address;
+import com.bloxbean.cardano.client.api.TransactionEvaluator;
+import com.bloxbean.cardano.client.api.model.EvaluationResult;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.api.util.CostModelUtil;
+import com.bloxbean.cardano.client.api.util.UtxoUtil;
+import com.bloxbean.cardano.client.function.TxBuilder;
+import com.bloxbean.cardano.client.function.TxBuilderContext;
+import com.bloxbean.cardano.client.plutus.spec.CostMdls;
+import com.bloxbean.cardano.client.plutus.spec.ExUnits;
+import com.bloxbean.cardano.client.plutus.spec.Language;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.Redeemer;
+import com.bloxbean.cardano.client.plutus.util.ScriptDataHashGenerator;
+import com.bloxbean.cardano.client.spec.Era;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.spec.TransactionBody;
+import com.bloxbean.cardano.client.transaction.spec.TransactionOutput;
+import com.bloxbean.cardano.client.transaction.spec.TransactionWitnessSet;
+import com.bloxbean.cardano.client.transaction.spec.Value;
+
+/**
+ * An optional pass over a balanced transaction before it is signed, which
+ * removes bytes {@code QuickTxBuilder} leaves in and lowers the fee by them.
+ * <p>
+ * Registered with {@code postBalanceTx(optimizer.pass(step, feePayer))}, it
+ * <ul>
+ * <li>merges outputs to the same key address with the same datum and
+ * reference script, e.g. a payment to the fee payer and its change;</li>
+ * <li>inlines datums from the witness set where that is smaller, at a script
+ * address always, since the spender needs the datum and a hash only adds 34
+ * bytes, and at a key address if the datum is not larger than the hash.
+ * Inline datums are kept as they are, so no datum leaves the chain;</li>
+ * <li>drops duplicate required signers and script or datum witnesses;</li>
+ * <li>only if enabled with {@code TX_OPTIMIZER_TRIM_SIGNERS=on}, drops all
+ * required signers of a transaction without Plutus scripts, and any required
+ * signer that signs for an input anyway and without which every script still
+ * succeeds. That changes what the transaction authorises, so it is off by
+ * default;</li>
+ * <li>re-minimises the change: the fee is lowered by the size price of the
+ * bytes saved and the script fee of the re-evaluated ex-units, and the
+ * difference goes to the fee payer's change.</li>
+ * </ul>
+ * Script outputs are never merged or reordered. Whenever a script runs, the
+ * optimised transaction is evaluated again with the evaluator of the build,
+ * and the ex-units and the script data hash are updated. If it fails, or
+ * would cost more, the transaction is left as balanced. The reports give the
+ * bytes and the fee saved per transaction.
+ */
+public class TxOptimizer {
+
+    // A datum hash in an output, 32 bytes with their CBOR header
+    static final int DATUM_HASH_BYTES = 34;
+    // Rounds of evaluation and fee adjustment until the ex-units are stable
+    static final int ROUNDS = 3;
+
+    public record Report(String step, int bytesBefore, int bytesAfter, BigInteger feeBefore, BigInteger feeAfter,
+            List<String> changes) {
+
+        public int bytesSaved() {
+            return bytesBefore - bytesAfter;
+        }
+
+        public BigInteger feeSaved() {
+            return feeBefore.subtract(feeAfter);
+        }
+    }
+
+    // The parts of a transaction the pass replaces, restored if it fails
+    private record Snapshot(List<TransactionOutput> outputs, List<byte[]> requiredSigners, BigInteger fee,
+            byte[] scriptDataHash, List<Redeemer> redeemers, List<PlutusData> datums, TransactionWitnessSet scripts) {
+
+        static Snapshot of(Transaction transaction) {
+            TransactionBody body = transaction.getBody();
+            TransactionWitnessSet witnessSet = transaction.getWitnessSet();
+            TransactionWitnessSet scripts = new TransactionWitnessSet();
+            scripts.setNativeScripts(copy(witnessSet.getNativeScripts()));
+            scripts.setPlutusV1Scripts(copy(witnessSet.getPlutusV1Scripts()));
+            scripts.setPlutusV2Scripts(copy(witnessSet.getPlutusV2Scripts()));
+            scripts.setPlutusV3Scripts(copy(witnessSet.getPlutusV3Scripts()));
+            return new Snapshot(copy(body.getOutputs()), copy(body.getRequiredSigners()), body.getFee(),
+                    body.getScriptDataHash(), copy(witnessSet.getRedeemers()), copy(witnessSet.getPlutusDataList()),
+                    scripts);
+        }
+
+        void restore(Transaction transaction) {
+            TransactionBody body = transaction.getBody();
+            TransactionWitnessSet witnessSet = transaction.getWitnessSet();
+            body.setOutputs(copy(outputs));
+            body.setRequiredSigners(copy(requiredSigners));
+            body.setFee(fee);
+            body.setScriptDataHash(scriptDataHash);
+            witnessSet.setRedeemers(copy(redeemers));
+            witnessSet.setPlutusDataList(copy(datums));
+            witnessSet.setNativeScripts(copy(scripts.getNativeScripts()));
+            witnessSet.setPlutusV1Scripts(copy(scripts.getPlutusV1Scripts()));
+            witnessSet.setPlutusV2Scripts(copy(scripts.getPlutusV2Scripts()));
+            witnessSet.setPlutusV3Scripts(copy(scripts.getPlutusV3Scripts()));
+        }
+
+        private static <T> List<T> copy(List<T> list) {
+            return list == null ? null : new ArrayList<>(list);
+        }
+    }
+
+    private final boolean enabled;
+    // Dropping required signers changes what the transaction authorises, so it is opt-in
+    private final boolean trimSigners;
+    private final List<Report> reports = new ArrayList<>();
+
+    public TxOptimizer(boolean enabled) {
+        this(enabled, false);
+    }
+
+    /**
+     * @param trimSigners Whether required signers that no script checks are
+     *                    dropped, not only duplicates.
+     */
+    public TxOptimizer(boolean enabled, boolean trimSigners) {
+        this.enabled = enabled;
+        this.trimSigners = trimSigners;
+    }
+
+    /**
+     * @return An optimizer unless {@code TX_OPTIMIZER} is {@code off}, for
+     *         comparing runs with and without it, which only drops required
+     *         signers if {@code TX_OPTIMIZER_TRIM_SIGNERS} is {@code on}.
+     */
+    public static TxOptimizer fromEnvironment() {
+        return new TxOptimizer(!"off".equalsIgnoreCase(System.getenv("TX_OPTIMIZER")),
+                "on".equalsIgnoreCase(System.getenv("TX_OPTIMIZER_TRIM_SIGNERS")));
+    }
+
+    /**
+     * @param step     Name of the transaction in the reports.
+     * @param feePayer Address whose change output receives the fee saved.
+     */
+    public TxBuilder pass(String step, String feePayer) {
+        return (context, transaction) -> {
+            if (enabled) {
+                optimise(step, feePayer, context, transaction);
+            } else {
+                // Still reported, so the sizes and fees of runs without it can be compared
+                int bytes = size(transaction);
+                BigInteger fee = transaction.getBody().getFee();
+                report(new Report(step, bytes, bytes, fee, fee, List.of()));
+            }
+        };
+    }
+
+    void optimise(String step, String feePayer, TxBuilderContext context, Transaction transaction) {
+        Snapshot snapshot = Snapshot.of(transaction);
+        List<String> changes = new ArrayList<>();
+        int bytesBefore = size(transaction);
+        BigInteger feeBefore = transaction.getBody().getFee();
+        boolean scripted = !redeemers(transaction).isEmpty();
+        try {
+            CostMdls costMdls = costMdls(context, transaction);
+            if (scripted && !Arrays.equals(transaction.getBody().getScriptDataHash(), scriptDataHash(transaction, costMdls)))
+                throw new IllegalStateException("script data hash of the build cannot be reproduced");
+
+            mergeOutputs(transaction, changes);
+            chooseDatums(transaction, context, changes);
+            dedupeWitnesses(transaction, changes);
+            trimSigners(transaction, context, costMdls, changes);
+            if (changes.isEmpty()) {
+                report(new Report(step, bytesBefore, bytesBefore, feeBefore, feeBefore, List.of()));
+                return;
+            }
+
+            BigInteger scriptFeeBefore = scriptFee(snapshot.redeemers(), context.getProtocolParams());
+            for (int round = 0;; round++) {
+                boolean stable = !scripted || evaluate(transaction, context, costMdls);
+                BigInteger fee = feeBefore
+                        .subtract(BigInteger.valueOf(context.getProtocolParams().getMinFeeA()
+                                * (long) (bytesBefore - size(transaction))))
+                        .subtract(scriptFeeBefore.subtract(scriptFee(redeemers(transaction), context.getProtocolParams())));
+                // A pass that makes the transaction more expensive is rolled back, not paid for by a capped fee
+                if (fee.compareTo(feeBefore) > 0)
+                    throw new IllegalStateException("fee would rise to " + fee);
+                stable &= fee.equals(transaction.getBody().getFee());
+                if (!setFee(transaction, feePayer, fee))
+                    break;
+                if (stable)
+                    break;
+                if (round == ROUNDS)
+                    throw new IllegalStateException("ex-units did not settle");
+            }
+            report(new Report(step, bytesBefore, size(transaction), feeBefore, transaction.getBody().getFee(), changes));
+        } catch (RuntimeException e) {
+            snapshot.restore(transaction);
+            report(new Report(step, bytesBefore, bytesBefore, feeBefore, feeBefore, List.of("kept: " + e.getMessage())));
+        }
+    }
+
+    /**
+     * Merges outputs to the same key address with the same datum and reference
+     * script into the first of them.
+     */
+    private void mergeOutputs(Transaction transaction, List<String> changes) {
+        List<TransactionOutput> outputs = transaction.getBody().getOutputs();
+        Map<String, Integer> first = new LinkedHashMap<>();
+        List<TransactionOutput> merged = new ArrayList<>();
+        for (TransactionOutput output : outputs) {
+            if (isScript(output.getAddress())) {
+                merged.add(output);
+                continue;
+            }
+            String key = output.getAddress() + "|" + hex(output.getDatumHash()) + "|"
+                    + (output.getInlineDatum() == null ? "" : output.getInlineDatum().serializeToHex()) + "|"
+                    + hex(output.getScriptRef());
+            Integer index = first.get(key);
+            if (index == null) {
+                first.put(key, merged.size());
+                merged.add(output);
+            } else {
+                TransactionOutput into = merged.get(index);
+                merged.set(index, with(into, into.getValue().add(output.getValue())));
+                changes.add("merged output to " + shortAddress(output.getAddress()));
+            }
+        }
+        transaction.getBody().setOutputs(merged);
+    }
+
+    private void chooseDatums(Transaction transaction, TxBuilderContext context, List<String> changes) {
+        List<TransactionOutput> outputs = transaction.getBody().getOutputs();
+        List<PlutusData> witnessDatums = transaction.getWitnessSet().getPlutusDataList();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            boolean script = isScript(output.getAddress());
+            if (output.getDatumHash() != null && witnessDatums != null) {
+                PlutusData datum = witnessDatums.stream()
+                        .filter(data -> Arrays.equals(data.getDatumHashAsBytes(), output.getDatumHash()))
+                        .findFirst()
+                        .orElse(null);
+                if (datum == null || (!script && datum.serializeToBytes().length > DATUM_HASH_BYTES - 2))
+                    continue;
+                outputs.set(i, new TransactionOutput(output.getAddress(), output.getValue(), null, datum,
+                        output.getScriptRef()));
+                changes.add("inline datum instead of datum hash at " + shortAddress(output.getAddress()));
+            }
+        }
+        // Witness datums are only needed for spent inputs and outputs with their hash
+        if (witnessDatums != null) {
+            List<PlutusData> needed = witnessDatums.stream()
+                    .filter(datum -> referenced(datum, transaction, context))
+                    .toList();
+            transaction.getWitnessSet().setPlutusDataList(needed.isEmpty() ? null : new ArrayList<>(needed));
+        }
+    }
+
+    private static boolean referenced(PlutusData datum, Transaction transaction, TxBuilderContext context) {
+        String hash = datum.getDatumHash();
+        return transaction.getBody().getOutputs().stream()
+                .anyMatch(output -> output.getDatumHash() != null && hash.equals(hex(output.getDatumHash())))
+                || context.getUtxos().stream().anyMatch(utxo -> hash.equals(utxo.getDataHash()) && utxo.getInlineDatum() == null);
+    }
+
+    private void dedupeWitnesses(Transaction transaction, List<String> changes) {
+        TransactionWitnessSet witnessSet = transaction.getWitnessSet();
+        witnessSet.setNativeScripts(distinct(witnessSet.getNativeScripts(), "native script", changes));
+        witnessSet.setPlutusV1Scripts(distinct(witnessSet.getPlutusV1Scripts(), "Plutus V1 script", changes));
+        witnessSet.setPlutusV2Scripts(distinct(witnessSet.getPlutusV2Scripts(), "Plutus V2 script", changes));
+        witnessSet.setPlutusV3Scripts(distinct(witnessSet.getPlutusV3Scripts(), "Plutus V3 script", changes));
+        List<PlutusData> datums = witnessSet.getPlutusDataList();
+        if (datums != null) {
+            Map<String, PlutusData> byHash = new LinkedHashMap<>();
+            datums.forEach(datum -> byHash.putIfAbsent(datum.getDatumHash(), datum));
+            if (byHash.size() < datums.size()) {
+                changes.add("removed %d duplicate datum witnesses".formatted(datums.size() - byHash.size()));
+                witnessSet.setPlutusDataList(new ArrayList<>(byHash.values()));
+            }
+        }
+    }
+
+    private static <T> List<T> distinct(List<T> list, String what, List<String> changes) {
+        if (list == null)
+            return null;
+        List<T> distinct = list.stream().distinct().toList();
+        if (distinct.size() < list.size())
+            changes.add("removed %d duplicate %s witnesses".formatted(list.size() - distinct.size(), what));
+        return new ArrayList<>(distinct);
+    }
+
+    private void trimSigners(Transaction transaction, TxBuilderContext context, CostMdls costMdls,
+            List<String> changes) {
+        TransactionBody body = transaction.getBody();
+        if (body.getRequiredSigners() == null || body.getRequiredSigners().isEmpty())
+            return;
+        Map<String, byte[]> signers = new LinkedHashMap<>();
+        body.getRequiredSigners().forEach(signer -> signers.putIfAbsent(hex(signer), signer));
+        if (signers.size() < body.getRequiredSigners().size())
+            changes.add("removed %d duplicate required signers".formatted(body.getRequiredSigners().size() - signers.size()));
+        if (!trimSigners) {
+            body.setRequiredSigners(new ArrayList<>(signers.values()));
+            return;
+        }
+        if (redeemers(transaction).isEmpty()) {
+            changes.add("removed %d required signers, no Plutus script runs".formatted(signers.size()));
+            body.setRequiredSigners(null);
+            return;
+        }
+        body.setRequiredSigners(new ArrayList<>(signers.values()));
+        // Only keys that sign for an input or collateral anyway, so the witnesses stay the same
+        Set<String> owners = UtxoUtil.getOwnerPubKeyHashes(context.getAllUtxos());
+        for (String signer : List.copyOf(signers.keySet())) {
+            if (!owners.contains(signer))
+                continue;
+            List<byte[]> without = new ArrayList<>(body.getRequiredSigners());
+            without.removeIf(key -> hex(key).equals(signer));
+            List<byte[]> with = body.getRequiredSigners();
+            body.setRequiredSigners(without.isEmpty() ? null : without);
+            if (succeeds(transaction, context, costMdls))
+                changes.add("removed required signer " + signer.substring(0, 8) + ", no script checks it");
+            else
+                body.setRequiredSigners(with);
+        }
+    }
+
+    private static boolean succeeds(Transaction transaction, TxBuilderContext context, CostMdls costMdls) {
+        try {
+            transaction.getBody().setScriptDataHash(scriptDataHash(transaction, costMdls));
+            Result<List<EvaluationResult>> result = evaluator(context).evaluateTx(transaction.serialize(),
+                    context.getAllUtxos());
+            return result.isSuccessful();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Evaluates the transaction and sets its ex-units and script data hash.
+     *
+     * @return Whether the ex-units were already those of the evaluation.
+     */
+    private static boolean evaluate(Transaction transaction, TxBuilderContext context, CostMdls costMdls) {
+        try {
+            transaction.getBody().setScriptDataHash(scriptDataHash(transaction, costMdls));
+            Result<List<EvaluationResult>> result = evaluator(context).evaluateTx(transaction.serialize(),
+                    context.getAllUtxos());
+            if (!result.isSuccessful())
+                throw new IllegalStateException("evaluation failed: " + result.getResponse());
+            boolean stable = true;
+            List<Redeemer> redeemers = new ArrayList<>();
+            for (Redeemer redeemer : redeemers(transaction)) {
+                EvaluationResult evaluation = result.getValue().stream()
+                        .filter(e -> e.getRedeemerTag() == redeemer.getTag()
+                                && e.getIndex() == redeemer.getIndex().intValue())
+                        .findFirst()
+                        .orElseThrow(() -> new IllegalStateException("no ex-units for redeemer " + redeemer.getIndex()));
+                stable &= evaluation.getExUnits().equals(redeemer.getExUnits());
+                redeemers.add(new Redeemer(redeemer.getTag(), redeemer.getIndex(), redeemer.getData(),
+                        evaluation.getExUnits()));
+            }
+            transaction.getWitnessSet().setRedeemers(redeemers);
+            transaction.getBody().setScriptDataHash(scriptDataHash(transaction, costMdls));
+            return stable;
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("evaluation failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static TransactionEvaluator evaluator(TxBuilderContext context) {
+        if (context.getTxnEvaluator() == null)
+            throw new IllegalStateException("no evaluator to check the scripts");
+        return context.getTxnEvaluator();
+    }
+
+    /**
+     * Sets the fee and gives the difference to the last output of the fee
+     * payer without datum.
+     *
+     * @return False if there is no such output, the fee stays as balanced.
+     */
+    private static boolean setFee(Transaction transaction, String feePayer, BigInteger fee) {
+        TransactionBody body = transaction.getBody();
+        BigInteger difference = body.getFee().subtract(fee);
+        List<TransactionOutput> outputs = body.getOutputs();
+        for (int i = outputs.size() - 1; i >= 0; i--) {
+            TransactionOutput output = outputs.get(i);
+            if (output.getAddress().equals(feePayer) && output.getDatumHash() == null && output.getInlineDatum() == null) {
+                outputs.set(i, with(output, output.getValue().addCoin(difference)));
+                body.setFee(fee);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static TransactionOutput with(TransactionOutput output, Value value) {
+        return new TransactionOutput(output.getAddress(), value, output.getDatumHash(), output.getInlineDatum(),
+                output.getScriptRef());
+    }
+
+    private static int size(Transaction transaction) {
+        try {
+            return transaction.serialize().length;
+        } catch (Exception e) {
+            throw new IllegalStateException("cannot serialise: " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] scriptDataHash(Transaction transaction, CostMdls costMdls) {
+        List<Redeemer> redeemers = redeemers(transaction);
+        List<PlutusData> datums = transaction.getWitnessSet().getPlutusDataList();
+        if (redeemers.isEmpty() && (datums == null || datums.isEmpty()))
+            return null;
+        try {
+            return ScriptDataHashGenerator.generate(Era.Conway, redeemers, datums == null ? List.of() : datums,
+                    redeemers.isEmpty() ? new CostMdls() : costMdls);
+        } catch (Exception e) {
+            throw new IllegalStateException("script data hash: " + e.getMessage(), e);
+        }
+    }
+
+    private static CostMdls costMdls(TxBuilderContext context, Transaction transaction) {
+        if (context.getCostMdls() != null)
+            return context.getCostMdls();
+        TransactionWitnessSet witnessSet = transaction.getWitnessSet();
+        Set<Language> languages = EnumSet.noneOf(Language.class);
+        if (witnessSet.getPlutusV1Scripts() != null && !witnessSet.getPlutusV1Scripts().isEmpty())
+            languages.add(Language.PLUTUS_V1);
+        if (witnessSet.getPlutusV2Scripts() != null && !witnessSet.getPlutusV2Scripts().isEmpty())
+            languages.add(Language.PLUTUS_V2);
+        // Reference scripts are not visible in the witness set, the examples use V3
+        if (witnessSet.getPlutusV3Scripts() != null && !witnessSet.getPlutusV3Scripts().isEmpty() || languages.isEmpty())
+            languages.add(Language.PLUTUS_V3);
+        CostMdls costMdls = new CostMdls();
+        for (Language language : languages)
+            CostModelUtil.getCostModelFromProtocolParams(context.getProtocolParams(), language).ifPresent(costMdls::add);
+        return costMdls;
+    }
+
+    private static BigInteger scriptFee(List<Redeemer> redeemers, ProtocolParams protocolParams) {
+        if (redeemers == null)
+            return BigInteger.ZERO;
+        BigInteger mem = BigInteger.ZERO;
+        BigInteger steps = BigInteger.ZERO;
+        for (Redeemer redeemer : redeemers) {
+            mem = mem.add(redeemer.getExUnits().getMem());
+            steps = steps.add(redeemer.getExUnits().getSteps());
+        }
+        return protocolParams.getPriceMem().multiply(new BigDecimal(mem))
+                .add(protocolParams.getPriceStep().multiply(new BigDecimal(steps)))
+                .setScale(0, RoundingMode.CEILING).toBigInteger();
+    }
+
+    private static List<Redeemer> redeemers(Transaction transaction) {
+        List<Redeemer> redeemers = transaction.getWitnessSet().getRedeemers();
+        return redeemers == null ? List.of() : redeemers;
+    }
+
+    private static boolean isScript(String address) {
+        try {
+            return new Address(address).isScriptHashInPaymentPart();
+        } catch (Exception e) {
+            // Byron addresses have no script part
+            return false;
+        }
+    }
+
+    private static String shortAddress(String address) {
+        return address.length() > 20 ? address.substring(0, 12) + "..." + address.substring(address.length() - 6)
+                : address;
+    }
+
+    private static String hex(byte[] bytes) {
+        return bytes == null ? "" : HexFormat.of().formatHex(bytes);
+    }
+
+    private void report(Report report) {
+        synchronized (reports) {
+            reports.add(report);
+        }
+    }
+
+    public List<Report> reports() {
+        synchronized (reports) {
+            return List.copyOf(reports);
+        }
+    }
+
+    public long bytesSaved() {
+        return reports().stream().mapToLong(Report::bytesSaved).sum();
+    }
+
+    public BigInteger feeSaved() {
+        return reports().stream().map(Report::feeSaved).reduce(BigInteger.ZERO, BigInteger::add);
+    }
+
+    /**
+     * @return The bytes of all reported transactions after the pass, lower is
+     *         better, unlike {@link #bytesSaved()}.
+     */
+    public long sizeBytes() {
+        return reports().stream().mapToLong(Report::bytesAfter).sum();
+    }
+
+    /**
+     * @return The fees of all reported transactions after the pass.
+     */
+    public BigInteger feeLovelace() {
+        return reports().stream().map(Report::feeAfter).reduce(BigInteger.ZERO, BigInteger::add);
+    }
+
+    public void printStats() {
+        if (!enabled) {
+            System.out.println("Tx optimizer: off");
+            return;
+        }
+        for (Report report : reports())
+            System.out.println("Tx optimizer %s: %d -> %d bytes, fee %s -> %s lovelace%s".formatted(report.step(),
+                    report.bytesBefore(), report.bytesAfter(), report.feeBefore(), report.feeAfter(),
+                    report.changes().isEmpty() ? "" : ", " + String.join("; ", report.changes())));
+        System.out.println("Tx optimizer: %d bytes and %s lovelace saved over %d transactions".formatted(bytesSaved(),
+                feeSaved(), reports().size()));
+    }
+}
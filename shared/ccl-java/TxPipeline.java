@@ -0,0 +1,316 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES BlockWatcher.java
+// @formatter:on
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.bloxbean.cardano.client.api.common.OrderEnum;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.model.AddressTransactionContent;
+import com.bloxbean.cardano.client.backend.model.Block;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.quicktx.TxStatus;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.util.TransactionUtil;
+
+/**
+ * Non-blocking replacement for {@code completeAndWait()}: builds and signs,
+ * submits and awaits the confirmation of a transaction as a chain of
+ * {@link CompletionStage}s, one per step.
+ * <p>
+ * Building and submitting run on virtual threads, as both are blocking calls
+ * of the backend. A submitted transaction does not hold a thread at all while
+ * it waits for a block: it is registered under an address it spends from,
+ * usually the fee payer, and on every block of the {@link BlockWatcher} the
+ * transactions of each address with pending transactions in the new blocks
+ * are fetched once and matched against them. The backend calls per block
+ * grow with the number of addresses, not with the number of transactions in
+ * flight, unlike the per-transaction status polling of
+ * {@code completeAndWait()}.
+ * <p>
+ * Transactions in flight from the same address at the same time have to
+ * spend different UTxOs, e.g. by splitting the funds first; the pipeline
+ * does not coordinate the coin selection of concurrent builds. Rollbacks are
+ * not tracked, {@link TxSubmitter} resubmits for that.
+ */
+public class TxPipeline implements AutoCloseable {
+
+    /**
+     * Builds and signs the transaction, e.g. {@code context::buildAndSign}.
+     */
+    @FunctionalInterface
+    public interface Build {
+        Transaction build() throws Exception;
+    }
+
+    /**
+     * The steps of one transaction. {@code built} and {@code submitted} fail
+     * exceptionally if their step fails; {@code confirmed} always completes
+     * with a {@link TxResult}, like {@code completeAndWait()}, that is
+     * {@link TxStatus#CONFIRMED}, {@link TxStatus#FAILED} or
+     * {@link TxStatus#TIMEOUT}.
+     */
+    public record InFlight(CompletionStage<Transaction> built, CompletionStage<String> submitted,
+            CompletionStage<TxResult> confirmed) {
+    }
+
+    // A submitted transaction waiting for its block
+    private static final class Pending {
+        final String txHash;
+        final CompletableFuture<TxResult> confirmed;
+        // Tip when it was submitted, -1 until the first block if there was none
+        long since;
+        long includedHeight = -1;
+
+        Pending(String txHash, long since, CompletableFuture<TxResult> confirmed) {
+            this.txHash = txHash;
+            this.since = since;
+            this.confirmed = confirmed;
+        }
+    }
+
+    // The pending transactions of one address and how far its transactions were fetched
+    private static final class Watched {
+        final Map<String, Pending> pending = new ConcurrentHashMap<>();
+        long scannedHeight = -1;
+
+        synchronized void add(Pending entry) {
+            // A block scanned while the transaction was submitted may already contain it
+            if (pending.isEmpty() || entry.since < scannedHeight)
+                scannedHeight = entry.since;
+            pending.put(entry.txHash, entry);
+        }
+
+        // @return The first height to fetch, the range up to the given height is then taken
+        synchronized long claim(long height) {
+            long from = scannedHeight < 0 ? height : scannedHeight + 1;
+            scannedHeight = height;
+            return from;
+        }
+
+        synchronized void rewind(long from) {
+            scannedHeight = Math.min(scannedHeight, from - 1);
+        }
+    }
+
+    private final BackendService backendService;
+    private final BlockWatcher blockWatcher;
+    private final int confirmationDepth;
+    private final int inclusionBlocks;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Watched> addresses = new ConcurrentHashMap<>();
+    private final Consumer<Block> listener = this::onBlock;
+
+    private final AtomicLong built = new AtomicLong();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong peakInFlight = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong scans = new AtomicLong();
+    private final List<Long> latencies = new ArrayList<>();
+
+    /**
+     * Confirms a transaction as soon as it is in a block, like
+     * {@code completeAndWait()}, and gives up after 60 blocks.
+     */
+    public TxPipeline(BackendService backendService, BlockWatcher blockWatcher) {
+        this(backendService, blockWatcher, 0, 60);
+    }
+
+    /**
+     * @param backendService    The backend to submit to and to fetch the
+     *                          transactions of the watched addresses from.
+     * @param blockWatcher      The shared watcher whose blocks confirm.
+     * @param confirmationDepth Number of blocks on top of the including block
+     *                          before a transaction counts as confirmed.
+     * @param inclusionBlocks   Number of blocks after the submission after
+     *                          which a transaction that is not on chain counts
+     *                          as dropped.
+     */
+    public TxPipeline(BackendService backendService, BlockWatcher blockWatcher, int confirmationDepth,
+            int inclusionBlocks) {
+        this.backendService = backendService;
+        this.blockWatcher = blockWatcher;
+        this.confirmationDepth = confirmationDepth;
+        this.inclusionBlocks = inclusionBlocks;
+        blockWatcher.addListener(listener);
+    }
+
+    /**
+     * Builds, signs, submits and confirms a composed transaction, e.g.
+     * {@code quickTxBuilder.compose(tx).feePayer(address).withSigner(signer)}.
+     *
+     * @param address An address the transaction spends from, usually the fee
+     *                payer.
+     */
+    public InFlight submit(String address, QuickTxBuilder.TxContext context) {
+        return submit(address, context::buildAndSign);
+    }
+
+    /**
+     * Builds, submits and confirms a transaction without blocking the caller.
+     *
+     * @param address An address the transaction spends from, usually the fee
+     *                payer. Its transactions are fetched on every block while
+     *                the transaction is pending.
+     */
+    public InFlight submit(String address, Build build) {
+        CompletableFuture<TxResult> confirmedStage = new CompletableFuture<>();
+        CompletableFuture<Transaction> builtStage = CompletableFuture.supplyAsync(() -> {
+            try {
+                Transaction transaction = build.build();
+                built.incrementAndGet();
+                return transaction;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+
+        CompletableFuture<String> submittedStage = builtStage.thenApplyAsync(transaction -> {
+            try {
+                byte[] cbor = transaction.serialize();
+                String txHash = TransactionUtil.getTxHash(cbor);
+                long since = tipHeight();
+                Result<String> result = backendService.getTransactionService().submitTransaction(cbor);
+                if (!result.isSuccessful())
+                    throw new ApiException("Submit failed: " + result.getResponse());
+                submitted.incrementAndGet();
+                track(address, new Pending(txHash, since, confirmedStage));
+                return txHash;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+
+        submittedStage.exceptionally(e -> {
+            failed.incrementAndGet();
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            confirmedStage.complete(result(null, TxStatus.FAILED, String.valueOf(cause.getMessage())));
+            return null;
+        });
+        return new InFlight(builtStage, submittedStage, confirmedStage);
+    }
+
+    private void track(String address, Pending entry) {
+        long now = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(now, Math::max);
+        addresses.computeIfAbsent(address, a -> new Watched()).add(entry);
+    }
+
+    private long tipHeight() {
+        Block tip = blockWatcher.getTip();
+        return tip == null ? -1 : tip.getHeight();
+    }
+
+    private void onBlock(Block block) {
+        long height = block.getHeight();
+        blocks.incrementAndGet();
+        for (Map.Entry<String, Watched> address : addresses.entrySet()) {
+            Watched watched = address.getValue();
+            if (watched.pending.isEmpty())
+                continue;
+            long from = watched.claim(height);
+            try {
+                scan(address.getKey(), watched, from, height);
+            } catch (ApiException | RuntimeException e) {
+                // Fetched again with the next block
+                watched.rewind(from);
+                System.out.println("Tx pipeline scan of %s failed: %s".formatted(address.getKey(), e.getMessage()));
+            }
+            for (Pending entry : watched.pending.values()) {
+                if (entry.since < 0)
+                    entry.since = height - 1;
+                if (entry.includedHeight >= 0 && height - entry.includedHeight >= confirmationDepth)
+                    complete(watched, entry, TxStatus.CONFIRMED, null, height);
+                else if (entry.includedHeight < 0 && height - entry.since > inclusionBlocks)
+                    complete(watched, entry, TxStatus.TIMEOUT,
+                            "Transaction %s dropped".formatted(entry.txHash), height);
+            }
+        }
+    }
+
+    private void scan(String address, Watched watched, long from, long to) throws ApiException {
+        for (int page = 1;; page++) {
+            scans.incrementAndGet();
+            Result<List<AddressTransactionContent>> txs = backendService.getAddressService().getTransactions(address,
+                    100, page, OrderEnum.asc, Long.toString(from), Long.toString(to));
+            if (!txs.isSuccessful() || txs.getValue() == null)
+                throw new ApiException("Transactions of %s: %s".formatted(address, txs.getResponse()));
+            for (AddressTransactionContent tx : txs.getValue()) {
+                Pending entry = watched.pending.get(tx.getTxHash());
+                if (entry != null && entry.includedHeight < 0)
+                    entry.includedHeight = tx.getBlockHeight();
+            }
+            if (txs.getValue().size() < 100)
+                return;
+        }
+    }
+
+    private void complete(Watched watched, Pending entry, TxStatus status, String message, long height) {
+        if (watched.pending.remove(entry.txHash) == null)
+            return;
+        inFlight.decrementAndGet();
+        if (status == TxStatus.CONFIRMED) {
+            confirmed.incrementAndGet();
+            synchronized (latencies) {
+                latencies.add(height - entry.since);
+            }
+        } else {
+            timedOut.incrementAndGet();
+        }
+        // Off the watcher thread, so dependent stages cannot hold up the next block
+        TxResult result = result(entry.txHash, status, message);
+        executor.execute(() -> entry.confirmed.complete(result));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TxResult result(String txHash, TxStatus status, String message) {
+        Result<String> result = status == TxStatus.CONFIRMED ? Result.success(txHash) : Result.error(message);
+        return TxResult.fromResult(result.withValue(txHash)).withTxStatus(status);
+    }
+
+    public long inFlight() {
+        return inFlight.get();
+    }
+
+    public void printStats() {
+        Map<Long, Integer> histogram = new LinkedHashMap<>();
+        synchronized (latencies) {
+            latencies.stream().sorted().forEach(latency -> histogram.merge(latency, 1, Integer::sum));
+        }
+        System.out.println("Tx pipeline: %d built, %d submitted, %d confirmed, %d failed, %d timed out, peak %d in flight, %d address fetches for %d blocks, submit-to-confirm blocks %s"
+                .formatted(built.get(), submitted.get(), confirmed.get(), failed.get(), timedOut.get(),
+                        peakInFlight.get(), scans.get(), blocks.get(), histogram));
+    }
+
+    @Override
+    public void close() {
+        blockWatcher.removeListener(listener);
+        for (Watched watched : addresses.values())
+            for (Pending entry : watched.pending.values())
+                if (watched.pending.remove(entry.txHash) != null) {
+                    inFlight.decrementAndGet();
+                    entry.confirmed.complete(result(entry.txHash, TxStatus.TIMEOUT, "Tx pipeline closed"));
+                }
+        executor.shutdownNow();
+    }
+}
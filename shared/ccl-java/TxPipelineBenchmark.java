@@ -0,0 +1,286 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES TxPipeline.java
+//SOURCES PerfHistory.java
+// @formatter:on
+
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.AddressService;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.api.BlockService;
+import com.bloxbean.cardano.client.backend.api.TransactionService;
+import com.bloxbean.cardano.client.backend.model.AddressTransactionContent;
+import com.bloxbean.cardano.client.backend.model.Block;
+import com.bloxbean.cardano.client.backend.model.TransactionContent;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.spec.TransactionBody;
+import com.bloxbean.cardano.client.transaction.util.TransactionUtil;
+
+/**
+ * Keeps growing numbers of transactions in flight against an in-memory chain
+ * that produces a block every 20 milliseconds and includes everything
+ * submitted since the last one.
+ * <p>
+ * Each transaction is confirmed once through the {@link TxPipeline}, and once
+ * the way {@code completeAndWaitAsync()} does it, a task per transaction that
+ * polls the status of its transaction until it is in a block, here on virtual
+ * threads so the platform threads do not limit it. Reported are the time
+ * until all are confirmed and the status requests to the backend per block;
+ * the pipeline also prints how many were waiting for a block at its peak.
+ * <p>
+ * Usage: {@code jbang TxPipelineBenchmark.java [transactions in flight...]}
+ */
+public class TxPipelineBenchmark {
+
+    static List<Integer> sizes = List.of(1_000, 10_000, 30_000);
+    static int addresses = 10;
+    static long blockMillis = 20;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            sizes = List.of(args).stream().map(Integer::parseInt).toList();
+
+        PerfHistory.Recorder perf = new PerfHistory.Recorder("tx-pipeline", null, PerfHistory.fromEnvironment());
+        System.out.println("| in flight | polling | status requests per block | pipeline | status requests per block |");
+        System.out.println("|---:|---:|---:|---:|---:|");
+        for (int size : sizes) {
+            Run polling = polling(size);
+            Run pipeline = pipeline(size);
+            System.out.println("| %,d | %,d ms | %,.0f | %,d ms | %,.1f |".formatted(size, polling.millis(),
+                    polling.requestsPerBlock(), pipeline.millis(), pipeline.requestsPerBlock()));
+            String step = "in_flight_" + size;
+            perf.record(step, "polling_ms", polling.millis());
+            perf.record(step, "pipeline_ms", pipeline.millis());
+            perf.record(step, "polling_requests_per_block", polling.requestsPerBlock());
+            perf.record(step, "pipeline_requests_per_block", pipeline.requestsPerBlock());
+        }
+        perf.close();
+    }
+
+    record Run(long millis, double requestsPerBlock) {
+    }
+
+    static Run pipeline(int size) throws Exception {
+        SimulatedChain chain = new SimulatedChain();
+        long start = System.nanoTime();
+        try (BlockWatcher blockWatcher = new BlockWatcher(chain.backendService(), Duration.ofMillis(5)).start();
+                TxPipeline pipeline = new TxPipeline(chain.backendService(), blockWatcher)) {
+            List<CompletableFuture<TxResult>> confirmed = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Transaction transaction = chain.transaction(i);
+                confirmed.add(pipeline.submit(chain.address(i), () -> transaction).confirmed().toCompletableFuture());
+            }
+            check(confirmed);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            pipeline.printStats();
+            return new Run(millis, chain.requestsPerBlock());
+        } finally {
+            chain.close();
+        }
+    }
+
+    static Run polling(int size) throws Exception {
+        SimulatedChain chain = new SimulatedChain();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            TransactionService transactions = chain.backendService().getTransactionService();
+            List<CompletableFuture<TxResult>> confirmed = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Transaction transaction = chain.transaction(i);
+                confirmed.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Result<String> submitted = transactions.submitTransaction(transaction.serialize());
+                        while (!transactions.getTransaction(submitted.getValue()).isSuccessful())
+                            Thread.sleep(blockMillis);
+                        return TxResult.fromResult(submitted);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, executor));
+            }
+            check(confirmed);
+            return new Run((System.nanoTime() - start) / 1_000_000, chain.requestsPerBlock());
+        } finally {
+            chain.close();
+        }
+    }
+
+    static void check(List<CompletableFuture<TxResult>> confirmed) {
+        long successful = confirmed.stream().map(CompletableFuture::join).filter(TxResult::isSuccessful).count();
+        if (successful != confirmed.size())
+            throw new AssertionError("%d of %d transactions confirmed".formatted(successful, confirmed.size()));
+    }
+
+    /**
+     * The parts of a backend the two ways of confirming use: the tip, submit,
+     * the status of a transaction and the transactions of an address.
+     */
+    static class SimulatedChain implements AutoCloseable {
+
+        private final Map<String, String> senders = new ConcurrentHashMap<>();
+        private final List<String> mempool = new ArrayList<>();
+        private final Map<String, Long> included = new ConcurrentHashMap<>();
+        private final Map<String, NavigableMap<Long, List<AddressTransactionContent>>> byAddress = new ConcurrentHashMap<>();
+        private final AtomicLong statusRequests = new AtomicLong();
+        private volatile long height;
+        private final BackendService backendService;
+        private final Thread producer;
+
+        SimulatedChain() {
+            BlockService blocks = service(BlockService.class, (method, args) -> switch (method) {
+                case "getLatestBlock" -> success(block(height));
+                case "getBlockByNumber" -> success(block(((BigInteger) args[0]).longValue()));
+                default -> null;
+            });
+            TransactionService transactions = service(TransactionService.class, (method, args) -> switch (method) {
+                case "submitTransaction" -> submit((byte[]) args[0]);
+                case "getTransaction" -> status((String) args[0]);
+                default -> null;
+            });
+            AddressService addressService = service(AddressService.class, (method, args) -> switch (method) {
+                case "getTransactions" -> transactions((String) args[0], (int) args[1], (int) args[2],
+                        Long.parseLong((String) args[4]), Long.parseLong((String) args[5]));
+                default -> null;
+            });
+            backendService = service(BackendService.class, (method, args) -> switch (method) {
+                case "getBlockService" -> blocks;
+                case "getTransactionService" -> transactions;
+                case "getAddressService" -> addressService;
+                default -> null;
+            });
+            producer = Thread.ofPlatform().daemon().start(this::produceBlocks);
+        }
+
+        interface Handler {
+            Object handle(String method, Object[] args) throws Exception;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> T service(Class<T> type, Handler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+                Object value = handler.handle(method.getName(), args);
+                if (value == null)
+                    throw new UnsupportedOperationException(method.getName());
+                return value;
+            });
+        }
+
+        // CCL's Result factories are raw, the value decides the type
+        @SuppressWarnings("unchecked")
+        static <T> Result<T> success(T value) {
+            return Result.success("ok").withValue(value);
+        }
+
+        BackendService backendService() {
+            return backendService;
+        }
+
+        String address(int index) {
+            return "addr_test_sender_" + index % addresses;
+        }
+
+        // A distinct transaction per index, the sender is what the chain would read from its inputs
+        Transaction transaction(int index) throws Exception {
+            Transaction transaction = Transaction.builder()
+                    .body(TransactionBody.builder().fee(BigInteger.valueOf(index)).build()).build();
+            senders.put(TransactionUtil.getTxHash(transaction.serialize()), address(index));
+            return transaction;
+        }
+
+        Result<String> submit(byte[] cbor) {
+            String txHash = TransactionUtil.getTxHash(cbor);
+            synchronized (mempool) {
+                mempool.add(txHash);
+            }
+            return success(txHash);
+        }
+
+        @SuppressWarnings("unchecked")
+        Result<TransactionContent> status(String txHash) {
+            statusRequests.incrementAndGet();
+            Long blockHeight = included.get(txHash);
+            if (blockHeight == null)
+                return Result.error("Not found").code(404);
+            TransactionContent content = new TransactionContent();
+            content.setHash(txHash);
+            content.setBlockHeight(blockHeight);
+            return success(content);
+        }
+
+        Result<List<AddressTransactionContent>> transactions(String address, int count, int page, long from, long to) {
+            statusRequests.incrementAndGet();
+            List<AddressTransactionContent> all = new ArrayList<>();
+            NavigableMap<Long, List<AddressTransactionContent>> heights = byAddress.get(address);
+            if (heights != null)
+                synchronized (heights) {
+                    heights.subMap(from, true, to, true).values().forEach(all::addAll);
+                }
+            int first = Math.min(all.size(), (page - 1) * count);
+            return success(new ArrayList<>(all.subList(first, Math.min(all.size(), first + count))));
+        }
+
+        Block block(long blockHeight) {
+            Block block = new Block();
+            block.setHeight(blockHeight);
+            block.setTime(blockHeight);
+            return block;
+        }
+
+        double requestsPerBlock() {
+            return height == 0 ? 0 : (double) statusRequests.get() / height;
+        }
+
+        void produceBlocks() {
+            try {
+                while (true) {
+                    Thread.sleep(blockMillis);
+                    List<String> block;
+                    synchronized (mempool) {
+                        block = new ArrayList<>(mempool);
+                        mempool.clear();
+                    }
+                    long blockHeight = height + 1;
+                    for (String txHash : block) {
+                        AddressTransactionContent content = new AddressTransactionContent();
+                        content.setTxHash(txHash);
+                        content.setBlockHeight(blockHeight);
+                        NavigableMap<Long, List<AddressTransactionContent>> heights = byAddress
+                                .computeIfAbsent(senders.get(txHash), a -> new TreeMap<>());
+                        synchronized (heights) {
+                            heights.computeIfAbsent(blockHeight, h -> new ArrayList<>()).add(content);
+                        }
+                        included.put(txHash, blockHeight);
+                    }
+                    height = blockHeight;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() {
+            producer.interrupt();
+        }
+    }
+}
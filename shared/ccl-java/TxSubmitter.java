@@ -0,0 +1,428 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.model.TransactionContent;
+import com.bloxbean.cardano.client.exception.CborSerializationException;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.quicktx.TxStatus;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.util.TransactionUtil;
+
+/**
+ * Submission pipeline that replaces a bare {@code completeAndWait()}.
+ * <p>
+ * Every failure is classified. When an input was spent by a concurrent
+ * transaction, e.g. another donor won the race for the crowdfund UTxO, or the
+ * validity interval ran out, the transaction is rebuilt from fresh chain state
+ * by the given {@link TxFactory} after a bounded, jittered backoff. A submitted
+ * transaction is tracked until it is buried under {@code confirmationDepth}
+ * blocks; if it disappears again (rollback) or never shows up (dropped from the
+ * mempool) the same signed bytes are resubmitted before falling back to a
+ * rebuild. A resubmission the node rejects as already in its mempool, or with
+ * spent inputs, which is what a mempool that holds the transaction answers, is
+ * tracked on as pending. Every attempt ever submitted may still land, so before
+ * a rebuild is submitted and before a failure is returned all of them are
+ * looked up on chain, and the first one included is the outcome; otherwise a
+ * late attempt and its rebuild could both apply the action.
+ */
+public class TxSubmitter {
+
+    public enum Failure {
+        INPUT_SPENT(true),
+        EXPIRED(true),
+        TRANSIENT(true),
+        DROPPED(true),
+        SCRIPT_FAILURE(false),
+        OTHER(false);
+
+        private final boolean retryable;
+
+        Failure(boolean retryable) {
+            this.retryable = retryable;
+        }
+
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    /**
+     * A signed transaction ready to be submitted.
+     */
+    public record SignedTx(String txHash, byte[] cbor) {
+
+        public static SignedTx of(Transaction transaction) throws CborSerializationException {
+            return new SignedTx(TransactionUtil.getTxHash(transaction), transaction.serialize());
+        }
+    }
+
+    /**
+     * Builds and signs the transaction. Called again for every rebuild, so it has
+     * to read the current UTxOs instead of reusing the ones of a previous attempt.
+     */
+    @FunctionalInterface
+    public interface TxFactory {
+        SignedTx build(int attempt) throws Exception;
+    }
+
+    /**
+     * The parts of the backend the pipeline depends on.
+     */
+    public interface Chain {
+        Result<String> submit(byte[] cbor) throws Exception;
+
+        OptionalLong blockHeight(String txHash) throws Exception;
+
+        long tipHeight() throws Exception;
+
+        static Chain of(BackendService backendService) {
+            return new Chain() {
+                @Override
+                public Result<String> submit(byte[] cbor) throws Exception {
+                    return backendService.getTransactionService().submitTransaction(cbor);
+                }
+
+                @Override
+                public OptionalLong blockHeight(String txHash) throws Exception {
+                    Result<TransactionContent> tx = backendService.getTransactionService().getTransaction(txHash);
+                    if (!tx.isSuccessful() || tx.getValue() == null || tx.getValue().getBlockHeight() == null)
+                        return OptionalLong.empty();
+                    return OptionalLong.of(tx.getValue().getBlockHeight());
+                }
+
+                @Override
+                public long tipHeight() throws Exception {
+                    return backendService.getBlockService().getLatestBlock().getValue().getHeight();
+                }
+            };
+        }
+    }
+
+    /**
+     * @param confirmed   Whether the transaction reached the confirmation depth.
+     * @param txHash      Hash of the confirmed transaction, which may be an
+     *                    earlier attempt than the last one, or of the last
+     *                    transaction built if none was confirmed.
+     * @param attempts    Number of builds, 1 if no rebuild was necessary.
+     * @param lastFailure The last failure seen, null if there was none.
+     * @param message     Backend response or exception message of the last failure.
+     * @param txHashes    Hashes of every attempt that was submitted.
+     */
+    public record Outcome(boolean confirmed, String txHash, int attempts, Failure lastFailure, String message,
+            List<String> txHashes) {
+
+        @SuppressWarnings("unchecked")
+        public TxResult toTxResult() {
+            Result<String> result = confirmed ? Result.success(txHash) : Result.error(message);
+            return TxResult.fromResult(result.withValue(txHash))
+                    .withTxStatus(confirmed ? TxStatus.CONFIRMED : TxStatus.FAILED);
+        }
+    }
+
+    private final Chain chain;
+    private final int confirmationDepth;
+    private final int maxAttempts;
+    private final int maxResubmits;
+    private final Duration baseBackoff;
+    private final Duration maxBackoff;
+    private final Duration inclusionTimeout;
+    private final Duration pollInterval;
+
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong resubmits = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final AtomicLong lateInclusions = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Map<Failure, AtomicLong> failures = new EnumMap<>(Failure.class);
+
+    /**
+     * @param chain             Backend access.
+     * @param confirmationDepth Number of blocks on top of the including block
+     *                          before a transaction counts as confirmed.
+     * @param maxAttempts       Upper bound for rebuilds of one transaction.
+     * @param maxResubmits      Upper bound for resubmissions of the same bytes
+     *                          after a rollback or drop.
+     * @param baseBackoff       Backoff after the first failure, doubled for every
+     *                          further attempt.
+     * @param maxBackoff        Upper bound of the backoff.
+     * @param inclusionTimeout  Time after which a submitted transaction that did
+     *                          not show up on chain counts as dropped, doubled
+     *                          for every resubmission of the same bytes.
+     * @param pollInterval      Interval for checking the inclusion.
+     */
+    public TxSubmitter(Chain chain, int confirmationDepth, int maxAttempts, int maxResubmits, Duration baseBackoff,
+            Duration maxBackoff, Duration inclusionTimeout, Duration pollInterval) {
+        this.chain = chain;
+        this.confirmationDepth = confirmationDepth;
+        this.maxAttempts = maxAttempts;
+        this.maxResubmits = maxResubmits;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        this.inclusionTimeout = inclusionTimeout;
+        this.pollInterval = pollInterval;
+        for (Failure failure : Failure.values())
+            failures.put(failure, new AtomicLong());
+    }
+
+    /**
+     * Defaults for Yaci DevKit, which makes a block every second: one
+     * confirmation, up to 10 builds, a backoff between 500 milliseconds and 8
+     * seconds and an inclusion timeout of 5 blocks. {@code ContentionSimulation}
+     * shows that 10 builds get 50 donors racing for one UTxO through, where 5
+     * leave more than half of them failed. A transaction that lost the race never
+     * shows up, so a longer timeout would only delay its rebuild; the timeout is
+     * doubled for every resubmission instead, in case the mempool is just full.
+     */
+    public static TxSubmitter of(BackendService backendService) {
+        return of(Chain.of(backendService), Duration.ofSeconds(1));
+    }
+
+    /**
+     * The defaults of {@link #of(BackendService)} with every duration scaled to
+     * the block time, e.g. for a simulated chain.
+     */
+    public static TxSubmitter of(Chain chain, Duration blockTime) {
+        return new TxSubmitter(chain, 1, 10, 2, blockTime.dividedBy(2), blockTime.multipliedBy(8),
+                blockTime.multipliedBy(5), blockTime);
+    }
+
+    /**
+     * Builds, submits and tracks a transaction until it is confirmed or a
+     * non-retryable failure occurs or the attempts are used up.
+     */
+    public Outcome submit(TxFactory factory) throws InterruptedException {
+        Failure lastFailure = null;
+        String message = null;
+        String txHash = null;
+        // Every attempt that reached the node, any of them may still be included
+        List<SignedTx> submitted = new ArrayList<>();
+        int attempt = 0;
+        while (attempt < maxAttempts) {
+            attempt++;
+            if (attempt > 1)
+                backoff(attempt);
+
+            SignedTx tx;
+            try {
+                builds.incrementAndGet();
+                tx = factory.build(attempt);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                message = String.valueOf(e.getMessage());
+                lastFailure = record(classify(message));
+                if (!lastFailure.isRetryable())
+                    break;
+                continue;
+            }
+
+            // Looked up after the build, so a rebuild that read the state before an
+            // earlier attempt landed is never submitted next to it
+            SignedTx landed = landed(submitted);
+            Result<String> tracked;
+            if (landed != null) {
+                tx = landed;
+                tracked = track(tx);
+            } else {
+                submitted.add(tx);
+                tracked = submitAndTrack(tx);
+            }
+            txHash = tx.txHash();
+            if (tracked.isSuccessful()) {
+                confirmed.incrementAndGet();
+                return new Outcome(true, txHash, attempt, lastFailure, message, hashes(submitted));
+            }
+            message = tracked.getResponse();
+            lastFailure = record(classify(tracked));
+            if (!lastFailure.isRetryable())
+                break;
+        }
+
+        SignedTx landed = landed(submitted);
+        if (landed != null && track(landed).isSuccessful()) {
+            confirmed.incrementAndGet();
+            return new Outcome(true, landed.txHash(), attempt, lastFailure, message, hashes(submitted));
+        }
+        failed.incrementAndGet();
+        return new Outcome(false, txHash, attempt, lastFailure, message, hashes(submitted));
+    }
+
+    /**
+     * @return The first of the submitted attempts that is on chain, null if none
+     *         is.
+     */
+    private SignedTx landed(List<SignedTx> submitted) {
+        for (SignedTx tx : submitted) {
+            try {
+                if (chain.blockHeight(tx.txHash()).isPresent()) {
+                    lateInclusions.incrementAndGet();
+                    return tx;
+                }
+            } catch (Exception e) {
+                // Treat a failing status query like a transaction that is not visible yet
+            }
+        }
+        return null;
+    }
+
+    private static List<String> hashes(List<SignedTx> submitted) {
+        return submitted.stream().map(SignedTx::txHash).distinct().toList();
+    }
+
+    /**
+     * @return A successful result once the transaction is confirmed, otherwise an
+     *         error result whose response can be classified.
+     */
+    private Result<String> submitAndTrack(SignedTx tx) throws InterruptedException {
+        Result<String> submitted = submitQuietly(tx);
+        if (!submitted.isSuccessful() && !alreadyInMempool(submitted))
+            return submitted;
+        return track(tx);
+    }
+
+    /**
+     * Tracks a submitted transaction until it is confirmed, resubmitting the same
+     * bytes after a rollback or drop.
+     */
+    @SuppressWarnings("unchecked")
+    private Result<String> track(SignedTx tx) throws InterruptedException {
+        boolean seen = false;
+        int resubmitted = 0;
+        long deadline = System.nanoTime() + inclusionTimeout.toNanos();
+        while (true) {
+            try {
+                OptionalLong height = chain.blockHeight(tx.txHash());
+                if (height.isPresent()) {
+                    seen = true;
+                    if (chain.tipHeight() - height.getAsLong() >= confirmationDepth)
+                        return Result.success(tx.txHash());
+                } else if (seen || System.nanoTime() > deadline) {
+                    // Rolled back or dropped: the inputs are unspent again unless a
+                    // competitor took them, so the same bytes are worth a second try
+                    if (seen)
+                        rollbacks.incrementAndGet();
+                    if (resubmitted >= maxResubmits)
+                        return Result.error("Transaction %s dropped".formatted(tx.txHash()));
+                    resubmitted++;
+                    resubmits.incrementAndGet();
+                    Result<String> again = submitQuietly(tx);
+                    // Rejected because it landed in the meantime or still waits in the
+                    // mempool, keep tracking it
+                    if (!again.isSuccessful() && !alreadyInMempool(again)
+                            && classify(again) != Failure.INPUT_SPENT
+                            && chain.blockHeight(tx.txHash()).isEmpty())
+                        return again;
+                    seen = false;
+                    deadline = System.nanoTime() + (inclusionTimeout.toNanos() << resubmitted);
+                }
+            } catch (Exception e) {
+                // Treat a failing status query like a transaction that is not visible yet
+            }
+            Thread.sleep(pollInterval.toMillis());
+        }
+    }
+
+    /**
+     * Whether the node rejected the transaction because it already holds the
+     * same bytes.
+     */
+    private static boolean alreadyInMempool(Result<?> result) {
+        return containsWord(words(result.getResponse()), "already in mempool", "already in the mempool",
+                "alreadyinmempool", "duplicate");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Result<String> submitQuietly(SignedTx tx) {
+        try {
+            return chain.submit(tx.cbor());
+        } catch (Exception e) {
+            return Result.error(String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Maps a failed backend result to a failure class, by its HTTP status for
+     * rate limits and unavailable gateways and by its message otherwise.
+     */
+    public static Failure classify(Result<?> result) {
+        int code = result.code();
+        if (code == 429 || code == 502 || code == 503 || code == 504)
+            return Failure.TRANSIENT;
+        return classify(result.getResponse());
+    }
+
+    /**
+     * Maps a node or backend error message to a failure class. Only whole words
+     * are matched, so e.g. a transaction hash never decides the class.
+     */
+    public static Failure classify(String message) {
+        if (message == null)
+            return Failure.OTHER;
+        String words = words(message);
+        // ValueNotConserved alone means an unbalanced transaction, it only comes
+        // with BadInputs when an input is missing
+        if (containsWord(words, "badinputsutxo", "badinputs", "already spent", "utxo not found"))
+            return Failure.INPUT_SPENT;
+        if (containsWord(words, "outsidevalidityintervalutxo", "outsidevalidityinterval"))
+            return Failure.EXPIRED;
+        if (containsWord(words, "dropped"))
+            return Failure.DROPPED;
+        if (containsWord(words, "scriptfailure", "plutusfailure", "evaluation", "exunitstoobigutxo"))
+            return Failure.SCRIPT_FAILURE;
+        if (containsWord(words, "mempoolfull", "mempool", "timeout", "timed out", "connection refused",
+                "connection reset", "too many requests", "bad gateway", "service unavailable"))
+            return Failure.TRANSIENT;
+        return Failure.OTHER;
+    }
+
+    private static String words(String message) {
+        if (message == null)
+            return " ";
+        return " " + String.join(" ", message.toLowerCase(Locale.ROOT).split("[^a-z0-9]+")) + " ";
+    }
+
+    private static boolean containsWord(String words, String... candidates) {
+        for (String candidate : candidates)
+            if (words.contains(" " + candidate + " "))
+                return true;
+        return false;
+    }
+
+    private Failure record(Failure failure) {
+        failures.get(failure).incrementAndGet();
+        return failure;
+    }
+
+    private void backoff(int attempt) throws InterruptedException {
+        long exponential = baseBackoff.toMillis() << Math.min(attempt - 2, 20);
+        long capped = Math.min(maxBackoff.toMillis(), exponential);
+        // Jitter, so racing submitters do not retry in lockstep
+        Thread.sleep(ThreadLocalRandom.current().nextLong(capped / 2, capped + 1));
+    }
+
+    public double successRate() {
+        long total = confirmed.get() + failed.get();
+        return total == 0 ? 0.0 : (double) confirmed.get() / total;
+    }
+
+    public void printStats() {
+        System.out.println("Submitter: %d confirmed, %d failed (%.1f%% success), %d builds, %d resubmits, %d rollbacks, %d earlier attempts included, failures %s"
+                .formatted(confirmed.get(), failed.get(), successRate() * 100, builds.get(), resubmits.get(),
+                        rollbacks.get(), lateInclusions.get(), failures));
+    }
+}
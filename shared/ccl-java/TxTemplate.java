@@ -0,0 +1,473 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.bloxbean.cardano.client.api.MinAdaCalculator;
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.api.util.CostModelUtil;
+import com.bloxbean.cardano.client.api.util.UtxoUtil;
+import com.bloxbean.cardano.client.exception.CborSerializationException;
+import com.bloxbean.cardano.client.function.TxBuilderContext;
+import com.bloxbean.cardano.client.function.TxSigner;
+import com.bloxbean.cardano.client.plutus.spec.CostMdls;
+import com.bloxbean.cardano.client.plutus.spec.ExUnits;
+import com.bloxbean.cardano.client.plutus.spec.Language;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.Redeemer;
+import com.bloxbean.cardano.client.plutus.spec.RedeemerTag;
+import com.bloxbean.cardano.client.plutus.util.ScriptDataHashGenerator;
+import com.bloxbean.cardano.client.spec.Era;
+import com.bloxbean.cardano.client.transaction.spec.Asset;
+import com.bloxbean.cardano.client.transaction.spec.MultiAsset;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.spec.TransactionBody;
+import com.bloxbean.cardano.client.transaction.spec.TransactionInput;
+import com.bloxbean.cardano.client.transaction.spec.TransactionOutput;
+import com.bloxbean.cardano.client.transaction.spec.TransactionWitnessSet;
+import com.bloxbean.cardano.client.transaction.spec.Value;
+import com.bloxbean.cardano.client.util.HexUtil;
+
+/**
+ * A transaction shape compiled once and instantiated many times.
+ * <p>
+ * Most of the traffic of the examples has a fixed shape, e.g. the
+ * {@code SimpleTransfer} lock, the {@code Htlc} claim or the {@code Vault}
+ * request and finalize. {@code QuickTxBuilder} pays for coin selection,
+ * several balancing rounds and a script evaluation for every one of them. A
+ * template takes one transaction built by {@code QuickTxBuilder} as prototype
+ * and keeps its body skeleton, witness layout, ex-units and fee components. An
+ * instance only patches inputs, output values and datums, redeemer data and
+ * validity bounds, and derives fee, change and collateral arithmetically: the
+ * size is measured once with every derived number at its widest CBOR encoding,
+ * so the fee computed from it always covers the final transaction.
+ * <p>
+ * The ex-units are not re-evaluated, so an instance must take the same path
+ * through the validator as the prototype. They get a margin on top of the
+ * evaluated values. Shapes that mint, withdraw or certify are not supported.
+ */
+public class TxTemplate {
+
+    // Widest CBOR encoding of an unsigned integer, used while measuring the size
+    private static final BigInteger PLACEHOLDER_COIN = BigInteger.ONE.shiftLeft(63);
+    // A vkey witness is [vkey(32), signature(64)] with CBOR headers, plus slack
+    // for the header of the witness map entry
+    private static final int VKEY_WITNESS_BYTES = 101;
+    private static final int WITNESS_SET_SLACK = 5;
+
+    private final String name;
+    private final Transaction prototype;
+    private final List<Utxo> inputUtxos;
+    private final List<Utxo> collateralUtxos;
+    private final int changeOutput;
+    private final int[] spendRedeemerInput;
+    private final List<ExUnits> exUnits;
+    private final int vkeyWitnesses;
+    private final ProtocolParams protocolParams;
+    private final CostMdls costMdls;
+    private final BigInteger scriptFee;
+    private final BigInteger extraFee;
+    private final TxBuilderContext signingContext;
+
+    private final long compileNanos;
+    private final AtomicLong instances = new AtomicLong();
+    private final AtomicLong instanceNanos = new AtomicLong();
+
+    private TxTemplate(String name, Transaction prototype, List<Utxo> inputUtxos, List<Utxo> collateralUtxos,
+            int changeOutput, int[] spendRedeemerInput, List<ExUnits> exUnits, int vkeyWitnesses,
+            ProtocolParams protocolParams, CostMdls costMdls, BigInteger scriptFee, BigInteger extraFee,
+            TxBuilderContext signingContext, long compileNanos) {
+        this.name = name;
+        this.prototype = prototype;
+        this.inputUtxos = inputUtxos;
+        this.collateralUtxos = collateralUtxos;
+        this.changeOutput = changeOutput;
+        this.spendRedeemerInput = spendRedeemerInput;
+        this.exUnits = exUnits;
+        this.vkeyWitnesses = vkeyWitnesses;
+        this.protocolParams = protocolParams;
+        this.costMdls = costMdls;
+        this.scriptFee = scriptFee;
+        this.extraFee = extraFee;
+        this.signingContext = signingContext;
+        this.compileNanos = compileNanos;
+    }
+
+    /**
+     * Compiles a template from an unsigned transaction built by
+     * {@code QuickTxBuilder}, e.g. with {@code compose(...).build()}.
+     *
+     * @param name           Name used in the statistics.
+     * @param prototype      The transaction to take the shape from. It is not
+     *                       modified.
+     * @param changeAddress  Address of the change output; the last output to it
+     *                       absorbs all value differences of an instance.
+     * @param exUnitsMargin  Factor applied to the evaluated ex-units, e.g. 1.1.
+     * @param utxoSupplier   Used once to resolve the values of the prototype
+     *                       inputs and collateral.
+     * @param protocolParams Current protocol parameters.
+     * @throws IllegalArgumentException If the shape is not supported.
+     */
+    public static TxTemplate compile(String name, Transaction prototype, String changeAddress, double exUnitsMargin,
+            UtxoSupplier utxoSupplier, ProtocolParams protocolParams) throws CborSerializationException {
+        long start = System.nanoTime();
+        TransactionBody body = prototype.getBody();
+        if (notEmpty(body.getMint()) || notEmpty(body.getWithdrawals()) || notEmpty(body.getCerts()))
+            throw new IllegalArgumentException("Template %s: minting, withdrawals and certificates are not supported"
+                    .formatted(name));
+
+        List<Utxo> inputUtxos = resolve(name, body.getInputs(), utxoSupplier);
+        List<Utxo> collateralUtxos = resolve(name, body.getCollateral(), utxoSupplier);
+
+        int changeOutput = -1;
+        for (int i = 0; i < body.getOutputs().size(); i++)
+            if (body.getOutputs().get(i).getAddress().equals(changeAddress))
+                changeOutput = i;
+        if (changeOutput < 0)
+            throw new IllegalArgumentException("Template %s: no output to the change address".formatted(name));
+
+        List<Redeemer> redeemers = redeemers(prototype);
+        int[] spendRedeemerInput = new int[redeemers.size()];
+        List<ExUnits> exUnits = new ArrayList<>();
+        BigInteger maxMem = new BigInteger(protocolParams.getMaxTxExMem());
+        BigInteger maxSteps = new BigInteger(protocolParams.getMaxTxExSteps());
+        for (int r = 0; r < redeemers.size(); r++) {
+            Redeemer redeemer = redeemers.get(r);
+            if (redeemer.getTag() != RedeemerTag.Spend)
+                throw new IllegalArgumentException("Template %s: only spending redeemers are supported".formatted(name));
+            spendRedeemerInput[r] = redeemer.getIndex().intValue();
+            exUnits.add(new ExUnits(scale(redeemer.getExUnits().getMem(), exUnitsMargin).min(maxMem),
+                    scale(redeemer.getExUnits().getSteps(), exUnitsMargin).min(maxSteps)));
+        }
+
+        // Witness layout: one vkey witness per key that owns an input or collateral
+        // or is listed as required signer
+        Set<String> keys = new HashSet<>(UtxoUtil.getOwnerPubKeyHashes(new HashSet<>(inputUtxos)));
+        keys.addAll(UtxoUtil.getOwnerPubKeyHashes(new HashSet<>(collateralUtxos)));
+        if (body.getRequiredSigners() != null)
+            body.getRequiredSigners().forEach(signer -> keys.add(HexUtil.encodeHexString(signer)));
+
+        CostMdls costMdls = costMdls(prototype, protocolParams);
+        TxTemplate template = new TxTemplate(name, prototype, inputUtxos, collateralUtxos, changeOutput,
+                spendRedeemerInput, exUnits, keys.size(), protocolParams, costMdls, scriptFee(exUnits, protocolParams),
+                BigInteger.ZERO, TxBuilderContext.init(utxoSupplier, protocolParams), 0);
+
+        // Self check: the prototype rebuilt by the template must reproduce the script
+        // data hash computed by QuickTxBuilder
+        if (!redeemers.isEmpty() && !Arrays.equals(body.getScriptDataHash(),
+                template.scriptDataHash(redeemers, prototype.getWitnessSet().getPlutusDataList())))
+            throw new IllegalStateException("Template %s: script data hash of the prototype cannot be reproduced"
+                    .formatted(name));
+
+        // Anything QuickTxBuilder charged beyond size and ex-units, e.g. the fee for
+        // reference scripts, is carried over to every instance
+        BigInteger ownFee = template.fee(prototype);
+        BigInteger extraFee = body.getFee().subtract(ownFee).max(BigInteger.ZERO);
+        return new TxTemplate(name, prototype, inputUtxos, collateralUtxos, changeOutput, spendRedeemerInput, exUnits,
+                keys.size(), protocolParams, costMdls, template.scriptFee, extraFee, template.signingContext,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Checks that the prototype's inputs and collateral are still unspent, i.e.
+     * still listed at their addresses. Once one of them is spent, e.g. by a
+     * competing transaction or by an earlier instance that landed after all,
+     * every instance that keeps the prototype inputs is rejected the same way
+     * and the template has to be compiled again from a new prototype.
+     */
+    public boolean isSpendable(UtxoSupplier utxoSupplier) {
+        Map<String, Set<String>> unspent = new HashMap<>();
+        List<Utxo> spent = new ArrayList<>(inputUtxos);
+        spent.addAll(collateralUtxos);
+        for (Utxo utxo : spent) {
+            Set<String> atAddress = unspent.computeIfAbsent(utxo.getAddress(), address -> {
+                Set<String> refs = new HashSet<>();
+                utxoSupplier.getAll(address).forEach(listed -> refs.add(outputRef(listed)));
+                return refs;
+            });
+            if (!atAddress.contains(outputRef(utxo)))
+                return false;
+        }
+        return true;
+    }
+
+    private static String outputRef(Utxo utxo) {
+        return utxo.getTxHash() + "#" + utxo.getOutputIndex();
+    }
+
+    /**
+     * Starts a new instance. Everything not patched stays as in the prototype.
+     */
+    public Instance instance() {
+        return new Instance();
+    }
+
+    /**
+     * One transaction of the template's shape. Positions refer to the input and
+     * output order of the prototype.
+     */
+    public class Instance {
+
+        private final long start = System.nanoTime();
+        private final Utxo[] inputs = inputUtxos.toArray(new Utxo[0]);
+        private final TransactionOutput[] outputs = prototype.getBody().getOutputs().toArray(new TransactionOutput[0]);
+        private final PlutusData[] redeemerData = redeemers(prototype).stream().map(Redeemer::getData)
+                .toArray(PlutusData[]::new);
+        private long validFrom = prototype.getBody().getValidityStartInterval();
+        private long validTo = prototype.getBody().getTtl();
+
+        private Instance() {
+        }
+
+        public Instance input(int position, Utxo utxo) {
+            inputs[position] = utxo;
+            return this;
+        }
+
+        public Instance outputValue(int position, Value value) {
+            checkNotChange(position);
+            outputs[position] = outputs[position].toBuilder().value(value).build();
+            return this;
+        }
+
+        public Instance outputDatum(int position, PlutusData datum) {
+            outputs[position] = outputs[position].toBuilder().inlineDatum(datum).build();
+            return this;
+        }
+
+        /**
+         * @param position Position of the redeemer in the prototype witness set.
+         */
+        public Instance redeemer(int position, PlutusData data) {
+            redeemerData[position] = data;
+            return this;
+        }
+
+        /**
+         * @param validFrom First valid slot, 0 for none.
+         * @param validTo   Last valid slot, exclusive, 0 for none.
+         */
+        public Instance validity(long validFrom, long validTo) {
+            this.validFrom = validFrom;
+            this.validTo = validTo;
+            return this;
+        }
+
+        private void checkNotChange(int position) {
+            if (position == changeOutput)
+                throw new IllegalArgumentException("Output %d is the change output of template %s, it is derived"
+                        .formatted(position, name));
+        }
+
+        /**
+         * @return The unsigned transaction with fee, change and collateral filled in.
+         * @throws IllegalStateException If the inputs do not cover outputs and fee.
+         */
+        public Transaction build() throws CborSerializationException {
+            TransactionBody prototypeBody = prototype.getBody();
+
+            // Inputs are ordered by the ledger, spending redeemers point into that order
+            Integer[] order = new Integer[inputs.length];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, Comparator.comparing((Integer i) -> inputs[i].getTxHash())
+                    .thenComparingInt(i -> inputs[i].getOutputIndex()));
+            int[] sortedPosition = new int[inputs.length];
+            List<TransactionInput> txInputs = new ArrayList<>(inputs.length);
+            for (int s = 0; s < order.length; s++) {
+                sortedPosition[order[s]] = s;
+                txInputs.add(new TransactionInput(inputs[order[s]].getTxHash(), inputs[order[s]].getOutputIndex()));
+            }
+
+            List<Redeemer> redeemers = new ArrayList<>(redeemerData.length);
+            for (int r = 0; r < redeemerData.length; r++)
+                redeemers.add(new Redeemer(RedeemerTag.Spend, BigInteger.valueOf(sortedPosition[spendRedeemerInput[r]]),
+                        redeemerData[r], exUnits.get(r)));
+
+            Value change = Value.fromCoin(BigInteger.ZERO);
+            for (Utxo input : inputs)
+                change = change.add(input.toValue());
+            for (int i = 0; i < outputs.length; i++)
+                if (i != changeOutput)
+                    change = change.subtract(outputs[i].getValue());
+
+            List<TransactionOutput> txOutputs = new ArrayList<>(Arrays.asList(outputs));
+            TransactionOutput changeTxOutput = outputs[changeOutput].toBuilder()
+                    .value(new Value(PLACEHOLDER_COIN, cleanAssets(change)))
+                    .build();
+            txOutputs.set(changeOutput, changeTxOutput);
+
+            TransactionOutput collateralReturn = prototypeBody.getCollateralReturn() == null ? null
+                    : prototypeBody.getCollateralReturn().toBuilder().value(Value.fromCoin(PLACEHOLDER_COIN)).build();
+
+            TransactionBody txBody = TransactionBody.builder()
+                    .inputs(txInputs)
+                    .outputs(txOutputs)
+                    .fee(PLACEHOLDER_COIN)
+                    .ttl(validTo)
+                    .validityStartInterval(validFrom)
+                    .scriptDataHash(redeemers.isEmpty() ? prototypeBody.getScriptDataHash()
+                            : scriptDataHash(redeemers, prototype.getWitnessSet().getPlutusDataList()))
+                    .collateral(prototypeBody.getCollateral())
+                    .requiredSigners(prototypeBody.getRequiredSigners())
+                    .networkId(prototypeBody.getNetworkId())
+                    .collateralReturn(collateralReturn)
+                    .totalCollateral(prototypeBody.getTotalCollateral() == null ? null : PLACEHOLDER_COIN)
+                    .referenceInputs(prototypeBody.getReferenceInputs())
+                    .build();
+            TransactionWitnessSet prototypeWitnesses = prototype.getWitnessSet();
+            TransactionWitnessSet witnessSet = new TransactionWitnessSet();
+            witnessSet.setPlutusV1Scripts(prototypeWitnesses.getPlutusV1Scripts());
+            witnessSet.setPlutusV2Scripts(prototypeWitnesses.getPlutusV2Scripts());
+            witnessSet.setPlutusV3Scripts(prototypeWitnesses.getPlutusV3Scripts());
+            witnessSet.setNativeScripts(prototypeWitnesses.getNativeScripts());
+            witnessSet.setPlutusDataList(prototypeWitnesses.getPlutusDataList());
+            witnessSet.setRedeemers(redeemers.isEmpty() ? prototypeWitnesses.getRedeemers() : redeemers);
+            Transaction transaction = new Transaction();
+            transaction.setEra(prototype.getEra());
+            transaction.setBody(txBody);
+            transaction.setWitnessSet(witnessSet);
+            transaction.setValid(prototype.isValid());
+            transaction.setAuxiliaryData(prototype.getAuxiliaryData());
+
+            // Measured with placeholders, so the real numbers can only make it smaller
+            BigInteger fee = fee(transaction).add(extraFee);
+            txBody.setFee(fee);
+            BigInteger changeCoin = change.getCoin().subtract(fee);
+            changeTxOutput.getValue().setCoin(changeCoin);
+            if (changeCoin.compareTo(new MinAdaCalculator(protocolParams).calculateMinAda(changeTxOutput)) < 0)
+                throw new IllegalStateException("Template %s: inputs do not cover outputs and a fee of %s lovelace"
+                        .formatted(name, fee));
+            if (prototypeBody.getTotalCollateral() != null) {
+                BigInteger totalCollateral = new BigDecimal(fee).multiply(protocolParams.getCollateralPercent())
+                        .divide(BigDecimal.valueOf(100), 0, RoundingMode.CEILING).toBigInteger();
+                txBody.setTotalCollateral(totalCollateral);
+                if (collateralReturn != null) {
+                    BigInteger collateralCoin = collateralUtxos.stream().map(utxo -> utxo.toValue().getCoin())
+                            .reduce(BigInteger.ZERO, BigInteger::add);
+                    collateralReturn.getValue().setCoin(collateralCoin.subtract(totalCollateral));
+                }
+            }
+
+            instances.incrementAndGet();
+            instanceNanos.addAndGet(System.nanoTime() - start);
+            return transaction;
+        }
+
+        public Transaction buildAndSign(TxSigner signer) throws CborSerializationException {
+            return signer.sign(signingContext, build());
+        }
+    }
+
+    private BigInteger fee(Transaction transaction) throws CborSerializationException {
+        long size = transaction.serialize().length + (long) vkeyWitnesses * VKEY_WITNESS_BYTES + WITNESS_SET_SLACK;
+        return BigInteger.valueOf(protocolParams.getMinFeeA() * size + protocolParams.getMinFeeB()).add(scriptFee);
+    }
+
+    private byte[] scriptDataHash(List<Redeemer> redeemers, List<PlutusData> datums) throws CborSerializationException {
+        try {
+            return ScriptDataHashGenerator.generate(Era.Conway, redeemers, datums == null ? List.of() : datums,
+                    costMdls);
+        } catch (co.nstant.in.cbor.CborException e) {
+            throw new CborSerializationException("Script data hash", e);
+        }
+    }
+
+    private static BigInteger scriptFee(List<ExUnits> exUnits, ProtocolParams protocolParams) {
+        BigInteger mem = BigInteger.ZERO;
+        BigInteger steps = BigInteger.ZERO;
+        for (ExUnits units : exUnits) {
+            mem = mem.add(units.getMem());
+            steps = steps.add(units.getSteps());
+        }
+        return protocolParams.getPriceMem().multiply(new BigDecimal(mem))
+                .add(protocolParams.getPriceStep().multiply(new BigDecimal(steps)))
+                .setScale(0, RoundingMode.CEILING).toBigInteger();
+    }
+
+    private static CostMdls costMdls(Transaction prototype, ProtocolParams protocolParams) {
+        TransactionWitnessSet witnessSet = prototype.getWitnessSet();
+        Set<Language> languages = EnumSet.noneOf(Language.class);
+        if (notEmpty(witnessSet.getPlutusV1Scripts()))
+            languages.add(Language.PLUTUS_V1);
+        if (notEmpty(witnessSet.getPlutusV2Scripts()))
+            languages.add(Language.PLUTUS_V2);
+        // Reference scripts are not visible in the witness set, the examples use V3
+        if (notEmpty(witnessSet.getPlutusV3Scripts()) || languages.isEmpty())
+            languages.add(Language.PLUTUS_V3);
+        CostMdls costMdls = new CostMdls();
+        for (Language language : languages)
+            CostModelUtil.getCostModelFromProtocolParams(protocolParams, language).ifPresent(costMdls::add);
+        return costMdls;
+    }
+
+    private static List<Utxo> resolve(String name, List<TransactionInput> inputs, UtxoSupplier utxoSupplier) {
+        List<Utxo> utxos = new ArrayList<>();
+        if (inputs == null)
+            return utxos;
+        for (TransactionInput input : inputs)
+            utxos.add(utxoSupplier.getTxOutput(input.getTransactionId(), input.getIndex())
+                    .orElseThrow(() -> new IllegalArgumentException("Template %s: input %s#%d not found"
+                            .formatted(name, input.getTransactionId(), input.getIndex()))));
+        return utxos;
+    }
+
+    private static List<Redeemer> redeemers(Transaction transaction) {
+        List<Redeemer> redeemers = transaction.getWitnessSet().getRedeemers();
+        return redeemers == null ? List.of() : redeemers;
+    }
+
+    private static List<MultiAsset> cleanAssets(Value value) {
+        List<MultiAsset> assets = new ArrayList<>();
+        if (value.getMultiAssets() == null)
+            return assets;
+        for (MultiAsset multiAsset : value.getMultiAssets()) {
+            List<Asset> remaining = new ArrayList<>();
+            for (Asset asset : multiAsset.getAssets()) {
+                if (asset.getValue().signum() < 0)
+                    throw new IllegalStateException("Inputs do not cover %s of policy %s"
+                            .formatted(asset.getName(), multiAsset.getPolicyId()));
+                if (asset.getValue().signum() > 0)
+                    remaining.add(asset);
+            }
+            if (!remaining.isEmpty())
+                assets.add(new MultiAsset(multiAsset.getPolicyId(), remaining));
+        }
+        return assets;
+    }
+
+    private static BigInteger scale(BigInteger value, double factor) {
+        return new BigDecimal(value).multiply(BigDecimal.valueOf(factor)).setScale(0, RoundingMode.CEILING)
+                .toBigInteger();
+    }
+
+    private static boolean notEmpty(List<?> list) {
+        return list != null && !list.isEmpty();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void printStats() {
+        long count = instances.get();
+        System.out.println("Template %s: compiled in %.2f ms, %d instances, %.3f ms per instance"
+                .formatted(name, compileNanos / 1e6, count, count == 0 ? 0.0 : instanceNanos.get() / 1e6 / count));
+    }
+}
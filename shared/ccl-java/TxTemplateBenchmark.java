@@ -0,0 +1,287 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+///
+// @formatter:off
+//JAVA 24+
+
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+//SOURCES TxTemplate.java
+//SOURCES OfflineChain.java
+// @formatter:on
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.bloxbean.cardano.client.account.Account;
+import com.bloxbean.cardano.client.address.AddressProvider;
+import com.bloxbean.cardano.client.api.TransactionProcessor;
+import com.bloxbean.cardano.client.api.UtxoSupplier;
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.EvaluationResult;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.api.model.Utxo;
+import com.bloxbean.cardano.client.common.model.Networks;
+import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ConstrPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.ExUnits;
+import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusData;
+import com.bloxbean.cardano.client.plutus.spec.PlutusV3Script;
+import com.bloxbean.cardano.client.plutus.spec.Redeemer;
+import com.bloxbean.cardano.client.plutus.spec.RedeemerTag;
+import com.bloxbean.cardano.client.quicktx.QuickTxBuilder;
+import com.bloxbean.cardano.client.quicktx.ScriptTx;
+import com.bloxbean.cardano.client.quicktx.Tx;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
+import com.bloxbean.cardano.client.transaction.spec.TransactionInput;
+import com.bloxbean.cardano.client.transaction.spec.TransactionOutput;
+import com.bloxbean.cardano.client.transaction.spec.Value;
+
+/**
+ * Compares building the {@code SimpleTransfer} lock, an {@code Htlc} style
+ * claim and the {@code Vault} withdraw request and finalize with
+ * {@code QuickTxBuilder} against instantiating a {@link TxTemplate} compiled
+ * from the same shape, in time and allocated bytes per transaction.
+ * <p>
+ * Everything runs offline against in-memory UTxOs and a fixed script
+ * evaluator, so the numbers leave out the backend round trips that
+ * {@code QuickTxBuilder} makes for coin selection and evaluation and that a
+ * template instance does not need at all.
+ * <p>
+ * Usage: {@code jbang TxTemplateBenchmark.java [iterations]}
+ */
+public class TxTemplateBenchmark {
+
+    static int iterations = 500;
+    static Random random = new Random(7);
+
+    static Account wallet = new Account(Networks.testnet());
+    static String walletAddress = wallet.baseAddress();
+    // Always succeeding validator, the evaluator below pretends it costs what a claim costs
+    static PlutusV3Script script = PlutusV3Script.builder().type("PlutusScriptV3").cborHex("46450101002499").build();
+    static String scriptAddress = AddressProvider.getEntAddress(script, Networks.testnet()).toBech32();
+    static ExUnits claimExUnits = new ExUnits(BigInteger.valueOf(250_000), BigInteger.valueOf(90_000_000));
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0)
+            iterations = Integer.parseInt(args[0]);
+
+        OfflineChain.InMemoryUtxoSupplier utxoSupplier = new OfflineChain.InMemoryUtxoSupplier();
+        Utxo funds = utxoSupplier.add(walletAddress, 5_000_000_000L);
+        utxoSupplier.add(walletAddress, 5_000_000L); // Collateral
+        Utxo locked = utxoSupplier.add(scriptAddress, 10_000_000L);
+        // Withdraw requests of the vault, each carrying its lock time
+        List<Utxo> requested = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            requested.add(utxoSupplier.add(Utxo.builder()
+                    .txHash(locked.getTxHash())
+                    .outputIndex(i + 1)
+                    .address(scriptAddress)
+                    .amount(List.of(Amount.lovelace(BigInteger.valueOf(10_000_000))))
+                    .inlineDatum(lockTimeDatum().serializeToHex())
+                    .build()));
+        ProtocolParams protocolParams = OfflineChain.protocolParams();
+        QuickTxBuilder quickTxBuilder = new QuickTxBuilder(utxoSupplier, () -> protocolParams, new FixedEvaluator());
+
+        // Lock: pay an amount to the script, like SimpleTransfer
+        Callable<Transaction> quickLock = () -> quickTxBuilder
+                .compose(new Tx().payToAddress(scriptAddress, Amount.lovelace(randomAmount()))
+                        .from(walletAddress))
+                .feePayer(walletAddress)
+                .build();
+        TxTemplate lock = TxTemplate.compile("lock", quickLock.call(), walletAddress, 1.0, utxoSupplier,
+                protocolParams);
+        Callable<Transaction> templateLock = () -> lock.instance()
+                .input(0, funds)
+                .outputValue(0, Value.fromCoin(randomAmount()))
+                .build();
+
+        // Claim: spend the script UTxO with a guess, like Htlc
+        Callable<Transaction> quickClaim = () -> quickTxBuilder
+                .compose(new ScriptTx()
+                        .collectFrom(locked, guess())
+                        .payToAddress(walletAddress, Amount.lovelace(BigInteger.valueOf(10_000_000)))
+                        .attachSpendingValidator(script))
+                .feePayer(walletAddress)
+                .collateralPayer(walletAddress)
+                .withRequiredSigners(wallet.getBaseAddress())
+                .validFrom(1_000)
+                .validTo(1_100)
+                .build();
+        TxTemplate claim = TxTemplate.compile("claim", quickClaim.call(), walletAddress, 1.1, utxoSupplier,
+                protocolParams);
+        Callable<Transaction> templateClaim = () -> claim.instance()
+                .redeemer(0, guess())
+                .validity(1_000, 1_100)
+                .build();
+
+        // Withdraw request: move the deposit to an output with the lock time, like Vault
+        Callable<Transaction> quickRequest = () -> quickTxBuilder
+                .compose(new ScriptTx()
+                        .collectFrom(locked, action(0))
+                        .payToContract(scriptAddress, Amount.lovelace(BigInteger.valueOf(10_000_000)), lockTimeDatum())
+                        .attachSpendingValidator(script)
+                        .withChangeAddress(scriptAddress))
+                .feePayer(walletAddress)
+                .collateralPayer(walletAddress)
+                .withRequiredSigners(wallet.getBaseAddress())
+                .validFrom(1_000)
+                .validTo(1_100)
+                .build();
+        Transaction requestPrototype = quickRequest.call();
+        TxTemplate request = TxTemplate.compile("request", requestPrototype, walletAddress, 1.1, utxoSupplier,
+                protocolParams);
+        int lockTimeOutput = outputTo(requestPrototype, scriptAddress);
+        Callable<Transaction> templateRequest = () -> request.instance()
+                .outputDatum(lockTimeOutput, lockTimeDatum())
+                .validity(1_000, 1_100)
+                .build();
+
+        // Finalize: pay a requested deposit back to the owner once the wait time passed
+        Callable<Transaction> quickFinalize = () -> quickTxBuilder
+                .compose(new ScriptTx()
+                        .collectFrom(requested.get(random.nextInt(requested.size())), action(1))
+                        .payToAddress(walletAddress, Amount.lovelace(BigInteger.valueOf(10_000_000)))
+                        .attachSpendingValidator(script)
+                        .withChangeAddress(scriptAddress))
+                .feePayer(walletAddress)
+                .collateralPayer(walletAddress)
+                .withRequiredSigners(wallet.getBaseAddress())
+                .validFrom(1_000)
+                .validTo(1_100)
+                .build();
+        Transaction finalizePrototype = quickFinalize.call();
+        TxTemplate finalize = TxTemplate.compile("finalize", finalizePrototype, walletAddress, 1.1, utxoSupplier,
+                protocolParams);
+        int requestInput = inputFrom(finalizePrototype, scriptAddress, utxoSupplier);
+        Callable<Transaction> templateFinalize = () -> finalize.instance()
+                .input(requestInput, requested.get(random.nextInt(requested.size())))
+                .validity(1_000, 1_100)
+                .build();
+
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+            compare("lock", quickLock, templateLock, measure);
+            compare("claim", quickClaim, templateClaim, measure);
+            compare("request", quickRequest, templateRequest, measure);
+            compare("finalize", quickFinalize, templateFinalize, measure);
+        }
+        verify(templateClaim.call(), quickClaim.call(), utxoSupplier);
+        verify(templateLock.call(), quickLock.call(), utxoSupplier);
+        verify(templateRequest.call(), quickRequest.call(), utxoSupplier);
+        verify(templateFinalize.call(), quickFinalize.call(), utxoSupplier);
+        lock.printStats();
+        claim.printStats();
+        request.printStats();
+        finalize.printStats();
+    }
+
+    private static void compare(String shape, Callable<Transaction> quick, Callable<Transaction> template,
+            boolean print) throws Exception {
+        long[] quickCost = measure(quick);
+        long[] templateCost = measure(template);
+        if (print)
+            System.out.println("%s: QuickTxBuilder %.3f ms / %d KB, template %.3f ms / %d KB per tx, %.1fx faster, %.1fx less allocated"
+                    .formatted(shape, quickCost[0] / 1e6, quickCost[1] / 1024, templateCost[0] / 1e6,
+                            templateCost[1] / 1024, (double) quickCost[0] / templateCost[0],
+                            (double) quickCost[1] / templateCost[1]));
+    }
+
+    // Nanoseconds and allocated bytes per transaction, including the serialisation for submission
+    private static long[] measure(Callable<Transaction> build) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            build.call().serialize();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        return new long[] { elapsed / iterations, allocated / iterations };
+    }
+
+    // The template must balance and must not pay noticeably more than QuickTxBuilder
+    private static void verify(Transaction instance, Transaction reference, UtxoSupplier utxoSupplier) {
+        BigInteger in = instance.getBody().getInputs().stream()
+                .map(input -> utxoSupplier.getTxOutput(input.getTransactionId(), input.getIndex()).orElseThrow())
+                .map(utxo -> utxo.toValue().getCoin())
+                .reduce(BigInteger.ZERO, BigInteger::add);
+        BigInteger out = instance.getBody().getOutputs().stream().map(TransactionOutput::getValue).map(Value::getCoin)
+                .reduce(BigInteger.ZERO, BigInteger::add);
+        if (!in.equals(out.add(instance.getBody().getFee())))
+            throw new AssertionError("Template instance is not balanced");
+        BigInteger overpaid = instance.getBody().getFee().subtract(reference.getBody().getFee());
+        System.out.println("Fee: QuickTxBuilder %s, template %s lovelace".formatted(reference.getBody().getFee(),
+                instance.getBody().getFee()));
+        if (overpaid.compareTo(BigInteger.valueOf(50_000)) > 0)
+            throw new AssertionError("Template instance pays %s lovelace more fee".formatted(overpaid));
+    }
+
+    private static BigInteger randomAmount() {
+        return BigInteger.valueOf(2_000_000L + random.nextInt(100_000_000));
+    }
+
+    private static int outputTo(Transaction transaction, String address) {
+        List<TransactionOutput> outputs = transaction.getBody().getOutputs();
+        for (int i = 0; i < outputs.size(); i++)
+            if (outputs.get(i).getAddress().equals(address))
+                return i;
+        throw new IllegalArgumentException("No output to " + address);
+    }
+
+    private static int inputFrom(Transaction transaction, String address, UtxoSupplier utxoSupplier) {
+        List<TransactionInput> inputs = transaction.getBody().getInputs();
+        for (int i = 0; i < inputs.size(); i++)
+            if (utxoSupplier.getTxOutput(inputs.get(i).getTransactionId(), inputs.get(i).getIndex()).orElseThrow()
+                    .getAddress().equals(address))
+                return i;
+        throw new IllegalArgumentException("No input from " + address);
+    }
+
+    // The vault redeemer, 0 requests the withdrawal and 1 finalizes it
+    private static PlutusData action(int alternative) {
+        return ConstrPlutusData.builder().alternative(alternative).data(ListPlutusData.of()).build();
+    }
+
+    private static PlutusData lockTimeDatum() {
+        return ConstrPlutusData.of(0, BigIntPlutusData.of(1_700_000_000_000L + random.nextInt(1_000_000)));
+    }
+
+    private static PlutusData guess() {
+        byte[] answer = new byte[16];
+        random.nextBytes(answer);
+        return ConstrPlutusData.of(0, BytesPlutusData.of(answer));
+    }
+
+    /**
+     * Returns the same ex-units for every redeemer instead of running the script.
+     */
+    static class FixedEvaluator implements TransactionProcessor {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Result<List<EvaluationResult>> evaluateTx(byte[] cbor, Set<Utxo> inputUtxos) throws ApiException {
+            try {
+                Transaction transaction = Transaction.deserialize(cbor);
+                List<EvaluationResult> results = new ArrayList<>();
+                for (Redeemer redeemer : transaction.getWitnessSet().getRedeemers())
+                    results.add(new EvaluationResult(RedeemerTag.Spend, redeemer.getIndex().intValue(), claimExUnits));
+                return Result.success("ok").withValue(results);
+            } catch (Exception e) {
+                throw new ApiException("Evaluation failed", e);
+            }
+        }
+
+        @Override
+        public Result<String> submitTransaction(byte[] cbor) {
+            throw new UnsupportedOperationException("The benchmark does not submit");
+        }
+    }
+}
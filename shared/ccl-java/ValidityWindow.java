@@ -0,0 +1,210 @@
+// @formatter:off
+//DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
+//DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
+// @formatter:on
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import com.bloxbean.cardano.client.api.exception.ApiException;
+import com.bloxbean.cardano.client.api.model.Result;
+import com.bloxbean.cardano.client.backend.api.BackendService;
+import com.bloxbean.cardano.client.backend.model.Block;
+import com.bloxbean.cardano.client.backend.model.TransactionContent;
+import com.bloxbean.cardano.client.quicktx.TxResult;
+
+/**
+ * Chooses transaction validity intervals from the observed submit-to-inclusion
+ * latency instead of a fixed {@code slot + 10}.
+ * <p>
+ * The upper bound is the current tip plus a high percentile of the recently
+ * measured latencies times a safety factor, so a loaded network automatically
+ * gets wider windows and an idle devnet keeps them tight. Both bounds are
+ * clamped to the time constraints of the validator, e.g. the HTLC expiration or
+ * the Vault lock time, which are given in POSIX milliseconds and converted to
+ * slots using the latest block and the slot length of the network, measured
+ * from the slots and times of two blocks.
+ */
+public class ValidityWindow {
+
+    /**
+     * A validity interval in slots together with the tip it was derived from.
+     */
+    public record Range(long validFrom, long validTo, long tipSlot) {
+    }
+
+    private final BackendService backendService;
+    private final long defaultLatencySlots;
+    private final long fixedWindowSlots;
+    private final double safetyFactor;
+    private final int historySize;
+    private final Deque<Long> latencies = new ArrayDeque<>();
+
+    // Assumed until the chain is long enough to measure the slot length
+    private static final double DEFAULT_SLOT_LENGTH_MILLIS = 1000;
+    // Blocks between the two blocks the slot length is measured from. Block times
+    // only have second resolution, so a long span keeps the error small.
+    private static final long SLOT_LENGTH_SPAN_BLOCKS = 1000;
+    // Never narrower than the shortest fixed window the examples used
+    private static final long MIN_WINDOW_SLOTS = 10;
+
+    private long includedTxs;
+    private long retriesSaved;
+    // 0 until measured over the full span
+    private volatile double slotLengthMillis;
+
+    public ValidityWindow(BackendService backendService) {
+        this(backendService, 10);
+    }
+
+    /**
+     * @param fixedWindowSlots The fixed window the example used before, e.g. 100
+     *                         for {@code slot + 100}.
+     */
+    public ValidityWindow(BackendService backendService, long fixedWindowSlots) {
+        this(backendService, 20, fixedWindowSlots, 2.0, 50);
+    }
+
+    /**
+     * @param backendService      The backend used to read the tip and the
+     *                            inclusion slot of transactions.
+     * @param defaultLatencySlots Latency assumed before anything was measured.
+     * @param fixedWindowSlots    The fixed window the example used before, only
+     *                            used to count how many retries the adaptive
+     *                            window saved.
+     * @param safetyFactor        Multiplier applied to the latency percentile.
+     * @param historySize         Number of recent measurements kept.
+     */
+    public ValidityWindow(BackendService backendService, long defaultLatencySlots, long fixedWindowSlots,
+            double safetyFactor, int historySize) {
+        this.backendService = backendService;
+        this.defaultLatencySlots = defaultLatencySlots;
+        this.fixedWindowSlots = fixedWindowSlots;
+        this.safetyFactor = safetyFactor;
+        this.historySize = historySize;
+    }
+
+    /**
+     * @return A window starting slightly before the tip, without any validator
+     *         constraints.
+     */
+    public Range next() throws ApiException {
+        return next(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns a window that respects the given validator time constraints.
+     *
+     * @param notBeforeMillis POSIX time the transaction must be valid after, e.g.
+     *                        an expiration for a refund or a lock time.
+     *                        {@code Long.MIN_VALUE} if unconstrained.
+     * @param notAfterMillis  POSIX time the transaction must be valid before,
+     *                        e.g. an expiration for a claim.
+     *                        {@code Long.MAX_VALUE} if unconstrained.
+     * @return The validity range to pass to {@code validFrom} and {@code validTo}.
+     * @throws IllegalStateException If the constraints leave no window.
+     */
+    public Range next(long notBeforeMillis, long notAfterMillis) throws ApiException {
+        Block tip = backendService.getBlockService().getLatestBlock().getValue();
+        long tipSlot = tip.getSlot();
+
+        // Allow a few slots before the tip to tolerate a backend lagging behind the node
+        long validFrom = tipSlot - 10;
+        long validTo = tipSlot + Math.max(MIN_WINDOW_SLOTS, (long) Math.ceil(latencyPercentile(0.95) * safetyFactor));
+
+        if (notBeforeMillis != Long.MIN_VALUE)
+            validFrom = Math.max(validFrom, slotAt(tip, notBeforeMillis) + 1);
+        if (notAfterMillis != Long.MAX_VALUE)
+            validTo = Math.min(validTo, slotAt(tip, notAfterMillis) - 1);
+
+        if (validFrom >= validTo)
+            throw new IllegalStateException("No validity window left between slot %d and %d at tip %d"
+                    .formatted(validFrom, validTo, tipSlot));
+        return new Range(validFrom, validTo, tipSlot);
+    }
+
+    /**
+     * Records the inclusion of a submitted transaction and updates the latency
+     * estimate.
+     *
+     * @param range  The range the transaction was built with.
+     * @param result The result of {@code completeAndWait()}.
+     */
+    public void recordInclusion(Range range, TxResult result) throws ApiException {
+        recordInclusion(range, result, fixedWindowSlots);
+    }
+
+    /**
+     * @param fixedWindowSlots The fixed window this transaction was built with
+     *                         before, if it differs from the one of the example.
+     */
+    public void recordInclusion(Range range, TxResult result, long fixedWindowSlots) throws ApiException {
+        if (!result.isSuccessful())
+            return;
+        Result<TransactionContent> tx = backendService.getTransactionService().getTransaction(result.getTxHash());
+        if (!tx.isSuccessful() || tx.getValue().getSlot() == null)
+            return;
+
+        long latency = Math.max(0, tx.getValue().getSlot() - range.tipSlot());
+        synchronized (latencies) {
+            latencies.addLast(latency);
+            if (latencies.size() > historySize)
+                latencies.removeFirst();
+            includedTxs++;
+            // With the fixed window this transaction would have expired and been rebuilt
+            if (latency > fixedWindowSlots)
+                retriesSaved++;
+        }
+    }
+
+    public long slotAt(long posixMillis) throws ApiException {
+        return slotAt(backendService.getBlockService().getLatestBlock().getValue(), posixMillis);
+    }
+
+    private long slotAt(Block tip, long posixMillis) throws ApiException {
+        return tip.getSlot() + (long) Math.floor((posixMillis - tip.getTime() * 1000) / slotLengthMillis(tip));
+    }
+
+    /**
+     * Measures the slot length from the tip and the block
+     * {@value #SLOT_LENGTH_SPAN_BLOCKS} blocks before it, so a devnet started
+     * with a different slot length gets the right windows. On a younger chain
+     * the first block after genesis is used and the measurement is repeated
+     * until the full span is available.
+     */
+    private double slotLengthMillis(Block tip) throws ApiException {
+        if (slotLengthMillis > 0)
+            return slotLengthMillis;
+        long height = Math.max(1, tip.getHeight() - SLOT_LENGTH_SPAN_BLOCKS);
+        Result<Block> earlier = backendService.getBlockService().getBlockByNumber(BigInteger.valueOf(height));
+        if (!earlier.isSuccessful() || earlier.getValue().getSlot() >= tip.getSlot())
+            return DEFAULT_SLOT_LENGTH_MILLIS;
+        double measured = (tip.getTime() - earlier.getValue().getTime()) * 1000.0
+                / (tip.getSlot() - earlier.getValue().getSlot());
+        if (measured <= 0)
+            return DEFAULT_SLOT_LENGTH_MILLIS;
+        if (height == tip.getHeight() - SLOT_LENGTH_SPAN_BLOCKS)
+            slotLengthMillis = measured;
+        return measured;
+    }
+
+    private double latencyPercentile(double percentile) {
+        long[] sorted;
+        synchronized (latencies) {
+            if (latencies.isEmpty())
+                return defaultLatencySlots;
+            sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    public void printStats() {
+        synchronized (latencies) {
+            System.out.println("Validity window: %d txs included, p95 latency %.0f slots, %d retries saved vs the fixed windows used before"
+                    .formatted(includedTxs, latencyPercentile(0.95), retriesSaved));
+        }
+    }
+}
@@ -7,6 +7,13 @@
 //DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
 //DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
 //DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ../../../shared/ccl-java/TxSubmitter.java
+//SOURCES ../../../shared/ccl-java/LedgerFixture.java
+//SOURCES ../../../shared/ccl-java/PerfHistory.java
+//SOURCES ../../../shared/ccl-java/Scenario.java
+//SOURCES ../../../shared/ccl-java/ScriptRegistry.java
+//SOURCES ../../../shared/ccl-java/TxOptimizer.java
+//SOURCES ../../../shared/ccl-java/RecordedBackend.java
 
 import com.bloxbean.cardano.aiken.AikenScriptUtil;
 import com.bloxbean.cardano.client.account.Account;
@@ -22,9 +29,7 @@ import com.bloxbean.cardano.client.backend.blockfrost.service.BFBackendService;
 import com.bloxbean.cardano.client.common.model.Network;
 import com.bloxbean.cardano.client.common.model.Networks;
 import com.bloxbean.cardano.client.function.helper.SignerProviders;
-import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
 import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
-import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusContractBlueprint;
 import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
 import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
 import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
@@ -42,7 +47,9 @@ public class SimpleTransfer {
 
         // Backend service to connect to Cardano node. Here we are using Blockfrost as
         // an example.
-        static BackendService backendService = new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key");
+        // Recorded to BACKEND_RECORD or replayed from BACKEND_REPLAY when set
+        static RecordedBackend backend = RecordedBackend.fromEnvironment(new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key"));
+        static BackendService backendService = backend.backendService();
         static UtxoSupplier utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
 
         // Dummy mnemonic for the example. Replace with a valid mnemonic.
@@ -57,54 +64,86 @@ public class SimpleTransfer {
         // In this example we are using the same address, but in a real scenario, you
         // might have a different address for the receiver.
         static Address receiverAddress = payee1.getBaseAddress();
+        static QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
+        // Step measurements, appended to the performance history in CI
+        static PerfHistory.Recorder perf = PerfHistory.recorder("simple-transfer", backendService);
+        // Trims the balanced transactions before signing, off with TX_OPTIMIZER=off
+        static TxOptimizer txOptimizer = TxOptimizer.fromEnvironment();
+        // Restores the locked funds of an earlier run instead of locking them again
+        static LedgerFixture fixture = LedgerFixture.of("simple-transfer", backendService);
+
+        public static void main(String[] args) throws InterruptedException {
+                Scenario scenario = new Scenario("simple-transfer");
+                Scenario.Step<PlutusScript> script = scenario.step("script", SimpleTransfer::getParametrisedPlutusScript);
+                // Locking 10 Ada to the contract address
+                Scenario.Step<TxResult> lock = scenario.step("lock", () -> lockFunds(script.get(), 10))
+                                .after(script);
+                // Paying 5 Ada to the receiver address and leaving the remaining amount as
+                // change in the script
+                Scenario.Step<TxResult> unlock = scenario.step("unlock", () -> unlockFunds(script.get(), 5))
+                                .after(lock);
+                scenario.run();
+
+                TxResult txResult = lock.get();
+                System.out.println("Funds locked. TxHash:");
+                System.out.println(txResult.getTxHash());
+                TxResult txResult1 = unlock.get();
+                System.out.println("Funds withdrawn. TxHash:");
+                System.out.println(txResult1.getTxHash());
 
-        public static void main(String[] args) throws ApiException {
-                PlutusContractBlueprint plutusContractBlueprint = PlutusBlueprintLoader
-                                .loadBlueprint(new File("../../onchain/aiken/plutus.json"));
-                String simpleTransferCompiledCode = plutusContractBlueprint.getValidators().getFirst()
-                                .getCompiledCode();
+                // Verify transactions succeeded
+                scenario.printStats();
+                txOptimizer.printStats();
+                backend.printStats();
+                fixture.printStats();
+                perf.record("scenario", "wall_ms", scenario.wallMillis());
+                perf.record("optimizer", "size_bytes", txOptimizer.sizeBytes());
+                perf.record("optimizer", "fee_lovelace", txOptimizer.feeLovelace().doubleValue());
+                perf.close();
+                if (!txResult.isSuccessful() || !txResult1.isSuccessful())
+                        throw new AssertionError("SimpleTransfer CCL test failed");
+        }
+
+        private static PlutusScript getParametrisedPlutusScript() {
+                // Mapped from the packed script registry when SCRIPT_REGISTRY is set
+                String simpleTransferCompiledCode = ScriptRegistry.compiledCode("simple-transfer",
+                                new File("../../onchain/aiken/plutus.json"));
 
                 // Apply parameters to the validator compiled code to get the compiled code
                 String compiledCode = AikenScriptUtil.applyParamToScript(
                                 ListPlutusData.of(BytesPlutusData.of(receiverAddress.getPaymentCredentialHash().get())),
                                 simpleTransferCompiledCode);
 
-                PlutusScript plutusScript = PlutusBlueprintUtil.getPlutusScriptFromCompiledCode(compiledCode,
-                                PlutusVersion.v3);
-                Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
-
-                QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
+                return PlutusBlueprintUtil.getPlutusScriptFromCompiledCode(compiledCode, PlutusVersion.v3);
+        }
 
-                // Locking 10 Ada to the contract address
-                Tx tx = new Tx().payToAddress(scriptAddress.getAddress(), Amount.ada(10))
+        private static TxResult lockFunds(PlutusScript plutusScript, int adaAmount) throws InterruptedException {
+                Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
+                Tx tx = new Tx().payToAddress(scriptAddress.getAddress(), Amount.ada(adaAmount))
                                 .withChangeAddress(ownerAddress.getAddress())
                                 .from(ownerAddress.getAddress());
-                TxResult txResult = quickTxBuilder.compose(tx)
-                                .feePayer(ownerAddress.getAddress())
-                                .withSigner(SignerProviders.signerFrom(payee1))
-                                .completeAndWait();
-                System.out.println("Funds locked. TxHash:");
-                System.out.println(txResult.getTxHash());
+                return perf.tx("lock", () -> fixture.setup("lock",
+                                attempt -> TxSubmitter.SignedTx.of(quickTxBuilder.compose(tx)
+                                                .feePayer(ownerAddress.getAddress())
+                                                .postBalanceTx(txOptimizer.pass("lock", ownerAddress.getAddress()))
+                                                .withSigner(SignerProviders.signerFrom(payee1))
+                                                .buildAndSign())));
+        }
 
+        private static TxResult unlockFunds(PlutusScript plutusScript, int adaAmount) throws ApiException {
+                Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
                 // Getting all utxos from the script address
                 List<Utxo> allScriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
-                // Paying 5 Ada to the receiver address and leaving the remaining amount as
-                // change in the script
                 ScriptTx scriptTx1 = new ScriptTx()
                                 .collectFrom(allScriptUtxos, PlutusData.unit())
-                                .payToAddress(receiverAddress.getAddress(), Amount.ada(5))
+                                .payToAddress(receiverAddress.getAddress(), Amount.ada(adaAmount))
                                 .attachSpendingValidator(plutusScript)
                                 .withChangeAddress(scriptAddress.getAddress());
-                TxResult txResult1 = quickTxBuilder.compose(scriptTx1)
+                return perf.tx("unlock", () -> quickTxBuilder.compose(scriptTx1)
                                 .feePayer(ownerAddress.getAddress())
+                                .postBalanceTx(txOptimizer.pass("unlock", ownerAddress.getAddress()))
                                 .withSigner(SignerProviders.signerFrom(payee1))
                                 .withRequiredSigners(ownerAddress)
-                                .completeAndWait();
-                System.out.println("Funds withdrawn. TxHash:");
-                System.out.println(txResult1.getTxHash());
-
-                // Verify transactions succeeded
-                if (!txResult.isSuccessful() || !txResult1.isSuccessful())
-                        throw new AssertionError("SimpleTransfer CCL test failed");
+                                .completeAndWait());
         }
 }
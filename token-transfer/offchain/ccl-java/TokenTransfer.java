@@ -8,6 +8,15 @@
 //DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
 //DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
 //DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ../../../shared/ccl-java/MultiAssetValue.java
+//SOURCES ../../../shared/ccl-java/IndexedUtxoSelectionStrategy.java
+//SOURCES ../../../shared/ccl-java/TxSubmitter.java
+//SOURCES ../../../shared/ccl-java/LedgerFixture.java
+//SOURCES ../../../shared/ccl-java/PerfHistory.java
+//SOURCES ../../../shared/ccl-java/Scenario.java
+//SOURCES ../../../shared/ccl-java/ScriptRegistry.java
+//SOURCES ../../../shared/ccl-java/TxOptimizer.java
+//SOURCES ../../../shared/ccl-java/RecordedBackend.java
 // @formatter:on
 
 import java.io.File;
@@ -29,9 +38,7 @@ import com.bloxbean.cardano.client.common.model.Networks;
 import com.bloxbean.cardano.client.exception.CborSerializationException;
 import com.bloxbean.cardano.client.function.helper.ScriptUtxoFinders;
 import com.bloxbean.cardano.client.function.helper.SignerProviders;
-import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
 import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
-import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusContractBlueprint;
 import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
 import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
 import com.bloxbean.cardano.client.plutus.spec.ListPlutusData;
@@ -48,7 +55,9 @@ public class TokenTransfer {
         private static final String ASSET_NAME = "TestAsset";
         // Backend service to connect to Cardano node. Here we are using Blockfrost as
         // an example.
-        static BackendService backendService = new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key");
+        // Recorded to BACKEND_RECORD or replayed from BACKEND_REPLAY when set
+        static RecordedBackend backend = RecordedBackend.fromEnvironment(new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key"));
+        static BackendService backendService = backend.backendService();
         static UtxoSupplier utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
         // Dummy mnemonic for the example. Replace with a valid mnemonic.
         static String mnemonic = "test test test test test test test test test test test test test test test test test test test test test test test sauce";
@@ -61,40 +70,87 @@ public class TokenTransfer {
                         .type("PlutusScriptV3")
                         .cborHex("46450101002499")
                         .build();
+        // Step measurements, appended to the performance history in CI
+        static PerfHistory.Recorder perf = PerfHistory.recorder("token-transfer", backendService);
+        // Trims the balanced transactions before signing, off with TX_OPTIMIZER=off
+        static TxOptimizer txOptimizer = TxOptimizer.fromEnvironment();
+        // Restores the minted tokens of an earlier run instead of minting them again
+        static LedgerFixture fixture = LedgerFixture.of("token-transfer", backendService);
+        // Wallet UTxOs indexed by asset, shared by all transactions of the wallet
+        static IndexedUtxoSelectionStrategy selectionStrategy = new IndexedUtxoSelectionStrategy(utxoSupplier);
 
-        public static void main(String[] args) throws CborSerializationException {
+        public static void main(String[] args) throws InterruptedException {
                 System.out.println("Token Transfer Example");
 
+                Scenario scenario = new Scenario("token-transfer");
                 // Apply parameters to the validator compiled code to get the compiled code
-                PlutusScript plutusScript = createParametrizedContract();
-                Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
-                System.out.println("Script Address: " + scriptAddress.getAddress());
+                Scenario.Step<PlutusScript> contract = scenario.step("contract",
+                                TokenTransfer::createParametrizedContract);
+                Scenario.Step<TxResult> mint = scenario.step("mint",
+                                () -> mintTokens(AddressProvider.getEntAddress(contract.get(), network)))
+                                .after(contract);
+                Scenario.Step<TxResult> transfer = scenario.step("transfer", () -> transferTokens(contract.get()))
+                                .after(mint);
+                scenario.run();
 
-                TxResult mintTokens = mintTokens(scriptAddress);
+                TxResult mintTokens = mint.get();
                 System.out.println("Minted Asset. TxHash: " + mintTokens.getTxHash());
+                TxResult completeAndWait = transfer.get();
+                System.out.println("TxHash: " + completeAndWait.getTxHash());
+                System.out.println("Transferred Asset to " + payee1.getBaseAddress().getAddress());
 
-                // Unlocking the tokens from the script address and sending them to the payee1
+                // Verify transactions succeeded
+                scenario.printStats();
+                txOptimizer.printStats();
+                backend.printStats();
+                fixture.printStats();
+                perf.record("scenario", "wall_ms", scenario.wallMillis());
+                perf.record("optimizer", "size_bytes", txOptimizer.sizeBytes());
+                perf.record("optimizer", "fee_lovelace", txOptimizer.feeLovelace().doubleValue());
+                perf.close();
+                if (!mintTokens.isSuccessful() || !completeAndWait.isSuccessful())
+                        throw new AssertionError("TokenTransfer CCL test failed");
+        }
+
+        /**
+         * Unlocks the minted tokens from the script address and sends them to payee1.
+         *
+         * @param plutusScript The parametrized contract holding the tokens.
+         * @return TxResult containing the transaction result.
+         * @throws CborSerializationException
+         */
+        private static TxResult transferTokens(PlutusScript plutusScript) throws CborSerializationException {
+                Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
+                System.out.println("Script Address: " + scriptAddress.getAddress());
                 List<Utxo> mintUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
                 Utxo mintUtxo = mintUtxos.get(0);
                 String unit = alwaysTrueScript.getPolicyId() + "" + HexUtil.encodeHexString(ASSET_NAME.getBytes());
+                // Decoded once into an index, instead of comparing unit strings of every amount
+                BigInteger quantity = MultiAssetValue.of(mintUtxo.getAmount())
+                                .get(alwaysTrueScript.getPolicyId(), ASSET_NAME.getBytes());
                 ScriptTx tx = new ScriptTx()
                                 .collectFrom(mintUtxo, PlutusData.unit())
-                                .payToAddress(payee1.getBaseAddress().getAddress(),
-                                                mintUtxo.getAmount().stream().filter(a -> a.getUnit().equals(unit))
-                                                                .toList())
+                                .payToAddress(payee1.getBaseAddress().getAddress(), Amount.asset(unit, quantity))
                                 .attachSpendingValidator(plutusScript)
                                 .withChangeAddress(payee1.baseAddress());
-                TxResult completeAndWait = quickTxBuilder.compose(tx)
-                                .withSigner(SignerProviders.signerFrom(payee1))
-                                .withRequiredSigners(payee1.getBaseAddress())
-                                .feePayer(payee1.baseAddress())
-                                .completeAndWait();
-                System.out.println("TxHash: " + completeAndWait.getTxHash());
-                System.out.println("Transferred Asset to " + payee1.getBaseAddress().getAddress());
-
-                // Verify transactions succeeded
-                if (!mintTokens.isSuccessful() || !completeAndWait.isSuccessful())
-                        throw new AssertionError("TokenTransfer CCL test failed");
+                TxResult transfer;
+                try {
+                        transfer = perf.tx("transfer", () -> quickTxBuilder.compose(tx)
+                                        .withUtxoSelectionStrategy(selectionStrategy)
+                                        .withSigner(SignerProviders.signerFrom(payee1))
+                                        .withRequiredSigners(payee1.getBaseAddress())
+                                        .feePayer(payee1.baseAddress())
+                                        .postBalanceTx(txOptimizer.pass("transfer", payee1.baseAddress()))
+                                        .completeAndWait());
+                } catch (RuntimeException e) {
+                        // Nothing was submitted, release the inputs the build reserved
+                        selectionStrategy.invalidate();
+                        throw e;
+                }
+                // The inputs of a rejected transaction are either spent or free again, start over from the supplier
+                if (!transfer.isSuccessful())
+                        selectionStrategy.invalidate();
+                return transfer;
         }
 
         /**
@@ -105,18 +161,20 @@ public class TokenTransfer {
          *                      minted.
          * @return TxResult containing the transaction result.
          */
-        private static TxResult mintTokens(Address scriptAddress) {
+        private static TxResult mintTokens(Address scriptAddress) throws InterruptedException {
                 ScriptTx mintTx = new ScriptTx()
                                 .mintAsset(alwaysTrueScript, new Asset(ASSET_NAME, BigInteger.valueOf(10)),
                                                 PlutusData.unit(), scriptAddress.getAddress())
 
                                 .withChangeAddress(payee1.baseAddress());
-                TxResult mintTokens = quickTxBuilder.compose(mintTx)
-                                .withSigner(SignerProviders.signerFrom(payee1))
-                                .withRequiredSigners(payee1.getBaseAddress())
-                                .mergeOutputs(true)
-                                .feePayer(payee1.baseAddress())
-                                .completeAndWait();
+                TxResult mintTokens = perf.tx("mint", () -> fixture.setup("mint",
+                                attempt -> TxSubmitter.SignedTx.of(quickTxBuilder.compose(mintTx)
+                                                .withSigner(SignerProviders.signerFrom(payee1))
+                                                .withRequiredSigners(payee1.getBaseAddress())
+                                                .mergeOutputs(true)
+                                                .feePayer(payee1.baseAddress())
+                                                .postBalanceTx(txOptimizer.pass("mint", payee1.baseAddress()))
+                                                .buildAndSign())));
                 return mintTokens;
         }
 
@@ -130,10 +188,9 @@ public class TokenTransfer {
          * @throws CborSerializationException
          */
         private static PlutusScript createParametrizedContract() throws CborSerializationException {
-                PlutusContractBlueprint plutusContractBlueprint = PlutusBlueprintLoader
-                                .loadBlueprint(new File("../../onchain/aiken/plutus.json"));
-                String simpleTransferCompiledCode = plutusContractBlueprint.getValidators().getFirst()
-                                .getCompiledCode();
+                // Mapped from the packed script registry when SCRIPT_REGISTRY is set
+                String simpleTransferCompiledCode = ScriptRegistry.compiledCode("token-transfer",
+                                new File("../../onchain/aiken/plutus.json"));
 
                 String compiledCode = AikenScriptUtil.applyParamToScript(
                                 ListPlutusData.of(
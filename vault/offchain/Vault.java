@@ -8,11 +8,22 @@
 //DEPS com.bloxbean.cardano:cardano-client-lib:0.7.0-beta2
 //DEPS com.bloxbean.cardano:cardano-client-backend-blockfrost:0.7.0-beta2
 //DEPS com.bloxbean.cardano:aiken-java-binding:0.1.0
+//SOURCES ../../shared/ccl-java/ValidityWindow.java
+//SOURCES ../../shared/ccl-java/Scenario.java
+//SOURCES ../../shared/ccl-java/TxSubmitter.java
+//SOURCES ../../shared/ccl-java/TxTemplate.java
+//SOURCES ../../shared/ccl-java/LedgerFixture.java
+//SOURCES ../../shared/ccl-java/ScriptRegistry.java
+//SOURCES ../../shared/ccl-java/TxOptimizer.java
+//SOURCES ../../shared/ccl-java/RecordedBackend.java
 // @formatter:on
 
 import java.io.File;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import com.bloxbean.cardano.aiken.AikenScriptUtil;
 import com.bloxbean.cardano.client.account.Account;
@@ -21,6 +32,7 @@ import com.bloxbean.cardano.client.address.AddressProvider;
 import com.bloxbean.cardano.client.api.UtxoSupplier;
 import com.bloxbean.cardano.client.api.exception.ApiException;
 import com.bloxbean.cardano.client.api.model.Amount;
+import com.bloxbean.cardano.client.api.model.ProtocolParams;
 import com.bloxbean.cardano.client.api.model.Utxo;
 import com.bloxbean.cardano.client.backend.api.BackendService;
 import com.bloxbean.cardano.client.backend.api.DefaultUtxoSupplier;
@@ -28,9 +40,7 @@ import com.bloxbean.cardano.client.backend.blockfrost.service.BFBackendService;
 import com.bloxbean.cardano.client.common.model.Network;
 import com.bloxbean.cardano.client.common.model.Networks;
 import com.bloxbean.cardano.client.function.helper.SignerProviders;
-import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintLoader;
 import com.bloxbean.cardano.client.plutus.blueprint.PlutusBlueprintUtil;
-import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusContractBlueprint;
 import com.bloxbean.cardano.client.plutus.blueprint.model.PlutusVersion;
 import com.bloxbean.cardano.client.plutus.spec.BigIntPlutusData;
 import com.bloxbean.cardano.client.plutus.spec.BytesPlutusData;
@@ -43,12 +53,15 @@ import com.bloxbean.cardano.client.quicktx.QuickTxBuilder.TxContext;
 import com.bloxbean.cardano.client.quicktx.ScriptTx;
 import com.bloxbean.cardano.client.quicktx.Tx;
 import com.bloxbean.cardano.client.quicktx.TxResult;
+import com.bloxbean.cardano.client.transaction.spec.Transaction;
 
 public class Vault {
 
     // Backend service to connect to Cardano node. Here we are using Blockfrost as
     // an example.
-    static BackendService backendService = new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key");
+    // Recorded to BACKEND_RECORD or replayed from BACKEND_REPLAY when set
+    static RecordedBackend backend = RecordedBackend.fromEnvironment(new BFBackendService("http://localhost:8080/api/v1/", "Dummy Key"));
+    static BackendService backendService = backend.backendService();
     static UtxoSupplier utxoSupplier = new DefaultUtxoSupplier(backendService.getUtxoService());
 
     // Dummy mnemonic for the example. Replace with a valid mnemonic.
@@ -64,87 +77,159 @@ public class Vault {
     // In this example we are using the same address, but in a real scenario, you
     // might have a different address for the receiver.
     static QuickTxBuilder quickTxBuilder = new QuickTxBuilder(backendService);
+    // Trims the balanced transactions before signing, off with TX_OPTIMIZER=off
+    static TxOptimizer txOptimizer = TxOptimizer.fromEnvironment();
+    // Validity ranges are derived from the measured confirmation latency, instead of slot + 100 before
+    static ValidityWindow validityWindow = new ValidityWindow(backendService, 100);
+    // Submits the withdraw request and finalize and builds them again when they are not confirmed
+    static TxSubmitter txSubmitter = TxSubmitter.of(backendService);
+    // The withdraw request and finalize, compiled on their first attempt
+    static List<TxTemplate> templates = new ArrayList<>();
+    // Restores the deposit of an earlier run instead of paying to the vault again
+    static LedgerFixture fixture = LedgerFixture.of("vault", backendService);
+    // Milliseconds to wait after the withdraw request before the withdraw can be finalized
+    static long waitTime = 10_000;
     static PlutusScript plutusScript = getParametrisedPlutusScript();
     static Address scriptAddress = AddressProvider.getEntAddress(plutusScript, network);
 
+    /**
+     * A withdraw request together with the lock time stored in its datum.
+     */
+    record WithdrawRequest(long lockTime, TxResult result) {
+    }
+
     public static void main(String[] args) throws InterruptedException, ApiException {
         System.out.println("Owner Address: " + ownerAddress.getAddress());
         System.out.println("Script Address: " + scriptAddress.getAddress());
 
+        Scenario scenario = new Scenario("vault", backend.clock());
         // First pay some money to the vault
+        Scenario.Step<TxResult> deposit = scenario.step("deposit", () -> payToVault(10));
+        Scenario.Step<WithdrawRequest> request = scenario.step("withdraw-request", Vault::requestWithdraw)
+                .after(deposit);
+        // Finalizing is only allowed once the wait time after the lock time has passed
+        Scenario.Step<TxResult> finalize = scenario.step("finalize-withdraw",
+                () -> finalizeWithdraw(request.get().lockTime()))
+                .after(request)
+                .notBefore(() -> request.get().lockTime() + waitTime);
+        scenario.run();
+
+        System.out.println("Pay to vault tx: " + deposit.get().getTxHash());
+        System.out.println("Withdraw request tx: " + request.get().result().getTxHash());
+        TxResult finalizeWithdrawResult = finalize.get();
+        System.out.println("Finalize withdraw tx: " + finalizeWithdrawResult.getTxHash());
+        validityWindow.printStats();
+        txSubmitter.printStats();
+        templates.forEach(TxTemplate::printStats);
+        scenario.printStats();
+        txOptimizer.printStats();
+        backend.printStats();
+        fixture.printStats();
+
+        if (!finalizeWithdrawResult.isSuccessful())
+            throw new AssertionError("Withdrawal failed : " + finalizeWithdrawResult);
+
+    }
+
+    private static TxResult payToVault(int adaAmount) throws InterruptedException {
         Tx payToVaultTx = new Tx()
-                .payToAddress(scriptAddress.getAddress(), Amount.ada(10))
+                .payToAddress(scriptAddress.getAddress(), Amount.ada(adaAmount))
                 .from(ownerAddress.getAddress());
-        TxResult payToVaultTxResult = quickTxBuilder.compose(payToVaultTx)
-                .withSigner(SignerProviders.signerFrom(owner))
-                .feePayer(ownerAddress.getAddress())
-                .completeAndWait();
-        System.out.println("Pay to vault tx: " + payToVaultTxResult.getTxHash());
-
-        List<Utxo> allScriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
-        allScriptUtxos = allScriptUtxos.stream().filter(utxo -> utxo.getInlineDatum() == null).toList();
-        System.out.println("Script Utxos without datum: " + allScriptUtxos);
-        long lockTime = System.currentTimeMillis() - 1000;
-        ScriptTx withDrawRequestTx = new ScriptTx()
-                .collectFrom(allScriptUtxos.getFirst(), ConstrPlutusData.builder().alternative(0).data(ListPlutusData.of()).build()) // 0 = Request to withdraw
-                .payToContract(scriptAddress.getAddress(), Amount.ada(10), ConstrPlutusData.builder()
-                        .alternative(0)
-                        .data(ListPlutusData.of(BigIntPlutusData.of(lockTime)))
-                        .build())
-                .attachSpendingValidator(plutusScript)
-                .withChangeAddress(scriptAddress.getAddress());
-        long slot = backendService.getBlockService().getLatestBlock().getValue().getSlot();
-       TxResult withdrawRequestResult = quickTxBuilder.compose(withDrawRequestTx)
-                .withRequiredSigners(ownerAddress)
+        return fixture.setup("deposit", attempt -> TxSubmitter.SignedTx.of(quickTxBuilder.compose(payToVaultTx)
                 .withSigner(SignerProviders.signerFrom(owner))
                 .feePayer(ownerAddress.getAddress())
-                .validFrom(slot)
-                .validTo(slot + 100)
-                .completeAndWait();
-        System.out.println("Withdraw request tx: " + withdrawRequestResult.getTxHash());
-
-        // Wait for some time (more than the lock time set in the datum)
-        System.out.println("Waiting for 15 seconds before finalizing the withdraw...");
-        Thread.sleep(15 * 1000);
-        allScriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
-        allScriptUtxos = allScriptUtxos.stream().filter(utxo -> utxo.getInlineDatum() != null).toList();
-        System.out.println("Script Utxos with datum: " + allScriptUtxos);
-        ScriptTx finalizeWithDrawTx = new ScriptTx()
-                .collectFrom(allScriptUtxos.getFirst(),
-                                        ConstrPlutusData.builder().alternative(1)
-                                                        .data(ListPlutusData.of())
-                                                        .build()) // 1 = Finalize withdraw
-                .payToAddress(ownerAddress.getAddress(), Amount.ada(10))
-                .attachSpendingValidator(plutusScript)
-                .withChangeAddress(scriptAddress.getAddress());
-        slot = backendService.getBlockService().getLatestBlock().getValue().getSlot();
-        TxResult finalizeWithdrawResult = quickTxBuilder.compose(finalizeWithDrawTx)
-                .withRequiredSigners(ownerAddress)
-                .withSigner(SignerProviders.signerFrom(owner))
-                .feePayer(ownerAddress.getAddress())
-                .validFrom(slot)
-                .validTo(slot + 100)
-                .completeAndWait();
-        System.out.println("Finalize withdraw tx: " + finalizeWithdrawResult.getTxHash());
+                .postBalanceTx(txOptimizer.pass("deposit", ownerAddress.getAddress()))
+                .buildAndSign()));
+    }
 
-        if (!finalizeWithdrawResult.isSucessful())
-            throw new AssertionError("Withdrawal failed : " + finalizeWithdrawResult);
+    private static WithdrawRequest requestWithdraw() throws ApiException, InterruptedException {
+        long lockTime = backend.currentTimeMillis() - 1000;
+        // The script UTxO is looked up again for every build
+        Supplier<ScriptTx> withDrawRequestTx = () -> {
+            List<Utxo> allScriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
+            allScriptUtxos = allScriptUtxos.stream().filter(utxo -> utxo.getInlineDatum() == null).toList();
+            System.out.println("Script Utxos without datum: " + allScriptUtxos);
+            return new ScriptTx()
+                    .collectFrom(allScriptUtxos.getFirst(), ConstrPlutusData.builder().alternative(0).data(ListPlutusData.of()).build()) // 0 = Request to withdraw
+                    .payToContract(scriptAddress.getAddress(), Amount.ada(10), ConstrPlutusData.builder()
+                            .alternative(0)
+                            .data(ListPlutusData.of(BigIntPlutusData.of(lockTime)))
+                            .build())
+                    .attachSpendingValidator(plutusScript)
+                    .withChangeAddress(scriptAddress.getAddress());
+        };
+        // The request must be valid after the lock time stored in the datum
+        return new WithdrawRequest(lockTime, submit("withdraw-request", withDrawRequestTx, lockTime));
+    }
+
+    private static TxResult finalizeWithdraw(long lockTime) throws ApiException, InterruptedException {
+        // The script UTxO is looked up again for every build
+        Supplier<ScriptTx> finalizeWithDrawTx = () -> {
+            List<Utxo> allScriptUtxos = utxoSupplier.getAll(scriptAddress.getAddress());
+            allScriptUtxos = allScriptUtxos.stream().filter(utxo -> utxo.getInlineDatum() != null).toList();
+            System.out.println("Script Utxos with datum: " + allScriptUtxos);
+            return new ScriptTx()
+                    .collectFrom(allScriptUtxos.getFirst(),
+                                            ConstrPlutusData.builder().alternative(1)
+                                                            .data(ListPlutusData.of())
+                                                            .build()) // 1 = Finalize withdraw
+                    .payToAddress(ownerAddress.getAddress(), Amount.ada(10))
+                    .attachSpendingValidator(plutusScript)
+                    .withChangeAddress(scriptAddress.getAddress());
+        };
+        return submit("finalize-withdraw", finalizeWithDrawTx, lockTime + waitTime);
+    }
 
+    /**
+     * Builds the script transaction with QuickTxBuilder on the first attempt and
+     * compiles it into a template. An attempt after a missed validity range or a
+     * dropped transaction only instantiates the template with a new range, without
+     * another coin selection or script evaluation, as long as the inputs of the
+     * prototype, including the owner's fee and collateral UTxOs, are unspent.
+     * Once one of them is spent the transaction is built and compiled again from
+     * the current UTxOs, so the script transaction is created by the supplier for
+     * every build instead of once with a script UTxO that may be spent by then.
+     */
+    private static TxResult submit(String name, Supplier<ScriptTx> scriptTx, long notBeforeMillis)
+            throws ApiException, InterruptedException {
+        ProtocolParams protocolParams = backendService.getEpochService().getProtocolParameters().getValue();
+        AtomicReference<TxTemplate> template = new AtomicReference<>();
+        AtomicReference<ValidityWindow.Range> range = new AtomicReference<>();
+        TxSubmitter.Outcome outcome = txSubmitter.submit(attempt -> {
+            range.set(validityWindow.next(notBeforeMillis, Long.MAX_VALUE));
+            if (template.get() == null || attempt > 1 && !template.get().isSpendable(utxoSupplier)) {
+                Transaction prototype = quickTxBuilder.compose(scriptTx.get())
+                        .withRequiredSigners(ownerAddress)
+                        .feePayer(ownerAddress.getAddress())
+                        .postBalanceTx(txOptimizer.pass(name, ownerAddress.getAddress()))
+                        .validFrom(range.get().validFrom())
+                        .validTo(range.get().validTo())
+                        .build();
+                template.set(TxTemplate.compile(name, prototype, ownerAddress.getAddress(), 1.1, utxoSupplier,
+                        protocolParams));
+                templates.add(template.get());
+            }
+            return TxSubmitter.SignedTx.of(template.get().instance()
+                    .validity(range.get().validFrom(), range.get().validTo())
+                    .buildAndSign(SignerProviders.signerFrom(owner)));
+        });
+        TxResult result = outcome.toTxResult();
+        validityWindow.recordInclusion(range.get(), result);
+        return result;
     }
 
     private static PlutusScript getParametrisedPlutusScript() {
-        PlutusContractBlueprint plutusContractBlueprint = PlutusBlueprintLoader
-                .loadBlueprint(new File("vault/onchain/aiken/plutus.json"));
-        String simpleTransferCompiledCode = plutusContractBlueprint.getValidators().getFirst()
-                .getCompiledCode();
+        // Mapped from the packed script registry when SCRIPT_REGISTRY is set
+        String simpleTransferCompiledCode = ScriptRegistry.compiledCode("vault",
+                new File("vault/onchain/aiken/plutus.json"));
 
-        long expiration = System.currentTimeMillis();// + 10 * 1000; // Set expiration time to 10 seconds from now
+        long expiration = backend.currentTimeMillis();// + 10 * 1000; // Set expiration time to 10 seconds from now
         System.out.println("Expiration time (epoch seconds): " + expiration);
         // Apply parameters to the validator compiled code to get the compiled code
         String compiledCode = AikenScriptUtil.applyParamToScript(
                 ListPlutusData.of(
                         BytesPlutusData.of(owner.getBaseAddress().getPaymentCredentialHash().get()),
-                        BigIntPlutusData.of(10000) // milliseconds to wait after allowing to finalize the withdraw from the vault - 10 seconds
+                        BigIntPlutusData.of(waitTime) // milliseconds to wait after allowing to finalize the withdraw from the vault - 10 seconds
                 ), simpleTransferCompiledCode);
 
         PlutusScript plutusScript = PlutusBlueprintUtil.getPlutusScriptFromCompiledCode(compiledCode,